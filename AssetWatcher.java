@@ -0,0 +1,169 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tells listeners when files change on disk, so assets can be reloaded while the program runs.
+ * The directories of the watched files are registered with a WatchService, and a daemon thread
+ * waits for its events. Tools rarely save a file in one write: they write it in pieces, or write
+ * a new file and rename it over the old one. So a listener is only called once its file has
+ * been quiet for QUIET_MILLIS, and exists, which makes a burst of events a single call.
+ * <p>
+ * Listeners run on the watcher thread and should only start work elsewhere, such as decoding
+ * on a worker pool, and leave anything GL to the GL thread.
+ */
+public class AssetWatcher {
+
+  private static final long QUIET_MILLIS = 300; // since the last event before a file counts
+
+  private final WatchService service;
+  private final Map<Path, List<Runnable>> listeners = new HashMap<>(); // by absolute path
+  private final Set<Path> directories = new HashSet<>();
+  private final Map<Path, Long> changed = new HashMap<>(); // the time of each file's last event
+  private final Thread thread;
+
+  AssetWatcher() throws IOException {
+    service = FileSystems.getDefault().newWatchService();
+    thread = new Thread(this::run, "asset watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Calls listener, on the watcher thread, each time file has changed. */
+  public synchronized void watch(File file, Runnable listener) throws IOException {
+    Path path = file.toPath().toAbsolutePath().normalize();
+    Path directory = path.getParent();
+    if (directories.add(directory))
+      directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_MODIFY);
+    listeners.computeIfAbsent(path, p -> new ArrayList<>()).add(listener);
+  }
+
+  /** Stops watching. No listener is called after this returns. */
+  public void close() {
+    thread.interrupt();
+    try {
+      service.close();
+    } catch (IOException ignored) {
+    }
+    try {
+      thread.join(1000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    try {
+      while (true) {
+        WatchKey key = changed.isEmpty() ? service.take()
+            : service.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+        if (key != null) {
+          Path directory = (Path) key.watchable();
+          for (WatchEvent<?> event : key.pollEvents())
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+              changedAll(directory);
+            else
+              changed(directory.resolve((Path) event.context()));
+          key.reset();
+        }
+        notifyQuiet();
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // closed
+    }
+  }
+
+  private synchronized void changed(Path path) {
+    if (listeners.containsKey(path))
+      changed.put(path, System.nanoTime());
+  }
+
+  /** Some events were lost, so any file in the directory may have changed. */
+  private synchronized void changedAll(Path directory) {
+    for (Path path : listeners.keySet())
+      if (path.getParent().equals(directory))
+        changed.put(path, System.nanoTime());
+  }
+
+  /** Calls the listeners of the files that have been quiet long enough. */
+  private void notifyQuiet() {
+    List<Runnable> ready = new ArrayList<>();
+    synchronized (this) {
+      long now = System.nanoTime();
+      for (Iterator<Map.Entry<Path, Long>> i = changed.entrySet().iterator(); i.hasNext();) {
+        Map.Entry<Path, Long> entry = i.next();
+        if (now - entry.getValue() < TimeUnit.MILLISECONDS.toNanos(QUIET_MILLIS))
+          continue;
+        i.remove();
+        if (Files.isRegularFile(entry.getKey())) // not deleted, or not yet renamed into place
+          ready.addAll(listeners.get(entry.getKey()));
+      }
+    }
+    for (Runnable listener : ready) {
+      try {
+        listener.run();
+      } catch (RuntimeException e) {
+        e.printStackTrace(); // one bad listener should not stop the watching
+      }
+    }
+  }
+
+  /**
+   * Saves a file in a burst of writes, then replaces it by renaming, and checks that each
+   * counts as one change, printing how long after the last write it was noticed.
+   * Usage: java AssetWatcher
+   */
+  public static void main(String[] args) throws Exception {
+    File directory = Files.createTempDirectory("watch").toFile();
+    File file = new File(directory, "asset.ply");
+    Files.write(file.toPath(), new byte[] {0});
+    AtomicInteger calls = new AtomicInteger();
+    long[] noticed = new long[1];
+    AssetWatcher watcher = new AssetWatcher();
+    watcher.watch(file, () -> {
+      noticed[0] = System.nanoTime();
+      calls.incrementAndGet();
+    });
+    watcher.watch(new File(directory, "other.png"), () -> calls.addAndGet(100));
+
+    long written = 0;
+    for (int i = 0; i < 10; i++) { // a tool writing in pieces
+      Files.write(file.toPath(), new byte[i + 1]);
+      written = System.nanoTime();
+      Thread.sleep(20);
+    }
+    Thread.sleep(QUIET_MILLIS * 4);
+    System.out.printf("burst of writes: %d change(s), noticed %.0f ms after the last write%n",
+        calls.get(), (noticed[0] - written) / 1e6);
+
+    File replacement = new File(directory, "asset.tmp"); // a tool saving by renaming
+    Files.write(replacement.toPath(), new byte[64]);
+    Files.move(replacement.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    Thread.sleep(QUIET_MILLIS * 4);
+    System.out.println("after a rename: " + calls.get() + " change(s)"
+        + (calls.get() == 2 ? "" : ", EXPECTED 2"));
+
+    watcher.close();
+    file.delete();
+    directory.delete();
+  }
+
+}
@@ -0,0 +1,630 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * A dynamic bounding volume hierarchy over the boxes of scene objects, for frustum culling,
+ * picking and finding the objects near a point. It is a binary tree of axis-aligned boxes, built
+ * incrementally: each object is inserted next to the sibling that grows the total surface area
+ * the least, and the tree is kept balanced with rotations on the way back up.
+ * <p>
+ * Leaves store a fattened copy of the object's box, so an object that moves a little, and stays
+ * inside its fat box, costs nothing; otherwise it is taken out and reinserted, which refits just
+ * the boxes on its path to the root.
+ * <p>
+ * Queries only read the tree, so any number of them may run at once, for example one per light,
+ * as long as nothing is inserted, moved or removed meanwhile. Frustum and sphere queries over
+ * large trees split the traversal over the common fork/join pool.
+ */
+public class BoundsTree<T> {
+
+  /** Called for each object whose box the ray enters. */
+  public interface RayCallback<T> {
+    /**
+     * Returns the distance the ray should continue to, for example the distance to the exact hit
+     * on the object to find only closer ones, or maxDistance to keep going, or 0 to stop.
+     */
+    float hit(T object, float entryDistance, float maxDistance);
+  }
+
+  private static final int NULL = -1;
+  private static final int PARALLEL_THRESHOLD = 1024; // leaves below which queries stay serial
+
+  private final float margin;
+  private float[] boxes = new float[16 * 6]; // min x, y, z, max x, y, z per node
+  private int[] parent = new int[16]; // also links the free list
+  private int[] child1 = new int[16];
+  private int[] child2 = new int[16];
+  private int[] height = new int[16]; // 0 for leaves, -1 for free nodes
+  private Object[] objects = new Object[16];
+  private int root = NULL;
+  private int freeList = NULL;
+  private int nodeCount;
+  private int leafCount;
+  private boolean parallel = true;
+
+  /** Creates an empty tree whose leaves enlarge object boxes by margin on every side. */
+  BoundsTree(float margin) {
+    this.margin = margin;
+    Arrays.fill(height, -1);
+  }
+
+  public boolean isParallel() {
+    return parallel;
+  }
+
+  /** Whether large frustum and sphere queries are split over the common fork/join pool. */
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+
+  public int size() {
+    return leafCount;
+  }
+
+  /** Height of the tree; about log2 of the size when it is well balanced. */
+  public int getHeight() {
+    return root == NULL ? 0 : height[root];
+  }
+
+  /** Adds object with the box min to max and returns its id, used to move or remove it. */
+  public int insert(float[] min, float[] max, T object) {
+    int leaf = allocate();
+    setFatBox(leaf, min, max);
+    objects[leaf] = object;
+    height[leaf] = 0;
+    insertLeaf(leaf);
+    leafCount++;
+    return leaf;
+  }
+
+  public void remove(int id) {
+    checkLeaf(id);
+    removeLeaf(id);
+    free(id);
+    leafCount--;
+  }
+
+  /**
+   * Gives object id the box min to max. Returns false, having done nothing, if the box is still
+   * inside the leaf's fat box, and true if the leaf was reinserted.
+   */
+  public boolean move(int id, float[] min, float[] max) {
+    checkLeaf(id);
+    int b = id * 6;
+    if (boxes[b] <= min[0] && boxes[b + 1] <= min[1] && boxes[b + 2] <= min[2]
+        && boxes[b + 3] >= max[0] && boxes[b + 4] >= max[1] && boxes[b + 5] >= max[2])
+      return false;
+    removeLeaf(id);
+    setFatBox(id, min, max);
+    insertLeaf(id);
+    return true;
+  }
+
+  @SuppressWarnings("unchecked")
+  public T getObject(int id) {
+    checkLeaf(id);
+    return (T) objects[id];
+  }
+
+  /** Adds to out every object whose fat box overlaps the box min to max. */
+  public void query(float[] min, float[] max, Collection<T> out) {
+    float[] box = {min[0], min[1], min[2], max[0], max[1], max[2]};
+    collect(root, box, null, null, out);
+  }
+
+  /** Adds to out every object whose fat box is within radius of (x, y, z). */
+  public void querySphere(float x, float y, float z, float radius, Collection<T> out) {
+    float[] sphere = {x, y, z, radius};
+    if (parallel && leafCount >= PARALLEL_THRESHOLD)
+      collectParallel(null, sphere, null, out);
+    else
+      collect(root, null, sphere, null, out);
+  }
+
+  /**
+   * Runs one sphere query per light, for count lights stored with the given stride as x, y, z,
+   * radius (LightClusterer's layout, for example), in parallel, and returns the objects near
+   * each light.
+   */
+  public List<List<T>> querySpheres(float[] lights, int count, int stride) {
+    List<List<T>> result = new ArrayList<>(count);
+    for (int i = 0; i < count; i++)
+      result.add(new ArrayList<>());
+    IntStream range = IntStream.range(0, count);
+    (parallel ? range.parallel() : range).forEach(i -> {
+      int o = i * stride;
+      collect(root, null, new float[] {lights[o], lights[o + 1], lights[o + 2], lights[o + 3]}, null,
+          result.get(i));
+    });
+    return result;
+  }
+
+  /**
+   * Adds to out every object whose fat box is at least partly inside the frustum of the
+   * column-major view-projection matrix, for example from Camera.getViewProjectionMatrix.
+   */
+  public void queryFrustum(double[] viewProjection, Collection<T> out) {
+    float[] planes = new float[24];
+    for (int p = 0; p < 6; p++) {
+      int row = p / 2;
+      float sign = p % 2 == 0 ? 1 : -1;
+      for (int c = 0; c < 4; c++)
+        planes[p * 4 + c] = (float) (viewProjection[c * 4 + 3] + sign * viewProjection[c * 4 + row]);
+    }
+    if (parallel && leafCount >= PARALLEL_THRESHOLD)
+      collectParallel(null, null, planes, out);
+    else
+      collect(root, null, null, planes, out);
+  }
+
+  /**
+   * Casts a ray from (ox, oy, oz) along (dx, dy, dz), calling callback for each object whose box
+   * the ray enters within maxDistance, measured in lengths of (dx, dy, dz). The callback can
+   * shorten the ray, so the nearest exact hit can be found without visiting farther objects.
+   */
+  public void raycast(float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance,
+      RayCallback<T> callback) {
+    if (root == NULL)
+      return;
+    float ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+    int[] stack = new int[64];
+    int top = 0;
+    stack[top++] = root;
+    while (top > 0) {
+      int node = stack[--top];
+      int b = node * 6;
+      float t0 = 0, t1 = maxDistance;
+      for (int k = 0; k < 3 && t0 <= t1; k++) {
+        float o = k == 0 ? ox : k == 1 ? oy : oz, inv = k == 0 ? ix : k == 1 ? iy : iz;
+        float near = (boxes[b + k] - o) * inv, far = (boxes[b + 3 + k] - o) * inv;
+        if (near > far) {
+          float swap = near;
+          near = far;
+          far = swap;
+        }
+        if (!Float.isNaN(near)) // NaN when the ray lies in the plane of a face
+          t0 = Math.max(t0, near);
+        if (!Float.isNaN(far))
+          t1 = Math.min(t1, far);
+      }
+      if (t0 > t1)
+        continue;
+      if (height[node] == 0) {
+        @SuppressWarnings("unchecked")
+        T object = (T) objects[node];
+        maxDistance = callback.hit(object, t0, maxDistance);
+        if (maxDistance <= 0)
+          return;
+      } else {
+        if (top + 2 > stack.length)
+          stack = Arrays.copyOf(stack, stack.length * 2);
+        stack[top++] = child1[node];
+        stack[top++] = child2[node];
+      }
+    }
+  }
+
+  // -------------------------------- traversal --------------------------------
+
+  /** Tests node against whichever of box, sphere and planes is given: 0 out, 1 partly, 2 fully in. */
+  private int classify(int node, float[] box, float[] sphere, float[] planes) {
+    int b = node * 6;
+    if (box != null) {
+      return boxes[b] <= box[3] && boxes[b + 3] >= box[0] && boxes[b + 1] <= box[4]
+          && boxes[b + 4] >= box[1] && boxes[b + 2] <= box[5] && boxes[b + 5] >= box[2] ? 1 : 0;
+    }
+    if (sphere != null) {
+      float d2 = 0;
+      for (int k = 0; k < 3; k++) {
+        float c = sphere[k];
+        float d = c < boxes[b + k] ? boxes[b + k] - c : c > boxes[b + 3 + k] ? c - boxes[b + 3 + k] : 0;
+        d2 += d * d;
+      }
+      return d2 <= sphere[3] * sphere[3] ? 1 : 0;
+    }
+    int result = 2;
+    for (int p = 0; p < 24; p += 4) {
+      float a = planes[p], bb = planes[p + 1], c = planes[p + 2], d = planes[p + 3];
+      // the corners farthest along and against the plane's normal
+      float far = a * boxes[b + (a > 0 ? 3 : 0)] + bb * boxes[b + (bb > 0 ? 4 : 1)]
+          + c * boxes[b + (c > 0 ? 5 : 2)] + d;
+      if (far < 0)
+        return 0;
+      float near = a * boxes[b + (a > 0 ? 0 : 3)] + bb * boxes[b + (bb > 0 ? 1 : 4)]
+          + c * boxes[b + (c > 0 ? 2 : 5)] + d;
+      if (near < 0)
+        result = 1;
+    }
+    return result;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void collect(int start, float[] box, float[] sphere, float[] planes, Collection<T> out) {
+    if (start == NULL)
+      return;
+    int[] stack = new int[64];
+    int top = 0;
+    stack[top++] = start;
+    while (top > 0) {
+      int node = stack[--top];
+      int inside = classify(node, box, sphere, planes);
+      if (inside == 0)
+        continue;
+      if (height[node] == 0) {
+        out.add((T) objects[node]);
+      } else if (inside == 2) {
+        addAll(node, out);
+      } else {
+        if (top + 2 > stack.length)
+          stack = Arrays.copyOf(stack, stack.length * 2);
+        stack[top++] = child1[node];
+        stack[top++] = child2[node];
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void addAll(int start, Collection<T> out) {
+    int[] stack = new int[64];
+    int top = 0;
+    stack[top++] = start;
+    while (top > 0) {
+      int node = stack[--top];
+      if (height[node] == 0) {
+        out.add((T) objects[node]);
+        continue;
+      }
+      if (top + 2 > stack.length)
+        stack = Arrays.copyOf(stack, stack.length * 2);
+      stack[top++] = child1[node];
+      stack[top++] = child2[node];
+    }
+  }
+
+  /**
+   * Splits the tree into subtrees near the top, a few for each core, and traverses them in
+   * parallel, each into its own list. The lists are joined in order.
+   */
+  private void collectParallel(float[] box, float[] sphere, float[] planes, Collection<T> out) {
+    int wanted = Runtime.getRuntime().availableProcessors() * 4;
+    List<Integer> frontier = new ArrayList<>();
+    frontier.add(root);
+    boolean split = true;
+    while (split && frontier.size() < wanted) {
+      split = false;
+      List<Integer> next = new ArrayList<>();
+      for (int node : frontier) {
+        if (height[node] > 0) {
+          next.add(child1[node]);
+          next.add(child2[node]);
+          split = true;
+        } else {
+          next.add(node);
+        }
+      }
+      frontier = next;
+    }
+    int[] starts = frontier.stream().mapToInt(Integer::intValue).toArray();
+    List<List<T>> parts = new ArrayList<>();
+    for (int i = 0; i < starts.length; i++)
+      parts.add(new ArrayList<>());
+    // the nodes above the frontier were not tested, which only makes the subtrees' own tests
+    // do the work
+    IntStream.range(0, starts.length).parallel()
+        .forEach(i -> collect(starts[i], box, sphere, planes, parts.get(i)));
+    for (List<T> part : parts)
+      out.addAll(part);
+  }
+
+  // -------------------------------- tree maintenance --------------------------------
+
+  private void checkLeaf(int id) {
+    if (id < 0 || id >= height.length || height[id] != 0)
+      throw new IllegalArgumentException("No object with id " + id);
+  }
+
+  private void setFatBox(int node, float[] min, float[] max) {
+    int b = node * 6;
+    for (int k = 0; k < 3; k++) {
+      boxes[b + k] = min[k] - margin;
+      boxes[b + 3 + k] = max[k] + margin;
+    }
+  }
+
+  private int allocate() {
+    if (freeList == NULL) {
+      int capacity = height.length * 2;
+      boxes = Arrays.copyOf(boxes, capacity * 6);
+      parent = Arrays.copyOf(parent, capacity);
+      child1 = Arrays.copyOf(child1, capacity);
+      child2 = Arrays.copyOf(child2, capacity);
+      objects = Arrays.copyOf(objects, capacity);
+      int old = height.length;
+      height = Arrays.copyOf(height, capacity);
+      Arrays.fill(height, old, capacity, -1);
+      for (int i = capacity - 1; i >= Math.max(old, nodeCount); i--) {
+        parent[i] = freeList;
+        freeList = i;
+      }
+    }
+    int node = freeList;
+    freeList = parent[node];
+    parent[node] = NULL;
+    child1[node] = NULL;
+    child2[node] = NULL;
+    height[node] = 0;
+    nodeCount = Math.max(nodeCount, node + 1);
+    return node;
+  }
+
+  private void free(int node) {
+    objects[node] = null;
+    height[node] = -1;
+    parent[node] = freeList;
+    freeList = node;
+  }
+
+  /** Half the surface area of the union of the boxes of nodes a and b, or of a alone if b < 0. */
+  private float area(int a, int b) {
+    float dx, dy, dz;
+    int i = a * 6;
+    if (b < 0) {
+      dx = boxes[i + 3] - boxes[i];
+      dy = boxes[i + 4] - boxes[i + 1];
+      dz = boxes[i + 5] - boxes[i + 2];
+    } else {
+      int j = b * 6;
+      dx = Math.max(boxes[i + 3], boxes[j + 3]) - Math.min(boxes[i], boxes[j]);
+      dy = Math.max(boxes[i + 4], boxes[j + 4]) - Math.min(boxes[i + 1], boxes[j + 1]);
+      dz = Math.max(boxes[i + 5], boxes[j + 5]) - Math.min(boxes[i + 2], boxes[j + 2]);
+    }
+    return dx * dy + dy * dz + dz * dx;
+  }
+
+  /** Sets the box and height of an internal node from its children. */
+  private void refit(int node) {
+    int b = node * 6, c1 = child1[node] * 6, c2 = child2[node] * 6;
+    for (int k = 0; k < 3; k++) {
+      boxes[b + k] = Math.min(boxes[c1 + k], boxes[c2 + k]);
+      boxes[b + 3 + k] = Math.max(boxes[c1 + 3 + k], boxes[c2 + 3 + k]);
+    }
+    height[node] = 1 + Math.max(height[child1[node]], height[child2[node]]);
+  }
+
+  private void insertLeaf(int leaf) {
+    if (root == NULL) {
+      root = leaf;
+      parent[leaf] = NULL;
+      return;
+    }
+
+    // find the sibling that adds the least surface area, counting what every ancestor grows by
+    int index = root;
+    while (height[index] > 0) {
+      int c1 = child1[index], c2 = child2[index];
+      float area = area(index, -1);
+      float combined = area(index, leaf);
+      float cost = 2 * combined; // of making a new parent for index and the leaf
+      float inheritance = 2 * (combined - area); // of pushing the leaf further down
+      float cost1 = area(c1, leaf) - (height[c1] == 0 ? 0 : area(c1, -1)) + inheritance;
+      float cost2 = area(c2, leaf) - (height[c2] == 0 ? 0 : area(c2, -1)) + inheritance;
+      if (cost < cost1 && cost < cost2)
+        break;
+      index = cost1 < cost2 ? c1 : c2;
+    }
+
+    int sibling = index;
+    int oldParent = parent[sibling];
+    int newParent = allocate();
+    parent[newParent] = oldParent;
+    child1[newParent] = sibling;
+    child2[newParent] = leaf;
+    parent[sibling] = newParent;
+    parent[leaf] = newParent;
+    if (oldParent == NULL)
+      root = newParent;
+    else if (child1[oldParent] == sibling)
+      child1[oldParent] = newParent;
+    else
+      child2[oldParent] = newParent;
+
+    for (index = newParent; index != NULL; index = parent[index]) {
+      index = balance(index);
+      refit(index);
+    }
+  }
+
+  private void removeLeaf(int leaf) {
+    if (leaf == root) {
+      root = NULL;
+      return;
+    }
+    int p = parent[leaf];
+    int grandParent = parent[p];
+    int sibling = child1[p] == leaf ? child2[p] : child1[p];
+    if (grandParent == NULL) {
+      root = sibling;
+      parent[sibling] = NULL;
+      free(p);
+      return;
+    }
+    if (child1[grandParent] == p)
+      child1[grandParent] = sibling;
+    else
+      child2[grandParent] = sibling;
+    parent[sibling] = grandParent;
+    free(p);
+    for (int index = grandParent; index != NULL; index = parent[index]) {
+      index = balance(index);
+      refit(index);
+    }
+  }
+
+  /**
+   * If one child of a is more than one level taller than the other, rotates the taller child up
+   * into a's place and returns the new root of the subtree; otherwise returns a.
+   */
+  private int balance(int a) {
+    if (height[a] < 2)
+      return a;
+    int b = child1[a], c = child2[a];
+    int difference = height[c] - height[b];
+    if (difference > 1)
+      return rotateUp(a, c, b);
+    if (difference < -1)
+      return rotateUp(a, b, c);
+    return a;
+  }
+
+  /** Rotates child up, which is the taller child of a, with other the shorter one. */
+  private int rotateUp(int a, int up, int other) {
+    int f = child1[up], g = child2[up];
+
+    // up takes a's place
+    child1[up] = a;
+    parent[up] = parent[a];
+    parent[a] = up;
+    if (parent[up] == NULL)
+      root = up;
+    else if (child1[parent[up]] == a)
+      child1[parent[up]] = up;
+    else
+      child2[parent[up]] = up;
+
+    // a keeps other and the shorter of up's children; up keeps the taller one
+    int keep = height[f] > height[g] ? f : g;
+    int give = keep == f ? g : f;
+    child2[up] = keep;
+    if (child1[a] == up)
+      child1[a] = give;
+    else
+      child2[a] = give;
+    parent[give] = a;
+    refit(a);
+    refit(up);
+    return up;
+  }
+
+  /**
+   * Checks the tree against brute force on random boxes, and times inserts, moves and parallel
+   * queries. Needs no GPU. Usage: java BoundsTree [objectCount]
+   */
+  public static void main(String[] args) {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    Random random = new Random(405);
+    float[][] mins = new float[count][], maxs = new float[count][];
+    BoundsTree<Integer> tree = new BoundsTree<>(0.2f);
+    int[] ids = new int[count];
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      float x = random.nextFloat() * 200, y = random.nextFloat() * 20, z = random.nextFloat() * 200;
+      float s = 0.2f + random.nextFloat();
+      mins[i] = new float[] {x, y, z};
+      maxs[i] = new float[] {x + s, y + s, z + s};
+      ids[i] = tree.insert(mins[i], maxs[i], i);
+    }
+    System.out.printf("%d inserts: %.2f ms, height %d%n", count, (System.nanoTime() - start) / 1e6,
+        tree.getHeight());
+
+    // move everything a little, and a few objects far
+    start = System.nanoTime();
+    int reinserted = 0;
+    for (int i = 0; i < count; i++) {
+      float dx = random.nextInt(100) == 0 ? random.nextFloat() * 50 : random.nextFloat() * 0.1f;
+      for (int k = 0; k < 3; k += 2) {
+        mins[i][k] += dx;
+        maxs[i][k] += dx;
+      }
+      if (tree.move(ids[i], mins[i], maxs[i]))
+        reinserted++;
+    }
+    System.out.printf("%d moves, %d reinserted: %.2f ms, height %d%n", count, reinserted,
+        (System.nanoTime() - start) / 1e6, tree.getHeight());
+
+    // the fat boxes are at most margin bigger, so every true overlap must be found
+    int failures = 0;
+    List<Integer> found = new ArrayList<>();
+    for (int q = 0; q < 100; q++) {
+      float cx = random.nextFloat() * 200, cy = random.nextFloat() * 20, cz = random.nextFloat() * 200;
+      float r = 1 + random.nextFloat() * 10;
+      found.clear();
+      tree.querySphere(cx, cy, cz, r, found);
+      boolean[] hit = new boolean[count];
+      for (int i : found)
+        hit[i] = true;
+      for (int i = 0; i < count; i++) {
+        float d2 = 0;
+        for (int k = 0; k < 3; k++) {
+          float c = k == 0 ? cx : k == 1 ? cy : cz;
+          float d = Math.max(Math.max(mins[i][k] - c, c - maxs[i][k]), 0);
+          d2 += d * d;
+        }
+        if (d2 <= r * r && !hit[i])
+          failures++;
+      }
+    }
+
+    // nearest box along a ray, against brute force
+    for (int q = 0; q < 100; q++) {
+      float ox = -10, oy = random.nextFloat() * 20, oz = random.nextFloat() * 200;
+      float[] best = {Float.MAX_VALUE};
+      tree.raycast(ox, oy, oz, 1, 0, 0, 1000, (i, entry, max) -> {
+        if (oy < mins[i][1] || oy > maxs[i][1] || oz < mins[i][2] || oz > maxs[i][2])
+          return max; // only the fat box was hit
+        best[0] = Math.min(best[0], mins[i][0] - ox);
+        return Math.min(max, best[0]);
+      });
+      float brute = Float.MAX_VALUE;
+      for (int i = 0; i < count; i++)
+        if (oy >= mins[i][1] && oy <= maxs[i][1] && oz >= mins[i][2] && oz <= maxs[i][2])
+          brute = Math.min(brute, mins[i][0] - ox);
+      if (brute != best[0])
+        failures++;
+    }
+    System.out.println(failures == 0 ? "queries match brute force" : failures + " failures");
+
+    Camera camera = new Camera();
+    camera.lookAt(100, 40, 250, 100, 0, 100, 0, 1, 0);
+    camera.setLimits(-30, 30, -30, 30, -200, 100);
+    camera.reshape(0, 0, 1280, 720);
+    double[] viewProjection = camera.getViewProjectionMatrix(new double[16]);
+    float[] lights = new float[1024 * LightClusterer.LIGHT_STRIDE];
+    for (int i = 0; i < 1024; i++) {
+      int o = i * LightClusterer.LIGHT_STRIDE;
+      lights[o] = random.nextFloat() * 200;
+      lights[o + 1] = random.nextFloat() * 20;
+      lights[o + 2] = random.nextFloat() * 200;
+      lights[o + 3] = 5;
+    }
+    for (boolean p : new boolean[] {false, true}) {
+      tree.setParallel(p);
+      List<Integer> visible = new ArrayList<>();
+      for (int i = 0; i < 20; i++) { // warm up
+        visible.clear();
+        tree.queryFrustum(viewProjection, visible);
+        tree.querySpheres(lights, 1024, LightClusterer.LIGHT_STRIDE);
+      }
+      int runs = 100;
+      start = System.nanoTime();
+      for (int i = 0; i < runs; i++) {
+        visible.clear();
+        tree.queryFrustum(viewProjection, visible);
+      }
+      double frustumMs = (System.nanoTime() - start) / 1e6 / runs;
+      start = System.nanoTime();
+      int near = 0;
+      for (int i = 0; i < runs; i++)
+        for (List<Integer> list : tree.querySpheres(lights, 1024, LightClusterer.LIGHT_STRIDE))
+          near += list.size();
+      double lightsMs = (System.nanoTime() - start) / 1e6 / runs;
+      System.out.printf("%s: frustum %d visible in %.3f ms, 1024 lights with %d objects near "
+          + "them in %.3f ms%n", p ? "parallel" : "serial", visible.size(), frustumMs, near / runs,
+          lightsMs);
+    }
+  }
+
+}
@@ -1,12 +1,14 @@
 
 
+import com.jogamp.common.nio.Buffers;
 import com.jogamp.opengl.GL2;
-import com.jogamp.opengl.glu.GLU;
 
 import java.awt.Component;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 /**
  * A Camera object encapsulates the information needed to define a
@@ -23,7 +25,15 @@ import java.awt.event.MouseMotionListener;
  * calling methods.
  *     The camera comes along with a simulated trackball that
  * lets the user rotate the view by dragging on the drawing
- * surface.  See the installTrackball() method.
+ * surface.  See the installTrackball() method.  Mouse events only
+ * record where the drag has got to; the rotation for all the events
+ * since the last frame is applied once, by apply, on the
+ * thread that draws.
+ *     The view, projection and combined view-projection matrices are
+ * kept by the camera itself and are only recomputed when lookAt,
+ * setLimits, the trackball or reshape change something.  They can be
+ * read as column-major direct buffers, ready to be handed to a shader
+ * uniform or used for culling.
  */
 public class Camera {
    
@@ -38,10 +48,37 @@ public class Camera {
    private boolean preserveAspect = true;
    
    private double xminActual, xmaxActual, yminActual, ymaxActual;
-   private GLU glu = new GLU();
+   private int viewportX, viewportY, viewportWidth, viewportHeight;
+   
+   // column-major, the same layout glLoadMatrixd expects
+   private final double[] view = new double[16];
+   private final double[] projection = new double[16];
+   private final double[] viewProjection = new double[16];
+   private final FloatBuffer viewBuffer = Buffers.newDirectFloatBuffer(16);
+   private final FloatBuffer projectionBuffer = Buffers.newDirectFloatBuffer(16);
+   private final FloatBuffer viewProjectionBuffer = Buffers.newDirectFloatBuffer(16);
+   private boolean viewDirty = true;
+   private boolean projectionDirty = true;
    
    private TrackballMouser trackball;    // handles the mouse for the simulated trackball
    private Component trackballComponent; // if non-null, component where trackball is installed
+   
+   // The mouse listener moves dragEnd; apply rotates the view from dragStart to dragEnd.
+   private final Object trackballLock = new Object();
+   private final double[] dragStart = new double[3], dragEnd = new double[3];
+   private volatile boolean dragPending;
+   private volatile boolean releasedStill;  // the mouse had stopped before it was released
+   private boolean trackballInertia;
+   private double spinRate;  // radians per second the view keeps turning after a drag
+   private final double[] spinFrom = new double[3], spinTo = new double[3];
+   private long lastTrackballTime;
+   private static final double SPIN_DAMPING_TIME = 0.4;  // seconds for the spin to slow by 1/e
+   private static final double MIN_SPIN_RATE = 0.01;
+   
+   // scratch for applyTransvection, so that dragging allocates nothing
+   private final double[] xDirection = new double[3], yDirection = new double[3], zDirection = new double[3];
+   private final double[] viewE1 = new double[3], viewE2 = new double[3], bisector = new double[3];
+   private final double[] temp = new double[3], coastTo = new double[3];
 
    
    public boolean getOrthographic() {
@@ -56,6 +93,7 @@ public class Camera {
     */
    public void setOrthographic(boolean orthographic) {
       this.orthographic = orthographic;
+      projectionDirty = true;
    }
 
    public boolean getPreserveAspect() {
@@ -68,6 +106,7 @@ public class Camera {
     */
    public void setPreserveAspect(boolean preserveAspect) {
       this.preserveAspect = preserveAspect;
+      projectionDirty = true;
    }
 
    /**
@@ -91,6 +130,7 @@ public class Camera {
       ymaxRequested = ymaxActual = ymax;
       this.zmin = zmin;
       this.zmax = zmax;
+      projectionDirty = true;
    }
    
    /**
@@ -111,11 +151,11 @@ public class Camera {
    }
    
    /**
-    * Returns the actual xmin, xmax, ymin, ymax limits that were used when the apply
-    * method was most recently called.  These are the limits after they were, possibly,
-    * adjusted to match the aspect ratio of the display.  If apply has not been called
-    * since the limits were set, then the return value contains the unadjusted, requested
-    * limits.
+    * Returns the actual xmin, xmax, ymin, ymax limits that were used when the projection
+    * was most recently computed.  These are the limits after they were, possibly,
+    * adjusted to match the aspect ratio of the display.  If the projection has not been
+    * recomputed since the limits were set, then the return value contains the unadjusted,
+    * requested limits.
     */
    public double[] getActualXYLimits() {
       return new double[] { xminActual, xmaxActual, yminActual, ymaxActual };
@@ -138,6 +178,8 @@ public class Camera {
       upx = viewUpX;
       upy = viewUpY;
       upz = viewUpZ;
+      viewDirty = true;
+      projectionDirty = true; // the near and far planes depend on the view distance
    }
 
    /**
@@ -147,24 +189,147 @@ public class Camera {
       return new double[] { eyex, eyey, eyez, refx, refy, refz, upx, upy, upz };
    }
    
+   /**
+    * Tells the camera the size of the drawing area.  This should be called from the
+    * reshape method of the GLEventListener, with the same parameters.  The aspect ratio
+    * of the viewport is used when preserveAspect is true.
+    */
+   public void reshape(int x, int y, int width, int height) {
+      viewportX = x;
+      viewportY = y;
+      if (width == viewportWidth && height == viewportHeight)
+         return;
+      viewportWidth = width;
+      viewportHeight = height;
+      projectionDirty = true;
+   }
+   
+   /**
+    * Returns the viewport most recently passed to reshape, as x, y, width, height.
+    */
+   public int[] getViewport() {
+      return new int[] { viewportX, viewportY, viewportWidth, viewportHeight };
+   }
+   
    /**
     * Apply the camera to an OpenGL context.  This method completely replaces the
-    * projection and the modelview transformation in the context.  It sets these
-    * transformations to the identity and then applies the view and projection
-    * represented by the camera.  This method is meant to be called at the begining
-    * of the display method and should replace any other means of setting the
-    * projection and view.
+    * projection and the modelview transformation in the context.  It loads the
+    * projection and view matrices represented by the camera, recomputing them first
+    * only if something has changed since the last call.  This method is meant to be
+    * called at the begining of the display method and should replace any other means
+    * of setting the projection and view.  It is also where the trackball drags
+    * and the inertia are applied, once per frame, so that the getters called later
+    * in the frame see the same view.
     */
    public void apply(GL2 gl) {
-        int[] viewport = new int[4];
-        gl.glGetIntegerv(GL2.GL_VIEWPORT, viewport, 0);
+      updateTrackball();
+      update();
+      gl.glMatrixMode(GL2.GL_PROJECTION);
+      gl.glLoadMatrixd(projection, 0);
+      gl.glMatrixMode(GL2.GL_MODELVIEW);
+      gl.glLoadMatrixd(view, 0);
+   }
+   
+   /**
+    * Recomputes whichever of the view and projection matrices have been marked dirty,
+    * and the view-projection matrix if either of them changed.  Called by apply, and
+    * by the matrix getters, so it does not normally have to be called directly.  It
+    * does not apply the trackball, which only apply does, so the getters never move
+    * the view.
+    */
+   public void update() {
+      if (!viewDirty && !projectionDirty)
+         return;
+      if (viewDirty) {
+         computeView();
+         store(view, viewBuffer);
+         viewDirty = false;
+      }
+      if (projectionDirty) {
+         computeProjection();
+         store(projection, projectionBuffer);
+         projectionDirty = false;
+      }
+      multiply(projection, view, viewProjection);
+      store(viewProjection, viewProjectionBuffer);
+   }
+   
+   /**
+    * Returns the view matrix as a direct buffer of 16 floats in column-major order.
+    * The buffer belongs to the camera and is overwritten when the view changes.
+    */
+   public FloatBuffer getViewMatrixBuffer() {
+      update();
+      return viewBuffer;
+   }
+   
+   /**
+    * Returns the projection matrix as a direct buffer of 16 floats in column-major order.
+    * The buffer belongs to the camera and is overwritten when the projection changes.
+    */
+   public FloatBuffer getProjectionMatrixBuffer() {
+      update();
+      return projectionBuffer;
+   }
+   
+   /**
+    * Returns the product projection * view as a direct buffer of 16 floats in column-major
+    * order.  The buffer belongs to the camera and is overwritten when either matrix changes.
+    */
+   public FloatBuffer getViewProjectionMatrixBuffer() {
+      update();
+      return viewProjectionBuffer;
+   }
+   
+   /**
+    * Copies the eye position, in world coordinates, into dest, which must have length
+    * at least 3.  Returns dest.
+    */
+   public double[] getEyePosition(double[] dest) {
+      dest[0] = eyex;
+      dest[1] = eyey;
+      dest[2] = eyez;
+      return dest;
+   }
+   
+   /**
+    * Copies the view matrix, in column-major order, into dest, which must have length
+    * at least 16.  Returns dest.
+    */
+   public double[] getViewMatrix(double[] dest) {
+      update();
+      System.arraycopy(view, 0, dest, 0, 16);
+      return dest;
+   }
+   
+   /**
+    * Copies the projection matrix, in column-major order, into dest, which must have length
+    * at least 16.  Returns dest.
+    */
+   public double[] getProjectionMatrix(double[] dest) {
+      update();
+      System.arraycopy(projection, 0, dest, 0, 16);
+      return dest;
+   }
+   
+   /**
+    * Copies the view-projection matrix, in column-major order, into dest, which must have
+    * length at least 16.  Returns dest.  This is the matrix to use for frustum culling.
+    */
+   public double[] getViewProjectionMatrix(double[] dest) {
+      update();
+      System.arraycopy(viewProjection, 0, dest, 0, 16);
+      return dest;
+   }
+   
+   private void computeProjection() {
         xminActual = xminRequested;
         xmaxActual = xmaxRequested;
         yminActual = yminRequested;
         ymaxActual = ymaxRequested;
-        if (preserveAspect) {
-           double viewWidth = viewport[2];
-           double viewHeight = viewport[3];
+        if (preserveAspect && viewportWidth > 0 && viewportHeight > 0) {
+           double viewWidth = viewportWidth;
+           double viewHeight = viewportHeight;
            double windowWidth = xmaxActual - xminActual;
            double windowHeight = ymaxActual - yminActual;
            double aspect = viewHeight / viewWidth;
@@ -179,11 +344,9 @@ public class Camera {
                ymaxActual += extra;
            }
         }
-        gl.glMatrixMode(GL2.GL_PROJECTION);
-        gl.glLoadIdentity();
-       double viewDistance = norm(new double[] {refx-eyex, refy-eyey, refz-eyez});
+        double viewDistance = norm(refx-eyex, refy-eyey, refz-eyez);
         if (orthographic) {
-            gl.glOrtho(xminActual, xmaxActual, yminActual, ymaxActual, viewDistance-zmax, viewDistance-zmin);
+            ortho(xminActual, xmaxActual, yminActual, ymaxActual, viewDistance-zmax, viewDistance-zmin);
         }
         else {
             double near = viewDistance-zmax;
@@ -197,11 +360,70 @@ public class Camera {
             double x2 = centerx + newwidth / 2;
             double y1 = centery - newheight / 2;
             double y2 = centery + newheight / 2;
-            gl.glFrustum(x1, x2, y1, y2, near, viewDistance-zmin);
+            frustum(x1, x2, y1, y2, near, viewDistance-zmin);
         }
-        gl.glMatrixMode(GL2.GL_MODELVIEW);
-        gl.glLoadIdentity();
-        glu.gluLookAt(eyex, eyey, eyez, refx, refy, refz, upx, upy, upz);
+   }
+   
+   // same matrix as glOrtho
+   private void ortho(double l, double r, double b, double t, double n, double f) {
+      Arrays.fill(projection, 0);
+      projection[0] = 2 / (r - l);
+      projection[5] = 2 / (t - b);
+      projection[10] = -2 / (f - n);
+      projection[12] = -(r + l) / (r - l);
+      projection[13] = -(t + b) / (t - b);
+      projection[14] = -(f + n) / (f - n);
+      projection[15] = 1;
+   }
+   
+   // same matrix as glFrustum
+   private void frustum(double l, double r, double b, double t, double n, double f) {
+      Arrays.fill(projection, 0);
+      projection[0] = 2 * n / (r - l);
+      projection[5] = 2 * n / (t - b);
+      projection[8] = (r + l) / (r - l);
+      projection[9] = (t + b) / (t - b);
+      projection[10] = -(f + n) / (f - n);
+      projection[11] = -1;
+      projection[14] = -2 * f * n / (f - n);
+   }
+   
+   // same matrix as gluLookAt
+   private void computeView() {
+      double fx = refx - eyex, fy = refy - eyey, fz = refz - eyez;
+      double flen = norm(fx, fy, fz);
+      fx /= flen;
+      fy /= flen;
+      fz /= flen;
+      double sx = fy*upz - fz*upy, sy = fz*upx - fx*upz, sz = fx*upy - fy*upx;
+      double slen = norm(sx, sy, sz);
+      sx /= slen;
+      sy /= slen;
+      sz /= slen;
+      double ux = sy*fz - sz*fy, uy = sz*fx - sx*fz, uz = sx*fy - sy*fx;
+      view[0] = sx;  view[4] = sy;  view[8] = sz;
+      view[1] = ux;  view[5] = uy;  view[9] = uz;
+      view[2] = -fx; view[6] = -fy; view[10] = -fz;
+      view[3] = 0;   view[7] = 0;   view[11] = 0;
+      view[12] = -(sx*eyex + sy*eyey + sz*eyez);
+      view[13] = -(ux*eyex + uy*eyey + uz*eyez);
+      view[14] = fx*eyex + fy*eyey + fz*eyez;
+      view[15] = 1;
+   }
+   
+   // dest = a * b, all column-major
+   private static void multiply(double[] a, double[] b, double[] dest) {
+      for (int col = 0; col < 4; col++) {
+         for (int row = 0; row < 4; row++) {
+            dest[col*4 + row] = a[row] * b[col*4] + a[4 + row] * b[col*4 + 1]
+                  + a[8 + row] * b[col*4 + 2] + a[12 + row] * b[col*4 + 3];
+         }
+      }
+   }
+   
+   private static void store(double[] m, FloatBuffer buffer) {
+      for (int i = 0; i < 16; i++)
+         buffer.put(i, (float)m[i]);
    }
    
    /**
@@ -232,9 +454,73 @@ public class Camera {
        }
        trackballComponent.addMouseListener(trackball);
    }
+   
+   public boolean getTrackballInertia() {
+      return trackballInertia;
+   }
+   
+   /**
+    * If inertia is on, the view keeps turning after the mouse is released in
+    * the middle of a drag, slowing down over about a second.  The default is off.
+    */
+   public void setTrackballInertia(boolean inertia) {
+      trackballInertia = inertia;
+   }
+   
+   /**
+    * Applies the trackball drags recorded since the last call as one rotation,
+    * or, with inertia, keeps the view turning after a drag has ended.  Called
+    * only by apply, once per frame.
+    */
+   private void updateTrackball() {
+      long now = System.nanoTime();
+      double dt = Math.max(0, Math.min((now - lastTrackballTime) / 1e9, 0.1));
+      lastTrackballTime = now;
+      if (dragPending) {
+         synchronized (trackballLock) {
+            System.arraycopy(dragStart, 0, spinFrom, 0, 3);
+            System.arraycopy(dragEnd, 0, spinTo, 0, 3);
+            System.arraycopy(dragEnd, 0, dragStart, 0, 3);
+            dragPending = false;
+         }
+         double cos = spinFrom[0]*spinTo[0] + spinFrom[1]*spinTo[1] + spinFrom[2]*spinTo[2];
+         spinRate = Math.acos(Math.min(cos, 1)) / Math.max(dt, 1e-3);
+         applyTransvection(spinFrom, spinTo);
+         return;
+      }
+      if (releasedStill) {
+         releasedStill = false;
+         spinRate = 0;
+      }
+      if (!trackballInertia || trackball == null || trackball.dragging || spinRate < MIN_SPIN_RATE) {
+         spinRate = 0;
+         return;
+      }
+      // turn by spinRate * dt in the plane of the last drag
+      double cos = spinFrom[0]*spinTo[0] + spinFrom[1]*spinTo[1] + spinFrom[2]*spinTo[2];
+      double ux = spinTo[0] - cos*spinFrom[0], uy = spinTo[1] - cos*spinFrom[1], uz = spinTo[2] - cos*spinFrom[2];
+      double length = Math.sqrt(ux*ux + uy*uy + uz*uz);
+      if (length < 1e-9) {
+         spinRate = 0;
+         return;
+      }
+      double angle = spinRate * dt;
+      double c = Math.cos(angle), s = Math.sin(angle) / length;
+      coastTo[0] = c*spinFrom[0] + s*ux;
+      coastTo[1] = c*spinFrom[1] + s*uy;
+      coastTo[2] = c*spinFrom[2] + s*uz;
+      applyTransvection(spinFrom, coastTo);
+      spinRate *= Math.exp(-dt / SPIN_DAMPING_TIME);
+      if (trackballComponent != null)
+         trackballComponent.repaint();
+   }
 
     private double norm(double[] v) {
-        double norm2 = v[0]*v[0] + v[1]*v[1] + v[2]*v[2];
+        return norm(v[0], v[1], v[2]);
+    }
+
+    private double norm(double x, double y, double z) {
+        double norm2 = x*x + y*y + z*z;
         if (Double.isNaN(norm2) || Double.isInfinite(norm2) || norm2 == 0)
             throw new NumberFormatException("Vector length zero, undefined, or infinite.");
         return Math.sqrt(norm2);
@@ -249,24 +535,30 @@ public class Camera {
 
     private void applyTransvection(double[] e1, double[] e2) {
         // rotate vector e1 onto e2; must be 3D *UNIT* vectors.
-        double[] zDirection = new double[] {eyex - refx, eyey - refy, eyez - refz};
+        zDirection[0] = eyex - refx;
+        zDirection[1] = eyey - refy;
+        zDirection[2] = eyez - refz;
         double viewDistance = norm(zDirection);
         normalize(zDirection);
-        double[] yDirection = new double[] {upx, upy, upz};
+        yDirection[0] = upx;
+        yDirection[1] = upy;
+        yDirection[2] = upz;
         double upLength = norm(yDirection);
         double proj = yDirection[0]*zDirection[0] + yDirection[1]*zDirection[1] + yDirection[2]*zDirection[2];
         yDirection[0] = yDirection[0] - proj*zDirection[0];
         yDirection[1] = yDirection[1] - proj*zDirection[1];
         yDirection[2] = yDirection[2] - proj*zDirection[2];
         normalize(yDirection);
-        double[] xDirection = new double[] {yDirection[1]*zDirection[2] - yDirection[2]*zDirection[1],
-                yDirection[2]*zDirection[0] - yDirection[0]*zDirection[2],
-                yDirection[0]*zDirection[1] - yDirection[1]*zDirection[0] };
-       e1 = transformToViewCoords(e1, xDirection, yDirection, zDirection);
-       e2 = transformToViewCoords(e2, xDirection, yDirection, zDirection);
-        double[] e = new double[]{e1[0] + e2[0], e1[1] + e2[1], e1[2] + e2[2]};
+        xDirection[0] = yDirection[1]*zDirection[2] - yDirection[2]*zDirection[1];
+        xDirection[1] = yDirection[2]*zDirection[0] - yDirection[0]*zDirection[2];
+        xDirection[2] = yDirection[0]*zDirection[1] - yDirection[1]*zDirection[0];
+       e1 = transformToViewCoords(e1, xDirection, yDirection, zDirection, viewE1);
+       e2 = transformToViewCoords(e2, xDirection, yDirection, zDirection, viewE2);
+        double[] e = bisector;
+        e[0] = e1[0] + e2[0];
+        e[1] = e1[1] + e2[1];
+        e[2] = e1[2] + e2[2];
         normalize(e);
-        double[] temp = new double[3];
         reflectInAxis(e, zDirection, temp);
         reflectInAxis(e1, temp, zDirection);
         reflectInAxis(e, xDirection, temp);
@@ -279,6 +571,7 @@ public class Camera {
         upx = upLength * yDirection[0];
         upy = upLength * yDirection[1];
         upz = upLength * yDirection[2];
+        viewDirty = true;
     }
 
     private void reflectInAxis(double[] axis, double[] source, double[] destination) {
@@ -288,8 +581,7 @@ public class Camera {
         destination[2] = s * axis[2] - source[2];
     }
     
-    private double[] transformToViewCoords(double[] v, double[] x, double[] y, double[] z) {
-       double[] w = new double[3];
+    private double[] transformToViewCoords(double[] v, double[] x, double[] y, double[] z, double[] w) {
        w[0] = v[0]*x[0] + v[1]*y[0] + v[2]*z[0];
        w[1] = v[0]*x[1] + v[1]*y[1] + v[2]*z[1];
        w[2] = v[0]*x[2] + v[1]*y[2] + v[2]*z[2];
@@ -298,14 +590,17 @@ public class Camera {
     
     private class TrackballMouser implements MouseListener, MouseMotionListener {
 
-        private boolean dragging;
-        private double[] prevRay;
+        private volatile boolean dragging;
+        private long lastDragTime;
         
         public void mousePressed(MouseEvent e) {
            if (dragging)
               return;
            dragging = true;
-           prevRay = mousePointToRay(e.getX(), e.getY());
+           synchronized (trackballLock) {
+              mousePointToRay(e.getX(), e.getY(), dragStart);
+              dragPending = false;
+           }
            trackballComponent.addMouseMotionListener(this);
         }
 
@@ -313,19 +608,26 @@ public class Camera {
            if (!dragging)
               return;
            dragging = false;
+           if (e.getWhen() - lastDragTime > 50)
+              releasedStill = true;
            trackballComponent.removeMouseMotionListener(this);
         }
 
         public void mouseDragged(MouseEvent e) {
            if (!dragging)
               return;
-           double[] thisRay = mousePointToRay(e.getX(), e.getY());
-           applyTransvection(prevRay, thisRay);
-           prevRay = thisRay;
-           trackballComponent.repaint();
+           lastDragTime = e.getWhen();
+           boolean wasPending;
+           synchronized (trackballLock) {
+              mousePointToRay(e.getX(), e.getY(), dragEnd);
+              wasPending = dragPending;
+              dragPending = true;
+           }
+           if (!wasPending)  // otherwise a repaint is already on its way
+              trackballComponent.repaint();
         }
         
-        private double[] mousePointToRay(int x, int y) {
+        private void mousePointToRay(int x, int y, double[] ray) {
            double dx, dy, dz, norm;
            int centerX = trackballComponent.getWidth()/2;
            int centerY = trackballComponent.getHeight()/2;
@@ -338,7 +640,9 @@ public class Camera {
            else
               dz = Math.sqrt( scale*scale - dx*dx -dy*dy );
            double length = Math.sqrt(dx*dx + dy*dy + dz*dz);
-           return new double[] { dx/length, dy/length, dz/length };
+           ray[0] = dx/length;
+           ray[1] = dy/length;
+           ray[2] = dz/length;
         }
 
         public void mouseClicked(MouseEvent e) { }
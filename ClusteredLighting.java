@@ -0,0 +1,335 @@
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.GL2;
+
+/**
+ * Per-pixel lighting with a GLSL program that reads its point lights from buffer textures. A
+ * LightClusterer sorts the lights into froxels on the CPU each frame, so the fragment shader only
+ * loops over the lights that can reach it, which lets the scene have hundreds of lights instead
+ * of the eight fixed-function ones. The fixed-function lights that are switched on (the
+ * viewpoint light, the colored orbiters and the spotlight) are still applied by the shader, read
+ * from gl_LightSource, so the picture matches the fixed-function path apart from the extra
+ * lights.
+ * <p>
+ * The program needs GLSL 1.50 with the compatibility profile. If it does not compile, init
+ * returns false and the caller should stay on fixed-function lighting.
+ */
+public class ClusteredLighting {
+
+  private static final String VERTEX_SHADER = String.join("\n",
+      "#version 150 compatibility",
+      "out vec3 viewPosition;",
+      "out vec3 viewNormal;",
+      "void main() {",
+      "  vec4 p = gl_ModelViewMatrix * gl_Vertex;",
+      "  viewPosition = p.xyz;",
+      "  viewNormal = gl_NormalMatrix * gl_Normal;",
+      "  gl_TexCoord[0] = gl_MultiTexCoord0;",
+      "  gl_Position = gl_ProjectionMatrix * p;",
+      "}", "");
+
+  private static final String FRAGMENT_SHADER = String.join("\n",
+      "#version 150 compatibility",
+      "in vec3 viewPosition;",
+      "in vec3 viewNormal;",
+      "uniform samplerBuffer lights;", // view space position + radius, then color
+      "uniform isamplerBuffer clusters;", // offset, count
+      "uniform isamplerBuffer lightIndices;",
+      "uniform sampler2D texture0;",
+      "uniform bool textured;",
+      "uniform int fixedLights;", // bit i set if GL_LIGHTi is on
+      "uniform ivec3 clusterDims;",
+      "uniform vec4 viewport;",
+      "uniform vec2 nearFar;",
+      "",
+      "vec3 specular(vec3 n, vec3 v, vec3 l) {",
+      "  float s = max(dot(n, normalize(l + v)), 0.0);",
+      "  return s > 0.0 ? pow(s, max(gl_FrontMaterial.shininess, 1.0)) * gl_FrontMaterial.specular.rgb : vec3(0.0);",
+      "}",
+      "",
+      "vec3 fixedLight(int i, vec3 n, vec3 v) {",
+      "  gl_LightSourceParameters light = gl_LightSource[i];",
+      "  vec3 l = light.position.xyz - viewPosition * light.position.w;",
+      "  float d = length(l);",
+      "  l /= d;",
+      "  float attenuation = 1.0;",
+      "  if (light.position.w != 0.0) {",
+      "    attenuation = 1.0 / max(light.constantAttenuation + light.linearAttenuation * d",
+      "        + light.quadraticAttenuation * d * d, 1e-4);",
+      "    if (light.spotCutoff <= 90.0) {",
+      "      float c = dot(-l, normalize(light.spotDirection));",
+      "      attenuation *= c < light.spotCosCutoff ? 0.0 : pow(max(c, 0.0), light.spotExponent);",
+      "    }",
+      "  }",
+      "  float diffuse = max(dot(n, l), 0.0);",
+      "  vec3 color = light.ambient.rgb * gl_FrontMaterial.ambient.rgb",
+      "      + diffuse * light.diffuse.rgb * gl_FrontMaterial.diffuse.rgb;",
+      "  if (diffuse > 0.0)",
+      "    color += light.specular.rgb * specular(n, v, l);",
+      "  return attenuation * color;",
+      "}",
+      "",
+      "void main() {",
+      "  vec3 n = normalize(viewNormal);",
+      "  if (!gl_FrontFacing)",
+      "    n = -n;",
+      "  vec3 v = normalize(-viewPosition);",
+      "  vec3 color = gl_FrontMaterial.emission.rgb + gl_LightModel.ambient.rgb * gl_FrontMaterial.ambient.rgb;",
+      "  for (int i = 0; i < 8; i++)",
+      "    if ((fixedLights & (1 << i)) != 0)",
+      "      color += fixedLight(i, n, v);",
+      "",
+      "  float depth = -viewPosition.z;",
+      "  float t = nearFar.x > 0.0 ? log(max(depth, nearFar.x) / nearFar.x) / log(nearFar.y / nearFar.x)",
+      "      : (depth - nearFar.x) / (nearFar.y - nearFar.x);",
+      "  int slice = clamp(int(t * float(clusterDims.z)), 0, clusterDims.z - 1);",
+      "  ivec2 tile = clamp(ivec2((gl_FragCoord.xy - viewport.xy) / viewport.zw * vec2(clusterDims.xy)),",
+      "      ivec2(0), clusterDims.xy - 1);",
+      "  int cluster = (slice * clusterDims.y + tile.y) * clusterDims.x + tile.x;",
+      "  ivec2 range = texelFetch(clusters, cluster).xy;",
+      "  for (int k = 0; k < range.y; k++) {",
+      "    int index = texelFetch(lightIndices, range.x + k).x;",
+      "    vec4 light = texelFetch(lights, index * 2);",
+      "    vec3 lightColor = texelFetch(lights, index * 2 + 1).rgb;",
+      "    vec3 l = light.xyz - viewPosition;",
+      "    float d = length(l);",
+      "    if (d >= light.w)",
+      "      continue;",
+      "    l /= d;",
+      "    float falloff = 1.0 - (d * d) / (light.w * light.w);",
+      "    float diffuse = max(dot(n, l), 0.0);",
+      "    if (diffuse > 0.0)",
+      "      color += falloff * falloff * lightColor * (diffuse * gl_FrontMaterial.diffuse.rgb + specular(n, v, l));",
+      "  }",
+      "",
+      "  vec4 result = vec4(color, gl_FrontMaterial.diffuse.a);",
+      "  if (textured)",
+      "    result *= texture(texture0, gl_TexCoord[0].st);",
+      "  gl_FragColor = result;",
+      "}", "");
+
+  // texture units used for the light buffers; unit 0 is left for the material texture
+  private static final int LIGHTS_UNIT = 1;
+  private static final int CLUSTERS_UNIT = 2;
+  private static final int INDICES_UNIT = 3;
+
+  private final LightClusterer clusterer;
+
+  private int program;
+  private int[] buffers = new int[3];
+  private int[] textures = new int[3];
+  private boolean ready;
+
+  private FloatBuffer lightData = Buffers.newDirectFloatBuffer(0);
+  private IntBuffer clusterData;
+  private IntBuffer indexData = Buffers.newDirectIntBuffer(0);
+
+  private int lightsLocation, clustersLocation, indicesLocation, textureLocation;
+  private int texturedLocation, fixedLightsLocation, clusterDimsLocation;
+  private int viewportLocation, nearFarLocation;
+
+  private final double[] view = new double[16];
+  private final double[] projection = new double[16];
+  private int[] viewport = new int[4];
+
+  ClusteredLighting(LightClusterer clusterer) {
+    this.clusterer = clusterer;
+    clusterData = Buffers.newDirectIntBuffer(clusterer.getClusterCount() * 2);
+  }
+
+  public LightClusterer getClusterer() {
+    return clusterer;
+  }
+
+  /** True if init succeeded and the shader path can be used. */
+  public boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * Compiles the program and creates the light buffers. Returns false, after printing the
+   * compiler log, if this context cannot run the shader.
+   */
+  public boolean init(GL2 gl) {
+    int vertex = compile(gl, GL2.GL_VERTEX_SHADER, VERTEX_SHADER);
+    int fragment = compile(gl, GL2.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+    if (vertex == 0 || fragment == 0) {
+      for (int shader : new int[] {vertex, fragment}) { // the one that did compile
+        if (shader != 0) {
+          gl.glDeleteShader(shader);
+          GLResources.deleted(GLResources.Kind.SHADER, shader);
+        }
+      }
+      return false;
+    }
+    program = GLResources.created(GLResources.Kind.PROGRAM, gl.glCreateProgram(), 0, this);
+    gl.glAttachShader(program, vertex);
+    gl.glAttachShader(program, fragment);
+    gl.glLinkProgram(program);
+    gl.glDeleteShader(vertex);
+    gl.glDeleteShader(fragment);
+    GLResources.deleted(GLResources.Kind.SHADER, vertex);
+    GLResources.deleted(GLResources.Kind.SHADER, fragment);
+    int[] status = new int[1];
+    gl.glGetProgramiv(program, GL2.GL_LINK_STATUS, status, 0);
+    if (status[0] == 0) {
+      System.out.println("Clustered lighting program did not link:\n" + programLog(gl, program));
+      gl.glDeleteProgram(program);
+      GLResources.deleted(GLResources.Kind.PROGRAM, program);
+      program = 0;
+      return false;
+    }
+
+    lightsLocation = gl.glGetUniformLocation(program, "lights");
+    clustersLocation = gl.glGetUniformLocation(program, "clusters");
+    indicesLocation = gl.glGetUniformLocation(program, "lightIndices");
+    textureLocation = gl.glGetUniformLocation(program, "texture0");
+    texturedLocation = gl.glGetUniformLocation(program, "textured");
+    fixedLightsLocation = gl.glGetUniformLocation(program, "fixedLights");
+    clusterDimsLocation = gl.glGetUniformLocation(program, "clusterDims");
+    viewportLocation = gl.glGetUniformLocation(program, "viewport");
+    nearFarLocation = gl.glGetUniformLocation(program, "nearFar");
+
+    gl.glGenBuffers(3, buffers, 0);
+    gl.glGenTextures(3, textures, 0);
+    GLResources.created(GLResources.Kind.BUFFER, buffers, 3, 16, this);
+    GLResources.created(GLResources.Kind.TEXTURE, textures, 3, 0, this); // views of the buffers
+    int[] formats = {GL2.GL_RGBA32F, GL2.GL_RG32I, GL2.GL_R32I};
+    for (int i = 0; i < 3; i++) {
+      gl.glBindBuffer(GL2.GL_TEXTURE_BUFFER, buffers[i]);
+      gl.glBufferData(GL2.GL_TEXTURE_BUFFER, 16, null, GL2.GL_STREAM_DRAW);
+      gl.glBindTexture(GL2.GL_TEXTURE_BUFFER, textures[i]);
+      gl.glTexBuffer(GL2.GL_TEXTURE_BUFFER, formats[i], buffers[i]);
+    }
+    gl.glBindTexture(GL2.GL_TEXTURE_BUFFER, 0);
+    gl.glBindBuffer(GL2.GL_TEXTURE_BUFFER, 0);
+    ready = true;
+    return true;
+  }
+
+  /**
+   * Assigns the lights to clusters for the camera's current view and uploads the result. Call
+   * once per frame, after the lights have been moved. lights holds lightCount lights of
+   * LightClusterer.LIGHT_STRIDE floats each, in world coordinates.
+   */
+  public void update(GL2 gl, Camera camera, float[] lights, int lightCount) {
+    camera.getViewMatrix(view);
+    camera.getProjectionMatrix(projection);
+    viewport = camera.getViewport();
+    clusterer.assign(lights, lightCount, view, projection);
+
+    // lights: view space position and radius, then color
+    if (lightData.capacity() < lightCount * 8)
+      lightData = Buffers.newDirectFloatBuffer(lightCount * 8);
+    lightData.clear();
+    float[] viewLights = clusterer.getViewSpaceLights();
+    for (int i = 0; i < lightCount; i++) {
+      lightData.put(viewLights, i * 4, 4);
+      lightData.put(lights, i * LightClusterer.LIGHT_STRIDE + 4, 4);
+    }
+    lightData.flip();
+    upload(gl, buffers[0], lightData, Buffers.SIZEOF_FLOAT);
+
+    clusterData.clear();
+    clusterData.put(clusterer.getClusterData()).flip();
+    upload(gl, buffers[1], clusterData, Buffers.SIZEOF_INT);
+
+    int indexCount = Math.max(clusterer.getLightIndexCount(), 1);
+    if (indexData.capacity() < indexCount)
+      indexData = Buffers.newDirectIntBuffer(indexCount * 2);
+    indexData.clear();
+    indexData.put(clusterer.getLightIndices(), 0, indexCount).flip();
+    upload(gl, buffers[2], indexData, Buffers.SIZEOF_INT);
+  }
+
+  /**
+   * Starts drawing with the clustered lighting program. fixedLightMask has bit i set for each
+   * GL_LIGHTi that is enabled. If textured is true, the texture bound to unit 0 modulates the
+   * lit color, like GL_MODULATE does in the fixed-function path.
+   */
+  public void begin(GL2 gl, boolean textured, int fixedLightMask) {
+    gl.glUseProgram(program);
+    for (int i = 0; i < 3; i++) {
+      gl.glActiveTexture(GL2.GL_TEXTURE0 + LIGHTS_UNIT + i);
+      gl.glBindTexture(GL2.GL_TEXTURE_BUFFER, textures[i]);
+    }
+    gl.glActiveTexture(GL2.GL_TEXTURE0);
+    gl.glUniform1i(lightsLocation, LIGHTS_UNIT);
+    gl.glUniform1i(clustersLocation, CLUSTERS_UNIT);
+    gl.glUniform1i(indicesLocation, INDICES_UNIT);
+    gl.glUniform1i(textureLocation, 0);
+    gl.glUniform1i(texturedLocation, textured ? 1 : 0);
+    gl.glUniform1i(fixedLightsLocation, fixedLightMask);
+    gl.glUniform3i(clusterDimsLocation, clusterer.getTilesX(), clusterer.getTilesY(),
+        clusterer.getSlices());
+    gl.glUniform4f(viewportLocation, viewport[0], viewport[1], viewport[2], viewport[3]);
+    gl.glUniform2f(nearFarLocation, clusterer.getNear(), clusterer.getFar());
+  }
+
+  /** Goes back to fixed-function lighting. */
+  public void end(GL2 gl) {
+    for (int i = 0; i < 3; i++) {
+      gl.glActiveTexture(GL2.GL_TEXTURE0 + LIGHTS_UNIT + i);
+      gl.glBindTexture(GL2.GL_TEXTURE_BUFFER, 0);
+    }
+    gl.glActiveTexture(GL2.GL_TEXTURE0);
+    gl.glUseProgram(0);
+  }
+
+  public void dispose(GL2 gl) {
+    if (!ready)
+      return;
+    gl.glDeleteTextures(3, textures, 0);
+    gl.glDeleteBuffers(3, buffers, 0);
+    gl.glDeleteProgram(program);
+    GLResources.deleted(GLResources.Kind.TEXTURE, textures, 3);
+    GLResources.deleted(GLResources.Kind.BUFFER, buffers, 3);
+    GLResources.deleted(GLResources.Kind.PROGRAM, program);
+    ready = false;
+  }
+
+  private static void upload(GL2 gl, int buffer, Buffer data, int elementSize) {
+    gl.glBindBuffer(GL2.GL_TEXTURE_BUFFER, buffer);
+    gl.glBufferData(GL2.GL_TEXTURE_BUFFER, (long) data.remaining() * elementSize, data,
+        GL2.GL_STREAM_DRAW);
+    GLResources.resized(GLResources.Kind.BUFFER, buffer, (long) data.remaining() * elementSize);
+    gl.glBindBuffer(GL2.GL_TEXTURE_BUFFER, 0);
+  }
+
+  private static int compile(GL2 gl, int type, String source) {
+    int shader = GLResources.created(GLResources.Kind.SHADER, gl.glCreateShader(type), 0,
+        "clustered lighting");
+    gl.glShaderSource(shader, 1, new String[] {source}, null, 0);
+    gl.glCompileShader(shader);
+    int[] status = new int[1];
+    gl.glGetShaderiv(shader, GL2.GL_COMPILE_STATUS, status, 0);
+    if (status[0] == 0) {
+      int[] length = new int[1];
+      gl.glGetShaderiv(shader, GL2.GL_INFO_LOG_LENGTH, length, 0);
+      ByteBuffer log = Buffers.newDirectByteBuffer(Math.max(length[0], 1));
+      gl.glGetShaderInfoLog(shader, log.capacity(), null, log);
+      byte[] bytes = new byte[log.capacity()];
+      log.get(bytes);
+      System.out.println("Clustered lighting shader did not compile:\n" + new String(bytes).trim());
+      gl.glDeleteShader(shader);
+      GLResources.deleted(GLResources.Kind.SHADER, shader);
+      return 0;
+    }
+    return shader;
+  }
+
+  private static String programLog(GL2 gl, int program) {
+    int[] length = new int[1];
+    gl.glGetProgramiv(program, GL2.GL_INFO_LOG_LENGTH, length, 0);
+    ByteBuffer log = Buffers.newDirectByteBuffer(Math.max(length[0], 1));
+    gl.glGetProgramInfoLog(program, log.capacity(), null, log);
+    byte[] bytes = new byte[log.capacity()];
+    log.get(bytes);
+    return new String(bytes).trim();
+  }
+
+}
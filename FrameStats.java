@@ -0,0 +1,36 @@
+/**
+ * Per-frame counters for the render loop. Drawing code calls drawCall() for every draw call it
+ * issues, and the display method calls endFrame() once the frame is finished, which makes the
+ * totals for that frame available and starts counting the next one. All calls are expected on
+ * the GL thread.
+ */
+public class FrameStats {
+
+  private static int drawCalls;
+  private static int lastDrawCalls;
+  private static long frames;
+
+  private FrameStats() {}
+
+  /** Counts one draw call (glDrawElements, glCallList, glBegin/glEnd block, ...). */
+  public static void drawCall() {
+    drawCalls++;
+  }
+
+  /** Finishes the current frame. */
+  public static void endFrame() {
+    lastDrawCalls = drawCalls;
+    drawCalls = 0;
+    frames++;
+  }
+
+  /** Draw calls issued during the most recently finished frame. */
+  public static int getDrawCalls() {
+    return lastDrawCalls;
+  }
+
+  public static long getFrameCount() {
+    return frames;
+  }
+
+}
@@ -0,0 +1,85 @@
+import com.jogamp.opengl.GL2;
+
+/**
+ * Measures how long frames take without stalling the GPU to find out. A frame's time is the
+ * longer of the CPU time from begin to end and the GPU time of the GL work issued in between,
+ * taken from a GL_TIME_ELAPSED query. The queries go round a ring of QUERY_COUNT, and each is
+ * read a frame or more later, once its result is available, so end never waits for the GPU.
+ * <p>
+ * Where timer queries are not supported, every SAMPLE_INTERVAL frames end waits for the GPU
+ * with glFinish and reports that frame, so the stall is paid on only one frame in that many.
+ */
+public class FrameTimer {
+
+  private static final int QUERY_COUNT = 4; // frames the GPU may fall behind before timing stops
+  private static final int SAMPLE_INTERVAL = 8; // frames per glFinish without timer queries
+
+  private int[] queries; // null until the first begin, empty without timer queries
+  private final long[] cpuNanos = new long[QUERY_COUNT]; // of the frame each query timed
+  private int next, pending; // the ring position of the next query, and how many are unread
+  private boolean timing; // a query was begun for this frame
+  private long start;
+  private int frames;
+  private final int[] available = new int[1];
+  private final long[] elapsed = new long[1];
+
+  /** Starts timing a frame. */
+  public void begin(GL2 gl) {
+    start = System.nanoTime();
+    if (queries == null) {
+      if (gl.isExtensionAvailable("GL_ARB_timer_query")) {
+        queries = new int[QUERY_COUNT];
+        gl.glGenQueries(QUERY_COUNT, queries, 0);
+        for (int query : queries)
+          GLResources.created(GLResources.Kind.QUERY, query, 0, this);
+      } else {
+        queries = new int[0];
+      }
+    }
+    // with every query unread the GPU is far behind, and this frame goes untimed
+    timing = queries.length > 0 && pending < QUERY_COUNT;
+    if (timing)
+      gl.glBeginQuery(GL2.GL_TIME_ELAPSED, queries[next]);
+  }
+
+  /**
+   * Stops timing the frame begun last, and returns the time in nanoseconds of a frame that has
+   * finished on the GPU since the last call, this one or an earlier one, or -1 if there is none.
+   */
+  public long end(GL2 gl) {
+    long cpu = System.nanoTime() - start;
+    if (queries.length == 0) {
+      if (++frames % SAMPLE_INTERVAL != 0)
+        return -1;
+      gl.glFinish();
+      return System.nanoTime() - start;
+    }
+    if (timing) {
+      gl.glEndQuery(GL2.GL_TIME_ELAPSED);
+      cpuNanos[next] = cpu;
+      next = (next + 1) % QUERY_COUNT;
+      pending++;
+    }
+    if (pending == 0)
+      return -1;
+    int oldest = (next - pending + QUERY_COUNT) % QUERY_COUNT;
+    gl.glGetQueryObjectiv(queries[oldest], GL2.GL_QUERY_RESULT_AVAILABLE, available, 0);
+    if (available[0] == 0)
+      return -1;
+    gl.glGetQueryObjectui64v(queries[oldest], GL2.GL_QUERY_RESULT, elapsed, 0);
+    pending--;
+    return Math.max(cpuNanos[oldest], elapsed[0]);
+  }
+
+  public void dispose(GL2 gl) {
+    if (queries != null && queries.length > 0) {
+      gl.glDeleteQueries(QUERY_COUNT, queries, 0);
+      for (int query : queries)
+        GLResources.deleted(GLResources.Kind.QUERY, query);
+    }
+    queries = null;
+    next = 0;
+    pending = 0;
+  }
+
+}
@@ -0,0 +1,353 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.TraceGL2;
+
+/**
+ * Counts the GL calls a program makes, per entry point and per render pass, and can record them
+ * to a compact binary trace. It plugs into JOGL's composable pipeline: wrap returns a TraceGL2
+ * that hands each call to the profiler instead of printing it, and installing that with
+ * GLAutoDrawable.setGL sends everything drawn through the drawable past the profiler. TraceGL2
+ * still formats every call as text, so GL is slower while profiling; this is a mode to turn on
+ * when looking, not something to leave running.
+ * <p>
+ * A trace holds only which entry point was called during which pass, a byte or two per call,
+ * with the names written once. Replaying it counts the calls again without any GL, so a trace
+ * taken on a machine with a GPU can be studied on a headless one: java GLCallProfiler trace
+ */
+public class GLCallProfiler {
+
+  private static final int MAGIC = 0x474C5452; // "GLTR"
+  private static final int VERSION = 1;
+  // trace records: a code, then the record's data; codes from CALL up are calls of entry point
+  // code - CALL
+  private static final int NEW_ENTRY = 0, NEW_PASS = 1, PASS = 2, FRAME = 3, CALL = 4;
+
+  private final Map<String, Integer> entryIds = new HashMap<>();
+  private final List<String> entries = new ArrayList<>();
+  private final Map<String, Integer> passIds = new HashMap<>();
+  private final List<String> passes = new ArrayList<>();
+  private final List<long[]> counts = new ArrayList<>(); // per pass, per entry point
+  private int pass = -1;
+  private long frames, calls, frameCalls, lastFrameCalls;
+  private DataOutputStream trace;
+
+  /**
+   * A TraceGL2 that counts its calls in a profiler. Each call is passed to print once, as its
+   * entry point name followed by its arguments, before it goes downstream.
+   */
+  private static class CountingGL2 extends TraceGL2 {
+    private final GLCallProfiler profiler;
+
+    CountingGL2(GL2 downstream, GLCallProfiler profiler) {
+      super(downstream, new PrintStream(OutputStream.nullOutputStream()));
+      this.profiler = profiler;
+    }
+
+    @Override
+    protected void print(String call) {
+      int paren = call.indexOf('(');
+      profiler.call(paren < 0 ? call : call.substring(0, paren));
+    }
+
+    @Override
+    protected void println(String text) {
+    }
+
+    @Override
+    protected void printIndent() {
+    }
+  }
+
+  GLCallProfiler() {
+    beginPass("other");
+  }
+
+  /** Returns gl wrapped so that every call made through it is counted by this profiler. */
+  public GL2 wrap(GL2 gl) {
+    return new CountingGL2(gl, this);
+  }
+
+  /** Starts recording the calls to a trace file, from now until close. */
+  public void record(File file) throws IOException {
+    trace = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    trace.writeInt(MAGIC);
+    trace.writeInt(VERSION);
+    // the names so far, so a trace started late can still be read
+    for (String entry : entries) {
+      writeVarint(NEW_ENTRY);
+      trace.writeUTF(entry);
+    }
+    for (int p = 0; p < passes.size(); p++) {
+      writeVarint(NEW_PASS);
+      trace.writeUTF(passes.get(p));
+    }
+    writeVarint(PASS);
+    writeVarint(pass);
+  }
+
+  /** Finishes the trace file, if one is being recorded. */
+  public void close() throws IOException {
+    if (trace != null)
+      trace.close();
+    trace = null;
+  }
+
+  /** Counts the calls from now on under the named pass, such as "room" or "reflection". */
+  public void beginPass(String name) {
+    Integer id = passIds.get(name);
+    if (id == null) {
+      id = passes.size();
+      passIds.put(name, id);
+      passes.add(name);
+      counts.add(new long[Math.max(16, entries.size())]);
+      if (trace != null) {
+        writeVarint(NEW_PASS);
+        writeUTF(name);
+      }
+    }
+    if (id == pass)
+      return;
+    pass = id;
+    if (trace != null) {
+      writeVarint(PASS);
+      writeVarint(id);
+    }
+  }
+
+  /** Marks the end of a frame, making its call count available from getLastFrameCalls. */
+  public void endFrame() {
+    frames++;
+    lastFrameCalls = frameCalls;
+    frameCalls = 0;
+    if (trace != null)
+      writeVarint(FRAME);
+  }
+
+  /** Counts one call of the named entry point in the current pass. */
+  void call(String entry) {
+    Integer id = entryIds.get(entry);
+    if (id == null) {
+      id = entries.size();
+      entryIds.put(entry, id);
+      entries.add(entry);
+      if (trace != null) {
+        writeVarint(NEW_ENTRY);
+        writeUTF(entry);
+      }
+    }
+    count(id);
+    if (trace != null)
+      writeVarint(CALL + id);
+  }
+
+  private void count(int entry) {
+    long[] passCounts = counts.get(pass);
+    if (entry >= passCounts.length)
+      counts.set(pass, passCounts = Arrays.copyOf(passCounts, Math.max(entry + 1,
+          passCounts.length * 2)));
+    passCounts[entry]++;
+    calls++;
+    frameCalls++;
+  }
+
+  private void writeVarint(int value) {
+    try {
+      while ((value & ~0x7F) != 0) {
+        trace.write((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      trace.write(value);
+    } catch (IOException e) {
+      traceFailed(e);
+    }
+  }
+
+  private void writeUTF(String text) {
+    try {
+      trace.writeUTF(text);
+    } catch (IOException e) {
+      traceFailed(e);
+    }
+  }
+
+  /** A full disk should not stop the program, so the trace is dropped, and counting goes on. */
+  private void traceFailed(IOException e) {
+    System.out.println("GL trace stopped: " + e);
+    try {
+      trace.close();
+    } catch (IOException ignored) {
+    }
+    trace = null;
+  }
+
+  /**
+   * Reads a trace back into a new profiler, which counts the calls as they were recorded. No GL
+   * is needed.
+   */
+  public static GLCallProfiler replay(File file) throws IOException {
+    GLCallProfiler profiler = new GLCallProfiler();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file), 1 << 16))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION)
+        throw new IOException(file + " is not a GL trace of this version");
+      List<String> passNames = new ArrayList<>();
+      for (int code; (code = readVarint(in)) >= 0;) {
+        if (code >= CALL) {
+          if (code - CALL >= profiler.entries.size())
+            throw new IOException(file + ": call of an undefined entry point");
+          profiler.count(code - CALL);
+        } else if (code == NEW_ENTRY) {
+          String entry = in.readUTF();
+          profiler.entryIds.put(entry, profiler.entries.size());
+          profiler.entries.add(entry);
+        } else if (code == NEW_PASS) {
+          passNames.add(in.readUTF());
+        } else if (code == PASS) {
+          int id = readVarint(in);
+          if (id < 0 || id >= passNames.size())
+            throw new IOException(file + ": undefined pass");
+          profiler.beginPass(passNames.get(id));
+        } else {
+          profiler.endFrame();
+        }
+      }
+    }
+    return profiler;
+  }
+
+  /** The next varint, or -1 at the end of the stream. */
+  private static int readVarint(InputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = in.read();
+      if (b < 0) {
+        if (shift == 0)
+          return -1;
+        throw new EOFException("trace ends inside a record");
+      }
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+  }
+
+  /** Calls counted in the last finished frame. */
+  public long getLastFrameCalls() {
+    return lastFrameCalls;
+  }
+
+  public long getFrameCount() {
+    return frames;
+  }
+
+  public long getCallCount() {
+    return calls;
+  }
+
+  /** Calls of an entry point in a pass, or in all passes if pass is null. */
+  public long getCount(String pass, String entry) {
+    Integer id = entryIds.get(entry);
+    if (id == null)
+      return 0;
+    long total = 0;
+    for (int p = 0; p < passes.size(); p++)
+      if ((pass == null || passes.get(p).equals(pass)) && id < counts.get(p).length)
+        total += counts.get(p)[id];
+    return total;
+  }
+
+  /**
+   * The counts as a table: calls per frame for each pass, with its most called entry points.
+   */
+  public String report() {
+    double perFrame = Math.max(1, frames);
+    StringBuilder b = new StringBuilder(String.format(
+        "%d GL calls in %d frames, %.1f per frame, %d entry points%n", calls, frames,
+        calls / perFrame, entries.size()));
+    for (int p = 0; p < passes.size(); p++) {
+      long[] passCounts = counts.get(p);
+      Integer[] order = new Integer[Math.min(passCounts.length, entries.size())];
+      long total = 0;
+      for (int e = 0; e < order.length; e++) {
+        order[e] = e;
+        total += passCounts[e];
+      }
+      if (total == 0)
+        continue;
+      Arrays.sort(order, (x, y) -> Long.compare(passCounts[y], passCounts[x]));
+      b.append(String.format("  %-12s %10.1f per frame%n", passes.get(p), total / perFrame));
+      for (int i = 0; i < Math.min(8, order.length) && passCounts[order[i]] > 0; i++)
+        b.append(String.format("    %-28s %10.1f%n", entries.get(order[i]),
+            passCounts[order[i]] / perFrame));
+    }
+    return b.toString();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d GL calls last frame", lastFrameCalls);
+  }
+
+  /**
+   * Prints the report of a trace file. With no file, records a made-up trace, replays it and
+   * checks that the counts come back the same, which needs no GL either.
+   * Usage: java GLCallProfiler [trace]
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length > 0) {
+      System.out.print(replay(new File(args[0])).report());
+      return;
+    }
+    File file = File.createTempFile("profiler", ".gltrace");
+    GLCallProfiler profiler = new GLCallProfiler();
+    profiler.record(file);
+    String[] names = {"glBegin", "glNormal3f", "glVertex3f", "glEnd", "glDrawElements",
+        "glMaterialfv", "glPushMatrix", "glPopMatrix"};
+    int frames = 200;
+    long start = System.nanoTime();
+    for (int frame = 0; frame < frames; frame++) {
+      profiler.beginPass("room");
+      for (int i = 0; i < 5000; i++)
+        profiler.call(names[1 + i % 2]);
+      profiler.beginPass("model");
+      for (int i = 0; i < 300; i++)
+        profiler.call(names[4 + i % 4]);
+      profiler.endFrame();
+    }
+    profiler.close();
+    long recordNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    GLCallProfiler replayed = replay(file);
+    long replayNanos = System.nanoTime() - start;
+    System.out.print(replayed.report());
+    boolean same = replayed.getCallCount() == profiler.getCallCount()
+        && replayed.getFrameCount() == frames;
+    for (String name : names)
+      for (String pass : new String[] {"room", "model"})
+        same &= replayed.getCount(pass, name) == profiler.getCount(pass, name);
+    System.out.printf("%s; %.2f bytes per call, recorded at %.1f M calls/s, replayed at %.1f M"
+        + " calls/s%n", same ? "replay matches" : "REPLAY DIFFERS",
+        (double) file.length() / profiler.getCallCount(),
+        profiler.getCallCount() / (recordNanos / 1e3),
+        replayed.getCallCount() / (replayNanos / 1e3));
+    file.delete();
+  }
+
+}
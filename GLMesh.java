@@ -0,0 +1,253 @@
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.common.nio.PointerBuffer;
+import com.jogamp.opengl.GL2;
+
+/**
+ * A MeshData uploaded to a vertex buffer and an index buffer, drawn with a single
+ * glDrawElements call. The vertex attributes are interleaved, position first, then normal,
+ * texture coordinate and color if the mesh has them. Indices are stored as unsigned shorts when
+ * the mesh is small enough, which halves the index memory.
+ * <p>
+ * A QuantizedMesh is uploaded with 16-bit positions and 8-bit normals, 12 bytes per vertex
+ * instead of 24. Those positions have to be drawn with the mesh's decode matrix multiplied into
+ * the modelview matrix.
+ */
+public class GLMesh {
+
+  /** Bytes per vertex of a quantized mesh on the GPU. */
+  static final int QUANTIZED_STRIDE = 12;
+
+  private final int mode;
+  private final int vertexCount;
+  private final int indexCount;
+  private final boolean hasNormals, hasTexCoords, hasColors;
+  private final int positionType, normalType; // GL_FLOAT, or GL_SHORT and GL_BYTE when quantized
+  private final int stride; // bytes per vertex
+  private final int normalOffset;
+  private long byteSize;
+  private int indexType;
+  private int[] buffers = new int[2];
+  private IntBuffer rangeCounts; // for drawBoundRanges, grown as needed
+  private PointerBuffer rangeOffsets;
+
+  GLMesh(GL2 gl, MeshData mesh) {
+    mode = mesh.getMode();
+    vertexCount = mesh.getVertexCount();
+    indexCount = mesh.getIndexCount();
+    hasNormals = mesh.getNormals() != null;
+    hasTexCoords = mesh.getTexCoords() != null;
+    hasColors = mesh.getColors() != null;
+    int floats = 3 + (hasNormals ? 3 : 0) + (hasTexCoords ? 2 : 0) + (hasColors ? 3 : 0);
+    stride = floats * Buffers.SIZEOF_FLOAT;
+
+    positionType = GL2.GL_FLOAT;
+    normalType = GL2.GL_FLOAT;
+    normalOffset = 3 * Buffers.SIZEOF_FLOAT;
+
+    FloatBuffer vertices = Buffers.newDirectFloatBuffer(vertexCount * floats);
+    float[] p = mesh.getPositions(), n = mesh.getNormals(), t = mesh.getTexCoords();
+    float[] c = mesh.getColors();
+    for (int v = 0; v < vertexCount; v++) {
+      vertices.put(p, v * 3, 3);
+      if (hasNormals)
+        vertices.put(n, v * 3, 3);
+      if (hasTexCoords)
+        vertices.put(t, v * 2, 2);
+      if (hasColors)
+        vertices.put(c, v * 3, 3);
+    }
+    vertices.flip();
+    upload(gl, vertices, mesh.getIndices());
+  }
+
+  /**
+   * Uploads the positions and normals of a quantized mesh. Positions are stored as shorts padded
+   * to four, and normals as normalized bytes padded to four. Fixed function lighting can only
+   * read three component normals, so the octahedral normals are expanded here.
+   */
+  GLMesh(GL2 gl, QuantizedMesh mesh) {
+    this(mesh.getMode(), mesh.getVertexCount(), mesh.getIndices().length);
+    ByteBuffer vertices = Buffers.newDirectByteBuffer(vertexCount * stride);
+    putQuantizedVertices(mesh, vertices);
+    vertices.flip();
+    upload(gl, vertices, mesh.getIndices());
+  }
+
+  /**
+   * Uploads vertices already in the layout of a quantized mesh, as written by
+   * putQuantizedVertices, and indices already as unsigned shorts if there are at most 65535
+   * vertices or unsigned ints otherwise, in native byte order. Used to stream meshes straight
+   * from a mapped file.
+   */
+  GLMesh(GL2 gl, int mode, int vertexCount, ByteBuffer vertices, int indexCount, ByteBuffer indices) {
+    this(mode, vertexCount, indexCount);
+    indexType = vertexCount <= 0xFFFF ? GL2.GL_UNSIGNED_SHORT : GL2.GL_UNSIGNED_INT;
+    upload(gl, vertices, indices);
+  }
+
+  /** Sets up a quantized mesh. */
+  private GLMesh(int mode, int vertexCount, int indexCount) {
+    this.mode = mode;
+    this.vertexCount = vertexCount;
+    this.indexCount = indexCount;
+    hasNormals = true;
+    hasTexCoords = false;
+    hasColors = false;
+    positionType = GL2.GL_SHORT;
+    normalType = GL2.GL_BYTE;
+    normalOffset = 4 * Buffers.SIZEOF_SHORT;
+    stride = QUANTIZED_STRIDE;
+  }
+
+  /** Writes the vertices of mesh in the layout the quantized constructor uploads. */
+  static void putQuantizedVertices(QuantizedMesh mesh, ByteBuffer vertices) {
+    byte[] normal = new byte[3];
+    short[] p = mesh.getPositions();
+    for (int v = 0; v < mesh.getVertexCount(); v++) {
+      vertices.putShort(p[v * 3]).putShort(p[v * 3 + 1]).putShort(p[v * 3 + 2]).putShort((short) 0);
+      mesh.getUploadedNormal(v, normal, 0);
+      vertices.put(normal).put((byte) 0);
+    }
+  }
+
+  private void upload(GL2 gl, Buffer vertices, int[] meshIndices) {
+    Buffer indices;
+    if (vertexCount <= 0xFFFF) {
+      indexType = GL2.GL_UNSIGNED_SHORT;
+      short[] shorts = new short[indexCount];
+      for (int i = 0; i < indexCount; i++)
+        shorts[i] = (short) meshIndices[i];
+      indices = Buffers.newDirectShortBuffer(shorts);
+    } else {
+      indexType = GL2.GL_UNSIGNED_INT;
+      indices = Buffers.newDirectIntBuffer(meshIndices);
+    }
+    upload(gl, vertices, indices);
+  }
+
+  /** Uploads the buffers; indexType must be set. */
+  private void upload(GL2 gl, Buffer vertices, Buffer indices) {
+    int indexSize = indexSize();
+    gl.glGenBuffers(2, buffers, 0);
+    GLResources.created(GLResources.Kind.BUFFER, buffers[0], (long) vertexCount * stride, this);
+    GLResources.created(GLResources.Kind.BUFFER, buffers[1], (long) indexCount * indexSize, this);
+    gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, buffers[0]);
+    gl.glBufferData(GL2.GL_ARRAY_BUFFER, (long) vertexCount * stride, vertices, GL2.GL_STATIC_DRAW);
+    gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+    gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, buffers[1]);
+    gl.glBufferData(GL2.GL_ELEMENT_ARRAY_BUFFER, (long) indexCount * indexSize, indices,
+        GL2.GL_STATIC_DRAW);
+    gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+    byteSize = (long) vertexCount * stride + (long) indexCount * indexSize;
+  }
+
+  public int getVertexCount() {
+    return vertexCount;
+  }
+
+  public int getIndexCount() {
+    return indexCount;
+  }
+
+  /** Bytes of GPU memory used by the vertex and index buffers. */
+  public long getByteSize() {
+    return byteSize;
+  }
+
+  /** Draws the whole mesh. */
+  public void draw(GL2 gl) {
+    drawRange(gl, 0, indexCount);
+  }
+
+  /** Draws count indices starting at firstIndex. */
+  public void drawRange(GL2 gl, int firstIndex, int count) {
+    bind(gl);
+    drawBoundRange(gl, firstIndex, count);
+    unbind(gl);
+  }
+
+  /**
+   * Binds the buffers and sets up the vertex arrays, for callers that issue several draws from
+   * the same mesh. Must be followed by unbind.
+   */
+  public void bind(GL2 gl) {
+    gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, buffers[0]);
+    gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, buffers[1]);
+    gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+    gl.glVertexPointer(3, positionType, stride, 0);
+    long offset = normalOffset;
+    if (hasNormals) {
+      gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+      gl.glNormalPointer(normalType, stride, offset);
+      offset += 3 * Buffers.SIZEOF_FLOAT;
+    }
+    if (hasTexCoords) {
+      gl.glEnableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+      gl.glTexCoordPointer(2, GL2.GL_FLOAT, stride, offset);
+      offset += 2 * Buffers.SIZEOF_FLOAT;
+    }
+    if (hasColors) {
+      gl.glEnableClientState(GL2.GL_COLOR_ARRAY);
+      gl.glColorPointer(3, GL2.GL_FLOAT, stride, offset);
+    }
+  }
+
+  public void unbind(GL2 gl) {
+    gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+    if (hasNormals)
+      gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+    if (hasTexCoords)
+      gl.glDisableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+    if (hasColors)
+      gl.glDisableClientState(GL2.GL_COLOR_ARRAY);
+    gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+    gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+  }
+
+  /** Issues the draw call for an index range; the mesh must be bound. */
+  public void drawBoundRange(GL2 gl, int firstIndex, int count) {
+    gl.glDrawElements(mode, count, indexType, (long) firstIndex * indexSize());
+    FrameStats.drawCall();
+  }
+
+  /**
+   * Issues a single draw call for rangeCount index ranges, the ith of counts[i] indices starting
+   * at firstIndices[i], with glMultiDrawElements; the mesh must be bound.
+   */
+  public void drawBoundRanges(GL2 gl, int[] firstIndices, int[] counts, int rangeCount) {
+    if (rangeCount == 0)
+      return;
+    if (rangeCounts == null || rangeCounts.capacity() < rangeCount) {
+      rangeCounts = Buffers.newDirectIntBuffer(rangeCount);
+      rangeOffsets = PointerBuffer.allocateDirect(rangeCount);
+    }
+    rangeCounts.clear();
+    rangeOffsets.rewind();
+    for (int i = 0; i < rangeCount; i++) {
+      rangeCounts.put(counts[i]);
+      rangeOffsets.put((long) firstIndices[i] * indexSize());
+    }
+    rangeCounts.flip();
+    rangeOffsets.rewind();
+    gl.glMultiDrawElements(mode, rangeCounts, indexType, rangeOffsets, rangeCount);
+    FrameStats.drawCall();
+  }
+
+  public void dispose(GL2 gl) {
+    if (buffers[0] != 0) {
+      gl.glDeleteBuffers(2, buffers, 0);
+      GLResources.deleted(GLResources.Kind.BUFFER, buffers, 2);
+    }
+    buffers[0] = buffers[1] = 0;
+  }
+
+  private int indexSize() {
+    return indexType == GL2.GL_UNSIGNED_SHORT ? Buffers.SIZEOF_SHORT : Buffers.SIZEOF_INT;
+  }
+
+}
@@ -1,25 +1,97 @@
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.Scanner;
+import java.io.IOException;
 
 import com.jogamp.opengl.GL2;
-import com.jogamp.opengl.math.VectorUtil;
 
 public class GLModel {
   private GL2 gl;
-  private int modelIndex;
+  private GLMesh mesh;
+  private Meshlets meshlets; // the mesh's triangles in clusters, for culling
+  private MeshPipeline.Result loadResult;
+  private float[] decodeMatrix; // set when the mesh was uploaded quantized
+  private OutOfCoreMesh outOfCore; // set instead of mesh for models streamed from a file
+  private boolean colored; // the mesh has vertex colors, which are drawn as its material
 
   private float[] modelMin = new float[3];
   private float[] modelMax = new float[3];
 
 
   GLModel(GL2 gl, File file) {
+    this(gl, file, false);
+  }
+
+  /**
+   * Loads the model, uploading it with quantized positions and normals if quantized is true.
+   */
+  GLModel(GL2 gl, File file, boolean quantized) {
+    this(gl, MeshPipeline.standard().process(file), quantized);
+  }
+
+  GLModel(GL2 gl, MeshPipeline.Result result) {
+    this(gl, result, false);
+  }
+
+  /**
+   * Uploads a mesh that has been through the MeshPipeline, possibly on another thread. Must be
+   * called on the GL thread. The time spent uploading is added to the result's report, along
+   * with the quantization error if quantized is true. Meshes with vertex colors are never
+   * quantized, since QuantizedMesh has no colors.
+   */
+  GLModel(GL2 gl, MeshPipeline.Result result, boolean quantized) {
+    this.gl = gl;
+    this.loadResult = result;
+    if (result.getError() != null) {
+      result.getError().printStackTrace();
+      return;
+    }
+    upload(result, quantized);
+  }
+
+  /**
+   * Draws a model streamed from an out-of-core mesh file. The model has no load result and no
+   * clusters; the mesh reports its own streaming statistics.
+   */
+  GLModel(GL2 gl, OutOfCoreMesh mesh) {
     this.gl = gl;
-    loadPLY(file);
+    this.outOfCore = mesh;
+    modelMin = mesh.getMin();
+    modelMax = mesh.getMax();
   }
 
   public void distroy() {
-    gl.glDeleteLists(this.modelIndex, 1);
+    if (mesh != null)
+      mesh.dispose(gl);
+    mesh = null;
+    if (outOfCore != null) {
+      outOfCore.dispose(gl);
+      try {
+        outOfCore.close(); // its file and streaming threads
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    outOfCore = null;
+  }
+
+  /** The streamed mesh, or null if the model was loaded into memory. */
+  public OutOfCoreMesh getOutOfCoreMesh() {
+    return outOfCore;
+  }
+
+  /**
+   * Builds a signed distance field of the model in its own coordinates, with resolution cells
+   * along its longest side, for collisions and soft shadows. Null for a model streamed out of
+   * core, whose triangles are not all in memory.
+   */
+  public SignedDistanceField buildDistanceField(int resolution) {
+    if (loadResult == null || loadResult.getMesh() == null)
+      return null;
+    return new SignedDistanceField(loadResult.getMesh(), resolution);
+  }
+
+  /** The import report, with the time and memory spent in each stage. */
+  public MeshPipeline.Result getLoadResult() {
+    return loadResult;
   }
 
 
@@ -33,9 +105,74 @@ public class GLModel {
 
 
   public void draw() {
-    gl.glPushMatrix();
-    gl.glCallList(this.modelIndex);
-    gl.glPopMatrix();
+    if (outOfCore != null) {
+      outOfCore.draw(gl);
+      return;
+    }
+    if (mesh == null)
+      return;
+    beginColors();
+    if (decodeMatrix == null) {
+      mesh.draw(gl);
+    } else {
+      gl.glPushMatrix();
+      gl.glMultMatrixf(decodeMatrix, 0);
+      mesh.draw(gl);
+      gl.glPopMatrix();
+    }
+    endColors();
+  }
+
+  /**
+   * Draws the model, leaving out the clusters of triangles that all face away from an eye at
+   * (eyeX, eyeY, eyeZ) in model coordinates. How many were left out is available from
+   * getCulledClusters and getCulledTriangles.
+   */
+  public void draw(float eyeX, float eyeY, float eyeZ) {
+    if (meshlets == null) {
+      draw();
+      return;
+    }
+    beginColors();
+    if (decodeMatrix != null) {
+      gl.glPushMatrix();
+      gl.glMultMatrixf(decodeMatrix, 0);
+    }
+    mesh.bind(gl);
+    meshlets.draw(gl, mesh, eyeX, eyeY, eyeZ);
+    mesh.unbind(gl);
+    if (decodeMatrix != null)
+      gl.glPopMatrix();
+    endColors();
+  }
+
+  /**
+   * Lets the vertex colors, such as baked ambient occlusion, replace the ambient and diffuse
+   * material while the model is drawn.
+   */
+  private void beginColors() {
+    if (!colored)
+      return;
+    gl.glColorMaterial(GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE);
+    gl.glEnable(GL2.GL_COLOR_MATERIAL);
+  }
+
+  private void endColors() {
+    if (colored)
+      gl.glDisable(GL2.GL_COLOR_MATERIAL);
+  }
+
+  public int getClusterCount() {
+    return meshlets == null ? 0 : meshlets.getClusterCount();
+  }
+
+  /** Clusters left out by the last draw with an eye position. */
+  public int getCulledClusters() {
+    return meshlets == null ? 0 : meshlets.getCulledClusters();
+  }
+
+  public int getCulledTriangles() {
+    return meshlets == null ? 0 : meshlets.getCulledTriangles();
   }
 
 
@@ -50,220 +187,54 @@ public class GLModel {
   }
 
 
-  public void drawBoundingBox() {
+  /**
+   * Outlines the model's bounds in red, using the unit wire box from the mesh cache.
+   */
+  public void drawBoundingBox(MeshCache meshes) {
     boolean glLighting = gl.glIsEnabled(GL2.GL_LIGHTING);
     if (glLighting)
       gl.glDisable(GL2.GL_LIGHTING);
 
     gl.glPushMatrix();
     gl.glColor3f(1.0f, 0.0f, 0.0f);
-
-    gl.glBegin(GL2.GL_LINES);
-
-    // long edge
-    gl.glVertex3f(modelMin[0], modelMin[1], modelMin[2]);
-    gl.glVertex3f(modelMax[0], modelMin[1], modelMin[2]);
-
-    gl.glVertex3f(modelMin[0], modelMin[1], modelMax[2]);
-    gl.glVertex3f(modelMax[0], modelMin[1], modelMax[2]);
-
-    gl.glVertex3f(modelMin[0], modelMax[1], modelMin[2]);
-    gl.glVertex3f(modelMax[0], modelMax[1], modelMin[2]);
-
-    gl.glVertex3f(modelMin[0], modelMax[1], modelMax[2]);
-    gl.glVertex3f(modelMax[0], modelMax[1], modelMax[2]);
-
-    // left side
-    gl.glVertex3f(modelMin[0], modelMin[1], modelMin[2]);
-    gl.glVertex3f(modelMin[0], modelMin[1], modelMax[2]);
-
-    gl.glVertex3f(modelMin[0], modelMax[1], modelMin[2]);
-    gl.glVertex3f(modelMin[0], modelMax[1], modelMax[2]);
-
-    gl.glVertex3f(modelMin[0], modelMin[1], modelMin[2]);
-    gl.glVertex3f(modelMin[0], modelMax[1], modelMin[2]);
-
-    gl.glVertex3f(modelMin[0], modelMin[1], modelMax[2]);
-    gl.glVertex3f(modelMin[0], modelMax[1], modelMax[2]);
-
-    // right side
-    gl.glVertex3f(modelMax[0], modelMin[1], modelMin[2]);
-    gl.glVertex3f(modelMax[0], modelMin[1], modelMax[2]);
-
-    gl.glVertex3f(modelMax[0], modelMax[1], modelMin[2]);
-    gl.glVertex3f(modelMax[0], modelMax[1], modelMax[2]);
-
-    gl.glVertex3f(modelMax[0], modelMin[1], modelMin[2]);
-    gl.glVertex3f(modelMax[0], modelMax[1], modelMin[2]);
-
-    gl.glVertex3f(modelMax[0], modelMin[1], modelMax[2]);
-    gl.glVertex3f(modelMax[0], modelMax[1], modelMax[2]);
-
-
-    gl.glEnd();
+    gl.glTranslatef(modelMin[0], modelMin[1], modelMin[2]);
+    gl.glScalef(modelMax[0] - modelMin[0], modelMax[1] - modelMin[1], modelMax[2] - modelMin[2]);
+    meshes.getWireBox(gl).draw(gl);
     gl.glPopMatrix();
 
     if (glLighting)
       gl.glEnable(GL2.GL_LIGHTING);
   }
 
-  private void loadPLY(File file) {
-    // this is really quick a dirty
-    int vertexCount = 0;
-    int faceCount = 0;
-    float[][] verts = null;
-    int[][] faces = null;
-
-    // open file
-    try {
-      Scanner scan = new Scanner(file);
-
-      if (scan.next().compareToIgnoreCase("ply") != 0) {
-        // not a ply file
-        System.out.println("PLY invalid");
-        scan.close();
-        return;
-      }
-
-
-      // read ply
-      boolean finished = false;
-      while (!finished) {
-        switch (scan.next()) {
-          case "format": {
-            // its ascii i assume
-            scan.nextLine();
-            break;
-          }
-          case "comment": {
-            scan.nextLine();
-            break;
-          }
-
-          case "property": {
-            // throw away unused properties, like normals. (We should use these)
-            scan.nextLine();
-            break;
-          }
-
-          case "element": {
-            String elementType = scan.next();
-            if (elementType.compareToIgnoreCase("vertex") == 0) {
-              // could be anything, but I am just going to say x,y,z
-              vertexCount = scan.nextInt();
-              scan.nextLine(); // consume the rest of this line
-              scan.nextLine();// property x
-              scan.nextLine();// property y
-              scan.nextLine();// property z
-
-            } else if (elementType.compareToIgnoreCase("face") == 0) {
-              faceCount = scan.nextInt();
-              scan.nextLine(); // consume the rest of this line
-              scan.nextLine();// assume property list uchar int vertex_indices
-            }
-
-            break;
-
-          }
-          case "end_header": {
-            finished = true;
-            break;
-          }
-
-        }// end switch
-      } // end while
-
-      verts = new float[vertexCount][3];
-      faces = new int[faceCount][3];
-
-
-      // read vertices
-      for (int i = 0; i < vertexCount; i++) {
-        verts[i][0] = scan.nextFloat();
-        verts[i][1] = scan.nextFloat();
-        verts[i][2] = scan.nextFloat();
-        scan.nextLine(); // read eol
-
-        // object size stuff
-        if (i == 0) {
-          modelMax[0] = verts[0][0];
-          modelMin[0] = verts[0][0];
-
-          modelMax[1] = verts[0][1];
-          modelMin[1] = verts[0][1];
-
-          modelMax[2] = verts[0][2];
-          modelMin[2] = verts[0][2];
-        }
-
-        if (verts[i][0] > modelMax[0])
-          modelMax[0] = verts[i][0];
-        if (verts[i][0] < modelMin[0])
-          modelMin[0] = verts[i][0];
-
-        if (verts[i][1] > modelMax[1])
-          modelMax[1] = verts[i][1];
-        if (verts[i][1] < modelMin[1])
-          modelMin[1] = verts[i][1];
-
-        if (verts[i][2] > modelMax[2])
-          modelMax[2] = verts[i][2];
-        if (verts[i][2] < modelMin[2])
-          modelMin[2] = verts[i][2];
-      }
-
-
-
-      // read faces
-      for (int i = 0; i < faceCount; i++) {
-        if (scan.nextInt() != 3)
-          System.out.println("polys not triangles");
-        faces[i][0] = scan.nextInt();
-        faces[i][1] = scan.nextInt();
-        faces[i][2] = scan.nextInt();
-      }
-
-      scan.close();
-    } catch (
-
-    FileNotFoundException e) {
-
-      e.printStackTrace();
+  private void upload(MeshPipeline.Result result, boolean quantized) {
+    MeshData data = result.getMesh();
+    float[] bounds = data.getBounds();
+    System.arraycopy(bounds, 0, modelMin, 0, 3);
+    System.arraycopy(bounds, 3, modelMax, 0, 3);
+
+    long start = System.nanoTime(), allocated = MeshPipeline.allocatedBytes();
+    if (data.getMode() == GL2.GL_TRIANGLES) {
+      meshlets = Meshlets.build(data, Meshlets.DEFAULT_MAX_VERTICES, Meshlets.DEFAULT_MAX_TRIANGLES);
+      data = meshlets.getMesh();
+      result.addReport(new MeshPipeline.StageReport("cluster", System.nanoTime() - start,
+          MeshPipeline.allocatedBytes() - allocated, data, meshlets.toString()));
     }
 
-
-    // ask gl for a display list
-    int model;
-    model = gl.glGenLists(1);
-    gl.glNewList(model, GL2.GL_COMPILE);
-
-    float[] u = new float[3];
-    float[] v = new float[3];
-    float[] normalResult = new float[3];
-    // start building
-    gl.glBegin(GL2.GL_TRIANGLES);// could be poly maybe?
-    for (int i = 0; i < faceCount; i++) {
-
-      VectorUtil.subVec3(u, verts[faces[i][1]], verts[faces[i][0]]);
-      VectorUtil.subVec3(v, verts[faces[i][2]], verts[faces[i][0]]);
-      normalResult[0] = (u[1] * v[2]) - (u[2] * v[1]);
-      normalResult[1] = (u[2] * v[0]) - (u[0] * v[2]);
-      normalResult[2] = (u[0] * v[1]) - (u[1] * v[0]);
-
-      gl.glNormal3fv(normalResult, 0);
-
-      gl.glVertex3f(verts[faces[i][0]][0], verts[faces[i][0]][1], verts[faces[i][0]][2]);
-
-      gl.glVertex3f(verts[faces[i][1]][0], verts[faces[i][1]][1], verts[faces[i][1]][2]);
-
-      gl.glVertex3f(verts[faces[i][2]][0], verts[faces[i][2]][1], verts[faces[i][2]][2]);
-
-
+    start = System.nanoTime();
+    allocated = MeshPipeline.allocatedBytes();
+    String note;
+    colored = data.getColors() != null;
+    if (quantized && data.getNormals() != null && !colored) {
+      QuantizedMesh quantizedMesh = new QuantizedMesh(data, modelMin, modelMax, 8);
+      this.mesh = new GLMesh(gl, quantizedMesh);
+      decodeMatrix = quantizedMesh.getDecodeMatrix();
+      note = mesh.getByteSize() / 1024 + " KB on GPU, quantized: " + quantizedMesh;
+    } else {
+      this.mesh = new GLMesh(gl, data);
+      note = mesh.getByteSize() / 1024 + " KB on GPU";
     }
-    gl.glEnd();
-    gl.glEndList();
-
-    this.modelIndex = model;
+    result.addReport(new MeshPipeline.StageReport("upload", System.nanoTime() - start,
+        MeshPipeline.allocatedBytes() - allocated, data, note));
   }
 
 }
@@ -0,0 +1,273 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Keeps a record of every GL object the program creates, with its size, its owner and the line
+ * of code that created it. Code that generates a buffer, texture, display list, query, shader or
+ * program calls created, and deleted when it deletes it; the live totals show how much GPU
+ * memory is in use, and whatever is still live when the context is disposed is a leak, which
+ * reportLeaks prints.
+ * <p>
+ * The totals are published through JMX as JOGL:type=GLResources, so they can be watched with
+ * jconsole while the program runs. Calls come from the GL thread and JMX reads from its own, so
+ * all methods are synchronized.
+ */
+public class GLResources implements GLResourcesMBean {
+
+  /** The kinds of GL object tracked, each with its own name space. */
+  public enum Kind {
+    BUFFER, TEXTURE, DISPLAY_LIST, QUERY, SHADER, PROGRAM
+  }
+
+  private static class Resource {
+    final Kind kind;
+    final int name;
+    final String owner;
+    final String site;
+    long bytes;
+
+    Resource(Kind kind, int name, long bytes, String owner, String site) {
+      this.kind = kind;
+      this.name = name;
+      this.bytes = bytes;
+      this.owner = owner;
+      this.site = site;
+    }
+  }
+
+  private static final GLResources INSTANCE = new GLResources();
+
+  private final Map<Long, Resource> live = new LinkedHashMap<>();
+  private final Map<Kind, long[]> totals = new EnumMap<>(Kind.class); // count, bytes
+  private long created, deleted;
+
+  static {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE,
+          new ObjectName("JOGL:type=GLResources"));
+    } catch (JMException | SecurityException e) {
+      System.out.println("GL resource totals are not available through JMX: " + e);
+    }
+  }
+
+  private GLResources() {
+    for (Kind kind : Kind.values())
+      totals.put(kind, new long[2]);
+  }
+
+  /**
+   * Records that the GL object name of the given kind was created, taking bytes of GPU memory
+   * (0 if unknown), for owner. A String owner is kept as it is, a path for example; of other
+   * owners only the class and identity are kept, not the object. The creation site recorded is
+   * the nearest caller outside the owner's class, so a mesh's buffers are put down to the code
+   * that made the mesh. Returns name.
+   */
+  public static int created(Kind kind, int name, long bytes, Object owner) {
+    if (name == 0)
+      return name;
+    String site = creationSite(new Throwable().getStackTrace(), owner.getClass().getName());
+    String ownerName = owner instanceof String ? (String) owner : owner.getClass().getSimpleName()
+        + "@" + Integer.toHexString(System.identityHashCode(owner));
+    synchronized (INSTANCE) {
+      Resource old = INSTANCE.live.put(key(kind, name),
+          new Resource(kind, name, bytes, ownerName, site));
+      if (old != null)
+        INSTANCE.remove(old); // the name was reused without a delete being recorded
+      INSTANCE.add(kind, 1, bytes);
+      INSTANCE.created++;
+    }
+    return name;
+  }
+
+  /** Records each of the first count names in names, like created. */
+  public static void created(Kind kind, int[] names, int count, long bytesEach, Object owner) {
+    for (int i = 0; i < count; i++)
+      created(kind, names[i], bytesEach, owner);
+  }
+
+  /** Records that the object now takes bytes of GPU memory, after new data was uploaded. */
+  public static synchronized void resized(Kind kind, int name, long bytes) {
+    Resource resource = INSTANCE.live.get(key(kind, name));
+    if (resource == null)
+      return;
+    INSTANCE.add(kind, 0, bytes - resource.bytes);
+    resource.bytes = bytes;
+  }
+
+  /** Records that the GL object was deleted. Unknown names are ignored. */
+  public static synchronized void deleted(Kind kind, int name) {
+    Resource resource = INSTANCE.live.remove(key(kind, name));
+    if (resource != null) {
+      INSTANCE.remove(resource);
+      INSTANCE.deleted++;
+    }
+  }
+
+  public static void deleted(Kind kind, int[] names, int count) {
+    for (int i = 0; i < count; i++)
+      deleted(kind, names[i]);
+  }
+
+  /** Live objects of a kind. */
+  public static synchronized long getCount(Kind kind) {
+    return INSTANCE.totals.get(kind)[0];
+  }
+
+  /** GPU memory taken by the live objects of a kind, as far as it is known. */
+  public static synchronized long getBytes(Kind kind) {
+    return INSTANCE.totals.get(kind)[1];
+  }
+
+  /**
+   * Prints every object still live, grouped by kind and creation site, and returns how many
+   * there were. Meant to be called once everything has been disposed, when nothing should be.
+   */
+  public static int reportLeaks() {
+    synchronized (INSTANCE) {
+      if (INSTANCE.live.isEmpty()) {
+        System.out.println("GLResources: no leaks");
+        return 0;
+      }
+      System.out.println("GLResources: " + INSTANCE.live.size() + " GL objects leaked\n"
+          + INSTANCE.describeLive());
+      return INSTANCE.live.size();
+    }
+  }
+
+  // -------------------------------- JMX --------------------------------
+
+  @Override
+  public synchronized long getLiveCount() {
+    return live.size();
+  }
+
+  @Override
+  public synchronized long getLiveBytes() {
+    long bytes = 0;
+    for (long[] total : totals.values())
+      bytes += total[1];
+    return bytes;
+  }
+
+  @Override
+  public long getBufferCount() {
+    return getCount(Kind.BUFFER);
+  }
+
+  @Override
+  public long getBufferBytes() {
+    return getBytes(Kind.BUFFER);
+  }
+
+  @Override
+  public long getTextureCount() {
+    return getCount(Kind.TEXTURE);
+  }
+
+  @Override
+  public long getTextureBytes() {
+    return getBytes(Kind.TEXTURE);
+  }
+
+  @Override
+  public long getDisplayListCount() {
+    return getCount(Kind.DISPLAY_LIST);
+  }
+
+  @Override
+  public long getQueryCount() {
+    return getCount(Kind.QUERY);
+  }
+
+  @Override
+  public long getProgramCount() {
+    return getCount(Kind.PROGRAM) + getCount(Kind.SHADER);
+  }
+
+  @Override
+  public synchronized long getCreatedCount() {
+    return created;
+  }
+
+  @Override
+  public synchronized long getDeletedCount() {
+    return deleted;
+  }
+
+  @Override
+  public synchronized String describeLive() {
+    // kind and site -> count and bytes, and the owners
+    Map<String, long[]> groups = new TreeMap<>();
+    Map<String, Set<String>> owners = new HashMap<>();
+    for (Resource resource : live.values()) {
+      String group = resource.kind + " from " + resource.site;
+      long[] total = groups.computeIfAbsent(group, g -> new long[2]);
+      total[0]++;
+      total[1] += resource.bytes;
+      owners.computeIfAbsent(group, g -> new LinkedHashSet<>()).add(resource.owner);
+    }
+    StringBuilder text = new StringBuilder();
+    for (Map.Entry<String, long[]> group : groups.entrySet()) {
+      List<String> names = new ArrayList<>(owners.get(group.getKey()));
+      String owned = String.join(", ", names.subList(0, Math.min(3, names.size())))
+          + (names.size() > 3 ? " and " + (names.size() - 3) + " more" : "");
+      text.append(String.format("  %d %s, %d bytes, owned by %s%n", group.getValue()[0],
+          group.getKey(), group.getValue()[1], owned));
+    }
+    return text.toString();
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder text = new StringBuilder("GLResources:");
+    for (Map.Entry<Kind, long[]> total : totals.entrySet())
+      if (total.getValue()[0] > 0)
+        text.append(String.format(" %d %s (%d KB)", total.getValue()[0],
+            total.getKey().toString().toLowerCase(), total.getValue()[1] / 1024));
+    return text.append(String.format(", %d created, %d deleted", created, deleted)).toString();
+  }
+
+  /** The tracker's totals as a string, for printing. */
+  public static String summary() {
+    return INSTANCE.toString();
+  }
+
+  private void add(Kind kind, int count, long bytes) {
+    long[] total = totals.get(kind);
+    total[0] += count;
+    total[1] += bytes;
+  }
+
+  private void remove(Resource resource) {
+    add(resource.kind, -1, -resource.bytes);
+  }
+
+  private static long key(Kind kind, int name) {
+    return ((long) kind.ordinal() << 32) | (name & 0xFFFFFFFFL);
+  }
+
+  /** The first frame of the stack outside this class and owner, as Class.method(File:line). */
+  private static String creationSite(StackTraceElement[] stack, String owner) {
+    for (StackTraceElement frame : stack) {
+      String name = frame.getClassName();
+      if (name.equals(GLResources.class.getName()) || name.equals(owner)
+          || name.startsWith(owner + "$"))
+        continue;
+      return frame.getClassName() + "." + frame.getMethodName() + "(" + frame.getFileName() + ":"
+            + frame.getLineNumber() + ")";
+    }
+    return "unknown";
+  }
+
+}
@@ -0,0 +1,34 @@
+/**
+ * The live totals of GLResources, as seen through JMX.
+ */
+public interface GLResourcesMBean {
+
+  /** GL objects created and not yet deleted. */
+  long getLiveCount();
+
+  /** GPU memory of the live objects, as far as it is known. */
+  long getLiveBytes();
+
+  long getBufferCount();
+
+  long getBufferBytes();
+
+  long getTextureCount();
+
+  long getTextureBytes();
+
+  long getDisplayListCount();
+
+  long getQueryCount();
+
+  /** Shaders and programs. */
+  long getProgramCount();
+
+  long getCreatedCount();
+
+  long getDeletedCount();
+
+  /** The live objects grouped by kind and creation site, one line per group. */
+  String describeLive();
+
+}
@@ -0,0 +1,70 @@
+import com.jogamp.opengl.GL2;
+
+/**
+ * Generates flat, textured rectangles as a single indexed triangle strip. The rectangle lies in
+ * the xz-plane, centered on the origin, facing +y, which is what the old immediate mode square
+ * method in SandBox drew. Each grid vertex is shared by up to six triangles, and rows are joined
+ * with degenerate triangles, so a grid of cellsX by cellsY cells has (cellsX+1)*(cellsY+1)
+ * vertices and draws with one call.
+ * <p>
+ * Fine grids are only needed when lighting is computed per vertex, for example to make the
+ * spotlight show up on the floor. With per-pixel lighting a single cell is enough.
+ */
+public class GridMesh {
+
+  private GridMesh() {}
+
+  /**
+   * Creates a sizeX by sizeY rectangle split into cellsX by cellsY cells. The texture is
+   * repeated texRepX times along x and texRepY times along z.
+   */
+  public static MeshData create(float sizeX, float sizeY, float texRepX, float texRepY,
+      int cellsX, int cellsY) {
+    cellsX = Math.max(cellsX, 1);
+    cellsY = Math.max(cellsY, 1);
+    int columns = cellsX + 1;
+    int rows = cellsY + 1;
+    float[] positions = new float[columns * rows * 3];
+    float[] normals = new float[columns * rows * 3];
+    float[] texCoords = new float[columns * rows * 2];
+    for (int j = 0; j < rows; j++) {
+      float fz = (float) j / cellsY;
+      for (int i = 0; i < columns; i++) {
+        float fx = (float) i / cellsX;
+        int v = j * columns + i;
+        positions[v * 3] = (fx - 0.5f) * sizeX;
+        positions[v * 3 + 1] = 0;
+        positions[v * 3 + 2] = (fz - 0.5f) * sizeY;
+        normals[v * 3 + 1] = 1;
+        texCoords[v * 2] = fx * texRepX;
+        texCoords[v * 2 + 1] = fz * texRepY;
+      }
+    }
+
+    // one strip per row of cells, joined by repeating the last and first index
+    int[] indices = new int[cellsY * columns * 2 + (cellsY - 1) * 2];
+    int index = 0;
+    for (int j = 0; j < cellsY; j++) {
+      if (j > 0) {
+        indices[index] = indices[index - 1];
+        index++;
+        indices[index++] = j * columns;
+      }
+      for (int i = 0; i < columns; i++) {
+        indices[index++] = j * columns + i;
+        indices[index++] = (j + 1) * columns + i;
+      }
+    }
+    return new MeshData(GL2.GL_TRIANGLE_STRIP, positions, normals, texCoords, null, indices);
+  }
+
+  /**
+   * Creates a sizeX by sizeY rectangle with cells no bigger than cellSize in either direction.
+   */
+  public static MeshData create(float sizeX, float sizeY, float texRepX, float texRepY,
+      float cellSize) {
+    return create(sizeX, sizeY, texRepX, texRepY, (int) Math.ceil(sizeX / cellSize),
+        (int) Math.ceil(sizeY / cellSize));
+  }
+
+}
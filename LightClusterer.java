@@ -0,0 +1,266 @@
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Assigns point lights to the clusters ("froxels") of a view frustum, entirely on the CPU. The
+ * frustum is cut into tilesX by tilesY screen tiles and into depth slices that grow exponentially
+ * between the near and far planes. For every cluster we get the list of lights whose sphere of
+ * influence touches it, so a fragment shader only has to loop over the few lights that can
+ * actually reach it instead of all of them.
+ * <p>
+ * Nothing here touches OpenGL. Lights go in as a packed float array, the camera goes in as its
+ * column-major view and projection matrices (see Camera.getViewMatrix and
+ * Camera.getProjectionMatrix), and the result comes out as two int arrays that can be uploaded
+ * as they are. Depth slices are independent of each other, so the assignment can run on all
+ * cores.
+ */
+public class LightClusterer {
+
+  /** Floats per light in the input array: x, y, z, radius, r, g, b, unused. */
+  public static final int LIGHT_STRIDE = 8;
+
+  private final int tilesX, tilesY, slices;
+  private final int maxLightsPerCluster;
+  private boolean parallel = true;
+
+  // per frame
+  private float[] viewLights = new float[0]; // view space x, y, z, radius
+  private int lightCount;
+  private double near, far, logFarOverNear;
+  private final double[] projection = new double[16];
+
+  // output
+  private final int[] clusterCounts;
+  private final int[] clusterLights; // maxLightsPerCluster slots per cluster
+  private final int[] clusterData; // offset, count pairs into lightIndices
+  private int[] lightIndices = new int[0];
+  private int lightIndexCount;
+
+  LightClusterer(int tilesX, int tilesY, int slices, int maxLightsPerCluster) {
+    this.tilesX = tilesX;
+    this.tilesY = tilesY;
+    this.slices = slices;
+    this.maxLightsPerCluster = maxLightsPerCluster;
+    int clusters = tilesX * tilesY * slices;
+    clusterCounts = new int[clusters];
+    clusterLights = new int[clusters * maxLightsPerCluster];
+    clusterData = new int[clusters * 2];
+  }
+
+  public int getTilesX() {
+    return tilesX;
+  }
+
+  public int getTilesY() {
+    return tilesY;
+  }
+
+  public int getSlices() {
+    return slices;
+  }
+
+  public int getClusterCount() {
+    return tilesX * tilesY * slices;
+  }
+
+  /** Near plane distance used by the most recent assign call. */
+  public float getNear() {
+    return (float) near;
+  }
+
+  /** Far plane distance used by the most recent assign call. */
+  public float getFar() {
+    return (float) far;
+  }
+
+  public boolean isParallel() {
+    return parallel;
+  }
+
+  /** Whether depth slices are processed on the common fork/join pool. The default is true. */
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+
+  /**
+   * Offset and count pairs, one pair per cluster, indexing into getLightIndices(). Clusters are
+   * ordered x fastest, then y, then depth slice.
+   */
+  public int[] getClusterData() {
+    return clusterData;
+  }
+
+  /** Light numbers for all clusters, back to back. Only the first getLightIndexCount() are used. */
+  public int[] getLightIndices() {
+    return lightIndices;
+  }
+
+  public int getLightIndexCount() {
+    return lightIndexCount;
+  }
+
+  /**
+   * The lights transformed to view space by the last assign call, four floats per light: x, y,
+   * z, radius.
+   */
+  public float[] getViewSpaceLights() {
+    return viewLights;
+  }
+
+  /**
+   * Assigns lightCount lights (LIGHT_STRIDE floats each) to clusters for the given column-major
+   * view and projection matrices. Clusters that are touched by more than maxLightsPerCluster
+   * lights keep the first ones found.
+   */
+  public void assign(float[] lights, int lightCount, double[] view, double[] projection) {
+    this.lightCount = lightCount;
+    System.arraycopy(projection, 0, this.projection, 0, 16);
+    if (projection[15] == 1) { // orthographic
+      near = (projection[14] + 1) / projection[10];
+      far = (projection[14] - 1) / projection[10];
+    } else {
+      near = projection[14] / (projection[10] - 1);
+      far = projection[14] / (projection[10] + 1);
+    }
+    logFarOverNear = near > 0 ? Math.log(far / near) : 0;
+
+    if (viewLights.length < lightCount * 4)
+      viewLights = new float[lightCount * 4];
+    for (int i = 0; i < lightCount; i++) {
+      int s = i * LIGHT_STRIDE;
+      double x = lights[s], y = lights[s + 1], z = lights[s + 2];
+      viewLights[i * 4] = (float) (view[0] * x + view[4] * y + view[8] * z + view[12]);
+      viewLights[i * 4 + 1] = (float) (view[1] * x + view[5] * y + view[9] * z + view[13]);
+      viewLights[i * 4 + 2] = (float) (view[2] * x + view[6] * y + view[10] * z + view[14]);
+      viewLights[i * 4 + 3] = lights[s + 3];
+    }
+
+    if (parallel)
+      IntStream.range(0, slices).parallel().forEach(this::assignSlice);
+    else
+      for (int slice = 0; slice < slices; slice++)
+        assignSlice(slice);
+
+    // compact the fixed size per cluster lists into one index list
+    int total = 0;
+    for (int c = 0; c < clusterCounts.length; c++)
+      total += clusterCounts[c];
+    if (lightIndices.length < total)
+      lightIndices = new int[Math.max(total, lightIndices.length * 2)];
+    int offset = 0;
+    for (int c = 0; c < clusterCounts.length; c++) {
+      int count = clusterCounts[c];
+      clusterData[c * 2] = offset;
+      clusterData[c * 2 + 1] = count;
+      System.arraycopy(clusterLights, c * maxLightsPerCluster, lightIndices, offset, count);
+      offset += count;
+    }
+    lightIndexCount = total;
+  }
+
+  /** Distance from the eye to the front of the given depth slice. */
+  public double sliceDepth(int slice) {
+    if (slice <= 0)
+      return near;
+    if (slice >= slices)
+      return far;
+    if (near > 0)
+      return near * Math.exp(logFarOverNear * slice / slices);
+    return near + (far - near) * slice / slices;
+  }
+
+  private void assignSlice(int slice) {
+    int base = slice * tilesX * tilesY;
+    for (int t = 0; t < tilesX * tilesY; t++)
+      clusterCounts[base + t] = 0;
+
+    double sliceNear = sliceDepth(slice);
+    double sliceFar = sliceDepth(slice + 1);
+    for (int i = 0; i < lightCount; i++) {
+      float cx = viewLights[i * 4], cy = viewLights[i * 4 + 1];
+      float depth = -viewLights[i * 4 + 2];
+      float r = viewLights[i * 4 + 3];
+      if (depth + r < sliceNear || depth - r > sliceFar)
+        continue;
+
+      // bounding box of the sphere, clipped to this slice, projected to screen
+      double z0 = -Math.max(depth - r, sliceNear);
+      double z1 = -Math.min(depth + r, sliceFar);
+      double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE;
+      double minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+      for (int corner = 0; corner < 8; corner++) {
+        double x = (corner & 1) == 0 ? cx - r : cx + r;
+        double y = (corner & 2) == 0 ? cy - r : cy + r;
+        double z = (corner & 4) == 0 ? z0 : z1;
+        double w = projection[3] * x + projection[7] * y + projection[11] * z + projection[15];
+        if (w <= 0)
+          w = 1e-6;
+        double ndcX = (projection[0] * x + projection[4] * y + projection[8] * z + projection[12]) / w;
+        double ndcY = (projection[1] * x + projection[5] * y + projection[9] * z + projection[13]) / w;
+        minX = Math.min(minX, ndcX);
+        maxX = Math.max(maxX, ndcX);
+        minY = Math.min(minY, ndcY);
+        maxY = Math.max(maxY, ndcY);
+      }
+      if (maxX < -1 || minX > 1 || maxY < -1 || minY > 1)
+        continue;
+      int x0 = clampTile((minX + 1) / 2 * tilesX, tilesX);
+      int x1 = clampTile((maxX + 1) / 2 * tilesX, tilesX);
+      int y0 = clampTile((minY + 1) / 2 * tilesY, tilesY);
+      int y1 = clampTile((maxY + 1) / 2 * tilesY, tilesY);
+      for (int ty = y0; ty <= y1; ty++) {
+        for (int tx = x0; tx <= x1; tx++) {
+          int cluster = base + ty * tilesX + tx;
+          int count = clusterCounts[cluster];
+          if (count < maxLightsPerCluster) {
+            clusterLights[cluster * maxLightsPerCluster + count] = i;
+            clusterCounts[cluster] = count + 1;
+          }
+        }
+      }
+    }
+  }
+
+  private static int clampTile(double t, int tiles) {
+    int tile = (int) Math.floor(t);
+    return tile < 0 ? 0 : (tile >= tiles ? tiles - 1 : tile);
+  }
+
+  /**
+   * Times the assignment for a room full of random lights, serial and parallel. Needs no GPU.
+   * Usage: java LightClusterer [lightCount]
+   */
+  public static void main(String[] args) {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+    float[] lights = new float[count * LIGHT_STRIDE];
+    Random random = new Random(405);
+    for (int i = 0; i < count; i++) {
+      lights[i * LIGHT_STRIDE] = random.nextFloat() * 30 - 15;
+      lights[i * LIGHT_STRIDE + 1] = random.nextFloat() * 10 - 5;
+      lights[i * LIGHT_STRIDE + 2] = random.nextFloat() * 30 - 15;
+      lights[i * LIGHT_STRIDE + 3] = 2 + random.nextFloat() * 3;
+    }
+    Camera camera = new Camera();
+    camera.lookAt(5, 10, 30, 0, 0, 0, 0, 1, 0);
+    camera.setLimits(-15, 15, -15, 15, -120, 30);
+    camera.reshape(0, 0, 1280, 720);
+    double[] view = camera.getViewMatrix(new double[16]);
+    double[] projection = camera.getProjectionMatrix(new double[16]);
+
+    LightClusterer clusterer = new LightClusterer(16, 9, 24, 128);
+    for (boolean parallel : new boolean[] {false, true}) {
+      clusterer.setParallel(parallel);
+      for (int i = 0; i < 50; i++) // warm up
+        clusterer.assign(lights, count, view, projection);
+      int runs = 200;
+      long start = System.nanoTime();
+      for (int i = 0; i < runs; i++)
+        clusterer.assign(lights, count, view, projection);
+      double ms = (System.nanoTime() - start) / 1e6 / runs;
+      System.out.printf("%s: %d lights, %d clusters, %d indices, %.3f ms per frame%n",
+          parallel ? "parallel" : "serial", count, clusterer.getClusterCount(),
+          clusterer.getLightIndexCount(), ms);
+    }
+  }
+
+}
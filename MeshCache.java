@@ -0,0 +1,98 @@
+import java.util.HashMap;
+import java.util.Map;
+
+import com.jogamp.opengl.GL2;
+
+/**
+ * Keeps one GLMesh per procedural shape and parameter set, so that a cylinder or sphere is
+ * tessellated and uploaded the first time it is asked for and just drawn after that. Lookups
+ * are counted, and the hit and miss counts show how well shapes are being reused. A cache
+ * belongs to one GL context.
+ */
+public class MeshCache {
+
+  private static final int CYLINDER = 1, SPHERE = 2, WIRE_BOX = 3;
+
+  private final Map<Long, GLMesh> meshes = new HashMap<>();
+  private long hits, misses;
+
+  /** The cylinder made by ProceduralMesh.cylinder(slices, spectrum). */
+  public GLMesh getCylinder(GL2 gl, int slices, boolean spectrum) {
+    long key = key(CYLINDER, slices, spectrum ? 1 : 0);
+    GLMesh mesh = lookup(key);
+    if (mesh == null)
+      mesh = store(key, new GLMesh(gl, ProceduralMesh.cylinder(slices, spectrum)));
+    return mesh;
+  }
+
+  /** The unit sphere made by ProceduralMesh.sphere(slices, stacks). */
+  public GLMesh getSphere(GL2 gl, int slices, int stacks) {
+    long key = key(SPHERE, slices, stacks);
+    GLMesh mesh = lookup(key);
+    if (mesh == null)
+      mesh = store(key, new GLMesh(gl, ProceduralMesh.sphere(slices, stacks)));
+    return mesh;
+  }
+
+  /** The unit cube outline made by ProceduralMesh.wireBox(). */
+  public GLMesh getWireBox(GL2 gl) {
+    long key = key(WIRE_BOX, 0, 0);
+    GLMesh mesh = lookup(key);
+    if (mesh == null)
+      mesh = store(key, new GLMesh(gl, ProceduralMesh.wireBox()));
+    return mesh;
+  }
+
+  public long getHitCount() {
+    return hits;
+  }
+
+  public long getMissCount() {
+    return misses;
+  }
+
+  public int size() {
+    return meshes.size();
+  }
+
+  /** GPU memory used by all the cached meshes, in bytes. */
+  public long getByteSize() {
+    long size = 0;
+    for (GLMesh mesh : meshes.values())
+      size += mesh.getByteSize();
+    return size;
+  }
+
+  /** Deletes all cached meshes. The counters are kept. */
+  public void dispose(GL2 gl) {
+    for (GLMesh mesh : meshes.values())
+      mesh.dispose(gl);
+    meshes.clear();
+  }
+
+  @Override
+  public String toString() {
+    long lookups = hits + misses;
+    return String.format("MeshCache: %d meshes, %d bytes, %d hits, %d misses (%.1f%% hit rate)",
+        meshes.size(), getByteSize(), hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+  }
+
+  private GLMesh lookup(long key) {
+    GLMesh mesh = meshes.get(key);
+    if (mesh != null)
+      hits++;
+    else
+      misses++;
+    return mesh;
+  }
+
+  private GLMesh store(long key, GLMesh mesh) {
+    meshes.put(key, mesh);
+    return mesh;
+  }
+
+  private static long key(int shape, int a, int b) {
+    return ((long) shape << 48) | ((long) (a & 0xFFFFFF) << 24) | (b & 0xFFFFFF);
+  }
+
+}
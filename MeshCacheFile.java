@@ -0,0 +1,106 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The file MeshPipeline caches a processed mesh in: a header naming the source file's size and
+ * modification time and the pipeline's signature, then the mesh's arrays as they are in memory,
+ * in the machine's byte order. Reading one is a single bulk copy per array, so a cached model
+ * loads many times faster than its PLY file parses.
+ */
+class MeshCacheFile {
+
+  private static final int MAGIC = 0x4D455348; // "MESH"
+  private static final int VERSION = 1;
+  private static final int NORMALS = 1, TEXCOORDS = 2, COLORS = 4;
+
+  private MeshCacheFile() {}
+
+  /**
+   * Writes mesh to file, made from source by a pipeline with the given signature. The file is
+   * written under a temporary name and then renamed, so a reader never sees half of it.
+   */
+  static void write(File file, File source, String signature, MeshData mesh) throws IOException {
+    byte[] text = signature.getBytes(StandardCharsets.UTF_8);
+    float[] n = mesh.getNormals(), t = mesh.getTexCoords(), c = mesh.getColors();
+    int flags = (n != null ? NORMALS : 0) | (t != null ? TEXCOORDS : 0) | (c != null ? COLORS : 0);
+    int vertices = mesh.getVertexCount();
+    long size = 4L * 7 + 8 * 2 + text.length + 4L * (mesh.getPositions().length
+        + (n != null ? n.length : 0) + (t != null ? t.length : 0) + (c != null ? c.length : 0)
+        + mesh.getIndexCount());
+    if (size > Integer.MAX_VALUE)
+      throw new IOException("mesh too large to cache");
+    ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.nativeOrder());
+    buffer.putInt(MAGIC).putInt(VERSION).putLong(source.length()).putLong(source.lastModified());
+    buffer.putInt(text.length).put(text);
+    buffer.putInt(mesh.getMode()).putInt(flags).putInt(vertices).putInt(mesh.getIndexCount());
+    put(buffer, mesh.getPositions());
+    put(buffer, n);
+    put(buffer, t);
+    put(buffer, c);
+    buffer.asIntBuffer().put(mesh.getIndices());
+    buffer.position(buffer.limit());
+    buffer.flip();
+
+    File temporary = new File(file.getPath() + ".tmp" + Thread.currentThread().getId());
+    try (RandomAccessFile out = new RandomAccessFile(temporary, "rw")) {
+      out.setLength(0);
+      FileChannel channel = out.getChannel();
+      while (buffer.hasRemaining())
+        channel.write(buffer);
+    }
+    Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Reads the mesh cached in file, or returns null if there is none, or it is unreadable, or
+   * it was made from another version of source or by a pipeline with another signature.
+   */
+  static MeshData read(File file, File source, String signature) {
+    if (!file.isFile())
+      return null;
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()))
+          .order(ByteOrder.nativeOrder());
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+          || buffer.getLong() != source.length() || buffer.getLong() != source.lastModified())
+        return null;
+      byte[] text = new byte[buffer.getInt()];
+      buffer.get(text);
+      if (!new String(text, StandardCharsets.UTF_8).equals(signature))
+        return null;
+      int mode = buffer.getInt(), flags = buffer.getInt(), vertices = buffer.getInt();
+      int[] indices = new int[buffer.getInt()];
+      float[] positions = get(buffer, vertices * 3);
+      float[] normals = (flags & NORMALS) != 0 ? get(buffer, vertices * 3) : null;
+      float[] texCoords = (flags & TEXCOORDS) != 0 ? get(buffer, vertices * 2) : null;
+      float[] colors = (flags & COLORS) != 0 ? get(buffer, vertices * 3) : null;
+      buffer.asIntBuffer().get(indices);
+      return new MeshData(mode, positions, normals, texCoords, colors, indices);
+    } catch (IOException | RuntimeException e) {
+      return null; // a damaged cache is just processed again
+    }
+  }
+
+  private static void put(ByteBuffer buffer, float[] array) {
+    if (array == null)
+      return;
+    buffer.asFloatBuffer().put(array);
+    buffer.position(buffer.position() + array.length * 4);
+  }
+
+  private static float[] get(ByteBuffer buffer, int length) {
+    float[] array = new float[length];
+    buffer.asFloatBuffer().get(array);
+    buffer.position(buffer.position() + length * 4);
+    return array;
+  }
+
+}
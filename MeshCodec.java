@@ -0,0 +1,668 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.jogamp.opengl.GL2;
+
+/**
+ * A compressed file format for triangle meshes, for keeping a library of scans in a fraction of
+ * the space of their PLY files, and loading them many times faster. It is a MeshLoader, so
+ * anything that loads meshes through MeshLoaders or the MeshPipeline reads .cmesh files too.
+ * <p>
+ * Positions are quantized to a number of bits per component over the mesh's bounds, normals to
+ * 12-bit octahedral codes, texture coordinates to 16 bits and colors to 8. The vertices are
+ * renumbered in the order the triangles first use them, so each index is either the next new
+ * vertex, coded as 0, or a step back to a vertex used before, which after the Optimize stage is
+ * nearly always a recent one and so a small number. Triangles are rotated, keeping their
+ * winding, to put their new corners last. A new vertex is then stored as the difference from a
+ * prediction made from vertices already decoded: for a position completing a triangle whose
+ * other two corners are known, the parallelogram rule, which mirrors the far corner of a
+ * neighboring triangle across the shared edge. Indices and differences are written as
+ * variable-length integers and the bytes compressed with Deflate.
+ * <p>
+ * The triangles are cut into chunks of CHUNK_TRIANGLES, each owning the vertices its triangles
+ * use first and predicting only from those, so chunks decode independently: read pulls the
+ * chunks from the file one after another and hands each to the common pool as it arrives.
+ * Compressing best takes a mesh that has been through the Optimize stage, as the standard
+ * pipeline's meshes have; java MeshCodec in.ply out.cmesh does that on the way.
+ */
+public class MeshCodec implements MeshLoader {
+
+  private static final int MAGIC = 0x48534D43; // "CMSH" in little-endian byte order
+  private static final int VERSION = 1;
+  private static final int NORMALS = 1, TEXCOORDS = 2, COLORS = 4;
+  private static final int HEADER_BYTES = 4 * 6 + 4 * 6 + 4 * 4 + 4;
+  private static final int CHUNK_RECORD_BYTES = 4 * 6;
+  static final int DEFAULT_POSITION_BITS = 16;
+  private static final int CHUNK_TRIANGLES = 1 << 15;
+  private static final int NORMAL_BITS = 12, TEXCOORD_BITS = 16, COLOR_BITS = 8;
+  private static final int PARALLELOGRAM_WINDOW = 8; // earlier triangles searched for a neighbor
+
+  @Override
+  public String getName() {
+    return "CMESH";
+  }
+
+  @Override
+  public List<String> getExtensions() {
+    return Arrays.asList("cmesh");
+  }
+
+  @Override
+  public boolean matches(byte[] head, int length, long fileSize) {
+    return length >= 4 && head[0] == 'C' && head[1] == 'M' && head[2] == 'S' && head[3] == 'H';
+  }
+
+  /**
+   * How the attributes of a file are quantized: which there are, their bits, and the range each
+   * is spread over. The writer and the reader each build one, from the mesh and from the header.
+   */
+  private static class Layout {
+    final int flags;
+    final int positionBits;
+    final float[] min = new float[3], max = new float[3], step = new float[3];
+    final float[] texMin = new float[2], texMax = new float[2], texStep = new float[2];
+    final int[] sizes; // components of each attribute, 0 if it is missing
+
+    Layout(int flags, int positionBits) {
+      this.flags = flags;
+      this.positionBits = positionBits;
+      sizes = new int[] {3, (flags & NORMALS) != 0 ? 2 : 0, (flags & TEXCOORDS) != 0 ? 2 : 0,
+          (flags & COLORS) != 0 ? 3 : 0};
+    }
+
+    void setSteps() {
+      for (int k = 0; k < 3; k++)
+        step[k] = (max[k] - min[k]) / ((1 << positionBits) - 1);
+      for (int k = 0; k < 2; k++)
+        texStep[k] = (texMax[k] - texMin[k]) / ((1 << TEXCOORD_BITS) - 1);
+    }
+  }
+
+  // -------------------------------- writing --------------------------------
+
+  /**
+   * Writes mesh to file with positionBits bits per position component, from 8 to 24, and
+   * returns a summary of the sizes and the position error. Triangle strips are written as
+   * triangles.
+   */
+  public static String write(MeshData mesh, File file, int positionBits) throws IOException {
+    if (positionBits < 8 || positionBits > 24)
+      throw new IllegalArgumentException("positionBits must be from 8 to 24");
+    long start = System.nanoTime();
+    mesh = mesh.toTriangles();
+    int vertexCount = mesh.getVertexCount();
+    int triangleCount = mesh.getIndexCount() / 3;
+
+    // renumber the vertices in the order of first use, rotating each triangle so the corners
+    // used before come first; vertices no triangle uses go last
+    int[] source = mesh.getIndices();
+    int[] indices = new int[triangleCount * 3];
+    int[] newIndex = new int[vertexCount];
+    Arrays.fill(newIndex, -1);
+    int[] order = new int[vertexCount];
+    int next = 0;
+    for (int t = 0; t < triangleCount; t++) {
+      int rotation = 0, best = -1;
+      for (int r = 0; r < 3; r++) {
+        int known = 0;
+        while (known < 3 && newIndex[source[t * 3 + (r + known) % 3]] >= 0)
+          known++;
+        if (known > best) {
+          best = known;
+          rotation = r;
+        }
+      }
+      for (int k = 0; k < 3; k++) {
+        int v = source[t * 3 + (rotation + k) % 3];
+        if (newIndex[v] < 0) {
+          newIndex[v] = next;
+          order[next++] = v;
+        }
+        indices[t * 3 + k] = newIndex[v];
+      }
+    }
+    for (int v = 0; v < vertexCount; v++)
+      if (newIndex[v] < 0)
+        order[next++] = v;
+
+    float[] positions = MeshStages.gather(mesh.getPositions(), order, vertexCount, 3);
+    float[] normals = MeshStages.gather(mesh.getNormals(), order, vertexCount, 3);
+    float[] texCoords = MeshStages.gather(mesh.getTexCoords(), order, vertexCount, 2);
+    float[] colors = MeshStages.gather(mesh.getColors(), order, vertexCount, 3);
+    Layout layout = new Layout((normals != null ? NORMALS : 0)
+        | (texCoords != null ? TEXCOORDS : 0) | (colors != null ? COLORS : 0), positionBits);
+    if (vertexCount > 0) {
+      float[] bounds = mesh.getBounds();
+      System.arraycopy(bounds, 0, layout.min, 0, 3);
+      System.arraycopy(bounds, 3, layout.max, 0, 3);
+    }
+    if (texCoords != null && vertexCount > 0) {
+      for (int k = 0; k < 2; k++) {
+        layout.texMin[k] = Float.MAX_VALUE;
+        layout.texMax[k] = -Float.MAX_VALUE;
+      }
+      for (int i = 0; i < texCoords.length; i++) {
+        layout.texMin[i & 1] = Math.min(layout.texMin[i & 1], texCoords[i]);
+        layout.texMax[i & 1] = Math.max(layout.texMax[i & 1], texCoords[i]);
+      }
+    }
+    layout.setSteps();
+
+    // quantize, measuring the position error
+    int[][] q = new int[4][];
+    for (int a = 0; a < 4; a++)
+      q[a] = layout.sizes[a] == 0 ? null : new int[vertexCount * layout.sizes[a]];
+    int positionLevels = (1 << positionBits) - 1;
+    double maxError = 0;
+    short[] octahedral = new short[2];
+    for (int v = 0; v < vertexCount; v++) {
+      double error2 = 0;
+      for (int k = 0; k < 3; k++) {
+        float p = positions[v * 3 + k];
+        int code = layout.step[k] == 0 ? 0 : Math.round((p - layout.min[k]) / layout.step[k]);
+        code = Math.max(0, Math.min(positionLevels, code));
+        q[0][v * 3 + k] = code;
+        double d = layout.min[k] + code * layout.step[k] - p;
+        error2 += d * d;
+      }
+      maxError = Math.max(maxError, Math.sqrt(error2));
+      if (normals != null) {
+        QuantizedMesh.encodeNormal(normals[v * 3], normals[v * 3 + 1], normals[v * 3 + 2],
+            octahedral, 0, NORMAL_BITS);
+        q[1][v * 2] = octahedral[0];
+        q[1][v * 2 + 1] = octahedral[1];
+      }
+      if (texCoords != null)
+        for (int k = 0; k < 2; k++) {
+          float t = texCoords[v * 2 + k];
+          int code = layout.texStep[k] == 0 ? 0
+              : Math.round((t - layout.texMin[k]) / layout.texStep[k]);
+          q[2][v * 2 + k] = Math.max(0, Math.min((1 << TEXCOORD_BITS) - 1, code));
+        }
+      if (colors != null)
+        for (int k = 0; k < 3; k++)
+          q[3][v * 3 + k] = Math.round(Math.max(0, Math.min(1, colors[v * 3 + k]))
+              * ((1 << COLOR_BITS) - 1));
+    }
+
+    // cut into chunks; each owns the vertices its triangles use first
+    int chunkCount = Math.max(1, (triangleCount + CHUNK_TRIANGLES - 1) / CHUNK_TRIANGLES);
+    int[] firstVertex = new int[chunkCount + 1];
+    int highest = 0;
+    for (int c = 0; c < chunkCount; c++) {
+      firstVertex[c] = highest;
+      int end = Math.min(triangleCount, (c + 1) * CHUNK_TRIANGLES) * 3;
+      for (int i = c * CHUNK_TRIANGLES * 3; i < end; i++)
+        highest = Math.max(highest, indices[i] + 1);
+    }
+    firstVertex[chunkCount] = vertexCount;
+    int[] rawLengths = new int[chunkCount];
+    byte[][] chunks = new byte[chunkCount][];
+    IntStream.range(0, chunkCount).parallel().forEach(c -> {
+      int first = c * CHUNK_TRIANGLES;
+      byte[] raw = encodeChunk(layout, indices, q, first,
+          Math.min(CHUNK_TRIANGLES, triangleCount - first), firstVertex[c],
+          firstVertex[c + 1] - firstVertex[c]);
+      rawLengths[c] = raw.length;
+      Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+      deflater.setInput(raw);
+      deflater.finish();
+      byte[] compressed = new byte[raw.length + raw.length / 1000 + 64];
+      int length = 0;
+      while (!deflater.finished()) {
+        if (length == compressed.length)
+          compressed = Arrays.copyOf(compressed, compressed.length * 2);
+        length += deflater.deflate(compressed, length, compressed.length - length);
+      }
+      deflater.end();
+      chunks[c] = Arrays.copyOf(compressed, length);
+    });
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + chunkCount * CHUNK_RECORD_BYTES)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MAGIC).putInt(VERSION).putInt(layout.flags).putInt(positionBits)
+        .putInt(vertexCount).putInt(triangleCount);
+    for (float f : layout.min)
+      header.putFloat(f);
+    for (float f : layout.max)
+      header.putFloat(f);
+    for (int k = 0; k < 2; k++)
+      header.putFloat(layout.texMin[k]).putFloat(layout.texMax[k]);
+    header.putInt(chunkCount);
+    long size = header.capacity();
+    for (int c = 0; c < chunkCount; c++) {
+      int first = c * CHUNK_TRIANGLES;
+      header.putInt(first).putInt(Math.min(CHUNK_TRIANGLES, triangleCount - first))
+          .putInt(firstVertex[c]).putInt(firstVertex[c + 1] - firstVertex[c])
+          .putInt(rawLengths[c]).putInt(chunks[c].length);
+      size += chunks[c].length;
+    }
+    header.flip();
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (header.hasRemaining())
+        channel.write(header);
+      for (byte[] chunk : chunks) {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        while (buffer.hasRemaining())
+          channel.write(buffer);
+      }
+    }
+    long raw = 4L * (positions.length + (normals != null ? normals.length : 0)
+        + (texCoords != null ? texCoords.length : 0) + (colors != null ? colors.length : 0)
+        + indices.length);
+    return String.format("%d vertices, %d triangles in %d chunks: %d bytes, %.2f bits per"
+        + " triangle, %.1f times smaller than the arrays; position error max %.3g (%.2g of the"
+        + " size), %.0f ms%n", vertexCount, triangleCount, chunkCount, size,
+        size * 8.0 / Math.max(1, triangleCount), (double) raw / size, maxError,
+        maxError / Math.max(1e-30, diagonal(layout)), (System.nanoTime() - start) / 1e6);
+  }
+
+  private static double diagonal(Layout layout) {
+    double d2 = 0;
+    for (int k = 0; k < 3; k++)
+      d2 += (layout.max[k] - layout.min[k]) * (layout.max[k] - layout.min[k]);
+    return Math.sqrt(d2);
+  }
+
+  /** The uncompressed bytes of a chunk: the length of its index codes, them, and the residuals. */
+  private static byte[] encodeChunk(Layout layout, int[] indices, int[][] q, int firstTriangle,
+      int triangleCount, int firstVertex, int vertexCount) {
+    Bytes codes = new Bytes(triangleCount * 4 + 16), residuals = new Bytes(vertexCount * 8 + 16);
+    int[] prediction = new int[3];
+    int next = firstVertex;
+    for (int t = firstTriangle; t < firstTriangle + triangleCount; t++) {
+      for (int k = 0; k < 3; k++) {
+        int v = indices[t * 3 + k];
+        if (v != next) {
+          codes.varint(next - v); // a vertex used before, so v < next
+          continue;
+        }
+        codes.varint(0);
+        for (int a = 0; a < 4; a++) {
+          int size = layout.sizes[a];
+          if (size == 0)
+            continue;
+          predict(a, size, indices, t, k, firstTriangle, firstVertex, next, q, 0, prediction);
+          for (int i = 0; i < size; i++)
+            residuals.varint(zigzag(q[a][v * size + i] - prediction[i]));
+        }
+        next++;
+      }
+    }
+    for (; next < firstVertex + vertexCount; next++) { // vertices no triangle uses
+      for (int a = 0; a < 4; a++) {
+        int size = layout.sizes[a];
+        if (size == 0)
+          continue;
+        predict(a, size, indices, -1, 0, firstTriangle, firstVertex, next, q, 0, prediction);
+        for (int i = 0; i < size; i++)
+          residuals.varint(zigzag(q[a][next * size + i] - prediction[i]));
+      }
+    }
+    byte[] raw = new byte[4 + codes.size + residuals.size];
+    ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN).putInt(codes.size);
+    System.arraycopy(codes.data, 0, raw, 4, codes.size);
+    System.arraycopy(residuals.data, 0, raw, 4 + codes.size, residuals.size);
+    return raw;
+  }
+
+  /**
+   * Predicts attribute a, of size components, of vertex next, which is new at corner k of
+   * triangle t (or, if t is -1, used by no triangle), into prediction. Only vertices of the
+   * chunk decoded before next are used: corners of t before k, triangles of the chunk before
+   * t, and vertex next - 1. q holds the quantized attributes of vertex v at v - base.
+   */
+  private static void predict(int a, int size, int[] indices, int t, int k, int firstTriangle,
+      int firstVertex, int next, int[][] q, int base, int[] prediction) {
+    int[] values = q[a];
+    int known0 = -1, known1 = -1; // corners of t before k that belong to the chunk
+    if (t >= 0) {
+      if (k >= 1 && indices[t * 3] >= firstVertex)
+        known0 = indices[t * 3];
+      if (k == 2 && indices[t * 3 + 1] >= firstVertex)
+        known1 = indices[t * 3 + 1];
+      if (known0 < 0) {
+        known0 = known1;
+        known1 = -1;
+      }
+    }
+    if (known1 >= 0) {
+      int far = a == 0 ? farCorner(indices, t, firstTriangle, known0, known1, firstVertex) : -1;
+      for (int i = 0; i < size; i++) {
+        int p0 = values[(known0 - base) * size + i], p1 = values[(known1 - base) * size + i];
+        prediction[i] = far >= 0 ? p0 + p1 - values[(far - base) * size + i] : (p0 + p1) >> 1;
+      }
+    } else if (known0 >= 0 || next > firstVertex) {
+      int from = known0 >= 0 ? known0 : next - 1;
+      for (int i = 0; i < size; i++)
+        prediction[i] = values[(from - base) * size + i];
+    } else {
+      Arrays.fill(prediction, 0, size, 0);
+    }
+  }
+
+  /**
+   * The third corner of a recent triangle of the chunk before t that has the edge from a to b,
+   * or -1 if there is none.
+   */
+  private static int farCorner(int[] indices, int t, int firstTriangle, int a, int b,
+      int firstVertex) {
+    for (int u = t - 1; u >= Math.max(firstTriangle, t - PARALLELOGRAM_WINDOW); u--) {
+      int hits = 0, far = -1;
+      for (int k = 0; k < 3; k++) {
+        int v = indices[u * 3 + k];
+        if (v == a || v == b)
+          hits++;
+        else
+          far = v;
+      }
+      if (hits == 2 && far >= firstVertex)
+        return far;
+    }
+    return -1;
+  }
+
+  private static int zigzag(int value) {
+    return (value << 1) ^ (value >> 31);
+  }
+
+  private static int unzigzag(int value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /** A growing array of bytes with variable-length integers written to it. */
+  private static class Bytes {
+    byte[] data;
+    int size;
+
+    Bytes(int capacity) {
+      data = new byte[capacity];
+    }
+
+    void varint(int value) {
+      if (size + 5 > data.length)
+        data = Arrays.copyOf(data, data.length * 2 + 5);
+      while ((value & ~0x7F) != 0) {
+        data[size++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      data[size++] = (byte) value;
+    }
+  }
+
+  // -------------------------------- reading --------------------------------
+
+  /**
+   * Reads a file written by write. The chunks are read in order and each is decoded on the
+   * common pool as soon as it is in, so decoding overlaps reading.
+   */
+  @Override
+  public MeshData read(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer header = readFully(channel, HEADER_BYTES, file);
+      if (header.getInt() != MAGIC || header.getInt() != VERSION)
+        throw new IOException(file + " is not a compressed mesh of this version");
+      int flags = header.getInt(), positionBits = header.getInt();
+      int vertexCount = header.getInt(), triangleCount = header.getInt();
+      if (positionBits < 8 || positionBits > 24 || vertexCount < 0 || triangleCount < 0
+          || triangleCount > Integer.MAX_VALUE / 3 || vertexCount > Integer.MAX_VALUE / 3)
+        throw new IOException(file + " has a damaged header");
+      Layout layout = new Layout(flags, positionBits);
+      for (int k = 0; k < 3; k++)
+        layout.min[k] = header.getFloat();
+      for (int k = 0; k < 3; k++)
+        layout.max[k] = header.getFloat();
+      for (int k = 0; k < 2; k++) {
+        layout.texMin[k] = header.getFloat();
+        layout.texMax[k] = header.getFloat();
+      }
+      layout.setSteps();
+      int chunkCount = header.getInt();
+      if (chunkCount < 1 || chunkCount > triangleCount / CHUNK_TRIANGLES + 1)
+        throw new IOException(file + " has a damaged header");
+      ByteBuffer table = readFully(channel, chunkCount * CHUNK_RECORD_BYTES, file);
+
+      float[] positions = new float[vertexCount * 3];
+      float[] normals = (flags & NORMALS) != 0 ? new float[vertexCount * 3] : null;
+      float[] texCoords = (flags & TEXCOORDS) != 0 ? new float[vertexCount * 2] : null;
+      float[] colors = (flags & COLORS) != 0 ? new float[vertexCount * 3] : null;
+      int[] indices = new int[triangleCount * 3];
+      List<CompletableFuture<Void>> decoding = new ArrayList<>();
+      int triangles = 0, vertices = 0;
+      for (int c = 0; c < chunkCount; c++) {
+        int firstTriangle = table.getInt(), chunkTriangles = table.getInt();
+        int firstVertex = table.getInt(), chunkVertices = table.getInt();
+        int rawLength = table.getInt(), compressedLength = table.getInt();
+        // the chunks must cover the triangles and vertices in order, so no two write together
+        if (firstTriangle != triangles || firstVertex != vertices || chunkTriangles < 0
+            || chunkVertices < 0 || chunkTriangles > triangleCount - triangles
+            || chunkVertices > vertexCount - vertices || rawLength < 4 || compressedLength < 0)
+          throw new IOException(file + " has a damaged chunk table");
+        triangles += chunkTriangles;
+        vertices += chunkVertices;
+        byte[] compressed = readFully(channel, compressedLength, file).array();
+        decoding.add(CompletableFuture.runAsync(() -> {
+          try {
+            decodeChunk(layout, compressed, rawLength, firstTriangle, chunkTriangles,
+                firstVertex, chunkVertices, indices, positions, normals, texCoords, colors);
+          } catch (DataFormatException e) {
+            throw new CompletionException(e);
+          }
+        }));
+      }
+      if (triangles != triangleCount || vertices != vertexCount)
+        throw new IOException(file + " has a damaged chunk table");
+      try {
+        CompletableFuture.allOf(decoding.toArray(new CompletableFuture<?>[0])).join();
+      } catch (CompletionException e) {
+        throw new IOException(file + " is damaged: " + e.getCause().getMessage(), e.getCause());
+      }
+      return new MeshData(GL2.GL_TRIANGLES, positions, normals, texCoords, colors, indices);
+    }
+  }
+
+  private static ByteBuffer readFully(FileChannel channel, int length, File file)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining())
+      if (channel.read(buffer) < 0)
+        throw new IOException(file + " is truncated");
+    buffer.flip();
+    return buffer;
+  }
+
+  /** Decodes one chunk into the mesh's arrays, at the triangles and vertices it owns. */
+  private static void decodeChunk(Layout layout, byte[] compressed, int rawLength,
+      int firstTriangle, int triangleCount, int firstVertex, int vertexCount, int[] indices,
+      float[] positions, float[] normals, float[] texCoords, float[] colors)
+      throws DataFormatException {
+    byte[] raw = new byte[rawLength];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      if (inflater.inflate(raw) != rawLength || !inflater.finished())
+        throw new DataFormatException("a chunk has the wrong length");
+    } finally {
+      inflater.end();
+    }
+    int codesLength = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    if (codesLength < 0 || codesLength > rawLength - 4)
+      throw new DataFormatException("a chunk has the wrong length");
+    int[] cursor = {4, 4 + codesLength}; // of the index codes and of the residuals
+    int[][] q = new int[4][];
+    for (int a = 0; a < 4; a++)
+      q[a] = layout.sizes[a] == 0 ? null : new int[vertexCount * layout.sizes[a]];
+    int[] prediction = new int[3];
+    int next = firstVertex, end = firstVertex + vertexCount;
+    for (int t = firstTriangle; t < firstTriangle + triangleCount; t++) {
+      for (int k = 0; k < 3; k++) {
+        int code = varint(raw, cursor, 0, 4 + codesLength);
+        if (code != 0) {
+          if (code > next)
+            throw new DataFormatException("an index is out of range");
+          indices[t * 3 + k] = next - code;
+          continue;
+        }
+        if (next == end)
+          throw new DataFormatException("a chunk has too many vertices");
+        indices[t * 3 + k] = next;
+        decodeVertex(layout, raw, cursor, indices, t, k, firstTriangle, firstVertex, next, q,
+            prediction);
+        next++;
+      }
+    }
+    for (; next < end; next++)
+      decodeVertex(layout, raw, cursor, indices, -1, 0, firstTriangle, firstVertex, next, q,
+          prediction);
+
+    float[] normal = new float[3];
+    int colorLevels = (1 << COLOR_BITS) - 1;
+    for (int i = 0; i < vertexCount; i++) {
+      int v = firstVertex + i;
+      for (int k = 0; k < 3; k++)
+        positions[v * 3 + k] = layout.min[k] + q[0][i * 3 + k] * layout.step[k];
+      if (normals != null) {
+        QuantizedMesh.decodeNormal((short) q[1][i * 2], (short) q[1][i * 2 + 1], NORMAL_BITS,
+            normal, 0);
+        System.arraycopy(normal, 0, normals, v * 3, 3);
+      }
+      if (texCoords != null)
+        for (int k = 0; k < 2; k++)
+          texCoords[v * 2 + k] = layout.texMin[k] + q[2][i * 2 + k] * layout.texStep[k];
+      if (colors != null)
+        for (int k = 0; k < 3; k++)
+          colors[v * 3 + k] = (float) q[3][i * 3 + k] / colorLevels;
+    }
+  }
+
+  private static void decodeVertex(Layout layout, byte[] raw, int[] cursor, int[] indices,
+      int t, int k, int firstTriangle, int firstVertex, int next, int[][] q, int[] prediction)
+      throws DataFormatException {
+    for (int a = 0; a < 4; a++) {
+      int size = layout.sizes[a];
+      if (size == 0)
+        continue;
+      predict(a, size, indices, t, k, firstTriangle, firstVertex, next, q, firstVertex,
+          prediction);
+      for (int i = 0; i < size; i++)
+        q[a][(next - firstVertex) * size + i] = prediction[i]
+            + unzigzag(varint(raw, cursor, 1, raw.length));
+    }
+  }
+
+  /** Reads the variable-length integer at cursor[which], which must end before end. */
+  private static int varint(byte[] raw, int[] cursor, int which, int end)
+      throws DataFormatException {
+    int value = 0, position = cursor[which];
+    for (int shift = 0; shift < 35; shift += 7) {
+      if (position >= end)
+        throw new DataFormatException("a chunk ends early");
+      int b = raw[position++];
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        cursor[which] = position;
+        return value;
+      }
+    }
+    throw new DataFormatException("a number is too long");
+  }
+
+  // -------------------------------- benchmark --------------------------------
+
+  /**
+   * Without a second file, compares loading a PLY file with loading it compressed: writes the
+   * welded and optimized mesh to a temporary file, reads both a few times, checks that every
+   * triangle comes back within the position error, and prints sizes and speeds. With no file a
+   * generated sphere is used. With a second file, just compresses the first into it.
+   * Usage: java MeshCodec [in.ply [out.cmesh]] [-bits n]
+   */
+  public static void main(String[] args) throws IOException {
+    List<String> files = new ArrayList<>();
+    int bits = DEFAULT_POSITION_BITS;
+    for (int i = 0; i < args.length; i++)
+      if (args[i].equals("-bits") && i + 1 < args.length)
+        bits = Integer.parseInt(args[++i]);
+      else
+        files.add(args[i]);
+    File ply;
+    if (files.isEmpty()) {
+      ply = File.createTempFile("codec", ".ply");
+      MeshLoaders.writePly(ProceduralMesh.sphere(1024, 512), ply);
+      ply.deleteOnExit();
+    } else {
+      ply = new File(files.get(0));
+    }
+    MeshData mesh = new MeshPipeline().add(new MeshStages.Weld(0))
+        .add(new MeshStages.Optimize(MeshStages.Optimize.DEFAULT_CACHE_SIZE)).process(ply)
+        .getMesh();
+    if (mesh == null)
+      throw new IOException("Could not read " + ply);
+    File out = files.size() > 1 ? new File(files.get(1)) : File.createTempFile("codec", ".cmesh");
+    System.out.print(write(mesh, out, bits));
+    if (files.size() > 1)
+      return;
+
+    MeshLoader codec = new MeshCodec(), plyLoader = MeshLoaders.forName("model.ply");
+    MeshData decoded = null;
+    long plyBest = Long.MAX_VALUE, codecBest = Long.MAX_VALUE;
+    for (int run = 0; run < 3; run++) {
+      long start = System.nanoTime();
+      plyLoader.read(ply);
+      plyBest = Math.min(plyBest, System.nanoTime() - start);
+    }
+    for (int run = 0; run < 10; run++) {
+      long start = System.nanoTime();
+      decoded = codec.read(out);
+      codecBest = Math.min(codecBest, System.nanoTime() - start);
+    }
+    System.out.printf("PLY   %8.2f MB %9.1f ms %8.2f Mtris/s%n", ply.length() / 1e6,
+        plyBest / 1e6, mesh.getTriangleCount() / 1e6 / (plyBest / 1e9));
+    System.out.printf("CMESH %8.2f MB %9.1f ms %8.2f Mtris/s, %.1f times smaller, %.1f times"
+        + " faster, %d threads%n", out.length() / 1e6, codecBest / 1e6,
+        decoded.getTriangleCount() / 1e6 / (codecBest / 1e9), (double) ply.length()
+        / out.length(), (double) plyBest / codecBest, Runtime.getRuntime().availableProcessors());
+
+    // the triangles come back in order, each maybe rotated, within half a quantization step
+    float[] bounds = mesh.getBounds();
+    double tolerance = 0;
+    for (int k = 0; k < 3; k++)
+      tolerance += Math.pow((bounds[k + 3] - bounds[k]) / ((1 << bits) - 1) / 2, 2);
+    tolerance = Math.sqrt(tolerance) * 1.001 + 1e-6;
+    int[] a = mesh.getIndices(), b = decoded.getIndices();
+    float[] pa = mesh.getPositions(), pb = decoded.getPositions();
+    int bad = a.length == b.length ? 0 : -1;
+    for (int t = 0; bad >= 0 && t < a.length / 3; t++) {
+      boolean match = false;
+      for (int r = 0; r < 3 && !match; r++) {
+        match = true;
+        for (int k = 0; k < 3 && match; k++) {
+          int u = a[t * 3 + k], v = b[t * 3 + (r + k) % 3];
+          double d2 = 0;
+          for (int i = 0; i < 3; i++)
+            d2 += Math.pow(pa[u * 3 + i] - pb[v * 3 + i], 2);
+          match = Math.sqrt(d2) <= tolerance;
+        }
+      }
+      if (!match)
+        bad++;
+    }
+    System.out.println(bad == 0 ? "every triangle matches"
+        : bad < 0 ? "TRIANGLE COUNT DIFFERS" : bad + " TRIANGLES DIFFER");
+    out.delete();
+  }
+
+}
@@ -0,0 +1,206 @@
+import java.util.Arrays;
+import java.util.List;
+
+import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.math.FloatUtil;
+
+/**
+ * Indexed geometry kept on the CPU: positions plus optional normals, texture coordinates and
+ * colors, and an index list drawn as GL_TRIANGLES, GL_TRIANGLE_STRIP or GL_LINES. This is the common shape
+ * that the mesh generators and loaders produce and that GLMesh uploads. The arrays are shared,
+ * not copied, so a MeshData should be treated as read-only once it has been handed on.
+ */
+public class MeshData {
+
+  private final int mode;
+  private final float[] positions; // x, y, z per vertex
+  private final float[] normals; // x, y, z per vertex, or null
+  private final float[] texCoords; // s, t per vertex, or null
+  private final float[] colors; // r, g, b per vertex, or null
+  private final int[] indices;
+
+  /**
+   * Creates a mesh from the given arrays, which are used as they are. mode is GL_TRIANGLES,
+   * GL_TRIANGLE_STRIP or GL_LINES. normals, texCoords and colors may be null.
+   */
+  MeshData(int mode, float[] positions, float[] normals, float[] texCoords, float[] colors,
+      int[] indices) {
+    this.mode = mode;
+    this.positions = positions;
+    this.normals = normals;
+    this.texCoords = texCoords;
+    this.colors = colors;
+    this.indices = indices;
+  }
+
+  public int getMode() {
+    return mode;
+  }
+
+  public float[] getPositions() {
+    return positions;
+  }
+
+  public float[] getNormals() {
+    return normals;
+  }
+
+  public float[] getTexCoords() {
+    return texCoords;
+  }
+
+  public float[] getColors() {
+    return colors;
+  }
+
+  public int[] getIndices() {
+    return indices;
+  }
+
+  public int getVertexCount() {
+    return positions.length / 3;
+  }
+
+  public int getIndexCount() {
+    return indices.length;
+  }
+
+  /** Number of triangles drawn, not counting degenerate strip joins. */
+  public int getTriangleCount() {
+    if (mode == GL2.GL_LINES)
+      return 0;
+    if (mode == GL2.GL_TRIANGLES)
+      return indices.length / 3;
+    int count = 0;
+    for (int i = 2; i < indices.length; i++)
+      if (indices[i] != indices[i - 1] && indices[i] != indices[i - 2]
+          && indices[i - 1] != indices[i - 2])
+        count++;
+    return count;
+  }
+
+  /**
+   * Returns this mesh as GL_TRIANGLES, unrolling a strip with GL's winding rule and leaving out
+   * its degenerate joins. Triangle meshes are returned as they are; lines give no triangles. The
+   * vertex arrays are shared.
+   */
+  public MeshData toTriangles() {
+    if (mode == GL2.GL_TRIANGLES)
+      return this;
+    int[] triangles = new int[getTriangleCount() * 3];
+    int n = 0;
+    if (mode == GL2.GL_TRIANGLE_STRIP) {
+      for (int i = 0; i + 2 < indices.length; i++) {
+        int a = indices[i], b = indices[i + 1], c = indices[i + 2];
+        if (a == b || b == c || a == c)
+          continue;
+        triangles[n++] = (i & 1) == 0 ? a : b;
+        triangles[n++] = (i & 1) == 0 ? b : a;
+        triangles[n++] = c;
+      }
+    }
+    return new MeshData(GL2.GL_TRIANGLES, positions, normals, texCoords, colors, triangles);
+  }
+
+  /** Returns the axis aligned bounds as { minX, minY, minZ, maxX, maxY, maxZ }. */
+  public float[] getBounds() {
+    float[] bounds = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE,
+        -Float.MAX_VALUE, -Float.MAX_VALUE};
+    for (int i = 0; i < positions.length; i += 3) {
+      for (int k = 0; k < 3; k++) {
+        if (positions[i + k] < bounds[k])
+          bounds[k] = positions[i + k];
+        if (positions[i + k] > bounds[k + 3])
+          bounds[k + 3] = positions[i + k];
+      }
+    }
+    return bounds;
+  }
+
+  /**
+   * Returns a copy of this mesh with the positions transformed by the column-major matrix and
+   * the normals by its inverse transpose. Texture coordinates, colors and indices are shared.
+   */
+  public MeshData transform(float[] matrix) {
+    float[] p = new float[positions.length];
+    for (int i = 0; i < positions.length; i += 3) {
+      float x = positions[i], y = positions[i + 1], z = positions[i + 2];
+      p[i] = matrix[0] * x + matrix[4] * y + matrix[8] * z + matrix[12];
+      p[i + 1] = matrix[1] * x + matrix[5] * y + matrix[9] * z + matrix[13];
+      p[i + 2] = matrix[2] * x + matrix[6] * y + matrix[10] * z + matrix[14];
+    }
+    float[] n = null;
+    if (normals != null) {
+      float[] inverse = FloatUtil.invertMatrix(matrix, new float[16]);
+      if (inverse == null)
+        inverse = FloatUtil.makeIdentity(new float[16]);
+      n = new float[normals.length];
+      for (int i = 0; i < normals.length; i += 3) {
+        float x = normals[i], y = normals[i + 1], z = normals[i + 2];
+        // rows of the inverse are the columns of the inverse transpose
+        float nx = inverse[0] * x + inverse[1] * y + inverse[2] * z;
+        float ny = inverse[4] * x + inverse[5] * y + inverse[6] * z;
+        float nz = inverse[8] * x + inverse[9] * y + inverse[10] * z;
+        float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length > 0) {
+          nx /= length;
+          ny /= length;
+          nz /= length;
+        }
+        n[i] = nx;
+        n[i + 1] = ny;
+        n[i + 2] = nz;
+      }
+    }
+    return new MeshData(mode, p, n, texCoords, colors, indices);
+  }
+
+  /**
+   * Concatenates meshes into one. All of them must have the same mode, and either all or none
+   * of them must have each optional attribute. Triangle strips are joined with degenerate
+   * triangles so the result is still a single strip.
+   */
+  public static MeshData merge(List<MeshData> meshes) {
+    MeshData first = meshes.get(0);
+    int vertexCount = 0, indexCount = 0;
+    for (MeshData mesh : meshes) {
+      if (mesh.mode != first.mode)
+        throw new IllegalArgumentException("Cannot merge meshes with different modes");
+      vertexCount += mesh.getVertexCount();
+      indexCount += mesh.indices.length;
+      if (first.mode == GL2.GL_TRIANGLE_STRIP)
+        indexCount += 3; // at most three indices to join strips
+    }
+    float[] positions = new float[vertexCount * 3];
+    float[] normals = first.normals != null ? new float[vertexCount * 3] : null;
+    float[] texCoords = first.texCoords != null ? new float[vertexCount * 2] : null;
+    float[] colors = first.colors != null ? new float[vertexCount * 3] : null;
+    int[] indices = new int[indexCount];
+
+    int vertex = 0, index = 0;
+    for (MeshData mesh : meshes) {
+      int count = mesh.getVertexCount();
+      System.arraycopy(mesh.positions, 0, positions, vertex * 3, count * 3);
+      if (normals != null)
+        System.arraycopy(mesh.normals, 0, normals, vertex * 3, count * 3);
+      if (texCoords != null)
+        System.arraycopy(mesh.texCoords, 0, texCoords, vertex * 2, count * 2);
+      if (colors != null)
+        System.arraycopy(mesh.colors, 0, colors, vertex * 3, count * 3);
+      if (first.mode == GL2.GL_TRIANGLE_STRIP && index > 0 && mesh.indices.length > 0) {
+        int last = indices[index - 1];
+        if (index % 2 == 1)
+          indices[index++] = last; // keeps the winding of the next strip
+        indices[index++] = last;
+        indices[index++] = mesh.indices[0] + vertex;
+      }
+      for (int i = 0; i < mesh.indices.length; i++)
+        indices[index++] = mesh.indices[i] + vertex;
+      vertex += count;
+    }
+    if (index < indices.length)
+      indices = Arrays.copyOf(indices, index);
+    return new MeshData(first.mode, positions, normals, texCoords, colors, indices);
+  }
+
+}
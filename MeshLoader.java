@@ -0,0 +1,31 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Reads one mesh file format into MeshData. Loaders are registered with MeshLoaders, which picks
+ * one for a file by its first bytes, or by its extension when the format has no signature.
+ * Besides the built-in PLY, STL and OBJ loaders, others are found with java.util.ServiceLoader,
+ * by listing them in META-INF/services/MeshLoader.
+ * <p>
+ * Every loader produces the same thing: a GL_TRIANGLES MeshData, with normals and texture
+ * coordinates only if the file has them. Welding, normals and the rest are left to the
+ * MeshPipeline stages. Loaders may be used from several threads at once.
+ */
+public interface MeshLoader {
+
+  /** A short name for the format, like "PLY". */
+  String getName();
+
+  /** File name extensions of the format, in lower case without the dot. */
+  List<String> getExtensions();
+
+  /**
+   * True if head, the first length bytes of a file of fileSize bytes, show the file is in this
+   * format. Formats without a signature return false and are chosen by extension.
+   */
+  boolean matches(byte[] head, int length, long fileSize);
+
+  MeshData read(File file) throws IOException;
+
+}
@@ -0,0 +1,215 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The registered MeshLoaders, and the choice of one for a file. The built-in loaders read PLY,
+ * binary STL, OBJ and MeshCodec's compressed meshes; loaders listed in
+ * META-INF/services/MeshLoader are added to them when the class loads, and more can be
+ * registered at any time. A file goes to the first loader that
+ * recognizes its first bytes, and failing that to the first with its extension, with the latest
+ * registered loaders tried first, so a format's built-in loader can be replaced.
+ */
+public class MeshLoaders {
+
+  /** Bytes read from the start of a file for MeshLoader.matches. */
+  static final int HEAD_SIZE = 128;
+
+  private static final List<MeshLoader> loaders = new CopyOnWriteArrayList<>();
+
+  static {
+    register(new ObjReader());
+    register(new StlReader());
+    register(new PlyLoader());
+    register(new MeshCodec());
+    for (MeshLoader loader : ServiceLoader.load(MeshLoader.class))
+      register(loader);
+  }
+
+  private MeshLoaders() {}
+
+  /** Adds a loader, to be tried before those already registered. */
+  public static void register(MeshLoader loader) {
+    loaders.add(0, loader);
+  }
+
+  /** The registered loaders, in the order they are tried. */
+  public static List<MeshLoader> getLoaders() {
+    return new ArrayList<>(loaders);
+  }
+
+  /** The loader for a file, chosen by its contents and then its name, or null if none fits. */
+  public static MeshLoader find(File file) throws IOException {
+    byte[] head = new byte[HEAD_SIZE];
+    int length = 0;
+    try (InputStream in = new FileInputStream(file)) {
+      for (int read; length < head.length
+          && (read = in.read(head, length, head.length - length)) > 0;)
+        length += read;
+    }
+    long size = file.length();
+    for (MeshLoader loader : loaders)
+      if (loader.matches(head, length, size))
+        return loader;
+    return forName(file.getName());
+  }
+
+  /** The first loader for the extension of a file name, or null. */
+  public static MeshLoader forName(String name) {
+    int dot = name.lastIndexOf('.');
+    if (dot < 0)
+      return null;
+    String extension = name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    for (MeshLoader loader : loaders)
+      if (loader.getExtensions().contains(extension))
+        return loader;
+    return null;
+  }
+
+  /** True if some loader takes files with this name's extension. */
+  public static boolean isSupported(String name) {
+    return forName(name) != null;
+  }
+
+  /** Reads a mesh file with the loader that fits it. */
+  public static MeshData read(File file) throws IOException {
+    MeshLoader loader = find(file);
+    if (loader == null)
+      throw new IOException("No mesh loader for " + file);
+    return loader.read(file);
+  }
+
+  /** The existing PlyReader, for ASCII PLY files, which start with "ply" on a line of its own. */
+  private static class PlyLoader implements MeshLoader {
+    @Override
+    public String getName() {
+      return "PLY";
+    }
+
+    @Override
+    public List<String> getExtensions() {
+      return Arrays.asList("ply");
+    }
+
+    @Override
+    public boolean matches(byte[] head, int length, long fileSize) {
+      return length >= 4 && head[0] == 'p' && head[1] == 'l' && head[2] == 'y'
+          && (head[3] == '\n' || head[3] == '\r');
+    }
+
+    @Override
+    public MeshData read(File file) throws IOException {
+      return PlyReader.read(file);
+    }
+  }
+
+  // -------------------------------- benchmark --------------------------------
+
+  static void writePly(MeshData mesh, File file) throws IOException {
+    float[] p = mesh.getPositions();
+    int[] indices = mesh.getIndices();
+    try (PrintWriter out = new PrintWriter(file, "US-ASCII")) {
+      out.print("ply\nformat ascii 1.0\nelement vertex " + mesh.getVertexCount()
+          + "\nproperty float x\nproperty float y\nproperty float z\nelement face "
+          + indices.length / 3 + "\nproperty list uchar int vertex_indices\nend_header\n");
+      for (int v = 0; v < mesh.getVertexCount(); v++)
+        out.printf(Locale.ROOT, "%.6f %.6f %.6f\n", p[v * 3], p[v * 3 + 1], p[v * 3 + 2]);
+      for (int i = 0; i < indices.length; i += 3)
+        out.print("3 " + indices[i] + " " + indices[i + 1] + " " + indices[i + 2] + "\n");
+    }
+  }
+
+  private static void writeStl(MeshData mesh, File file) throws IOException {
+    float[] p = mesh.getPositions();
+    int[] indices = mesh.getIndices();
+    ByteBuffer record = ByteBuffer.allocate(50).order(ByteOrder.LITTLE_ENDIAN);
+    try (OutputStream out = new BufferedOutputStream(new java.io.FileOutputStream(file), 1 << 16)) {
+      out.write(new byte[80]);
+      new DataOutputStream(out).writeInt(Integer.reverseBytes(indices.length / 3));
+      for (int i = 0; i < indices.length; i += 3) {
+        record.clear();
+        record.putFloat(0).putFloat(0).putFloat(0); // the facet normal, which readers ignore
+        for (int k = 0; k < 3; k++)
+          record.putFloat(p[indices[i + k] * 3]).putFloat(p[indices[i + k] * 3 + 1])
+              .putFloat(p[indices[i + k] * 3 + 2]);
+        record.putShort((short) 0);
+        out.write(record.array());
+      }
+    }
+  }
+
+  private static void writeObj(MeshData mesh, File file) throws IOException {
+    float[] p = mesh.getPositions(), n = mesh.getNormals();
+    int[] indices = mesh.getIndices();
+    try (PrintWriter out = new PrintWriter(file, "US-ASCII")) {
+      for (int v = 0; v < mesh.getVertexCount(); v++)
+        out.printf(Locale.ROOT, "v %.6f %.6f %.6f\n", p[v * 3], p[v * 3 + 1], p[v * 3 + 2]);
+      for (int v = 0; v < mesh.getVertexCount(); v++)
+        out.printf(Locale.ROOT, "vn %.6f %.6f %.6f\n", n[v * 3], n[v * 3 + 1], n[v * 3 + 2]);
+      for (int i = 0; i < indices.length; i += 3)
+        out.print("f " + (indices[i] + 1) + "//" + (indices[i] + 1) + " " + (indices[i + 1] + 1)
+            + "//" + (indices[i + 1] + 1) + " " + (indices[i + 2] + 1) + "//"
+            + (indices[i + 2] + 1) + "\n");
+    }
+  }
+
+  /**
+   * Loader throughput: writes a sphere in each format to the temporary directory and reads it
+   * back a few times, printing MB and triangles per second. Usage: java MeshLoaders [slices]
+   */
+  public static void main(String[] args) throws IOException {
+    int slices = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+    MeshData sphere = ProceduralMesh.sphere(slices, slices / 2);
+    System.out.println("sphere: " + sphere.getVertexCount() + " vertices, "
+        + sphere.getTriangleCount() + " triangles");
+    File directory = new File(System.getProperty("java.io.tmpdir"));
+    File[] files = {new File(directory, "loaders.ply"), new File(directory, "loaders.stl"),
+        new File(directory, "loaders.obj")};
+    writePly(sphere, files[0]);
+    writeStl(sphere, files[1]);
+    writeObj(sphere, files[2]);
+    for (File file : files) {
+      MeshLoader loader = find(file);
+      MeshData mesh = null;
+      long best = Long.MAX_VALUE;
+      for (int run = 0; run < 5; run++) {
+        long start = System.nanoTime();
+        mesh = loader.read(file);
+        best = Math.min(best, System.nanoTime() - start);
+      }
+      System.out.printf("%-4s %8.1f MB %9.2f ms %8.1f MB/s %7.2f Mtris/s  %d vertices%s%s%n",
+          loader.getName(), file.length() / 1e6, best / 1e6, file.length() / 1e6 / (best / 1e9),
+          mesh.getTriangleCount() / 1e6 / (best / 1e9), mesh.getVertexCount(),
+          mesh.getNormals() != null ? ", normals" : "", mesh.getTexCoords() != null
+              ? ", texture coordinates" : "");
+      file.delete();
+    }
+
+    // blank lines, comments and lines ending in \r\n, which a parser can easily trip on
+    File obj = new File(directory, "loaders-lines.obj");
+    try (PrintWriter out = new PrintWriter(obj, "US-ASCII")) {
+      out.print("# a triangle\nv 0 0 0\nv 1 0 0\n\n   \n# between the vertices\r\nv 0 1 0\r\n"
+          + "\nf 1 2 3 # a face\n\n");
+    }
+    MeshData triangle = read(obj);
+    obj.delete();
+    System.out.println("OBJ with blank and comment lines: " + triangle.getVertexCount()
+        + " vertices, " + triangle.getTriangleCount() + " triangle"
+        + (triangle.getVertexCount() == 3 && triangle.getTriangleCount() == 1 ? ""
+            : ", EXPECTED 3 and 1"));
+  }
+
+}
@@ -0,0 +1,316 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Turns mesh files into MeshData ready for upload, as a configurable list of stages. The file is
+ * parsed first, by the MeshLoader that fits it, then each stage in turn takes the mesh produced
+ * by the one before it and returns a new one. Stages can be added, and skipped by name. Every
+ * stage is timed, and the memory it allocated is measured on its thread, so the report for a file
+ * shows where the import time went. Uploading to GL is the last step, and it is done by GLModel
+ * on the GL thread.
+ * <p>
+ * Files are independent of each other, so processAll runs a whole batch of them in parallel,
+ * one file per core.
+ * <p>
+ * With a cache, the processed mesh is written to a file next to its source, and later runs
+ * read it back instead of parsing and processing again, for as long as the source file and the
+ * stages' signatures are unchanged. This is what makes slow stages like AmbientOcclusion
+ * affordable at load time.
+ */
+public class MeshPipeline {
+
+  /** One step of the pipeline. Stages must not modify the mesh they are given. */
+  public interface Stage {
+    String getName();
+
+    MeshData process(MeshData mesh);
+
+    /**
+     * The name and every parameter that changes the result, so cached meshes made with other
+     * settings are not reused.
+     */
+    default String getSignature() {
+      return getName();
+    }
+
+    /** An optional one line summary of what the stage did, for the report. */
+    default String describe(MeshData before, MeshData after) {
+      return null;
+    }
+  }
+
+  /** Timing and memory for one stage applied to one file. */
+  public static class StageReport {
+    final String name;
+    final long nanos;
+    final long allocatedBytes;
+    final int vertices, triangles;
+    final String note;
+
+    StageReport(String name, long nanos, long allocatedBytes, MeshData result, String note) {
+      this.name = name;
+      this.nanos = nanos;
+      this.allocatedBytes = allocatedBytes;
+      this.vertices = result == null ? 0 : result.getVertexCount();
+      this.triangles = result == null ? 0 : result.getTriangleCount();
+      this.note = note;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%-10s %9.2f ms %10d KB allocated %9d vertices %9d triangles%s", name,
+          nanos / 1e6, allocatedBytes / 1024, vertices, triangles,
+          note == null ? "" : "  " + note);
+    }
+  }
+
+  /** What came out of the pipeline for one file: the mesh, or the error, and the reports. */
+  public static class Result {
+    private final File file;
+    private MeshData mesh;
+    private IOException error;
+    private final List<StageReport> reports = new ArrayList<>();
+
+    Result(File file) {
+      this.file = file;
+    }
+
+    public File getFile() {
+      return file;
+    }
+
+    /** The processed mesh, or null if the file could not be read. */
+    public MeshData getMesh() {
+      return mesh;
+    }
+
+    public IOException getError() {
+      return error;
+    }
+
+    public synchronized List<StageReport> getReports() {
+      return new ArrayList<>(reports);
+    }
+
+    /** Adds a report for a step done outside the pipeline, such as the upload. */
+    public synchronized void addReport(StageReport report) {
+      reports.add(report);
+    }
+
+    public long getTotalNanos() {
+      long total = 0;
+      for (StageReport report : getReports())
+        total += report.nanos;
+      return total;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder b = new StringBuilder(file.getName());
+      if (error != null)
+        b.append(": ").append(error.getMessage());
+      b.append(String.format(" (%.2f ms)", getTotalNanos() / 1e6));
+      for (StageReport report : getReports())
+        b.append("\n  ").append(report);
+      return b.toString();
+    }
+  }
+
+  private final List<Stage> stages = new ArrayList<>();
+  private final Set<String> skipped = new HashSet<>();
+  private boolean cached;
+
+  /**
+   * The pipeline used for models: weld duplicate vertices, compute smooth normals, and reorder
+   * triangles and vertices for the post-transform vertex cache.
+   */
+  public static MeshPipeline standard() {
+    return new MeshPipeline()
+        .add(new MeshStages.Weld(0))
+        .add(new MeshStages.Normals(true))
+        .add(new MeshStages.Optimize(MeshStages.Optimize.DEFAULT_CACHE_SIZE));
+  }
+
+  /** Appends a stage and returns this pipeline. */
+  public MeshPipeline add(Stage stage) {
+    stages.add(stage);
+    return this;
+  }
+
+  /** Leaves out every stage with the given name and returns this pipeline. */
+  public MeshPipeline skip(String name) {
+    skipped.add(name);
+    return this;
+  }
+
+  /**
+   * Keeps each processed mesh in a cache file next to its source, and reuses it while it is up
+   * to date. Returns this pipeline.
+   */
+  public MeshPipeline cache(boolean cached) {
+    this.cached = cached;
+    return this;
+  }
+
+  /**
+   * Parses and processes one file on the calling thread, or reads it from the cache. Whatever
+   * goes wrong with the file is recorded as the result's error rather than thrown, so one bad
+   * file does not stop the others of processAll.
+   */
+  public Result process(File file) {
+    Result result = new Result(file);
+    long start = System.nanoTime(), allocated = allocatedBytes();
+    String signature = null;
+    File cacheFile = null;
+    if (cached) {
+      signature = getSignature();
+      cacheFile = new File(file.getPath() + "." + Integer.toHexString(signature.hashCode())
+          + ".mesh");
+      MeshData mesh = MeshCacheFile.read(cacheFile, file, signature);
+      if (mesh != null) {
+        result.addReport(new StageReport("cache", System.nanoTime() - start,
+            allocatedBytes() - allocated, mesh, "read " + cacheFile.getName()));
+        result.mesh = mesh;
+        return result;
+      }
+    }
+    MeshData mesh;
+    try {
+      mesh = MeshLoaders.read(file);
+    } catch (IOException e) {
+      result.error = e;
+      return result;
+    } catch (RuntimeException e) { // a malformed file can trip a loader in many ways
+      result.error = new IOException("Could not read " + file + ": " + e, e);
+      return result;
+    }
+    result.addReport(new StageReport("parse", System.nanoTime() - start,
+        allocatedBytes() - allocated, mesh, null));
+    try {
+      result.mesh = process(mesh, result);
+    } catch (RuntimeException e) {
+      result.error = new IOException("Could not process " + file + ": " + e, e);
+      return result;
+    }
+    if (cacheFile != null) {
+      start = System.nanoTime();
+      allocated = allocatedBytes();
+      String note = "wrote " + cacheFile.getName();
+      try {
+        MeshCacheFile.write(cacheFile, file, signature, result.mesh);
+      } catch (IOException e) {
+        note = "not cached: " + e.getMessage();
+      }
+      result.addReport(new StageReport("store", System.nanoTime() - start,
+          allocatedBytes() - allocated, result.mesh, note));
+    }
+    return result;
+  }
+
+  /** The signatures of the stages that run, one per line. */
+  String getSignature() {
+    StringBuilder b = new StringBuilder();
+    for (Stage stage : stages)
+      if (!skipped.contains(stage.getName()))
+        b.append(stage.getSignature()).append('\n');
+    return b.toString();
+  }
+
+  /** Runs the stages on a mesh that was already loaded, adding their reports to result. */
+  public MeshData process(MeshData mesh, Result result) {
+    for (Stage stage : stages) {
+      if (skipped.contains(stage.getName()))
+        continue;
+      long start = System.nanoTime(), allocated = allocatedBytes();
+      MeshData processed = stage.process(mesh);
+      long nanos = System.nanoTime() - start;
+      long bytes = allocatedBytes() - allocated;
+      result.addReport(new StageReport(stage.getName(), nanos, bytes, processed,
+          stage.describe(mesh, processed)));
+      mesh = processed;
+    }
+    return mesh;
+  }
+
+  /**
+   * Processes all the files in parallel, using as many threads as there are cores, and returns
+   * the results in the same order as the files.
+   */
+  public List<Result> processAll(List<File> files) {
+    int threads = Math.min(files.size(), Runtime.getRuntime().availableProcessors());
+    if (threads <= 1) {
+      List<Result> results = new ArrayList<>();
+      for (File file : files)
+        results.add(process(file));
+      return results;
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Result>> futures = new ArrayList<>();
+      for (File file : files)
+        futures.add(pool.submit(() -> process(file)));
+      List<Result> results = new ArrayList<>();
+      for (Future<Result> future : futures)
+        results.add(future.get());
+      return results;
+    } catch (InterruptedException | ExecutionException e) {
+      throw new RuntimeException("Mesh import interrupted", e);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /** Processes every mesh file in a directory that some MeshLoader takes, in parallel. */
+  public List<Result> processDirectory(File directory) {
+    File[] files = directory.listFiles((dir, name) -> MeshLoaders.isSupported(name));
+    if (files == null)
+      return new ArrayList<>();
+    Arrays.sort(files);
+    return processAll(Arrays.asList(files));
+  }
+
+  /** Bytes allocated so far by the current thread, or 0 if the JVM cannot tell. */
+  static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean)
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+          Thread.currentThread().getId());
+    return 0;
+  }
+
+  /**
+   * Batch import of a scan directory, printing the per-stage report for every file.
+   * -occlusion bakes ambient occlusion with the given number of rays per vertex, and -cache
+   * keeps the results next to the files. Usage:
+   * java MeshPipeline directory [-skip stage]... [-occlusion rays] [-cache]
+   */
+  public static void main(String[] args) {
+    MeshPipeline pipeline = standard();
+    for (int i = 1; i < args.length; i++)
+      if (args[i].equals("-skip") && i + 1 < args.length)
+        pipeline.skip(args[++i]);
+      else if (args[i].equals("-occlusion") && i + 1 < args.length)
+        pipeline.add(new MeshStages.AmbientOcclusion(Integer.parseInt(args[++i]), 0.1F, null));
+      else if (args[i].equals("-cache"))
+        pipeline.cache(true);
+    File directory = new File(args.length > 0 ? args[0] : ".");
+    long start = System.nanoTime();
+    List<Result> results = pipeline.processDirectory(directory);
+    for (Result result : results)
+      System.out.println(result);
+    System.out.printf("%d files in %.2f ms on %d cores%n", results.size(),
+        (System.nanoTime() - start) / 1e6, Runtime.getRuntime().availableProcessors());
+  }
+
+}
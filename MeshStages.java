@@ -0,0 +1,441 @@
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import com.jogamp.opengl.GL2;
+
+/**
+ * The standard MeshPipeline stages. They all work on indexed GL_TRIANGLES meshes and pass any
+ * other kind of mesh through unchanged.
+ */
+public class MeshStages {
+
+  private MeshStages() {}
+
+  /**
+   * Merges vertices whose positions are equal, or fall in the same cell of size epsilon if
+   * epsilon is positive, and drops triangles that become degenerate. The other attributes of
+   * the first vertex in each group are kept.
+   */
+  public static class Weld implements MeshPipeline.Stage {
+    private final float epsilon;
+
+    Weld(float epsilon) {
+      this.epsilon = epsilon;
+    }
+
+    public String getName() {
+      return "weld";
+    }
+
+    public String getSignature() {
+      return "weld " + epsilon;
+    }
+
+    public MeshData process(MeshData mesh) {
+      if (mesh.getMode() != GL2.GL_TRIANGLES)
+        return mesh;
+      float[] positions = mesh.getPositions();
+      int vertexCount = mesh.getVertexCount();
+      int[] remap = new int[vertexCount];
+      int[] first = new int[vertexCount]; // original vertex for each welded vertex
+      long[] keys = new long[vertexCount * 3];
+      int tableSize = Integer.highestOneBit(Math.max(vertexCount, 1) * 2) * 2;
+      int[] table = new int[tableSize];
+      Arrays.fill(table, -1);
+      int welded = 0;
+      for (int v = 0; v < vertexCount; v++) {
+        long kx = key(positions[v * 3]), ky = key(positions[v * 3 + 1]), kz = key(positions[v * 3 + 2]);
+        int slot = (int) ((kx * 73856093L ^ ky * 19349663L ^ kz * 83492791L) & (tableSize - 1));
+        while (table[slot] >= 0) {
+          int w = table[slot];
+          if (keys[w * 3] == kx && keys[w * 3 + 1] == ky && keys[w * 3 + 2] == kz)
+            break;
+          slot = (slot + 1) & (tableSize - 1);
+        }
+        if (table[slot] < 0) {
+          table[slot] = welded;
+          keys[welded * 3] = kx;
+          keys[welded * 3 + 1] = ky;
+          keys[welded * 3 + 2] = kz;
+          first[welded] = v;
+          welded++;
+        }
+        remap[v] = table[slot];
+      }
+
+      int[] indices = mesh.getIndices();
+      int[] newIndices = new int[indices.length];
+      int count = 0;
+      for (int i = 0; i + 2 < indices.length; i += 3) {
+        int a = remap[indices[i]], b = remap[indices[i + 1]], c = remap[indices[i + 2]];
+        if (a == b || b == c || a == c)
+          continue;
+        newIndices[count++] = a;
+        newIndices[count++] = b;
+        newIndices[count++] = c;
+      }
+      return new MeshData(GL2.GL_TRIANGLES, gather(positions, first, welded, 3),
+          gather(mesh.getNormals(), first, welded, 3), gather(mesh.getTexCoords(), first, welded, 2),
+          gather(mesh.getColors(), first, welded, 3), Arrays.copyOf(newIndices, count));
+    }
+
+    private long key(float value) {
+      if (epsilon > 0)
+        return Math.round(value / epsilon);
+      return Float.floatToIntBits(value == 0 ? 0 : value); // treats -0 and 0 as the same
+    }
+  }
+
+  /**
+   * Computes vertex normals. Smooth normals are the area weighted average of the normals of the
+   * triangles around each vertex. Flat normals give each triangle its own three vertices, all
+   * with the triangle's normal, which is how GLModel used to draw the scans.
+   */
+  public static class Normals implements MeshPipeline.Stage {
+    private final boolean smooth;
+
+    Normals(boolean smooth) {
+      this.smooth = smooth;
+    }
+
+    public String getName() {
+      return "normals";
+    }
+
+    public String getSignature() {
+      return smooth ? "normals smooth" : "normals flat";
+    }
+
+    public MeshData process(MeshData mesh) {
+      if (mesh.getMode() != GL2.GL_TRIANGLES)
+        return mesh;
+      return smooth ? smooth(mesh) : flat(mesh);
+    }
+
+    private static MeshData smooth(MeshData mesh) {
+      float[] p = mesh.getPositions();
+      int[] indices = mesh.getIndices();
+      float[] normals = new float[p.length];
+      for (int i = 0; i + 2 < indices.length; i += 3) {
+        int a = indices[i] * 3, b = indices[i + 1] * 3, c = indices[i + 2] * 3;
+        float ux = p[b] - p[a], uy = p[b + 1] - p[a + 1], uz = p[b + 2] - p[a + 2];
+        float vx = p[c] - p[a], vy = p[c + 1] - p[a + 1], vz = p[c + 2] - p[a + 2];
+        // the cross product's length is twice the area, which gives the weighting
+        float nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+        for (int k = 0; k < 3; k++) {
+          int v = indices[i + k] * 3;
+          normals[v] += nx;
+          normals[v + 1] += ny;
+          normals[v + 2] += nz;
+        }
+      }
+      for (int v = 0; v < normals.length; v += 3) {
+        float length = (float) Math.sqrt(normals[v] * normals[v] + normals[v + 1] * normals[v + 1]
+            + normals[v + 2] * normals[v + 2]);
+        if (length > 0) {
+          normals[v] /= length;
+          normals[v + 1] /= length;
+          normals[v + 2] /= length;
+        }
+      }
+      return new MeshData(GL2.GL_TRIANGLES, p, normals, mesh.getTexCoords(), mesh.getColors(),
+          indices);
+    }
+
+    private static MeshData flat(MeshData mesh) {
+      float[] p = mesh.getPositions();
+      int[] indices = mesh.getIndices();
+      float[] positions = new float[indices.length * 3];
+      float[] normals = new float[indices.length * 3];
+      int[] newIndices = new int[indices.length];
+      for (int i = 0; i + 2 < indices.length; i += 3) {
+        int a = indices[i] * 3, b = indices[i + 1] * 3, c = indices[i + 2] * 3;
+        float ux = p[b] - p[a], uy = p[b + 1] - p[a + 1], uz = p[b + 2] - p[a + 2];
+        float vx = p[c] - p[a], vy = p[c + 1] - p[a + 1], vz = p[c + 2] - p[a + 2];
+        float nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+        float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length > 0) {
+          nx /= length;
+          ny /= length;
+          nz /= length;
+        }
+        for (int k = 0; k < 3; k++) {
+          int v = indices[i + k] * 3, w = (i + k) * 3;
+          positions[w] = p[v];
+          positions[w + 1] = p[v + 1];
+          positions[w + 2] = p[v + 2];
+          normals[w] = nx;
+          normals[w + 1] = ny;
+          normals[w + 2] = nz;
+          newIndices[i + k] = i + k;
+        }
+      }
+      return new MeshData(GL2.GL_TRIANGLES, positions, normals, null, null, newIndices);
+    }
+  }
+
+  /**
+   * Bakes ambient occlusion into the vertex colors. From each vertex, rays go out over the
+   * hemisphere around its normal, cosine distributed, and the fraction that escape within
+   * distance, a fraction of the mesh's bounding box diagonal, scales the vertex's color: its own
+   * color if the mesh has them, otherwise the given one, which should be the material's ambient
+   * and diffuse color since the mesh is then drawn with GL_COLOR_MATERIAL. The rays are cast
+   * against a TriangleBVH of the mesh, in parallel over blocks of vertices. Each vertex has its
+   * own fixed set of directions, so the result does not depend on the number of threads.
+   * Meshes without normals are passed through.
+   */
+  public static class AmbientOcclusion implements MeshPipeline.Stage {
+    private static final int BLOCK = 1024; // vertices per parallel task
+
+    private final int rays;
+    private final float distance;
+    private final float[] color;
+
+    AmbientOcclusion(int rays, float distance, float[] color) {
+      this.rays = rays;
+      this.distance = distance;
+      this.color = color == null ? new float[] {1, 1, 1} : color.clone();
+    }
+
+    public String getName() {
+      return "occlusion";
+    }
+
+    public String getSignature() {
+      return "occlusion " + rays + " " + distance + " " + Arrays.toString(color);
+    }
+
+    public String describe(MeshData before, MeshData after) {
+      if (after == before)
+        return null;
+      float[] c = after.getColors(), b = before.getColors();
+      double open = 0, all = 0;
+      for (int i = 0; i < c.length; i++) {
+        open += c[i];
+        all += b != null ? b[i] : color[i % 3];
+      }
+      return String.format("%d rays per vertex, mean occlusion %.3f", rays,
+          all > 0 ? 1 - open / all : 0);
+    }
+
+    public MeshData process(MeshData mesh) {
+      if (mesh.getMode() != GL2.GL_TRIANGLES || mesh.getNormals() == null
+          || mesh.getIndexCount() == 0)
+        return mesh;
+      float[] p = mesh.getPositions(), n = mesh.getNormals(), own = mesh.getColors();
+      float[] bounds = mesh.getBounds();
+      float dx = bounds[3] - bounds[0], dy = bounds[4] - bounds[1], dz = bounds[5] - bounds[2];
+      float diagonal = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+      float maxT = distance * diagonal;
+      float offset = 1e-5f * diagonal; // keeps rays off the triangles around their vertex
+      TriangleBVH bvh = new TriangleBVH(mesh);
+      int vertexCount = mesh.getVertexCount();
+      float[] colors = new float[vertexCount * 3];
+      IntStream.range(0, (vertexCount + BLOCK - 1) / BLOCK).parallel().forEach(block -> {
+        TriangleBVH.Hit scratch = new TriangleBVH.Hit();
+        int end = Math.min(vertexCount, (block + 1) * BLOCK);
+        for (int v = block * BLOCK; v < end; v++) {
+          float ao = visibility(bvh, p, n, v, maxT, offset, scratch);
+          for (int k = 0; k < 3; k++)
+            colors[v * 3 + k] = ao * (own != null ? own[v * 3 + k] : color[k]);
+        }
+      });
+      return new MeshData(GL2.GL_TRIANGLES, p, n, mesh.getTexCoords(), colors,
+          mesh.getIndices());
+    }
+
+    /** The fraction of the rays from vertex v that hit nothing within maxT. */
+    private float visibility(TriangleBVH bvh, float[] p, float[] n, int v, float maxT,
+        float offset, TriangleBVH.Hit scratch) {
+      float nx = n[v * 3], ny = n[v * 3 + 1], nz = n[v * 3 + 2];
+      // an orthonormal basis around the normal (Duff et al., "Building an Orthonormal Basis,
+      // Revisited")
+      float sign = nz >= 0 ? 1 : -1;
+      float a = -1 / (sign + nz), b = nx * ny * a;
+      float tx = 1 + sign * nx * nx * a, ty = sign * b, tz = -sign * nx;
+      float bx = b, by = sign + ny * ny * a, bz = -ny;
+      float ox = p[v * 3] + nx * offset, oy = p[v * 3 + 1] + ny * offset,
+          oz = p[v * 3 + 2] + nz * offset;
+      // a Hammersley set, rotated by an amount hashed from the vertex so neighbours differ
+      int hash = v * 0x9E3779B9;
+      hash ^= hash >>> 16;
+      float shift = (hash & 0xFFFF) / 65536f, turn = (hash >>> 16) / 65536f;
+      int open = 0;
+      for (int i = 0; i < rays; i++) {
+        float u1 = (i + shift) / rays;
+        float u2 = (Integer.reverse(i) >>> 8) * 0x1p-24f + turn;
+        u2 -= (int) u2;
+        float r = (float) Math.sqrt(u1), phi = (float) (2 * Math.PI) * u2;
+        float x = r * (float) Math.cos(phi), y = r * (float) Math.sin(phi);
+        float z = (float) Math.sqrt(Math.max(0, 1 - u1));
+        float rx = tx * x + bx * y + nx * z, ry = ty * x + by * y + ny * z,
+            rz = tz * x + bz * y + nz * z;
+        if (!bvh.occluded(ox, oy, oz, rx, ry, rz, maxT, scratch))
+          open++;
+      }
+      return (float) open / rays;
+    }
+  }
+
+  /**
+   * Reorders triangles so that consecutive triangles reuse vertices while they are still in the
+   * GPU's post-transform cache (the "Tipsify" algorithm of Sander, Nehab and Barczak), then
+   * renumbers the vertices in the order they are first used so vertex fetches are sequential.
+   */
+  public static class Optimize implements MeshPipeline.Stage {
+    static final int DEFAULT_CACHE_SIZE = 16;
+
+    private final int cacheSize;
+
+    Optimize(int cacheSize) {
+      this.cacheSize = cacheSize;
+    }
+
+    public String getName() {
+      return "optimize";
+    }
+
+    public String getSignature() {
+      return "optimize " + cacheSize;
+    }
+
+    public String describe(MeshData before, MeshData after) {
+      return String.format("ACMR %.3f -> %.3f", cacheMissRatio(before, cacheSize),
+          cacheMissRatio(after, cacheSize));
+    }
+
+    public MeshData process(MeshData mesh) {
+      if (mesh.getMode() != GL2.GL_TRIANGLES || mesh.getIndexCount() == 0)
+        return mesh;
+      int[] ordered = tipsify(mesh.getIndices(), mesh.getVertexCount(), cacheSize);
+      return reorderVertices(mesh, ordered);
+    }
+
+    /**
+     * Average number of vertices transformed per triangle with a FIFO cache of the given size.
+     * 0.5 is the best possible for a large regular mesh, 3 is the worst.
+     */
+    public static double cacheMissRatio(MeshData mesh, int cacheSize) {
+      int[] indices = mesh.getIndices();
+      if (indices.length < 3)
+        return 0;
+      int[] stamp = new int[mesh.getVertexCount()];
+      Arrays.fill(stamp, -cacheSize - 1);
+      int head = 0, misses = 0;
+      for (int index : indices) {
+        if (head - stamp[index] < cacheSize)
+          continue;
+        stamp[index] = head++;
+        misses++;
+      }
+      return (double) misses / (indices.length / 3);
+    }
+
+    private static int[] tipsify(int[] indices, int vertexCount, int cacheSize) {
+      int triangleCount = indices.length / 3;
+
+      // triangles around each vertex, as offsets into one array
+      int[] live = new int[vertexCount];
+      for (int index : indices)
+        live[index]++;
+      int[] offsets = new int[vertexCount + 1];
+      for (int v = 0; v < vertexCount; v++)
+        offsets[v + 1] = offsets[v] + live[v];
+      int[] adjacency = new int[indices.length];
+      int[] fill = Arrays.copyOf(offsets, vertexCount);
+      for (int t = 0; t < triangleCount; t++)
+        for (int k = 0; k < 3; k++)
+          adjacency[fill[indices[t * 3 + k]]++] = t;
+
+      int[] cacheTime = new int[vertexCount];
+      boolean[] emitted = new boolean[triangleCount];
+      int[] deadEnd = new int[indices.length];
+      int deadEndSize = 0;
+      int[] candidates = new int[indices.length];
+      int[] output = new int[indices.length];
+      int outputSize = 0;
+      int time = cacheSize + 1;
+      int cursor = 1;
+      int fanning = 0;
+
+      while (fanning >= 0) {
+        int candidateCount = 0;
+        for (int a = offsets[fanning]; a < offsets[fanning + 1]; a++) {
+          int t = adjacency[a];
+          if (emitted[t])
+            continue;
+          for (int k = 0; k < 3; k++) {
+            int v = indices[t * 3 + k];
+            output[outputSize++] = v;
+            deadEnd[deadEndSize++] = v;
+            candidates[candidateCount++] = v;
+            live[v]--;
+            if (time - cacheTime[v] > cacheSize)
+              cacheTime[v] = time++;
+          }
+          emitted[t] = true;
+        }
+
+        // next fanning vertex: the candidate that is most likely to still be in the cache
+        int best = -1, bestPriority = -1;
+        for (int c = 0; c < candidateCount; c++) {
+          int v = candidates[c];
+          if (live[v] <= 0)
+            continue;
+          int priority = 0;
+          if (time - cacheTime[v] + 2 * live[v] <= cacheSize)
+            priority = time - cacheTime[v];
+          if (priority > bestPriority) {
+            bestPriority = priority;
+            best = v;
+          }
+        }
+        if (best < 0) {
+          while (deadEndSize > 0 && best < 0) {
+            int v = deadEnd[--deadEndSize];
+            if (live[v] > 0)
+              best = v;
+          }
+        }
+        if (best < 0) {
+          while (cursor < vertexCount && live[cursor] <= 0)
+            cursor++;
+          best = cursor < vertexCount ? cursor : -1;
+        }
+        fanning = best;
+      }
+      return Arrays.copyOf(output, outputSize);
+    }
+
+    private static MeshData reorderVertices(MeshData mesh, int[] indices) {
+      int vertexCount = mesh.getVertexCount();
+      int[] newIndex = new int[vertexCount];
+      Arrays.fill(newIndex, -1);
+      int[] order = new int[vertexCount];
+      int next = 0;
+      int[] result = new int[indices.length];
+      for (int i = 0; i < indices.length; i++) {
+        int v = indices[i];
+        if (newIndex[v] < 0) {
+          newIndex[v] = next;
+          order[next++] = v;
+        }
+        result[i] = newIndex[v];
+      }
+      return new MeshData(GL2.GL_TRIANGLES, gather(mesh.getPositions(), order, next, 3),
+          gather(mesh.getNormals(), order, next, 3), gather(mesh.getTexCoords(), order, next, 2),
+          gather(mesh.getColors(), order, next, 3), result);
+    }
+  }
+
+  /** Copies the attribute of vertices order[0..count-1], size floats each, into a new array. */
+  static float[] gather(float[] attribute, int[] order, int count, int size) {
+    if (attribute == null)
+      return null;
+    float[] result = new float[count * size];
+    for (int i = 0; i < count; i++)
+      System.arraycopy(attribute, order[i] * size, result, i * size, size);
+    return result;
+  }
+
+}
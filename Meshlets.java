@@ -0,0 +1,311 @@
+import java.util.Arrays;
+
+import com.jogamp.opengl.GL2;
+
+/**
+ * Splits a triangle mesh into small clusters of triangles, meshlets, each stored as one range of
+ * the index buffer, with a bounding sphere and a cone that contains the normals of all its
+ * triangles. When the eye is far enough behind that cone every triangle of the cluster faces
+ * away, so the whole cluster can be skipped before the GPU transforms any of its vertices.
+ * <p>
+ * Clusters are grown from a seed triangle over shared vertices, preferring neighbours that add
+ * few new vertices and face the same way as the cluster so far, which keeps the cones narrow.
+ */
+public class Meshlets {
+
+  static final int DEFAULT_MAX_VERTICES = 64;
+  static final int DEFAULT_MAX_TRIANGLES = 124;
+
+  private static final int FIELDS = 10; // per cluster, see the constants below
+  private static final int CENTER = 0, RADIUS = 3, AXIS = 4, COS = 7, SIN = 8, COUNT = 9;
+
+  private final MeshData mesh;
+  private final float[] clusters; // x, y, z, radius, axis x, y, z, cos and sin of the cone, triangles
+  private final int[] firstIndex;
+  private final int clusterCount;
+
+  private int culledClusters, culledTriangles;
+  private int[] runFirst, runCount; // the visible runs of clusters, as index ranges, for draw
+
+  private Meshlets(MeshData mesh, float[] clusters, int[] firstIndex, int clusterCount) {
+    this.mesh = mesh;
+    this.clusters = clusters;
+    this.firstIndex = firstIndex;
+    this.clusterCount = clusterCount;
+  }
+
+  /**
+   * Partitions a GL_TRIANGLES mesh into clusters of at most maxVertices distinct vertices and
+   * maxTriangles triangles. The returned meshlets hold a copy of the mesh with its triangles
+   * reordered so each cluster is contiguous.
+   */
+  public static Meshlets build(MeshData mesh, int maxVertices, int maxTriangles) {
+    if (mesh.getMode() != GL2.GL_TRIANGLES)
+      throw new IllegalArgumentException("Meshlets need GL_TRIANGLES");
+    float[] p = mesh.getPositions();
+    int[] indices = mesh.getIndices();
+    int vertexCount = mesh.getVertexCount();
+    int triangleCount = indices.length / 3;
+
+    float[] normals = new float[triangleCount * 3];
+    for (int t = 0; t < triangleCount; t++) {
+      int a = indices[t * 3] * 3, b = indices[t * 3 + 1] * 3, c = indices[t * 3 + 2] * 3;
+      float ux = p[b] - p[a], uy = p[b + 1] - p[a + 1], uz = p[b + 2] - p[a + 2];
+      float vx = p[c] - p[a], vy = p[c + 1] - p[a + 1], vz = p[c + 2] - p[a + 2];
+      float nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+      float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+      if (length > 0) {
+        normals[t * 3] = nx / length;
+        normals[t * 3 + 1] = ny / length;
+        normals[t * 3 + 2] = nz / length;
+      }
+    }
+
+    // triangles around each vertex, as offsets into one array
+    int[] offsets = new int[vertexCount + 1];
+    for (int index : indices)
+      offsets[index + 1]++;
+    for (int v = 0; v < vertexCount; v++)
+      offsets[v + 1] += offsets[v];
+    int[] adjacency = new int[indices.length];
+    int[] fill = Arrays.copyOf(offsets, vertexCount);
+    for (int t = 0; t < triangleCount; t++)
+      for (int k = 0; k < 3; k++)
+        adjacency[fill[indices[t * 3 + k]]++] = t;
+
+    int[] order = new int[triangleCount]; // triangles, cluster by cluster
+    int ordered = 0;
+    boolean[] assigned = new boolean[triangleCount];
+    int[] vertexMark = new int[vertexCount]; // cluster number + 1 of the last cluster to use it
+    int[] frontierMark = new int[triangleCount];
+    int[] frontier = new int[Math.max(triangleCount, 1)];
+    int[] clusterTriangles = new int[triangleCount + 1];
+    int clusterCount = 0;
+    int seed = 0;
+
+    while (ordered < triangleCount) {
+      while (assigned[seed])
+        seed++;
+      int mark = clusterCount + 1;
+      int start = ordered;
+      int vertices = 0;
+      float sx = 0, sy = 0, sz = 0; // sum of the normals so far
+      int frontierSize = 0;
+      int next = seed;
+      while (next >= 0) {
+        int t = next;
+        assigned[t] = true;
+        order[ordered++] = t;
+        sx += normals[t * 3];
+        sy += normals[t * 3 + 1];
+        sz += normals[t * 3 + 2];
+        for (int k = 0; k < 3; k++) {
+          int v = indices[t * 3 + k];
+          if (vertexMark[v] != mark) {
+            vertexMark[v] = mark;
+            vertices++;
+          }
+          for (int a = offsets[v]; a < offsets[v + 1]; a++) {
+            int n = adjacency[a];
+            if (!assigned[n] && frontierMark[n] != mark) {
+              frontierMark[n] = mark;
+              frontier[frontierSize++] = n;
+            }
+          }
+        }
+        if (ordered - start >= maxTriangles)
+          break;
+
+        // best neighbour that still fits
+        float length = (float) Math.sqrt(sx * sx + sy * sy + sz * sz);
+        float ax = length > 0 ? sx / length : 0, ay = length > 0 ? sy / length : 0;
+        float az = length > 0 ? sz / length : 0;
+        next = -1;
+        float bestScore = Float.NEGATIVE_INFINITY;
+        int bestSlot = -1;
+        for (int f = 0; f < frontierSize; f++) {
+          int n = frontier[f];
+          if (assigned[n]) {
+            frontier[f--] = frontier[--frontierSize];
+            continue;
+          }
+          int added = 0;
+          for (int k = 0; k < 3; k++)
+            if (vertexMark[indices[n * 3 + k]] != mark)
+              added++;
+          if (vertices + added > maxVertices)
+            continue;
+          float score = (3 - added) * 0.5f + ax * normals[n * 3] + ay * normals[n * 3 + 1]
+              + az * normals[n * 3 + 2];
+          if (score > bestScore) {
+            bestScore = score;
+            bestSlot = f;
+          }
+        }
+        if (bestSlot >= 0) {
+          next = frontier[bestSlot];
+          frontier[bestSlot] = frontier[--frontierSize];
+        }
+      }
+      clusterTriangles[++clusterCount] = ordered;
+    }
+
+    int[] newIndices = new int[indices.length];
+    for (int i = 0; i < triangleCount; i++)
+      System.arraycopy(indices, order[i] * 3, newIndices, i * 3, 3);
+    MeshData clustered = new MeshData(GL2.GL_TRIANGLES, p, mesh.getNormals(), mesh.getTexCoords(),
+        mesh.getColors(), newIndices);
+
+    float[] clusters = new float[clusterCount * FIELDS];
+    int[] firstIndex = new int[clusterCount];
+    for (int c = 0; c < clusterCount; c++) {
+      firstIndex[c] = clusterTriangles[c] * 3;
+      bound(clusters, c * FIELDS, p, newIndices, normals, order, clusterTriangles[c],
+          clusterTriangles[c + 1]);
+    }
+    return new Meshlets(clustered, clusters, firstIndex, clusterCount);
+  }
+
+  /** Computes the sphere and normal cone of the triangles first to end-1 of the new order. */
+  private static void bound(float[] out, int o, float[] p, int[] indices, float[] normals,
+      int[] order, int first, int end) {
+    float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+    float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+    float sx = 0, sy = 0, sz = 0;
+    for (int t = first; t < end; t++) {
+      for (int k = 0; k < 3; k++) {
+        int v = indices[t * 3 + k] * 3;
+        minX = Math.min(minX, p[v]);
+        minY = Math.min(minY, p[v + 1]);
+        minZ = Math.min(minZ, p[v + 2]);
+        maxX = Math.max(maxX, p[v]);
+        maxY = Math.max(maxY, p[v + 1]);
+        maxZ = Math.max(maxZ, p[v + 2]);
+      }
+      int n = order[t] * 3;
+      sx += normals[n];
+      sy += normals[n + 1];
+      sz += normals[n + 2];
+    }
+    float cx = (minX + maxX) / 2, cy = (minY + maxY) / 2, cz = (minZ + maxZ) / 2;
+    float radius2 = 0;
+    for (int i = first * 3; i < end * 3; i++) {
+      int v = indices[i] * 3;
+      float dx = p[v] - cx, dy = p[v + 1] - cy, dz = p[v + 2] - cz;
+      radius2 = Math.max(radius2, dx * dx + dy * dy + dz * dz);
+    }
+    out[o + CENTER] = cx;
+    out[o + CENTER + 1] = cy;
+    out[o + CENTER + 2] = cz;
+    out[o + RADIUS] = (float) Math.sqrt(radius2);
+    out[o + COUNT] = end - first;
+
+    float length = (float) Math.sqrt(sx * sx + sy * sy + sz * sz);
+    if (length == 0) {
+      out[o + COS] = -1; // never culled
+      return;
+    }
+    float ax = sx / length, ay = sy / length, az = sz / length;
+    float minDot = 1;
+    for (int t = first; t < end; t++) {
+      int n = order[t] * 3;
+      minDot = Math.min(minDot, ax * normals[n] + ay * normals[n + 1] + az * normals[n + 2]);
+    }
+    out[o + AXIS] = ax;
+    out[o + AXIS + 1] = ay;
+    out[o + AXIS + 2] = az;
+    // a cone of 90 degrees or more can always be seen from somewhere in front
+    out[o + COS] = minDot > 0 ? minDot : -1;
+    out[o + SIN] = minDot > 0 ? (float) Math.sqrt(1 - minDot * minDot) : 0;
+  }
+
+  /** The mesh with its triangles in cluster order. */
+  public MeshData getMesh() {
+    return mesh;
+  }
+
+  public int getClusterCount() {
+    return clusterCount;
+  }
+
+  public int getFirstIndex(int cluster) {
+    return firstIndex[cluster];
+  }
+
+  public int getIndexCount(int cluster) {
+    return (int) clusters[cluster * FIELDS + COUNT] * 3;
+  }
+
+  /**
+   * True if every triangle of the cluster faces away from an eye at (x, y, z), in the same
+   * coordinates as the mesh. Each triangle's normal is within the cone's angle a of its axis, and
+   * each of its points within the sphere, so with the eye at angle b from the axis, seen from the
+   * center at distance d, all the triangles face away when d cos(a + b) is at least the radius.
+   */
+  public boolean isBackFacing(int cluster, float x, float y, float z) {
+    int o = cluster * FIELDS;
+    float cosA = clusters[o + COS];
+    if (cosA < 0)
+      return false;
+    float dx = clusters[o + CENTER] - x, dy = clusters[o + CENTER + 1] - y;
+    float dz = clusters[o + CENTER + 2] - z;
+    float d = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+    float radius = clusters[o + RADIUS];
+    if (d <= radius)
+      return false;
+    float cosB = (dx * clusters[o + AXIS] + dy * clusters[o + AXIS + 1] + dz * clusters[o + AXIS + 2]) / d;
+    if (cosB <= 0)
+      return false;
+    float sinB = (float) Math.sqrt(Math.max(0, 1 - cosB * cosB));
+    return cosA * cosB - clusters[o + SIN] * sinB >= radius / d;
+  }
+
+  /**
+   * Draws the clusters that are not back facing from the eye, merging runs of visible clusters
+   * into single index ranges and drawing all the ranges with one glMultiDrawElements call. The
+   * mesh must have been uploaded from getMesh and be bound. The
+   * numbers culled are available from getCulledClusters and getCulledTriangles until the next
+   * call.
+   */
+  public void draw(GL2 gl, GLMesh glMesh, float eyeX, float eyeY, float eyeZ) {
+    culledClusters = 0;
+    culledTriangles = 0;
+    if (runFirst == null) {
+      runFirst = new int[clusterCount];
+      runCount = new int[clusterCount];
+    }
+    int runs = 0;
+    boolean inRun = false;
+    for (int c = 0; c < clusterCount; c++) {
+      if (isBackFacing(c, eyeX, eyeY, eyeZ)) {
+        culledClusters++;
+        culledTriangles += (int) clusters[c * FIELDS + COUNT];
+        inRun = false;
+        continue;
+      }
+      if (!inRun) {
+        runFirst[runs] = firstIndex[c];
+        runCount[runs++] = 0;
+        inRun = true;
+      }
+      runCount[runs - 1] += getIndexCount(c);
+    }
+    glMesh.drawBoundRanges(gl, runFirst, runCount, runs);
+  }
+
+  public int getCulledClusters() {
+    return culledClusters;
+  }
+
+  public int getCulledTriangles() {
+    return culledTriangles;
+  }
+
+  @Override
+  public String toString() {
+    int triangles = mesh.getIndexCount() / 3;
+    return String.format("%d clusters, %.1f triangles each", clusterCount,
+        clusterCount == 0 ? 0.0 : (double) triangles / clusterCount);
+  }
+
+}
@@ -0,0 +1,333 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import com.jogamp.opengl.GL2;
+
+/**
+ * Reads Wavefront OBJ files: v, vt and vn lines, and f lines of any size, split into fans, with
+ * negative indices counted back from the end. Everything else, like groups and materials, is
+ * skipped. The file is read through one buffer and parsed byte by byte into growable primitive
+ * arrays, with no String or object per line, so big scans read at close to disk speed.
+ * <p>
+ * Face corners with the same position, texture coordinate and normal indices become one vertex.
+ * The mesh has normals or texture coordinates only if every corner has them.
+ */
+public class ObjReader implements MeshLoader {
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  @Override
+  public String getName() {
+    return "OBJ";
+  }
+
+  @Override
+  public List<String> getExtensions() {
+    return Arrays.asList("obj");
+  }
+
+  /** OBJ has no signature. */
+  @Override
+  public boolean matches(byte[] head, int length, long fileSize) {
+    return false;
+  }
+
+  @Override
+  public MeshData read(File file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      return new Parser(in, file).parse();
+    }
+  }
+
+  /** The state of reading one file. */
+  private static class Parser {
+    private final InputStream in;
+    private final File file;
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int pos, end, line;
+
+    private float[] v = new float[3 * 1024], vt = new float[2 * 1024], vn = new float[3 * 1024];
+    private int vCount, vtCount, vnCount;
+
+    // the distinct corners, position, texture coordinate and normal index each, -1 if missing
+    private int[] corners = new int[3 * 1024];
+    private int cornerCount;
+    private int[] table = new int[2048]; // corner + 1 by hash, 0 for empty
+    private boolean allTextured = true, allNormals = true;
+
+    private int[] indices = new int[3 * 1024];
+    private int indexCount;
+    private int[] face = new int[16];
+
+    Parser(InputStream in, File file) {
+      this.in = in;
+      this.file = file;
+    }
+
+    MeshData parse() throws IOException {
+      while (nextLine()) {
+        line++;
+        skipSpaces();
+        if (pos == end || buffer[pos] == '\n') {
+          skipLine(); // a blank line
+          continue;
+        }
+        byte c0 = buffer[pos], c1 = pos + 1 < end ? buffer[pos + 1] : 0;
+        if (c0 == 'v' && isSpace(c1)) {
+          pos++;
+          v = ensure(v, vCount * 3 + 3);
+          for (int i = 0; i < 3; i++)
+            v[vCount * 3 + i] = parseFloat();
+          vCount++;
+        } else if (c0 == 'v' && c1 == 't') {
+          pos += 2;
+          vt = ensure(vt, vtCount * 2 + 2);
+          vt[vtCount * 2] = parseFloat();
+          vt[vtCount * 2 + 1] = optionalFloat();
+          vtCount++;
+        } else if (c0 == 'v' && c1 == 'n') {
+          pos += 2;
+          vn = ensure(vn, vnCount * 3 + 3);
+          for (int i = 0; i < 3; i++)
+            vn[vnCount * 3 + i] = parseFloat();
+          vnCount++;
+        } else if (c0 == 'f' && isSpace(c1)) {
+          pos++;
+          parseFace();
+        }
+        skipLine();
+      }
+      return build();
+    }
+
+    private void parseFace() throws IOException {
+      int count = 0;
+      while (true) {
+        skipSpaces();
+        if (pos == end || buffer[pos] == '\n' || buffer[pos] == '\r' || buffer[pos] == '#')
+          break;
+        int p = index(parseInt(), vCount);
+        int t = -1, n = -1;
+        if (pos < end && buffer[pos] == '/') {
+          pos++;
+          if (pos < end && buffer[pos] != '/' && !isSpace(buffer[pos]))
+            t = index(parseInt(), vtCount);
+          if (pos < end && buffer[pos] == '/') {
+            pos++;
+            n = index(parseInt(), vnCount);
+          }
+        }
+        if (count == face.length)
+          face = Arrays.copyOf(face, count * 2);
+        face[count++] = corner(p, t, n);
+      }
+      if (count < 3)
+        throw error("face with fewer than 3 corners");
+      indices = ensure(indices, indexCount + (count - 2) * 3);
+      for (int i = 1; i + 1 < count; i++) {
+        indices[indexCount++] = face[0];
+        indices[indexCount++] = face[i];
+        indices[indexCount++] = face[i + 1];
+      }
+    }
+
+    /** A 1 based or negative OBJ index as a 0 based one. */
+    private int index(int index, int count) throws IOException {
+      int i = index < 0 ? count + index : index - 1;
+      if (i < 0 || i >= count)
+        throw error("index " + index + " out of range");
+      return i;
+    }
+
+    /** The vertex for a corner, added if it is new. */
+    private int corner(int p, int t, int n) {
+      if (t < 0)
+        allTextured = false;
+      if (n < 0)
+        allNormals = false;
+      int mask = table.length - 1;
+      int slot = (p * 73856093 ^ t * 19349663 ^ n * 83492791) & mask;
+      while (table[slot] != 0) {
+        int c = (table[slot] - 1) * 3;
+        if (corners[c] == p && corners[c + 1] == t && corners[c + 2] == n)
+          return table[slot] - 1;
+        slot = (slot + 1) & mask;
+      }
+      corners = ensure(corners, cornerCount * 3 + 3);
+      corners[cornerCount * 3] = p;
+      corners[cornerCount * 3 + 1] = t;
+      corners[cornerCount * 3 + 2] = n;
+      table[slot] = ++cornerCount;
+      if (cornerCount * 2 > table.length)
+        rehash();
+      return cornerCount - 1;
+    }
+
+    private void rehash() {
+      table = new int[table.length * 2];
+      int mask = table.length - 1;
+      for (int c = 0; c < cornerCount; c++) {
+        int slot = (corners[c * 3] * 73856093 ^ corners[c * 3 + 1] * 19349663
+            ^ corners[c * 3 + 2] * 83492791) & mask;
+        while (table[slot] != 0)
+          slot = (slot + 1) & mask;
+        table[slot] = c + 1;
+      }
+    }
+
+    private MeshData build() {
+      float[] positions = new float[cornerCount * 3];
+      float[] normals = allNormals && cornerCount > 0 ? new float[cornerCount * 3] : null;
+      float[] texCoords = allTextured && cornerCount > 0 ? new float[cornerCount * 2] : null;
+      for (int c = 0; c < cornerCount; c++) {
+        System.arraycopy(v, corners[c * 3] * 3, positions, c * 3, 3);
+        if (texCoords != null)
+          System.arraycopy(vt, corners[c * 3 + 1] * 2, texCoords, c * 2, 2);
+        if (normals != null)
+          System.arraycopy(vn, corners[c * 3 + 2] * 3, normals, c * 3, 3);
+      }
+      return new MeshData(GL2.GL_TRIANGLES, positions, normals, texCoords, null,
+          Arrays.copyOf(indices, indexCount));
+    }
+
+    // -------------------------------- bytes --------------------------------
+
+    /**
+     * Makes sure the whole of the next line, up to and including its '\n', is in the buffer from
+     * pos on, unless it is the last line and has none. False at the end of the file.
+     */
+    private boolean nextLine() throws IOException {
+      for (int i = pos; ; i++) {
+        if (i == end) {
+          if (pos > 0) { // move the start of the line to the front and read more after it
+            System.arraycopy(buffer, pos, buffer, 0, end - pos);
+            i -= pos;
+            end -= pos;
+            pos = 0;
+          }
+          if (end == buffer.length)
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+          int read = in.read(buffer, end, buffer.length - end);
+          if (read < 0)
+            return end > pos;
+          end += read;
+        }
+        if (buffer[i] == '\n')
+          return true;
+      }
+    }
+
+    private void skipLine() {
+      while (pos < end && buffer[pos++] != '\n') {
+      }
+    }
+
+    private void skipSpaces() {
+      while (pos < end && (buffer[pos] == ' ' || buffer[pos] == '\t'))
+        pos++;
+    }
+
+    private static boolean isSpace(byte c) {
+      return c == ' ' || c == '\t';
+    }
+
+    private int parseInt() throws IOException {
+      boolean negative = pos < end && buffer[pos] == '-';
+      if (negative)
+        pos++;
+      int start = pos, value = 0;
+      while (pos < end && buffer[pos] >= '0' && buffer[pos] <= '9')
+        value = value * 10 + buffer[pos++] - '0';
+      if (pos == start)
+        throw error("index expected");
+      return negative ? -value : value;
+    }
+
+    /** The next float on the line, or 0 if there is none, for the optional v of vt. */
+    private float optionalFloat() throws IOException {
+      skipSpaces();
+      if (pos == end || buffer[pos] == '\n' || buffer[pos] == '\r' || buffer[pos] == '#')
+        return 0;
+      return parseFloat();
+    }
+
+    /**
+     * Parses a decimal float like -1.25e-3 directly from the bytes. Numbers with more digits
+     * than a double holds exactly, and things like "nan", go through Float.parseFloat instead.
+     */
+    private float parseFloat() throws IOException {
+      skipSpaces();
+      int start = pos;
+      boolean negative = false;
+      if (pos < end && (buffer[pos] == '-' || buffer[pos] == '+'))
+        negative = buffer[pos++] == '-';
+      long mantissa = 0;
+      int digits = 0, exponent = 0;
+      while (pos < end && buffer[pos] >= '0' && buffer[pos] <= '9') {
+        mantissa = mantissa * 10 + buffer[pos++] - '0';
+        digits++;
+      }
+      if (pos < end && buffer[pos] == '.') {
+        pos++;
+        while (pos < end && buffer[pos] >= '0' && buffer[pos] <= '9') {
+          mantissa = mantissa * 10 + buffer[pos++] - '0';
+          digits++;
+          exponent--;
+        }
+      }
+      if (pos < end && (buffer[pos] == 'e' || buffer[pos] == 'E')) {
+        pos++;
+        boolean negativeExponent = false;
+        if (pos < end && (buffer[pos] == '-' || buffer[pos] == '+'))
+          negativeExponent = buffer[pos++] == '-';
+        int e = 0;
+        while (pos < end && buffer[pos] >= '0' && buffer[pos] <= '9')
+          e = e * 10 + buffer[pos++] - '0';
+        exponent += negativeExponent ? -e : e;
+      }
+      if (digits == 0 || digits > 15 || exponent < -22 || exponent > 22
+          || (pos < end && !isSpace(buffer[pos]) && buffer[pos] != '\n' && buffer[pos] != '\r'))
+        return slowFloat(start);
+      // mantissa and power are exact in a double, so this is rounded once, and again to float
+      double value = exponent < 0 ? mantissa / POWERS[-exponent] : mantissa * POWERS[exponent];
+      return (float) (negative ? -value : value);
+    }
+
+    private float slowFloat(int start) throws IOException {
+      pos = start;
+      while (pos < end && !isSpace(buffer[pos]) && buffer[pos] != '\n' && buffer[pos] != '\r')
+        pos++;
+      String text = new String(buffer, start, pos - start, "US-ASCII");
+      try {
+        return Float.parseFloat(text);
+      } catch (NumberFormatException e) {
+        throw error("number expected, found \"" + text + "\"");
+      }
+    }
+
+    private IOException error(String message) {
+      return new IOException("OBJ " + file + " line " + line + ": " + message);
+    }
+  }
+
+  private static final double[] POWERS = new double[23];
+
+  static {
+    POWERS[0] = 1;
+    for (int i = 1; i < POWERS.length; i++)
+      POWERS[i] = POWERS[i - 1] * 10;
+  }
+
+  private static float[] ensure(float[] array, int size) {
+    return size <= array.length ? array : Arrays.copyOf(array, Math.max(size, array.length * 2));
+  }
+
+  private static int[] ensure(int[] array, int size) {
+    return size <= array.length ? array : Arrays.copyOf(array, Math.max(size, array.length * 2));
+  }
+
+}
@@ -0,0 +1,515 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.math.FloatUtil;
+
+/**
+ * Occlusion culling on the CPU. A few large occluders, such as the walls of the room, are
+ * rasterized each frame into a small depth buffer, which is then reduced to a pyramid where each
+ * texel holds the farthest depth of the four below it. A bounding box is hidden if, at the
+ * finest pyramid level where it covers at most 8 by 8 texels, its nearest depth is behind all of
+ * them.
+ * Entirely GL-free, so it can be tested and timed without a GPU (see main).
+ * <p>
+ * The rasterizer is conservative: a pixel only receives an occluder's depth if the triangle
+ * covers all of it, and it gets the farthest depth of the triangle over the pixel. Occluders are
+ * back-face culled with the same counterclockwise rule as GL, so a wall only hides things from
+ * the side it is drawn from. The rows of the buffer are split into bands that are rasterized in
+ * parallel; each row of a triangle is one contiguous span with a linear depth, which the JIT can
+ * vectorize.
+ * <p>
+ * Occluders are grouped under keys, like the materials of StaticBatcher, so one group can be
+ * replaced or switched off without touching the others.
+ */
+public class OcclusionCuller {
+
+  private static final int BAND_HEIGHT = 8;
+  private static final int MAX_TEXELS = 8; // across a tested box, at the pyramid level used
+  private static final float NEAR_W = 1e-5f;
+
+  private static class Group {
+    float[] triangles = new float[0]; // world x, y, z of three vertices per triangle
+    byte[] shared = new byte[0]; // per triangle, bit k set if edge k to k+1 is shared
+    boolean enabled = true;
+  }
+
+  private final int width, height;
+  private final float[][] levels; // level 0 is the depth buffer, in window depth from 0 to 1
+  private final int[] levelWidth, levelHeight;
+  private final Map<Object, Group> groups = new LinkedHashMap<>();
+  private final float[] viewProjection = new float[16];
+  private final float[] boxMatrix = new float[16];
+  private final float[] corner = new float[4];
+  private boolean parallel = true;
+
+  // screen space triangles of the current frame, 10 floats each: x, y, z per vertex and the
+  // shared edge bits
+  private float[] screen = new float[0];
+  private int screenCount;
+
+  private long renderNanos;
+  private int tested, culled;
+
+  OcclusionCuller(int width, int height) {
+    this.width = width;
+    this.height = height;
+    int count = 1;
+    for (int w = width, h = height; w > 1 || h > 1; w = (w + 1) / 2, h = (h + 1) / 2)
+      count++;
+    levels = new float[count][];
+    levelWidth = new int[count];
+    levelHeight = new int[count];
+    for (int i = 0, w = width, h = height; i < count; i++, w = (w + 1) / 2, h = (h + 1) / 2) {
+      levels[i] = new float[w * h];
+      levelWidth[i] = w;
+      levelHeight[i] = h;
+    }
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public boolean isParallel() {
+    return parallel;
+  }
+
+  /** Whether bands of rows are rasterized on the common fork/join pool. The default is true. */
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+
+  /**
+   * Adds mesh, placed by the column-major transform, to the occluders of group. Triangle strips
+   * are unrolled with GL's winding rule; lines are ignored. Edges shared by two triangles of the
+   * mesh are not pulled in by the conservative rasterization, so that the mesh has no cracks.
+   */
+  public void addOccluder(Object group, MeshData mesh, float[] transform) {
+    Group g = groups.get(group);
+    if (g == null) {
+      g = new Group();
+      groups.put(group, g);
+    }
+    MeshData world = transform == null ? mesh : mesh.transform(transform);
+    float[] p = world.getPositions();
+    int[] indices = world.getIndices();
+    int[] corners = new int[world.getTriangleCount() * 3];
+    int n = 0;
+    if (world.getMode() == GL2.GL_TRIANGLES) {
+      n = Math.min(indices.length / 3 * 3, corners.length);
+      System.arraycopy(indices, 0, corners, 0, n);
+    } else if (world.getMode() == GL2.GL_TRIANGLE_STRIP) {
+      for (int i = 0; i + 2 < indices.length; i++) {
+        int a = indices[i], b = indices[i + 1], c = indices[i + 2];
+        if (a == b || b == c || a == c)
+          continue;
+        corners[n++] = (i & 1) == 0 ? a : b;
+        corners[n++] = (i & 1) == 0 ? b : a;
+        corners[n++] = c;
+      }
+    }
+    int count = n / 3;
+
+    // edges are matched by vertex position, to within 1e-4, since seams repeat vertices with
+    // other attributes and slightly different positions
+    int[] id = new int[world.getVertexCount()];
+    Map<List<Long>, Integer> ids = new HashMap<>();
+    for (int v = 0; v < id.length; v++) {
+      List<Long> key = Arrays.asList(Math.round(p[v * 3] * 1e4), Math.round(p[v * 3 + 1] * 1e4),
+          Math.round(p[v * 3 + 2] * 1e4));
+      Integer existing = ids.putIfAbsent(key, v);
+      id[v] = existing == null ? v : existing;
+    }
+    Set<Long> edges = new HashSet<>();
+    for (int i = 0; i < n; i++)
+      edges.add(edge(id[corners[i]], id[corners[i % 3 == 2 ? i - 2 : i + 1]]));
+    int old = g.shared.length;
+    g.triangles = Arrays.copyOf(g.triangles, (old + count) * 9);
+    g.shared = Arrays.copyOf(g.shared, old + count);
+    for (int t = 0; t < count; t++) {
+      for (int k = 0; k < 3; k++) {
+        int v = corners[t * 3 + k], next = corners[t * 3 + (k + 1) % 3];
+        System.arraycopy(p, v * 3, g.triangles, (old + t) * 9 + k * 3, 3);
+        if (edges.contains(edge(id[next], id[v])))
+          g.shared[old + t] |= 1 << k;
+      }
+    }
+  }
+
+  private static long edge(int from, int to) {
+    return (long) from << 32 | to & 0xFFFFFFFFL;
+  }
+
+  /** Removes every occluder of group. */
+  public void clear(Object group) {
+    groups.remove(group);
+  }
+
+  /** Switches the occluders of group on or off, for example while that geometry is hidden. */
+  public void setEnabled(Object group, boolean enabled) {
+    Group g = groups.get(group);
+    if (g != null)
+      g.enabled = enabled;
+  }
+
+  public int getOccluderTriangleCount() {
+    int count = 0;
+    for (Group g : groups.values())
+      if (g.enabled)
+        count += g.triangles.length / 9;
+    return count;
+  }
+
+  /**
+   * Rasterizes the enabled occluders as seen through the column-major view-projection matrix,
+   * for example from Camera.getViewProjectionMatrix, and builds the depth pyramid. Also resets
+   * the counts returned by getTested and getCulled.
+   */
+  public void render(double[] matrix) {
+    long start = System.nanoTime();
+    for (int i = 0; i < 16; i++)
+      viewProjection[i] = (float) matrix[i];
+    project();
+    if (parallel)
+      IntStream.range(0, (height + BAND_HEIGHT - 1) / BAND_HEIGHT).parallel().forEach(this::rasterizeBand);
+    else
+      for (int band = 0; band * BAND_HEIGHT < height; band++)
+        rasterizeBand(band);
+    buildPyramid();
+    renderNanos = System.nanoTime() - start;
+    tested = 0;
+    culled = 0;
+  }
+
+  /** Clips the occluders against the near plane and projects them to window coordinates. */
+  private void project() {
+    screenCount = 0;
+    float[] clip = new float[12]; // x, y, z, w of a triangle's vertices
+    float[] polygon = new float[16]; // up to four vertices after clipping
+    boolean[] polygonShared = new boolean[4]; // for the edge from each polygon vertex to the next
+    for (Group g : groups.values()) {
+      if (!g.enabled)
+        continue;
+      float[] t = g.triangles;
+      for (int i = 0; i < t.length; i += 9) {
+        for (int k = 0; k < 3; k++)
+          transform(viewProjection, t[i + k * 3], t[i + k * 3 + 1], t[i + k * 3 + 2], clip, k * 4);
+        int vertices = clipNear(clip, g.shared[i / 9], polygon, polygonShared);
+        // a fan; the diagonals inside the polygon count as shared edges
+        for (int k = 1; k + 1 < vertices; k++) {
+          int bits = (k > 1 || polygonShared[0] ? 1 : 0) | (polygonShared[k] ? 2 : 0)
+              | (k + 2 < vertices || polygonShared[k + 1] ? 4 : 0);
+          addScreenTriangle(polygon, 0, k * 4, (k + 1) * 4, bits);
+        }
+      }
+    }
+  }
+
+  private static void transform(float[] m, float x, float y, float z, float[] out, int o) {
+    out[o] = m[0] * x + m[4] * y + m[8] * z + m[12];
+    out[o + 1] = m[1] * x + m[5] * y + m[9] * z + m[13];
+    out[o + 2] = m[2] * x + m[6] * y + m[10] * z + m[14];
+    out[o + 3] = m[3] * x + m[7] * y + m[11] * z + m[15];
+  }
+
+  /**
+   * Clips a clip-space triangle to z >= -w, returning the number of polygon vertices. The shared
+   * bits of the triangle's edges are carried over to the polygon's edges; the edge made by the
+   * near plane is not shared.
+   */
+  private static int clipNear(float[] clip, int shared, float[] polygon, boolean[] polygonShared) {
+    int count = 0;
+    for (int k = 0; k < 3; k++) {
+      int a = k * 4, b = ((k + 1) % 3) * 4;
+      float da = clip[a + 2] + clip[a + 3], db = clip[b + 2] + clip[b + 3];
+      boolean edgeShared = (shared & 1 << k) != 0;
+      if (da >= 0) {
+        System.arraycopy(clip, a, polygon, count * 4, 4);
+        polygonShared[count++] = edgeShared;
+      }
+      if ((da >= 0) != (db >= 0)) {
+        float s = da / (da - db);
+        for (int c = 0; c < 4; c++)
+          polygon[count * 4 + c] = clip[a + c] + s * (clip[b + c] - clip[a + c]);
+        polygonShared[count++] = da < 0 && edgeShared; // entering, so it continues along edge k
+      }
+    }
+    return count;
+  }
+
+  private void addScreenTriangle(float[] polygon, int a, int b, int c, int shared) {
+    if (polygon[a + 3] < NEAR_W || polygon[b + 3] < NEAR_W || polygon[c + 3] < NEAR_W)
+      return;
+    if (screen.length < (screenCount + 1) * 10)
+      screen = Arrays.copyOf(screen, Math.max(screen.length * 2, 10 * 64));
+    int o = screenCount * 10;
+    screen[o + 9] = shared;
+    for (int k = 0; k < 3; k++) {
+      int v = k == 0 ? a : k == 1 ? b : c;
+      float w = polygon[v + 3];
+      screen[o + k * 3] = (polygon[v] / w * 0.5f + 0.5f) * width;
+      screen[o + k * 3 + 1] = (polygon[v + 1] / w * 0.5f + 0.5f) * height;
+      screen[o + k * 3 + 2] = polygon[v + 2] / w * 0.5f + 0.5f;
+    }
+    float area = (screen[o + 3] - screen[o]) * (screen[o + 7] - screen[o + 1])
+        - (screen[o + 6] - screen[o]) * (screen[o + 4] - screen[o + 1]);
+    if (area > 0) // counterclockwise, so front facing
+      screenCount++;
+  }
+
+  /** Clears and rasterizes rows band * BAND_HEIGHT up to the next band. */
+  private void rasterizeBand(int band) {
+    float[] depth = levels[0];
+    int rowStart = band * BAND_HEIGHT, rowEnd = Math.min(rowStart + BAND_HEIGHT, height);
+    Arrays.fill(depth, rowStart * width, rowEnd * width, 1);
+    for (int t = 0; t < screenCount; t++) {
+      int o = t * 10;
+      int shared = (int) screen[o + 9];
+      float x0 = screen[o], y0 = screen[o + 1], z0 = screen[o + 2];
+      float x1 = screen[o + 3], y1 = screen[o + 4], z1 = screen[o + 5];
+      float x2 = screen[o + 6], y2 = screen[o + 7], z2 = screen[o + 8];
+      int top = Math.max(rowStart, (int) Math.floor(Math.min(y0, Math.min(y1, y2))));
+      int bottom = Math.min(rowEnd - 1, (int) Math.ceil(Math.max(y0, Math.max(y1, y2))) - 1);
+      if (top > bottom)
+        continue;
+
+      // edge functions a * x + b * y + c, positive inside a counterclockwise triangle; outer edges
+      // are pushed in by half a pixel's extent so that only fully covered pixels pass at their
+      // centers, and shared edges out by a little so neighbours leave no gap
+      float a0 = y0 - y1, b0 = x1 - x0, c0 = x0 * y1 - x1 * y0;
+      float a1 = y1 - y2, b1 = x2 - x1, c1 = x1 * y2 - x2 * y1;
+      float a2 = y2 - y0, b2 = x0 - x2, c2 = x2 * y0 - x0 * y2;
+      c0 += (Math.abs(a0) + Math.abs(b0)) * ((shared & 1) != 0 ? 1e-3f : -0.5f);
+      c1 += (Math.abs(a1) + Math.abs(b1)) * ((shared & 2) != 0 ? 1e-3f : -0.5f);
+      c2 += (Math.abs(a2) + Math.abs(b2)) * ((shared & 4) != 0 ? 1e-3f : -0.5f);
+
+      // depth plane, moved to the farthest point of each pixel but not past the triangle
+      float area = a0 * x2 + b0 * y2 + (x0 * y1 - x1 * y0);
+      float dzdx = ((z1 - z0) * (y2 - y0) - (z2 - z0) * (y1 - y0)) / area;
+      float dzdy = ((z2 - z0) * (x1 - x0) - (z1 - z0) * (x2 - x0)) / area;
+      float zOffset = (Math.abs(dzdx) + Math.abs(dzdy)) / 2;
+      float zMax = Math.max(z0, Math.max(z1, z2));
+
+      for (int y = top; y <= bottom; y++) {
+        float cy = y + 0.5f;
+        float left = 0, right = width; // the span of pixel centers x + 0.5 inside all edges
+        boolean empty = false;
+        for (int e = 0; e < 3 && !empty; e++) {
+          float a = e == 0 ? a0 : e == 1 ? a1 : a2;
+          float r = (e == 0 ? b0 : e == 1 ? b1 : b2) * cy + (e == 0 ? c0 : e == 1 ? c1 : c2);
+          if (a > 0)
+            left = Math.max(left, -r / a);
+          else if (a < 0)
+            right = Math.min(right, -r / a);
+          else if (r < 0)
+            empty = true;
+        }
+        if (empty)
+          continue;
+        int xStart = Math.max(0, (int) Math.ceil(left - 0.5f));
+        int xEnd = Math.min(width - 1, (int) Math.floor(right - 0.5f));
+        if (xStart > xEnd)
+          continue;
+        int row = y * width;
+        float z = z0 + dzdx * (xStart + 0.5f - x0) + dzdy * (cy - y0) + zOffset;
+        for (int x = xStart; x <= xEnd; x++) {
+          float d = Math.min(z, zMax);
+          if (d < depth[row + x])
+            depth[row + x] = d;
+          z += dzdx;
+        }
+      }
+    }
+  }
+
+  private void buildPyramid() {
+    for (int level = 1; level < levels.length; level++) {
+      float[] src = levels[level - 1], dst = levels[level];
+      int sw = levelWidth[level - 1], sh = levelHeight[level - 1];
+      int dw = levelWidth[level], dh = levelHeight[level];
+      for (int y = 0; y < dh; y++) {
+        int y0 = y * 2, y1 = Math.min(y0 + 1, sh - 1);
+        for (int x = 0; x < dw; x++) {
+          int x0 = x * 2, x1 = Math.min(x0 + 1, sw - 1);
+          dst[y * dw + x] = Math.max(Math.max(src[y0 * sw + x0], src[y0 * sw + x1]),
+              Math.max(src[y1 * sw + x0], src[y1 * sw + x1]));
+        }
+      }
+    }
+  }
+
+  /**
+   * True unless the box from min to max, placed by the column-major transform (or in world
+   * coordinates if transform is null), is certainly hidden behind the occluders. Boxes that
+   * cross the near plane or lie off screen are reported visible; frustum culling is not done
+   * here.
+   */
+  public boolean isVisible(float[] min, float[] max, float[] transform) {
+    tested++;
+    float[] m = viewProjection;
+    if (transform != null) {
+      m = boxMatrix;
+      for (int c = 0; c < 4; c++)
+        for (int r = 0; r < 4; r++)
+          m[c * 4 + r] = viewProjection[r] * transform[c * 4] + viewProjection[4 + r] * transform[c * 4 + 1]
+              + viewProjection[8 + r] * transform[c * 4 + 2] + viewProjection[12 + r] * transform[c * 4 + 3];
+    }
+    float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+    float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+    float[] clip = corner;
+    for (int k = 0; k < 8; k++) {
+      transform(m, (k & 1) == 0 ? min[0] : max[0], (k & 2) == 0 ? min[1] : max[1],
+          (k & 4) == 0 ? min[2] : max[2], clip, 0);
+      if (clip[3] < NEAR_W || clip[2] < -clip[3])
+        return true;
+      float x = (clip[0] / clip[3] * 0.5f + 0.5f) * width;
+      float y = (clip[1] / clip[3] * 0.5f + 0.5f) * height;
+      minX = Math.min(minX, x);
+      maxX = Math.max(maxX, x);
+      minY = Math.min(minY, y);
+      maxY = Math.max(maxY, y);
+      minZ = Math.min(minZ, clip[2] / clip[3] * 0.5f + 0.5f);
+    }
+    int px0 = Math.max(0, (int) Math.floor(minX)), px1 = Math.min(width - 1, (int) Math.floor(maxX));
+    int py0 = Math.max(0, (int) Math.floor(minY)), py1 = Math.min(height - 1, (int) Math.floor(maxY));
+    if (px0 > px1 || py0 > py1)
+      return true;
+
+    // the finest level where the box spans at most MAX_TEXELS texels each way
+    int level = 0;
+    while (level < levels.length - 1 && ((px1 >> level) - (px0 >> level) >= MAX_TEXELS
+        || (py1 >> level) - (py0 >> level) >= MAX_TEXELS))
+      level++;
+    float[] depth = levels[level];
+    int w = levelWidth[level];
+    for (int y = py0 >> level; y <= py1 >> level; y++)
+      for (int x = px0 >> level; x <= px1 >> level; x++)
+        if (minZ <= depth[y * w + x])
+          return true;
+    culled++;
+    return false;
+  }
+
+  /** The depth buffer, width by height, bottom row first, 1 where no occluder was drawn. */
+  public float[] getDepthBuffer() {
+    return levels[0];
+  }
+
+  /** Time taken by the last render, in nanoseconds. */
+  public long getRenderNanos() {
+    return renderNanos;
+  }
+
+  /** Boxes tested since the last render. */
+  public int getTested() {
+    return tested;
+  }
+
+  /** Boxes found hidden since the last render. */
+  public int getCulled() {
+    return culled;
+  }
+
+  /**
+   * Checks the culler on the room from SandBox, a wall in front of some boxes, and times it.
+   * Needs no GPU. Usage: java OcclusionCuller [width height]
+   */
+  public static void main(String[] args) {
+    int width = args.length > 1 ? Integer.parseInt(args[0]) : 256;
+    int height = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+    OcclusionCuller culler = new OcclusionCuller(width, height);
+    Camera camera = new Camera();
+    camera.lookAt(0, 2, 30, 0, 0, 0, 0, 1, 0);
+    camera.setLimits(-15, 15, -15, 15, -120, 30);
+    camera.reshape(0, 0, 1280, 720);
+    double[] viewProjection = camera.getViewProjectionMatrix(new double[16]);
+
+    // a wall at z = 10 facing the camera, made of a strip
+    float[] m = FloatUtil.makeTranslation(new float[16], true, 0, 0, 10);
+    float[] r = new float[16], tmp = new float[3];
+    FloatUtil.multMatrix(m, FloatUtil.makeRotationAxis(r, 0, FloatUtil.HALF_PI, 1, 0, 0, tmp));
+    culler.addOccluder("wall", GridMesh.create(8, 8, 1, 1, 1, 1), m);
+    culler.render(viewProjection);
+
+    float[][] boxes = { // min, max
+        {-1, -1, -1, 1, 1, 1}, // straight behind the wall
+        {-1, -1, 12, 1, 1, 13}, // in front of the wall
+        {6, -1, -1, 8, 1, 1}, // beside it
+        {-6, -6, 8, 6, 6, 9}, // behind it but larger
+        {-3.5f, -1, 5, -2, 1, 6}, // behind, near the edge
+    };
+    boolean[] expected = {false, true, true, true, false};
+    int failures = 0;
+    for (int i = 0; i < boxes.length; i++) {
+      float[] b = boxes[i];
+      boolean visible = culler.isVisible(new float[] {b[0], b[1], b[2]},
+          new float[] {b[3], b[4], b[5]}, null);
+      if (visible != expected[i])
+        failures++;
+      System.out.printf("box %d: %s, expected %s%n", i, visible ? "visible" : "hidden",
+          expected[i] ? "visible" : "hidden");
+    }
+
+    // seen from the other side the wall faces away and hides nothing
+    camera.lookAt(0, 2, -30, 0, 0, 0, 0, 1, 0);
+    culler.render(camera.getViewProjectionMatrix(viewProjection));
+    boolean fromBehind = culler.isVisible(new float[] {-1, -1, 12}, new float[] {1, 1, 13}, null);
+    if (!fromBehind)
+      failures++;
+    System.out.println("from behind: " + (fromBehind ? "visible" : "hidden") + ", expected visible");
+
+    // the room and base of SandBox, seen from inside the room
+    culler.clear("wall");
+    float[][] walls = { // translation, rotation angle and axis, size
+        {0, -5, 0, 0, 1, 0, 0, 30, 30}, {0, 0, -15, FloatUtil.HALF_PI, 1, 0, 0, 30, 10},
+        {-15, 0, 0, -FloatUtil.HALF_PI, 0, 0, 1, 10, 30}, {15, 0, 0, FloatUtil.HALF_PI, 0, 0, 1, 10, 30},
+        {0, 0, 15, -FloatUtil.HALF_PI, 1, 0, 0, 30, 10}};
+    for (float[] w : walls) {
+      FloatUtil.makeTranslation(m, true, w[0], w[1], w[2]);
+      FloatUtil.multMatrix(m, FloatUtil.makeRotationAxis(r, 0, w[3], w[4], w[5], w[6], tmp));
+      culler.addOccluder("room", GridMesh.create(w[7], w[8], 1, 1, 1, 1), m);
+    }
+    FloatUtil.makeTranslation(m, true, 0, -5, 0);
+    FloatUtil.multMatrix(m, FloatUtil.makeRotationAxis(r, 0, -FloatUtil.HALF_PI, 1, 0, 0, tmp));
+    FloatUtil.multMatrix(m, FloatUtil.makeScale(r, true, 10, 10, 0.5F));
+    culler.addOccluder("base", ProceduralMesh.cylinder(64, false), m);
+    camera.lookAt(1, -12, 2, 0, 0, 0, 0, 0, -1); // below the base, looking up at the model
+    culler.render(camera.getViewProjectionMatrix(viewProjection));
+    boolean aboveBase = culler.isVisible(new float[] {-2, -3, -2}, new float[] {2, 1, 2}, null);
+    System.out.println("model above the base, seen from below: " + (aboveBase ? "visible" : "hidden")
+        + ", expected hidden");
+    if (aboveBase)
+      failures++;
+    System.out.println(failures == 0 ? "all as expected" : failures + " failures");
+    camera.lookAt(5, 3, 12, 0, 0, 0, 0, 1, 0);
+    camera.getViewProjectionMatrix(viewProjection);
+    for (boolean p : new boolean[] {false, true}) {
+      culler.setParallel(p);
+      for (int i = 0; i < 200; i++) // warm up
+        culler.render(viewProjection);
+      int runs = 1000;
+      long start = System.nanoTime();
+      for (int i = 0; i < runs; i++)
+        culler.render(viewProjection);
+      double ms = (System.nanoTime() - start) / 1e6 / runs;
+      start = System.nanoTime();
+      for (int i = 0; i < runs; i++)
+        culler.isVisible(new float[] {-1, -1, -1}, new float[] {1, 1, 1}, null);
+      double testMicros = (System.nanoTime() - start) / 1e3 / runs;
+      System.out.printf("%s: %d occluder triangles at %dx%d, %.3f ms per render, %.3f us per box%n",
+          p ? "parallel" : "serial", culler.getOccluderTriangleCount(), width, height, ms, testMicros);
+    }
+  }
+
+}
@@ -0,0 +1,865 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.math.FloatUtil;
+
+/**
+ * A triangle mesh too big for the heap or the GPU, drawn from a file made by build. build reads
+ * an ASCII PLY file in one pass, keeping vertices and faces in memory-mapped scratch files, and
+ * splits the triangles into spatially coherent chunks along an octree until each chunk has at
+ * most a given number of triangles. Every chunk is stored at LOD_COUNT levels of detail, the
+ * full chunk and coarser copies made by clustering its vertices on a grid that doubles in size
+ * with each level, as quantized vertices ready for GLMesh.
+ * <p>
+ * At draw time the chunks are culled against the view frustum, and each gets the coarsest level
+ * whose error is under a pixel on screen. Levels are mapped from the file on a worker thread
+ * and uploaded on the GL thread, a few megabytes per frame, under a fixed budget of GPU memory;
+ * the least recently drawn levels are deleted to make room. Until a level arrives the nearest
+ * one already on the GPU is drawn, and the coarsest level of every chunk is always kept. The
+ * camera's motion over the last frame is extrapolated to load what will be needed next.
+ * <p>
+ * Vertices at the coarser levels snap to the centers of a grid shared by all chunks, so
+ * neighboring chunks at the same level meet without cracks; neighbors at different levels can
+ * leave hairline gaps.
+ */
+public class OutOfCoreMesh implements Closeable {
+
+  /** Levels of detail per chunk, level 0 being the full mesh. */
+  public static final int LOD_COUNT = 5;
+  public static final int DEFAULT_MAX_TRIANGLES = 32768;
+
+  private static final int MAGIC = 0x4F4F434D; // "OOCM"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 4 * 6 + 4 * 6;
+  private static final int LOD_RECORD_BYTES = 8 + 4 + 4 + 4; // offset, vertices, indices, error
+  private static final int CHUNK_RECORD_BYTES = 4 * 6 + 4 * 16 + LOD_COUNT * LOD_RECORD_BYTES;
+  private static final int MAX_GRID = 128; // cells per axis of the grid chunks are made from
+  private static final float PIXEL_TOLERANCE = 1; // default largest error allowed on screen
+  private static final long UPLOAD_BYTES_PER_FRAME = 8 << 20;
+  private static final int MAX_PENDING = 32; // levels being mapped at once
+  private static final int PREFETCH_FRAMES = 15; // how far ahead the camera motion is followed
+
+  // from the file
+  private final FileChannel channel;
+  private final RandomAccessFile file;
+  private final int chunkCount;
+  private final long triangleCount;
+  private final float[] min = new float[3], max = new float[3];
+  private final float[] chunkBounds; // min x, y, z, max x, y, z per chunk
+  private final float[][] decode; // per chunk
+  private final long[] lodOffset; // per chunk and level, chunk * LOD_COUNT + level
+  private final int[] lodVertices, lodIndices;
+  private final float[] lodError;
+
+  // residency
+  private final long budget;
+  private final GLMesh[] resident;
+  private final long[] lastUsed; // frame each level was last wanted or drawn
+  private final Map<Integer, Future<MappedByteBuffer>> pending = new HashMap<>();
+  private final ExecutorService workers;
+  private final BoundsTree<Integer> chunkTree = new BoundsTree<>(0);
+  private boolean pinned; // the coarsest levels have been uploaded
+  private long residentBytes;
+  private long frame;
+
+  // per frame
+  private final List<Integer> visible = new ArrayList<>();
+  private final List<Integer> predictedVisible = new ArrayList<>();
+  private final double[] previous = new double[16];
+  private final double[] predicted = new double[16];
+  private final float[] modelview = new float[16], projection = new float[16], mvp = new float[16];
+  private final double[] mvpd = new double[16];
+  private final int[] viewport = new int[4];
+  private int drawnChunks, drawnTriangles;
+  private long uploads, evictions;
+  private float pixelTolerance = PIXEL_TOLERANCE;
+
+  /**
+   * Opens a file made by build and reads its chunk table; the chunks themselves are read when
+   * they are first drawn. At most budget bytes of GPU memory are used for them, except that the
+   * coarsest level of every chunk is kept even if that alone is over budget.
+   */
+  OutOfCoreMesh(File path, long budget) throws IOException {
+    this.budget = budget;
+    file = new RandomAccessFile(path, "r");
+    channel = file.getChannel();
+    try {
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES)
+          .order(ByteOrder.nativeOrder());
+      int magic = header.getInt();
+      if (magic == Integer.reverseBytes(MAGIC))
+        throw new IOException(path + " was made on a machine with the other byte order");
+      if (magic != MAGIC || header.getInt() != VERSION || header.getInt() != LOD_COUNT)
+        throw new IOException(path + " is not an out-of-core mesh of this version");
+      chunkCount = header.getInt();
+      triangleCount = header.getLong();
+      for (int k = 0; k < 3; k++)
+        min[k] = header.getFloat();
+      for (int k = 0; k < 3; k++)
+        max[k] = header.getFloat();
+
+      ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES,
+          (long) chunkCount * CHUNK_RECORD_BYTES).order(ByteOrder.nativeOrder());
+      chunkBounds = new float[chunkCount * 6];
+      decode = new float[chunkCount][16];
+      lodOffset = new long[chunkCount * LOD_COUNT];
+      lodVertices = new int[chunkCount * LOD_COUNT];
+      lodIndices = new int[chunkCount * LOD_COUNT];
+      lodError = new float[chunkCount * LOD_COUNT];
+      float[] chunkMin = new float[3], chunkMax = new float[3];
+      for (int c = 0; c < chunkCount; c++) {
+        for (int k = 0; k < 6; k++)
+          chunkBounds[c * 6 + k] = table.getFloat();
+        for (int k = 0; k < 16; k++)
+          decode[c][k] = table.getFloat();
+        for (int l = 0; l < LOD_COUNT; l++) {
+          int b = c * LOD_COUNT + l;
+          lodOffset[b] = table.getLong();
+          lodVertices[b] = table.getInt();
+          lodIndices[b] = table.getInt();
+          lodError[b] = table.getFloat();
+        }
+        System.arraycopy(chunkBounds, c * 6, chunkMin, 0, 3);
+        System.arraycopy(chunkBounds, c * 6 + 3, chunkMax, 0, 3);
+        chunkTree.insert(chunkMin, chunkMax, c);
+      }
+    } catch (IOException | RuntimeException e) {
+      file.close();
+      throw e;
+    }
+    resident = new GLMesh[chunkCount * LOD_COUNT];
+    lastUsed = new long[chunkCount * LOD_COUNT];
+    workers = Executors.newFixedThreadPool(2, runnable -> {
+      Thread thread = new Thread(runnable, "mesh streamer");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public float[] getMin() {
+    return min.clone();
+  }
+
+  public float[] getMax() {
+    return max.clone();
+  }
+
+  public int getChunkCount() {
+    return chunkCount;
+  }
+
+  /** Triangles in the full mesh. */
+  public long getTriangleCount() {
+    return triangleCount;
+  }
+
+  /** Chunks drawn in the last frame. */
+  public int getDrawnChunks() {
+    return drawnChunks;
+  }
+
+  public int getDrawnTriangles() {
+    return drawnTriangles;
+  }
+
+  /** GPU memory used by the levels that are loaded. */
+  public long getResidentBytes() {
+    return residentBytes;
+  }
+
+  public long getBudget() {
+    return budget;
+  }
+
+  /**
+   * Sets the largest error, in pixels, that a chunk's level of detail may show. Higher values
+   * bias the choice towards coarser levels, drawing fewer triangles.
+   */
+  public void setPixelTolerance(float pixels) {
+    pixelTolerance = pixels;
+  }
+
+  public float getPixelTolerance() {
+    return pixelTolerance;
+  }
+
+  /** Levels being read from the file. */
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Draws the mesh with the current modelview and projection matrices and viewport, which are
+   * read back from GL.
+   */
+  public void draw(GL2 gl) {
+    gl.glGetFloatv(GL2.GL_MODELVIEW_MATRIX, modelview, 0);
+    gl.glGetFloatv(GL2.GL_PROJECTION_MATRIX, projection, 0);
+    gl.glGetIntegerv(GL2.GL_VIEWPORT, viewport, 0);
+    FloatUtil.multMatrix(projection, modelview, mvp);
+    for (int i = 0; i < 16; i++)
+      mvpd[i] = mvp[i];
+    draw(gl, mvpd, viewport[3]);
+  }
+
+  /**
+   * Draws the mesh for one frame. modelViewProjection is the column-major matrix from mesh
+   * coordinates to clip coordinates, and viewportHeight is in pixels. Loads the levels this view
+   * and the one the camera is heading for need, and draws the best of what is loaded.
+   */
+  public void draw(GL2 gl, double[] modelViewProjection, int viewportHeight) {
+    frame++;
+    if (!pinned)
+      pinCoarsest(gl);
+
+    // choose a level for each chunk in view, nearest chunks first so they load first
+    visible.clear();
+    chunkTree.queryFrustum(modelViewProjection, visible);
+    visible.sort((a, b) -> Float.compare(nearestW(a, modelViewProjection), nearestW(b, modelViewProjection)));
+    int[] wanted = new int[visible.size()];
+    for (int i = 0; i < wanted.length; i++) {
+      int c = visible.get(i);
+      wanted[i] = c * LOD_COUNT + selectLod(c, modelViewProjection, viewportHeight);
+      lastUsed[nearestResident(wanted[i])] = frame; // the level drawn until the wanted one is in
+    }
+
+    // ask for what is missing, nearest first, as far as the budget can make room for it
+    long room = budget - residentBytes;
+    for (int b = 0; b < resident.length; b++)
+      if (resident[b] != null && b % LOD_COUNT != LOD_COUNT - 1 && lastUsed[b] < frame)
+        room += resident[b].getByteSize();
+    for (int block : pending.keySet())
+      room -= blockBytes(block);
+    for (int block : wanted)
+      room = request(block, room);
+
+    // follow the camera: where it will be if it keeps moving as it did over the last frame
+    boolean moving = false;
+    for (int i = 0; i < 16; i++) {
+      predicted[i] = modelViewProjection[i] + PREFETCH_FRAMES * (modelViewProjection[i] - previous[i]);
+      moving |= modelViewProjection[i] != previous[i];
+    }
+    System.arraycopy(modelViewProjection, 0, previous, 0, 16);
+    if (moving && frame > 1) {
+      predictedVisible.clear();
+      chunkTree.queryFrustum(predicted, predictedVisible);
+      for (int c : predictedVisible) {
+        int block = c * LOD_COUNT + selectLod(c, predicted, viewportHeight);
+        room = request(block, room);
+      }
+    }
+
+    uploadFinished(gl);
+
+    drawnChunks = 0;
+    drawnTriangles = 0;
+    for (int block : wanted) {
+      int shown = nearestResident(block);
+      GLMesh mesh = resident[shown];
+      if (mesh == null || mesh.getIndexCount() == 0)
+        continue;
+      gl.glPushMatrix();
+      gl.glMultMatrixf(decode[block / LOD_COUNT], 0);
+      mesh.draw(gl);
+      gl.glPopMatrix();
+      drawnChunks++;
+      drawnTriangles += mesh.getIndexCount() / 3;
+    }
+  }
+
+  /** The smallest clip w over the chunk's box, its distance along the view direction. */
+  private float nearestW(int c, double[] m) {
+    double w = m[15];
+    for (int k = 0; k < 3; k++)
+      w += Math.min(m[4 * k + 3] * chunkBounds[c * 6 + k], m[4 * k + 3] * chunkBounds[c * 6 + 3 + k]);
+    return (float) w;
+  }
+
+  /** The coarsest level of chunk c whose error covers at most pixelTolerance pixels. */
+  private int selectLod(int c, double[] m, int viewportHeight) {
+    // pixels per mesh unit at w = 1, from the length of the matrix's y row
+    double pixels = Math.sqrt(m[1] * m[1] + m[5] * m[5] + m[9] * m[9]) * viewportHeight / 2;
+    float w = nearestW(c, m);
+    if (w <= 1e-6f)
+      return 0; // the eye is inside or beside the chunk
+    for (int l = LOD_COUNT - 1; l > 0; l--)
+      if (lodError[c * LOD_COUNT + l] * pixels / w <= pixelTolerance)
+        return l;
+    return 0;
+  }
+
+  /** The loaded level of the chunk closest to the one wanted, preferring coarser ones. */
+  private int nearestResident(int block) {
+    int chunk = block / LOD_COUNT * LOD_COUNT;
+    for (int l = block - chunk; l < LOD_COUNT; l++)
+      if (resident[chunk + l] != null)
+        return chunk + l;
+    for (int l = block - chunk - 1; l >= 0; l--)
+      if (resident[chunk + l] != null)
+        return chunk + l;
+    return block;
+  }
+
+  /**
+   * Starts mapping a level on a worker thread and paging it in, unless it is loaded or loading
+   * or does not fit in room bytes. Returns the room left.
+   */
+  private long request(int block, long room) {
+    long offset = lodOffset[block], size = blockBytes(block);
+    if (resident[block] != null || pending.containsKey(block) || pending.size() >= MAX_PENDING
+        || size > room)
+      return room;
+    pending.put(block, workers.submit(() -> {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+      buffer.load();
+      return buffer;
+    }));
+    return room - size;
+  }
+
+  /** Uploads the levels that have been paged in, up to UPLOAD_BYTES_PER_FRAME. */
+  private void uploadFinished(GL2 gl) {
+    long uploaded = 0;
+    for (Iterator<Map.Entry<Integer, Future<MappedByteBuffer>>> it = pending.entrySet().iterator();
+        it.hasNext();) {
+      Map.Entry<Integer, Future<MappedByteBuffer>> entry = it.next();
+      if (!entry.getValue().isDone())
+        continue;
+      int block = entry.getKey();
+      long size = blockBytes(block);
+      if (uploaded > 0 && uploaded + size > UPLOAD_BYTES_PER_FRAME)
+        break;
+      it.remove();
+      MappedByteBuffer buffer;
+      try {
+        buffer = entry.getValue().get();
+      } catch (InterruptedException | ExecutionException e) {
+        e.printStackTrace();
+        continue;
+      }
+      if (resident[block] != null || !makeRoom(gl, size))
+        continue; // asked for again later if it is still wanted
+      upload(gl, block, buffer);
+      uploaded += size;
+    }
+  }
+
+  private void upload(GL2 gl, int block, ByteBuffer buffer) {
+    int vertexBytes = lodVertices[block] * GLMesh.QUANTIZED_STRIDE;
+    buffer.limit(vertexBytes).position(0);
+    ByteBuffer vertices = buffer.slice();
+    buffer.limit(buffer.capacity()).position(vertexBytes);
+    ByteBuffer indices = buffer.slice();
+    resident[block] = new GLMesh(gl, GL2.GL_TRIANGLES, lodVertices[block], vertices,
+        lodIndices[block], indices);
+    residentBytes += resident[block].getByteSize();
+    lastUsed[block] = frame;
+    uploads++;
+  }
+
+  /**
+   * Deletes the least recently used levels not needed this frame until size more bytes fit in
+   * the budget. Returns false if they cannot be made to fit.
+   */
+  private boolean makeRoom(GL2 gl, long size) {
+    while (residentBytes + size > budget) {
+      int oldest = -1;
+      for (int b = 0; b < resident.length; b++) {
+        if (resident[b] == null || b % LOD_COUNT == LOD_COUNT - 1 || lastUsed[b] >= frame)
+          continue;
+        if (oldest < 0 || lastUsed[b] < lastUsed[oldest])
+          oldest = b;
+      }
+      if (oldest < 0)
+        return false;
+      residentBytes -= resident[oldest].getByteSize();
+      resident[oldest].dispose(gl);
+      resident[oldest] = null;
+      evictions++;
+    }
+    return true;
+  }
+
+  /** Uploads the coarsest level of every chunk, so there is always something to draw. */
+  private void pinCoarsest(GL2 gl) {
+    try {
+      for (int c = 0; c < chunkCount; c++) {
+        int block = c * LOD_COUNT + LOD_COUNT - 1;
+        upload(gl, block, channel.map(FileChannel.MapMode.READ_ONLY, lodOffset[block], blockBytes(block)));
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    pinned = true;
+  }
+
+  private long blockBytes(int block) {
+    return blockBytes(lodVertices[block], lodIndices[block]);
+  }
+
+  private static long blockBytes(int vertexCount, int indexCount) {
+    long indexBytes = (long) indexCount * (vertexCount <= 0xFFFF ? 2 : 4);
+    return (long) vertexCount * GLMesh.QUANTIZED_STRIDE + (indexBytes + 3) / 4 * 4;
+  }
+
+  /** Deletes the loaded levels. The file stays open. */
+  public void dispose(GL2 gl) {
+    for (int b = 0; b < resident.length; b++) {
+      if (resident[b] != null)
+        resident[b].dispose(gl);
+      resident[b] = null;
+    }
+    residentBytes = 0;
+    pinned = false;
+  }
+
+  /**
+   * Stops the worker threads, waiting for any level they are mapping, and closes the file.
+   * dispose must have been called.
+   */
+  @Override
+  public void close() throws IOException {
+    workers.shutdownNow();
+    try {
+      workers.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    pending.clear();
+    file.close();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d of %d chunks, %d triangles, %d of %d MB, %d loading, %d uploads, "
+        + "%d evictions", drawnChunks, chunkCount, drawnTriangles, residentBytes >> 20, budget >> 20,
+        pending.size(), uploads, evictions);
+  }
+
+  // -------------------------------- building --------------------------------
+
+  /**
+   * Converts an ASCII PLY file of triangles into an out-of-core mesh file, using chunks of at most
+   * maxTriangles triangles where the mesh allows. Only the chunk being built is held in the
+   * heap. Returns a summary of what was built.
+   */
+  public static String build(File plyFile, File outFile, int maxTriangles) throws IOException {
+    long start = System.nanoTime();
+    try (AsciiReader in = new AsciiReader(plyFile)) {
+      // header, as PlyReader reads it: the first three vertex properties are x, y, z
+      if (!in.nextToken().equalsIgnoreCase("ply"))
+        throw new IOException("PLY invalid: " + plyFile);
+      long vertexCount = 0, faceCount = 0;
+      for (String token = in.nextToken(); !token.equals("end_header"); token = in.nextToken()) {
+        if (token.equals("format") && !in.nextToken().equals("ascii"))
+          throw new IOException("Only ASCII PLY files are supported: " + plyFile);
+        if (token.equals("element")) {
+          String element = in.nextToken();
+          if (element.equalsIgnoreCase("vertex"))
+            vertexCount = Long.parseLong(in.nextToken());
+          else if (element.equalsIgnoreCase("face"))
+            faceCount = Long.parseLong(in.nextToken());
+        }
+        in.skipLine();
+      }
+      in.skipLine();
+
+      try (MappedArray positions = new MappedArray(vertexCount * 3);
+          MappedArray normals = new MappedArray(vertexCount * 3);
+          MappedArray faces = new MappedArray(faceCount * 3);
+          MappedArray faceCells = new MappedArray(faceCount);
+          MappedArray sorted = new MappedArray(faceCount * 3)) {
+        float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (long v = 0; v < vertexCount; v++) {
+          for (int k = 0; k < 3; k++) {
+            float x = in.nextFloat();
+            positions.putFloat(v * 3 + k, x);
+            min[k] = Math.min(min[k], x);
+            max[k] = Math.max(max[k], x);
+          }
+          in.skipLine();
+        }
+
+        // a cubic grid over the bounds, fine enough that most cells hold under maxTriangles
+        int grid = 1;
+        while (grid < MAX_GRID && (double) grid * grid * grid * maxTriangles < faceCount * 8)
+          grid *= 2;
+        float longest = Math.max(max[0] - min[0], Math.max(max[1] - min[1], max[2] - min[2]));
+        float cell = Math.max(longest, 1e-20f) / grid;
+        int[] counts = new int[grid * grid * grid];
+
+        // faces: area weighted normals, and the cell of each face's centroid
+        float[] p = new float[9];
+        for (long f = 0; f < faceCount; f++) {
+          if (in.nextInt() != 3)
+            throw new IOException("Only triangles are supported: face " + f + " of " + plyFile);
+          int cellIndex = 0;
+          for (int i = 0; i < 3; i++) {
+            int v = in.nextInt();
+            if (v < 0 || v >= vertexCount)
+              throw new IOException("Vertex " + v + " out of range in face " + f + " of " + plyFile);
+            faces.putInt(f * 3 + i, v);
+            for (int k = 0; k < 3; k++)
+              p[i * 3 + k] = positions.getFloat((long) v * 3 + k);
+          }
+          in.skipLine();
+          float ux = p[3] - p[0], uy = p[4] - p[1], uz = p[5] - p[2];
+          float vx = p[6] - p[0], vy = p[7] - p[1], vz = p[8] - p[2];
+          float nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+          for (int i = 0; i < 3; i++) {
+            long v = faces.getInt(f * 3 + i) * 3L;
+            normals.putFloat(v, normals.getFloat(v) + nx);
+            normals.putFloat(v + 1, normals.getFloat(v + 1) + ny);
+            normals.putFloat(v + 2, normals.getFloat(v + 2) + nz);
+          }
+          for (int k = 2; k >= 0; k--) {
+            float centroid = (p[k] + p[3 + k] + p[6 + k]) / 3;
+            int c = Math.min(grid - 1, Math.max(0, (int) ((centroid - min[k]) / cell)));
+            cellIndex = cellIndex * grid + c;
+          }
+          faceCells.putInt(f, cellIndex);
+          counts[cellIndex]++;
+        }
+
+        // chunks: octree nodes over the grid with at most maxTriangles, or single cells
+        int[] cellChunk = new int[counts.length];
+        List<Integer> chunkSizes = new ArrayList<>();
+        split(counts, grid, 0, 0, 0, grid, maxTriangles, cellChunk, chunkSizes);
+        int chunkCount = chunkSizes.size();
+        long[] chunkStart = new long[chunkCount + 1];
+        for (int c = 0; c < chunkCount; c++)
+          chunkStart[c + 1] = chunkStart[c] + chunkSizes.get(c);
+        long[] cursor = Arrays.copyOf(chunkStart, chunkCount);
+        for (long f = 0; f < faceCount; f++) {
+          long to = cursor[cellChunk[faceCells.getInt(f)]]++;
+          for (int i = 0; i < 3; i++)
+            sorted.putInt(to * 3 + i, faces.getInt(f * 3 + i));
+        }
+
+        // the coarser levels cluster vertices on grids of these sizes, shared by all chunks
+        float[] lodCell = new float[LOD_COUNT];
+        for (int l = 1; l < LOD_COUNT; l++)
+          lodCell[l] = cell / (1 << (2 * LOD_COUNT - 2 - l));
+        float margin = lodCell[LOD_COUNT - 1];
+
+        try (RandomAccessFile out = new RandomAccessFile(outFile, "rw")) {
+          out.setLength(0);
+          FileChannel channel = out.getChannel();
+          ByteBuffer table = ByteBuffer.allocate(HEADER_BYTES + chunkCount * CHUNK_RECORD_BYTES)
+              .order(ByteOrder.nativeOrder());
+          table.putInt(MAGIC).putInt(VERSION).putInt(LOD_COUNT).putInt(chunkCount).putLong(faceCount);
+          for (int k = 0; k < 3; k++)
+            table.putFloat(min[k]);
+          for (int k = 0; k < 3; k++)
+            table.putFloat(max[k]);
+
+          long offset = table.capacity();
+          long[] lodTriangles = new long[LOD_COUNT];
+          long bytes = 0;
+          for (int c = 0; c < chunkCount; c++) {
+            MeshData chunk = readChunk(positions, normals, sorted, chunkStart[c], chunkSizes.get(c));
+            float[] bounds = chunk.getBounds();
+            float[] decodeMin = new float[3], decodeMax = new float[3];
+            for (int k = 0; k < 3; k++) {
+              decodeMin[k] = bounds[k] - margin;
+              decodeMax[k] = bounds[3 + k] + margin;
+              table.putFloat(bounds[k]);
+            }
+            for (int k = 0; k < 3; k++)
+              table.putFloat(bounds[3 + k]);
+            int record = table.position();
+            table.position(record + 4 * 16);
+            for (int l = 0; l < LOD_COUNT; l++) {
+              MeshData lod = l == 0 ? chunk : cluster(chunk, lodCell[l], min);
+              QuantizedMesh quantized = new QuantizedMesh(lod, decodeMin, decodeMax, 8);
+              if (l == 0) {
+                float[] decode = quantized.getDecodeMatrix();
+                for (int i = 0; i < 16; i++)
+                  table.putFloat(record + 4 * i, decode[i]);
+              }
+              int lodVertexCount = quantized.getVertexCount(), indexCount = lod.getIndexCount();
+              ByteBuffer block = ByteBuffer.allocate((int) blockBytes(lodVertexCount, indexCount))
+                  .order(ByteOrder.nativeOrder());
+              GLMesh.putQuantizedVertices(quantized, block);
+              for (int index : lod.getIndices()) {
+                if (lodVertexCount <= 0xFFFF)
+                  block.putShort((short) index);
+                else
+                  block.putInt(index);
+              }
+              block.clear();
+              while (block.hasRemaining())
+                channel.write(block, offset + block.position());
+              table.putLong(offset).putInt(lodVertexCount).putInt(indexCount)
+                  .putFloat(lodCell[l] * (float) Math.sqrt(3) / 2);
+              offset += block.capacity();
+              bytes += block.capacity();
+              lodTriangles[l] += indexCount / 3;
+            }
+          }
+          table.clear();
+          while (table.hasRemaining())
+            channel.write(table, table.position());
+
+          StringBuilder summary = new StringBuilder(String.format(
+              "%s: %d vertices, %d triangles in %d chunks on a %d^3 grid, %d MB, %.1f s%n", outFile,
+              vertexCount, faceCount, chunkCount, grid, (offset + (1 << 20) - 1) >> 20,
+              (System.nanoTime() - start) / 1e9));
+          for (int l = 0; l < LOD_COUNT; l++)
+            summary.append(String.format("  level %d: %d triangles, error %.3g%n", l, lodTriangles[l],
+                lodCell[l] * Math.sqrt(3) / 2));
+          return summary.toString();
+        }
+      }
+    }
+  }
+
+  /**
+   * Finds the chunks of the octree node at (x, y, z) of the given size in cells: the node itself
+   * if it holds at most maxTriangles or is a single cell, otherwise the chunks of its children.
+   */
+  private static void split(int[] counts, int grid, int x, int y, int z, int size, int maxTriangles,
+      int[] cellChunk, List<Integer> chunkSizes) {
+    int total = 0;
+    for (int k = z; k < z + size; k++)
+      for (int j = y; j < y + size; j++)
+        for (int i = x; i < x + size; i++)
+          total += counts[(k * grid + j) * grid + i];
+    if (total == 0)
+      return;
+    if (total <= maxTriangles || size == 1) {
+      int chunk = chunkSizes.size();
+      chunkSizes.add(total);
+      for (int k = z; k < z + size; k++)
+        for (int j = y; j < y + size; j++)
+          for (int i = x; i < x + size; i++)
+            cellChunk[(k * grid + j) * grid + i] = chunk;
+      return;
+    }
+    int half = size / 2;
+    for (int child = 0; child < 8; child++)
+      split(counts, grid, x + (child & 1) * half, y + (child >> 1 & 1) * half,
+          z + (child >> 2) * half, half, maxTriangles, cellChunk, chunkSizes);
+  }
+
+  /** Reads count triangles from sorted, starting at first, as a mesh with its own vertices. */
+  private static MeshData readChunk(MappedArray positions, MappedArray normals, MappedArray sorted,
+      long first, int count) {
+    int[] global = new int[count * 3];
+    for (int i = 0; i < global.length; i++)
+      global[i] = sorted.getInt(first * 3 + i);
+    int[] vertices = global.clone();
+    Arrays.sort(vertices);
+    int vertexCount = 0;
+    for (int i = 0; i < vertices.length; i++)
+      if (i == 0 || vertices[i] != vertices[i - 1])
+        vertices[vertexCount++] = vertices[i];
+
+    float[] p = new float[vertexCount * 3], n = new float[vertexCount * 3];
+    for (int v = 0; v < vertexCount; v++) {
+      long g = vertices[v] * 3L;
+      float nx = normals.getFloat(g), ny = normals.getFloat(g + 1), nz = normals.getFloat(g + 2);
+      float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+      for (int k = 0; k < 3; k++) {
+        p[v * 3 + k] = positions.getFloat(g + k);
+        n[v * 3 + k] = length > 0 ? normals.getFloat(g + k) / length : k == 2 ? 1 : 0;
+      }
+    }
+    int[] indices = new int[global.length];
+    for (int i = 0; i < global.length; i++)
+      indices[i] = Arrays.binarySearch(vertices, 0, vertexCount, global[i]);
+    return new MeshData(GL2.GL_TRIANGLES, p, n, null, null, indices);
+  }
+
+  /**
+   * Simplifies mesh by merging the vertices in each cell of a grid of the given cell size
+   * aligned to origin into one at the cell's center, with the average normal, and dropping the
+   * triangles that collapse.
+   */
+  private static MeshData cluster(MeshData mesh, float cell, float[] origin) {
+    float[] p = mesh.getPositions(), n = mesh.getNormals();
+    int[] indices = mesh.getIndices();
+    int vertexCount = mesh.getVertexCount();
+    Map<Long, Integer> cells = new HashMap<>();
+    int[] remap = new int[vertexCount];
+    float[] positions = new float[vertexCount * 3], normals = new float[vertexCount * 3];
+    int count = 0;
+    long[] c = new long[3];
+    for (int v = 0; v < vertexCount; v++) {
+      for (int k = 0; k < 3; k++)
+        c[k] = (long) Math.floor((p[v * 3 + k] - origin[k]) / cell);
+      Integer id = cells.get((c[0] << 42) | (c[1] << 21) | c[2]);
+      if (id == null) {
+        id = count++;
+        cells.put((c[0] << 42) | (c[1] << 21) | c[2], id);
+        for (int k = 0; k < 3; k++)
+          positions[id * 3 + k] = origin[k] + (c[k] + 0.5f) * cell;
+      }
+      for (int k = 0; k < 3; k++)
+        normals[id * 3 + k] += n[v * 3 + k];
+      remap[v] = id;
+    }
+    for (int v = 0; v < count; v++) {
+      float x = normals[v * 3], y = normals[v * 3 + 1], z = normals[v * 3 + 2];
+      float length = (float) Math.sqrt(x * x + y * y + z * z);
+      if (length > 0)
+        for (int k = 0; k < 3; k++)
+          normals[v * 3 + k] /= length;
+    }
+    int[] kept = new int[indices.length];
+    int keptCount = 0;
+    for (int i = 0; i < indices.length; i += 3) {
+      int a = remap[indices[i]], b = remap[indices[i + 1]], d = remap[indices[i + 2]];
+      if (a == b || b == d || a == d)
+        continue;
+      kept[keptCount++] = a;
+      kept[keptCount++] = b;
+      kept[keptCount++] = d;
+    }
+    return new MeshData(GL2.GL_TRIANGLES, Arrays.copyOf(positions, count * 3),
+        Arrays.copyOf(normals, count * 3), null, null, Arrays.copyOf(kept, keptCount));
+  }
+
+  /**
+   * A large array of floats or ints kept in a temporary file and memory-mapped in windows, since
+   * one mapping cannot exceed 2 GB. The file is deleted on close.
+   */
+  private static class MappedArray implements Closeable {
+    private static final long WINDOW = 1L << 30;
+
+    private final File path;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer[] windows;
+
+    MappedArray(long count) throws IOException {
+      path = File.createTempFile("mesh", ".tmp");
+      path.deleteOnExit();
+      file = new RandomAccessFile(path, "rw");
+      long bytes = Math.max(count * 4, 4);
+      file.setLength(bytes);
+      windows = new MappedByteBuffer[(int) ((bytes + WINDOW - 1) / WINDOW)];
+      for (int i = 0; i < windows.length; i++) {
+        long start = i * WINDOW;
+        windows[i] = file.getChannel().map(FileChannel.MapMode.READ_WRITE, start,
+            Math.min(WINDOW, bytes - start));
+        windows[i].order(ByteOrder.nativeOrder());
+      }
+    }
+
+    float getFloat(long index) {
+      return windows[(int) (index >> 28)].getFloat((int) (index & 0xFFFFFFF) * 4);
+    }
+
+    void putFloat(long index, float value) {
+      windows[(int) (index >> 28)].putFloat((int) (index & 0xFFFFFFF) * 4, value);
+    }
+
+    int getInt(long index) {
+      return windows[(int) (index >> 28)].getInt((int) (index & 0xFFFFFFF) * 4);
+    }
+
+    void putInt(long index, int value) {
+      windows[(int) (index >> 28)].putInt((int) (index & 0xFFFFFFF) * 4, value);
+    }
+
+    @Override
+    public void close() throws IOException {
+      file.close();
+      path.delete();
+    }
+  }
+
+  /** Reads whitespace separated tokens from a large text file without a Scanner's overhead. */
+  private static class AsciiReader implements Closeable {
+    private final InputStream in;
+    private final StringBuilder token = new StringBuilder();
+    private int next;
+
+    AsciiReader(File file) throws IOException {
+      in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+      next = in.read();
+    }
+
+    String nextToken() throws IOException {
+      while (next == ' ' || next == '\t' || next == '\r' || next == '\n')
+        next = in.read();
+      if (next < 0)
+        throw new IOException("Unexpected end of file");
+      token.setLength(0);
+      while (next > ' ') {
+        token.append((char) next);
+        next = in.read();
+      }
+      return token.toString();
+    }
+
+    int nextInt() throws IOException {
+      while (next == ' ' || next == '\t' || next == '\r' || next == '\n')
+        next = in.read();
+      boolean negative = next == '-';
+      if (negative)
+        next = in.read();
+      if (next < '0' || next > '9')
+        throw new IOException("Integer expected");
+      int value = 0;
+      while (next >= '0' && next <= '9') {
+        value = value * 10 + next - '0';
+        next = in.read();
+      }
+      return negative ? -value : value;
+    }
+
+    float nextFloat() throws IOException {
+      return Float.parseFloat(nextToken());
+    }
+
+    /** Skips the rest of the current line. */
+    void skipLine() throws IOException {
+      while (next >= 0 && next != '\n')
+        next = in.read();
+      if (next == '\n')
+        next = in.read();
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Converts a PLY file for out-of-core drawing. Usage: java OutOfCoreMesh in.ply out.ooc
+   * [maxTrianglesPerChunk]
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.out.println("Usage: java OutOfCoreMesh in.ply out.ooc [maxTrianglesPerChunk]");
+      return;
+    }
+    int maxTriangles = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_MAX_TRIANGLES;
+    System.out.print(build(new File(args[0]), new File(args[1]), maxTriangles));
+  }
+
+}
@@ -0,0 +1,105 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Scanner;
+
+import com.jogamp.opengl.GL2;
+
+/**
+ * Reads ASCII PLY files, like the Stanford scans, into a MeshData of triangles. Only the x, y, z
+ * vertex properties and triangular faces are used.
+ */
+public class PlyReader {
+
+  private PlyReader() {}
+
+  public static MeshData read(File file) throws IOException {
+    // this is really quick a dirty
+    int vertexCount = 0;
+    int faceCount = 0;
+    float[] verts;
+    int[] faces;
+
+    // open file
+    try (Scanner scan = new Scanner(file)) {
+
+      if (scan.next().compareToIgnoreCase("ply") != 0) {
+        // not a ply file
+        throw new IOException("PLY invalid: " + file);
+      }
+
+
+      // read ply
+      boolean finished = false;
+      while (!finished) {
+        switch (scan.next()) {
+          case "format": {
+            // its ascii i assume
+            scan.nextLine();
+            break;
+          }
+          case "comment": {
+            scan.nextLine();
+            break;
+          }
+
+          case "property": {
+            // throw away unused properties, like normals. (We should use these)
+            scan.nextLine();
+            break;
+          }
+
+          case "element": {
+            String elementType = scan.next();
+            if (elementType.compareToIgnoreCase("vertex") == 0) {
+              // could be anything, but I am just going to say x,y,z
+              vertexCount = scan.nextInt();
+              scan.nextLine(); // consume the rest of this line
+              scan.nextLine();// property x
+              scan.nextLine();// property y
+              scan.nextLine();// property z
+
+            } else if (elementType.compareToIgnoreCase("face") == 0) {
+              faceCount = scan.nextInt();
+              scan.nextLine(); // consume the rest of this line
+              scan.nextLine();// assume property list uchar int vertex_indices
+            }
+
+            break;
+
+          }
+          case "end_header": {
+            finished = true;
+            break;
+          }
+
+        }// end switch
+      } // end while
+
+      verts = new float[vertexCount * 3];
+      faces = new int[faceCount * 3];
+
+
+      // read vertices
+      for (int i = 0; i < vertexCount; i++) {
+        verts[i * 3] = scan.nextFloat();
+        verts[i * 3 + 1] = scan.nextFloat();
+        verts[i * 3 + 2] = scan.nextFloat();
+        scan.nextLine(); // read eol
+      }
+
+
+
+      // read faces
+      for (int i = 0; i < faceCount; i++) {
+        if (scan.nextInt() != 3)
+          System.out.println("polys not triangles");
+        faces[i * 3] = scan.nextInt();
+        faces[i * 3 + 1] = scan.nextInt();
+        faces[i * 3 + 2] = scan.nextInt();
+      }
+    }
+
+    return new MeshData(GL2.GL_TRIANGLES, verts, null, null, null, faces);
+  }
+
+}
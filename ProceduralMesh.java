@@ -0,0 +1,145 @@
+import java.awt.Color;
+
+import com.jogamp.opengl.GL2;
+
+/**
+ * Generators for the simple shapes the scene uses: the spectrum colored cylinder under the
+ * model, the spheres that mark the lights, and the wire box around the model. They only build
+ * MeshData; MeshCache takes care of generating each shape once and keeping it on the GPU.
+ */
+public class ProceduralMesh {
+
+  private ProceduralMesh() {}
+
+  /**
+   * Creates the RGB color for the specified hue, with saturation 1 and brightness 0.6, in rgb[offset]
+   * to rgb[offset+2]. The hue should be in the range 0.0 to 1.0.
+   */
+  static void colorForHue(double hue, float[] rgb, int offset) {
+    int c = Color.HSBtoRGB((float) hue, 1, 0.6F);
+    rgb[offset] = ((c >> 16) & 0xFF) / 255.0F;
+    rgb[offset + 1] = ((c >> 8) & 0xFF) / 255.0F;
+    rgb[offset + 2] = (c & 0xFF) / 255.0F;
+  }
+
+  /**
+   * A cylinder with height 2 and radius 1, centered at the origin, with its axis along the
+   * z-axis, closed at both ends. If spectrum is true a spectrum of hues is applied around the
+   * edges, with white at the centers of the caps; otherwise every vertex is white.
+   */
+  public static MeshData cylinder(int slices, boolean spectrum) {
+    int ring = slices + 1; // the seam vertex is repeated so the hue can wrap
+    int vertexCount = ring * 4 + 2;
+    float[] positions = new float[vertexCount * 3];
+    float[] normals = new float[vertexCount * 3];
+    float[] colors = new float[vertexCount * 3];
+    int[] indices = new int[slices * 12];
+
+    int topCenter = ring * 4, bottomCenter = topCenter + 1;
+    for (int i = 0; i <= slices; i++) {
+      double angle = 2 * Math.PI / slices * i;
+      float x = (float) Math.cos(angle);
+      float y = (float) Math.sin(angle);
+      // side top, side bottom, top cap, bottom cap
+      int[] vertices = {i, ring + i, ring * 2 + i, ring * 3 + i};
+      float[] z = {1, -1, 1, -1};
+      for (int k = 0; k < 4; k++) {
+        int v = vertices[k];
+        positions[v * 3] = x;
+        positions[v * 3 + 1] = y;
+        positions[v * 3 + 2] = z[k];
+        if (k < 2) {
+          normals[v * 3] = x;
+          normals[v * 3 + 1] = y;
+        } else {
+          normals[v * 3 + 2] = z[k];
+        }
+        if (spectrum)
+          colorForHue((double) i / slices, colors, v * 3);
+        else
+          colors[v * 3] = colors[v * 3 + 1] = colors[v * 3 + 2] = 1;
+      }
+    }
+    positions[topCenter * 3 + 2] = 1;
+    normals[topCenter * 3 + 2] = 1;
+    positions[bottomCenter * 3 + 2] = -1;
+    normals[bottomCenter * 3 + 2] = -1;
+    for (int k = 0; k < 6; k++)
+      colors[topCenter * 3 + k] = 1;
+
+    int index = 0;
+    for (int i = 0; i < slices; i++) {
+      int top = i, bottom = ring + i;
+      indices[index++] = top;
+      indices[index++] = bottom;
+      indices[index++] = top + 1;
+      indices[index++] = top + 1;
+      indices[index++] = bottom;
+      indices[index++] = bottom + 1;
+
+      indices[index++] = topCenter;
+      indices[index++] = ring * 2 + i;
+      indices[index++] = ring * 2 + i + 1;
+
+      indices[index++] = bottomCenter;
+      indices[index++] = ring * 3 + i + 1;
+      indices[index++] = ring * 3 + i;
+    }
+    return new MeshData(GL2.GL_TRIANGLES, positions, normals, null, colors, indices);
+  }
+
+  /**
+   * A sphere of radius 1 centered at the origin, split into slices around the z-axis and stacks
+   * along it, like glutSolidSphere.
+   */
+  public static MeshData sphere(int slices, int stacks) {
+    int ring = slices + 1;
+    int vertexCount = ring * (stacks + 1);
+    float[] positions = new float[vertexCount * 3];
+    float[] normals = new float[vertexCount * 3];
+    for (int j = 0; j <= stacks; j++) {
+      double phi = Math.PI * j / stacks;
+      float z = (float) Math.cos(phi);
+      float r = (float) Math.sin(phi);
+      for (int i = 0; i <= slices; i++) {
+        double theta = 2 * Math.PI * i / slices;
+        int v = j * ring + i;
+        positions[v * 3] = normals[v * 3] = r * (float) Math.cos(theta);
+        positions[v * 3 + 1] = normals[v * 3 + 1] = r * (float) Math.sin(theta);
+        positions[v * 3 + 2] = normals[v * 3 + 2] = z;
+      }
+    }
+    int[] indices = new int[slices * stacks * 6];
+    int index = 0;
+    for (int j = 0; j < stacks; j++) {
+      for (int i = 0; i < slices; i++) {
+        int a = j * ring + i, b = a + ring;
+        indices[index++] = a;
+        indices[index++] = b;
+        indices[index++] = a + 1;
+        indices[index++] = a + 1;
+        indices[index++] = b;
+        indices[index++] = b + 1;
+      }
+    }
+    return new MeshData(GL2.GL_TRIANGLES, positions, normals, null, null, indices);
+  }
+
+  /**
+   * The twelve edges of the unit cube from (0,0,0) to (1,1,1), drawn as GL_LINES. Scale and
+   * translate it to outline any axis aligned box.
+   */
+  public static MeshData wireBox() {
+    float[] positions = new float[8 * 3];
+    for (int v = 0; v < 8; v++) {
+      positions[v * 3] = v & 1;
+      positions[v * 3 + 1] = (v >> 1) & 1;
+      positions[v * 3 + 2] = (v >> 2) & 1;
+    }
+    int[] indices = {0, 1, 2, 3, 4, 5, 6, 7, // along x
+        0, 2, 1, 3, 4, 6, 5, 7, // along y
+        0, 4, 1, 5, 2, 6, 3, 7}; // along z
+    return new MeshData(GL2.GL_LINES, positions, null, null, null, indices);
+  }
+
+}
@@ -0,0 +1,141 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntConsumer;
+
+/**
+ * Keeps the frame time within a budget by moving a quality level up and down, one step at a
+ * time. Level 0 is the best quality and each higher level is cheaper; what a level means is up
+ * to the caller, which is told of every change. The governor keeps the times of the last few
+ * frames and looks at their average once the frames since the last change have all been
+ * measured, so every decision is based on frames drawn at the current level.
+ * <p>
+ * Hysteresis keeps it from oscillating. It steps down as soon as the average is over budget,
+ * but steps back up only with clear headroom, when the average is under HEADROOM of the budget.
+ * If a step up does go over budget, the wait before the next try at that level doubles, up to
+ * MAX_BACKOFF windows, so a level that almost fits is not retried every second. The waits
+ * halve again after every DECAY_WINDOWS windows without a step down, so once the frame times
+ * have recovered, a spike that made a try fail does not hold the quality down for the rest of
+ * the session.
+ */
+public class QualityGovernor {
+
+  private static final int WINDOW = 30; // frames averaged for each decision
+  private static final double HEADROOM = 0.85; // step up only when this far under budget
+  private static final int MAX_BACKOFF = 32; // windows to wait before retrying a failed level
+  private static final int DECAY_WINDOWS = 2 * MAX_BACKOFF; // with no step down, to halve waits
+
+  private final long budgetNanos;
+  private final int levelCount;
+  private final IntConsumer apply;
+  private final long[] times = new long[WINDOW];
+  private final int[] backoff; // windows to wait before trying each level again, per level
+  private int level, measured, samples, wait;
+  private int calm; // frames since the last step down
+  private long total;
+  private int steps;
+
+  /**
+   * A governor for levels 0 to levelCount - 1, starting at 0, that calls apply with the new
+   * level whenever it changes.
+   */
+  QualityGovernor(long budgetNanos, int levelCount, IntConsumer apply) {
+    this.budgetNanos = budgetNanos;
+    this.levelCount = levelCount;
+    this.apply = apply;
+    backoff = new int[levelCount];
+    Arrays.fill(backoff, 1);
+  }
+
+  /** Adds the time one frame took, possibly changing the level. */
+  public void frame(long nanos) {
+    total += nanos - times[measured % WINDOW];
+    times[measured % WINDOW] = nanos;
+    measured++;
+    samples = Math.min(samples + 1, WINDOW);
+    if (++calm >= DECAY_WINDOWS * WINDOW) {
+      calm = 0;
+      for (int i = 0; i < levelCount; i++)
+        backoff[i] = Math.max(1, backoff[i] / 2);
+    }
+    if (measured < WINDOW)
+      return;
+    double average = (double) total / WINDOW;
+    if (average > budgetNanos && level < levelCount - 1) {
+      if (wait < 0) // the level was just tried and did not fit
+        backoff[level] = Math.min(MAX_BACKOFF, backoff[level] * 2);
+      calm = 0;
+      setLevel(level + 1, 0);
+    } else if (average < budgetNanos * HEADROOM && level > 0) {
+      if (++wait >= backoff[level - 1])
+        setLevel(level - 1, -1);
+      else
+        measured = 0; // wait another window
+    } else if (wait < 0) {
+      wait = 0; // the step up held for a whole window
+    }
+  }
+
+  private void setLevel(int newLevel, int newWait) {
+    level = newLevel;
+    wait = newWait;
+    measured = 0;
+    samples = 0;
+    total = 0;
+    Arrays.fill(times, 0);
+    steps++;
+    apply.accept(level);
+  }
+
+  /** The current level, from 0 for the best quality to getLevelCount() - 1. */
+  public int getLevel() {
+    return level;
+  }
+
+  public int getLevelCount() {
+    return levelCount;
+  }
+
+  /** Changes of level so far, which should stop growing once the frame time settles. */
+  public int getStepCount() {
+    return steps;
+  }
+
+  /** The average of the frames measured at the current level, or 0 if there are none yet. */
+  public double getAverageNanos() {
+    return samples == 0 ? 0 : (double) total / samples;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("quality %d/%d, %.1f/%.1f ms", level, levelCount - 1,
+        getAverageNanos() / 1e6, budgetNanos / 1e6);
+  }
+
+  /**
+   * Simulates a host where each level costs a known time, with noise and a slow spike, and
+   * prints where the governor settles and how often it changed level. Usage: java
+   * QualityGovernor
+   */
+  public static void main(String[] args) {
+    double[] cost = {48, 42, 37, 33, 30, 26, 23, 20, 17, 14}; // ms per frame at each level
+    long budget = 30_000_000;
+    QualityGovernor governor = new QualityGovernor(budget, cost.length, level -> {
+    });
+    Random random = new Random(11);
+    int[] histogram = new int[cost.length];
+    for (int frame = 0; frame < 20_000; frame++) {
+      double load = frame >= 8000 && frame < 10000 ? 1.5 : 1; // something else hogs the host
+      double ms = cost[governor.getLevel()] * load * (1 + random.nextGaussian() * 0.08);
+      governor.frame((long) (ms * 1e6));
+      histogram[governor.getLevel()]++;
+      if (frame % 2000 == 1999)
+        System.out.printf("frame %5d: %s, %d changes%n", frame + 1, governor,
+            governor.getStepCount());
+    }
+    StringBuilder b = new StringBuilder("frames at each level:");
+    for (int count : histogram)
+      b.append(' ').append(count);
+    System.out.println(b);
+  }
+
+}
@@ -0,0 +1,224 @@
+import com.jogamp.opengl.math.FloatUtil;
+
+/**
+ * A compact copy of a triangle mesh's positions and normals. Positions are stored as 16-bit
+ * integers spread over the mesh's bounding box, and normals with the octahedral encoding, which
+ * maps the unit sphere onto a square and so needs only two components, each 8 or 16 bits. At 8
+ * bits a vertex takes 8 bytes instead of the 24 of float positions and normals.
+ * <p>
+ * The positions decode with the matrix from getDecodeMatrix, which is meant to be multiplied
+ * into the model transform so the GPU never sees float positions. The error introduced by the
+ * quantization is measured when the mesh is built, for the normals as they are uploaded: three
+ * signed bytes from getUploadedNormal.
+ */
+public class QuantizedMesh {
+
+  private static final int POSITION_RANGE = 32767;
+
+  private final short[] positions; // x, y, z per vertex
+  private final short[] normals; // octahedral u, v per vertex, in the range of normalBits
+  private final int normalBits;
+  private final int[] indices;
+  private final int mode;
+  private final float[] min = new float[3];
+  private final float[] max = new float[3];
+  private final float[] decode = new float[16];
+  private final float[] scale;
+
+  private double maxPositionError, rmsPositionError;
+  private double maxNormalError, meanNormalError; // degrees
+
+  /**
+   * Quantizes the mesh, which must have normals. normalBits is 8 or 16. The positions are
+   * spread over min to max, usually the mesh's own bounds.
+   */
+  QuantizedMesh(MeshData mesh, float[] min, float[] max, int normalBits) {
+    if (normalBits != 8 && normalBits != 16)
+      throw new IllegalArgumentException("normalBits must be 8 or 16");
+    this.normalBits = normalBits;
+    this.mode = mesh.getMode();
+    this.indices = mesh.getIndices();
+    System.arraycopy(min, 0, this.min, 0, 3);
+    System.arraycopy(max, 0, this.max, 0, 3);
+
+    scale = getScale();
+    FloatUtil.makeTranslation(decode, true, (min[0] + max[0]) / 2, (min[1] + max[1]) / 2,
+        (min[2] + max[2]) / 2);
+    FloatUtil.multMatrix(decode, FloatUtil.makeScale(new float[16], true, scale[0], scale[1], scale[2]));
+
+    float[] p = mesh.getPositions();
+    float[] n = mesh.getNormals();
+    int vertexCount = mesh.getVertexCount();
+    positions = new short[vertexCount * 3];
+    normals = new short[vertexCount * 2];
+    double sumSquares = 0;
+    double sumAngles = 0;
+    byte[] uploaded = new byte[3];
+    float[] decoded = new float[3];
+    for (int v = 0; v < vertexCount; v++) {
+      double error2 = 0;
+      for (int k = 0; k < 3; k++) {
+        float center = (min[k] + max[k]) / 2;
+        int q = Math.round((p[v * 3 + k] - center) / scale[k]);
+        q = Math.max(-POSITION_RANGE, Math.min(POSITION_RANGE, q));
+        positions[v * 3 + k] = (short) q;
+        double d = center + q * scale[k] - p[v * 3 + k];
+        error2 += d * d;
+      }
+      sumSquares += error2;
+      maxPositionError = Math.max(maxPositionError, Math.sqrt(error2));
+
+      encodeNormal(n[v * 3], n[v * 3 + 1], n[v * 3 + 2], normals, v * 2, normalBits);
+      // the normal the GPU lights with: the bytes, times the normal matrix of the decode
+      // matrix, which is the inverse of its scale, renormalized
+      getUploadedNormal(v, uploaded, 0);
+      double dot = 0, length2 = 0;
+      for (int k = 0; k < 3; k++) {
+        decoded[k] = uploaded[k] / scale[k];
+        dot += decoded[k] * n[v * 3 + k];
+        length2 += decoded[k] * decoded[k];
+      }
+      dot = length2 > 0 ? dot / Math.sqrt(length2) : 0;
+      double angle = Math.toDegrees(Math.acos(Math.max(-1, Math.min(1, dot))));
+      sumAngles += angle;
+      maxNormalError = Math.max(maxNormalError, angle);
+    }
+    rmsPositionError = vertexCount == 0 ? 0 : Math.sqrt(sumSquares / vertexCount);
+    meanNormalError = vertexCount == 0 ? 0 : sumAngles / vertexCount;
+  }
+
+  public int getMode() {
+    return mode;
+  }
+
+  public int getVertexCount() {
+    return positions.length / 3;
+  }
+
+  public short[] getPositions() {
+    return positions;
+  }
+
+  public short[] getNormals() {
+    return normals;
+  }
+
+  public int getNormalBits() {
+    return normalBits;
+  }
+
+  public int[] getIndices() {
+    return indices;
+  }
+
+  /**
+   * The column-major matrix that takes the stored integer positions back to model coordinates.
+   */
+  public float[] getDecodeMatrix() {
+    return decode.clone();
+  }
+
+  /** Model units per step of the stored positions, along x, y and z. */
+  public float[] getScale() {
+    float[] scale = new float[3];
+    for (int k = 0; k < 3; k++)
+      scale[k] = Math.max(max[k] - min[k], 1e-20f) / (2 * POSITION_RANGE);
+    return scale;
+  }
+
+  /** Bytes used by the quantized positions and normals. */
+  public long getVertexBytes() {
+    return (long) getVertexCount() * (6 + normalBits / 4);
+  }
+
+  /** Largest distance between a decoded and an original position, in model units. */
+  public double getMaxPositionError() {
+    return maxPositionError;
+  }
+
+  public double getRmsPositionError() {
+    return rmsPositionError;
+  }
+
+  /** Largest angle between an uploaded and an original normal, in degrees. */
+  public double getMaxNormalError() {
+    return maxNormalError;
+  }
+
+  public double getMeanNormalError() {
+    return meanNormalError;
+  }
+
+  /**
+   * Decodes the normal of vertex v into out[offset] to out[offset+2], as a unit vector.
+   */
+  public void getNormal(int v, float[] out, int offset) {
+    decodeNormal(normals[v * 2], normals[v * 2 + 1], normalBits, out, offset);
+  }
+
+  /**
+   * The normal of vertex v as it is uploaded, three signed bytes for GL_BYTE normals, into
+   * out[offset] to out[offset+2]. The normal matrix of the decode scale is its inverse, so the
+   * normal is scaled by it here to come out right once GL_NORMALIZE has renormalized it.
+   */
+  public void getUploadedNormal(int v, byte[] out, int offset) {
+    float[] normal = new float[3];
+    getNormal(v, normal, 0);
+    float x = normal[0] * scale[0], y = normal[1] * scale[1], z = normal[2] * scale[2];
+    float length = (float) Math.sqrt(x * x + y * y + z * z);
+    if (length > 0) {
+      x /= length;
+      y /= length;
+      z /= length;
+    }
+    out[offset] = (byte) Math.round(x * 127);
+    out[offset + 1] = (byte) Math.round(y * 127);
+    out[offset + 2] = (byte) Math.round(z * 127);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("position error max %.3g rms %.3g, normal error max %.3f mean %.3f deg, "
+        + "%d bytes per vertex", maxPositionError, rmsPositionError, maxNormalError,
+        meanNormalError, 6 + normalBits / 4);
+  }
+
+  /**
+   * Octahedral encoding of the unit vector (x, y, z) into out[offset] and out[offset+1], as
+   * signed integers with the given number of bits.
+   */
+  static void encodeNormal(float x, float y, float z, short[] out, int offset, int bits) {
+    float sum = Math.abs(x) + Math.abs(y) + Math.abs(z);
+    float u = 0, v = 0;
+    if (sum > 0) {
+      u = x / sum;
+      v = y / sum;
+      if (z < 0) {
+        float fu = (1 - Math.abs(v)) * Math.signum(u == 0 ? 1 : u);
+        float fv = (1 - Math.abs(u)) * Math.signum(v == 0 ? 1 : v);
+        u = fu;
+        v = fv;
+      }
+    }
+    int range = (1 << (bits - 1)) - 1;
+    out[offset] = (short) Math.round(u * range);
+    out[offset + 1] = (short) Math.round(v * range);
+  }
+
+  static void decodeNormal(short qu, short qv, int bits, float[] out, int offset) {
+    int range = (1 << (bits - 1)) - 1;
+    float u = (float) qu / range, v = (float) qv / range;
+    float z = 1 - Math.abs(u) - Math.abs(v);
+    if (z < 0) {
+      float fu = (1 - Math.abs(v)) * Math.signum(u == 0 ? 1 : u);
+      float fv = (1 - Math.abs(u)) * Math.signum(v == 0 ? 1 : v);
+      u = fu;
+      v = fv;
+    }
+    float length = (float) Math.sqrt(u * u + v * v + z * z);
+    out[offset] = u / length;
+    out[offset + 1] = v / length;
+    out[offset + 2] = z / length;
+  }
+
+}
@@ -0,0 +1,528 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.imageio.ImageIO;
+
+import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.math.FloatUtil;
+
+/**
+ * Renders a scene on the CPU by casting a ray through every pixel, for reference images on
+ * machines without a GPU. Meshes are placed in world coordinates and put in one TriangleBVH, and
+ * each hit is lit with the fixed-function lighting equation, with the same lights and materials
+ * GL would use, so that the image matches what the GL path draws up to the differences between
+ * per-vertex and per-pixel lighting. Back faces are culled as GL culls them. Shadows, which GL
+ * does not draw, can be turned on.
+ * <p>
+ * The image is split into tiles that are rendered in parallel on a ForkJoinPool. The statistics
+ * of the last render give rays per second per thread, to see how rendering scales with cores.
+ */
+public class ReferenceRenderer {
+
+  static final int TILE_SIZE = 16;
+
+  /** A fixed-function material, with a texture modulating the lit color. */
+  static class Material {
+    final float[] ambientAndDiffuse;
+    float[] specular = {0, 0, 0};
+    float shininess;
+    float[] emission = {0, 0, 0};
+    BufferedImage texture; // sampled with mirrored repeat, or null
+
+    Material(float r, float g, float b) {
+      ambientAndDiffuse = new float[] {r, g, b};
+    }
+
+    Material specular(float r, float g, float b, float shininess) {
+      specular = new float[] {r, g, b};
+      this.shininess = shininess;
+      return this;
+    }
+
+    Material emission(float r, float g, float b) {
+      emission = new float[] {r, g, b};
+      return this;
+    }
+
+    Material texture(BufferedImage texture) {
+      this.texture = texture;
+      return this;
+    }
+  }
+
+  /** A fixed-function light, in world coordinates. */
+  static class Light {
+    final float[] position; // w is 0 for a directional light
+    float[] ambient = {0, 0, 0}, diffuse = {1, 1, 1}, specular = {1, 1, 1};
+    float[] spotDirection = {0, 0, -1};
+    float spotCutoff = 180, spotExponent;
+    float constantAttenuation = 1;
+
+    Light(float x, float y, float z, float w) {
+      position = new float[] {x, y, z, w};
+    }
+
+    Light colors(float[] ambient, float[] diffuse, float[] specular) {
+      this.ambient = ambient.clone();
+      this.diffuse = diffuse.clone();
+      this.specular = specular.clone();
+      return this;
+    }
+
+    Light spot(float dx, float dy, float dz, float cutoff, float exponent) {
+      spotDirection = new float[] {dx, dy, dz};
+      spotCutoff = cutoff;
+      spotExponent = exponent;
+      return this;
+    }
+
+    Light attenuation(float constant) {
+      constantAttenuation = constant;
+      return this;
+    }
+  }
+
+  private final List<MeshData> meshes = new ArrayList<>();
+  private final List<Material> materials = new ArrayList<>();
+  private final List<Light> lights = new ArrayList<>();
+  private float[] globalAmbient = {0, 0, 0};
+  private float[] background = {0, 0, 0};
+  private boolean shadows;
+
+  // the scene merged for rendering, built on the first render after a change
+  private TriangleBVH bvh;
+  private float[] positions, normals, texCoords;
+  private int[] corners; // three vertices per triangle
+  private int[] triangleMaterial;
+
+  private final ForkJoinPool pool;
+  private final LongAdder rays = new LongAdder();
+  private long lastRays, lastNanos, lastBuildNanos;
+  private int lastWidth, lastHeight;
+
+  /** A renderer that uses threads threads, or one per core if threads is 0. */
+  ReferenceRenderer(int threads) {
+    pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Adds a mesh, placed by the column-major transform, or as it is if transform is null. Strips
+   * are unrolled, and a mesh without normals gets the normals of its faces.
+   */
+  public void add(MeshData mesh, float[] transform, Material material) {
+    if (mesh.getMode() == GL2.GL_LINES)
+      return;
+    meshes.add((transform == null ? mesh : mesh.transform(transform)).toTriangles());
+    materials.add(material);
+    bvh = null;
+  }
+
+  public void addLight(Light light) {
+    lights.add(light);
+  }
+
+  public void setGlobalAmbient(float r, float g, float b) {
+    globalAmbient = new float[] {r, g, b};
+  }
+
+  public void setBackground(float r, float g, float b) {
+    background = new float[] {r, g, b};
+  }
+
+  /** Casts a ray to every positional and directional light to shadow what it does not reach. */
+  public void setShadows(boolean shadows) {
+    this.shadows = shadows;
+  }
+
+  public int getThreads() {
+    return pool.getParallelism();
+  }
+
+  /** Stops the renderer's threads. */
+  public void shutdown() {
+    pool.shutdown();
+  }
+
+  /**
+   * Renders the scene as seen through the column-major view and projection matrices, into an
+   * image of width by height pixels.
+   */
+  public BufferedImage render(double[] view, double[] projection, int width, int height) {
+    if (bvh == null) {
+      long start = System.nanoTime();
+      merge();
+      lastBuildNanos = System.nanoTime() - start;
+    }
+    // pixels are unprojected through the inverse of projection * view
+    float[] viewProjection = new float[16], inverse = new float[16], inverseView = new float[16];
+    float[] v = new float[16], p = new float[16];
+    for (int i = 0; i < 16; i++) {
+      v[i] = (float) view[i];
+      p[i] = (float) projection[i];
+    }
+    FloatUtil.multMatrix(p, v, viewProjection);
+    FloatUtil.invertMatrix(viewProjection, inverse);
+    FloatUtil.invertMatrix(v, inverseView);
+    float[] eye = {inverseView[12], inverseView[13], inverseView[14]};
+
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    int[] pixels = new int[width * height];
+    int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE, tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+    rays.reset();
+    long start = System.nanoTime();
+    pool.invoke(new Tiles(0, tilesX * tilesY, tilesX, width, height, inverse, eye, pixels));
+    lastNanos = System.nanoTime() - start;
+    lastRays = rays.sum();
+    lastWidth = width;
+    lastHeight = height;
+    image.setRGB(0, 0, width, height, pixels, 0, width);
+    return image;
+  }
+
+  /** Rays cast by the last render, counting shadow rays. */
+  public long getLastRays() {
+    return lastRays;
+  }
+
+  public long getLastNanos() {
+    return lastNanos;
+  }
+
+  /** Rays per second per thread in the last render. */
+  public double getRaysPerSecondPerThread() {
+    return lastRays / (lastNanos / 1e9) / getThreads();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%dx%d, %d triangles (BVH %.1f ms), %d rays in %.1f ms on %d threads:"
+        + " %.2f Mrays/s, %.2f Mrays/s per thread", lastWidth, lastHeight,
+        bvh == null ? 0 : bvh.getTriangleCount(), lastBuildNanos / 1e6, lastRays, lastNanos / 1e6,
+        getThreads(), lastRays / (lastNanos / 1e9) / 1e6, getRaysPerSecondPerThread() / 1e6);
+  }
+
+  /** Merges the meshes into one set of arrays, with a material per triangle, and builds the BVH. */
+  private void merge() {
+    int vertexCount = 0, triangleCount = 0;
+    for (MeshData mesh : meshes) {
+      vertexCount += mesh.getVertexCount();
+      triangleCount += mesh.getIndexCount() / 3;
+    }
+    positions = new float[vertexCount * 3];
+    normals = new float[vertexCount * 3];
+    texCoords = new float[vertexCount * 2];
+    corners = new int[triangleCount * 3];
+    triangleMaterial = new int[triangleCount];
+    int vertex = 0, triangle = 0;
+    for (int m = 0; m < meshes.size(); m++) {
+      MeshData mesh = meshes.get(m);
+      int count = mesh.getVertexCount();
+      System.arraycopy(mesh.getPositions(), 0, positions, vertex * 3, count * 3);
+      if (mesh.getNormals() != null)
+        System.arraycopy(mesh.getNormals(), 0, normals, vertex * 3, count * 3);
+      if (mesh.getTexCoords() != null)
+        System.arraycopy(mesh.getTexCoords(), 0, texCoords, vertex * 2, count * 2);
+      int[] indices = mesh.getIndices();
+      for (int i = 0; i + 2 < indices.length; i += 3, triangle++) {
+        for (int k = 0; k < 3; k++)
+          corners[triangle * 3 + k] = indices[i + k] + vertex;
+        triangleMaterial[triangle] = mesh.getNormals() == null ? -1 - m : m; // -1 - m: flat
+      }
+      vertex += count;
+    }
+    bvh = new TriangleBVH(positions, corners);
+  }
+
+  /** Renders a range of tiles, splitting it in halves until there is one tile per task. */
+  private class Tiles extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    final int from, to, tilesX, width, height;
+    final float[] inverse, eye;
+    final int[] pixels;
+
+    Tiles(int from, int to, int tilesX, int width, int height, float[] inverse, float[] eye,
+        int[] pixels) {
+      this.from = from;
+      this.to = to;
+      this.tilesX = tilesX;
+      this.width = width;
+      this.height = height;
+      this.inverse = inverse;
+      this.eye = eye;
+      this.pixels = pixels;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > 1) {
+        int middle = (from + to) / 2;
+        invokeAll(new Tiles(from, middle, tilesX, width, height, inverse, eye, pixels),
+            new Tiles(middle, to, tilesX, width, height, inverse, eye, pixels));
+        return;
+      }
+      Shader shader = new Shader(eye);
+      int x0 = from % tilesX * TILE_SIZE, y0 = from / tilesX * TILE_SIZE;
+      for (int y = y0; y < Math.min(y0 + TILE_SIZE, height); y++)
+        for (int x = x0; x < Math.min(x0 + TILE_SIZE, width); x++)
+          pixels[y * width + x] = shader.pixel(inverse, (2 * x + 1f) / width - 1,
+              1 - (2 * y + 1f) / height);
+      rays.add(shader.rays);
+    }
+  }
+
+  /** The per-thread state for shading, so that shading a pixel allocates nothing. */
+  private class Shader {
+    final TriangleBVH.Hit hit = new TriangleBVH.Hit();
+    final float[] eye;
+    final float[] near = new float[4], far = new float[4], point = new float[4];
+    final float[] color = new float[3], texel = new float[3];
+    long rays;
+
+    Shader(float[] eye) {
+      this.eye = eye;
+    }
+
+    /** The packed RGB of the pixel at normalized device coordinates x, y. */
+    int pixel(float[] inverse, float x, float y) {
+      point[0] = x;
+      point[1] = y;
+      point[2] = -1;
+      point[3] = 1;
+      FloatUtil.multMatrixVec(inverse, point, near);
+      point[2] = 1;
+      FloatUtil.multMatrixVec(inverse, point, far);
+      float ox = near[0] / near[3], oy = near[1] / near[3], oz = near[2] / near[3];
+      float dx = far[0] / far[3] - ox, dy = far[1] / far[3] - oy, dz = far[2] / far[3] - oz;
+      rays++;
+      // from the near plane to the far plane, so t runs from 0 to 1 like depth
+      if (!bvh.intersect(ox, oy, oz, dx, dy, dz, 1, true, hit))
+        return rgb(background);
+      shade(hit, ox + dx * hit.t, oy + dy * hit.t, oz + dz * hit.t);
+      return rgb(color);
+    }
+
+    /**
+     * The fixed-function lighting equation at the hit point, with a local viewer, into color:
+     * emission, global ambient, and for each light its attenuated and spotlight-weighted
+     * ambient, diffuse and specular terms, clamped, then modulated by the texture.
+     */
+    void shade(TriangleBVH.Hit hit, float px, float py, float pz) {
+      int t = hit.triangle;
+      int a = corners[t * 3], b = corners[t * 3 + 1], c = corners[t * 3 + 2];
+      float wa = 1 - hit.u - hit.v;
+      float nx, ny, nz;
+      int m = triangleMaterial[t];
+      if (m >= 0) {
+        nx = normals[a * 3] * wa + normals[b * 3] * hit.u + normals[c * 3] * hit.v;
+        ny = normals[a * 3 + 1] * wa + normals[b * 3 + 1] * hit.u + normals[c * 3 + 1] * hit.v;
+        nz = normals[a * 3 + 2] * wa + normals[b * 3 + 2] * hit.u + normals[c * 3 + 2] * hit.v;
+      } else {
+        m = -1 - m;
+        float e1x = positions[b * 3] - positions[a * 3], e1y = positions[b * 3 + 1] - positions[a * 3 + 1],
+            e1z = positions[b * 3 + 2] - positions[a * 3 + 2];
+        float e2x = positions[c * 3] - positions[a * 3], e2y = positions[c * 3 + 1] - positions[a * 3 + 1],
+            e2z = positions[c * 3 + 2] - positions[a * 3 + 2];
+        nx = e1y * e2z - e1z * e2y;
+        ny = e1z * e2x - e1x * e2z;
+        nz = e1x * e2y - e1y * e2x;
+      }
+      float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+      if (length > 0) {
+        nx /= length;
+        ny /= length;
+        nz /= length;
+      }
+      Material material = materials.get(m);
+      float[] kd = material.ambientAndDiffuse, ks = material.specular;
+
+      float vx = eye[0] - px, vy = eye[1] - py, vz = eye[2] - pz;
+      length = (float) Math.sqrt(vx * vx + vy * vy + vz * vz);
+      vx /= length;
+      vy /= length;
+      vz /= length;
+
+      for (int k = 0; k < 3; k++)
+        color[k] = material.emission[k] + globalAmbient[k] * kd[k];
+      for (Light light : lights) {
+        float[] lp = light.position;
+        float lx, ly, lz, distance, factor = 1;
+        if (lp[3] == 0) {
+          lx = lp[0];
+          ly = lp[1];
+          lz = lp[2];
+          length = (float) Math.sqrt(lx * lx + ly * ly + lz * lz);
+          distance = Float.POSITIVE_INFINITY;
+        } else {
+          lx = lp[0] / lp[3] - px;
+          ly = lp[1] / lp[3] - py;
+          lz = lp[2] / lp[3] - pz;
+          length = distance = (float) Math.sqrt(lx * lx + ly * ly + lz * lz);
+          factor = 1 / light.constantAttenuation;
+        }
+        lx /= length;
+        ly /= length;
+        lz /= length;
+        if (light.spotCutoff != 180) {
+          float[] sd = light.spotDirection;
+          float sdLength = (float) Math.sqrt(sd[0] * sd[0] + sd[1] * sd[1] + sd[2] * sd[2]);
+          float cos = -(lx * sd[0] + ly * sd[1] + lz * sd[2]) / sdLength;
+          if (cos < Math.cos(Math.toRadians(light.spotCutoff)))
+            continue; // outside the cone the light contributes nothing, not even ambient
+          factor *= (float) Math.pow(Math.max(cos, 0), light.spotExponent);
+        }
+        float diffuse = nx * lx + ny * ly + nz * lz;
+        if (diffuse > 0 && shadows) {
+          rays++;
+          float offset = 1e-3f;
+          if (bvh.occluded(px + nx * offset, py + ny * offset, pz + nz * offset, lx, ly, lz,
+              distance == Float.POSITIVE_INFINITY ? Float.MAX_VALUE : distance - offset, hit))
+            diffuse = 0; // in shadow, the light still adds its ambient term
+        }
+        float specular = 0;
+        if (diffuse > 0) {
+          float hx = lx + vx, hy = ly + vy, hz = lz + vz;
+          float hLength = (float) Math.sqrt(hx * hx + hy * hy + hz * hz);
+          float nh = (nx * hx + ny * hy + nz * hz) / hLength;
+          if (nh > 0)
+            specular = (float) Math.pow(nh, material.shininess);
+        } else {
+          diffuse = 0;
+        }
+        for (int k = 0; k < 3; k++)
+          color[k] += factor * (light.ambient[k] * kd[k] + diffuse * light.diffuse[k] * kd[k]
+              + specular * light.specular[k] * ks[k]);
+      }
+      for (int k = 0; k < 3; k++)
+        color[k] = Math.min(1, Math.max(0, color[k]));
+      if (material.texture != null) {
+        float s = texCoords[a * 2] * wa + texCoords[b * 2] * hit.u + texCoords[c * 2] * hit.v;
+        float tc = texCoords[a * 2 + 1] * wa + texCoords[b * 2 + 1] * hit.u
+            + texCoords[c * 2 + 1] * hit.v;
+        sample(material.texture, s, tc);
+      }
+    }
+
+    /** Multiplies color by the bilinearly filtered texel at s, t, with mirrored repeat. */
+    private void sample(BufferedImage texture, float s, float t) {
+      int w = texture.getWidth(), h = texture.getHeight();
+      float x = mirror(s) * w - 0.5f, y = (1 - mirror(t)) * h - 0.5f;
+      int x0 = (int) Math.floor(x), y0 = (int) Math.floor(y);
+      float fx = x - x0, fy = y - y0;
+      Arrays.fill(texel, 0);
+      for (int j = 0; j < 2; j++)
+        for (int i = 0; i < 2; i++) {
+          int rgb = texture.getRGB(Math.min(w - 1, Math.max(0, x0 + i)),
+              Math.min(h - 1, Math.max(0, y0 + j)));
+          float weight = (i == 0 ? 1 - fx : fx) * (j == 0 ? 1 - fy : fy);
+          texel[0] += weight * ((rgb >> 16) & 0xFF);
+          texel[1] += weight * ((rgb >> 8) & 0xFF);
+          texel[2] += weight * (rgb & 0xFF);
+        }
+      for (int k = 0; k < 3; k++)
+        color[k] *= texel[k] / 255;
+    }
+  }
+
+  /** A texture coordinate folded into [0, 1] the way GL_MIRRORED_REPEAT folds it. */
+  private static float mirror(float s) {
+    float f = s - 2 * (float) Math.floor(s / 2);
+    return f > 1 ? 2 - f : f;
+  }
+
+  private static int rgb(float[] color) {
+    return Math.round(color[0] * 255) << 16 | Math.round(color[1] * 255) << 8
+        | Math.round(color[2] * 255);
+  }
+
+  /**
+   * Renders the SandBox scene without GL, with the initial settings of SandBox's controls unless
+   * options say otherwise, writes the image, and then renders it again on 1, 2, 4 and so on up to
+   * the number of cores threads, printing the rays per second per thread for each.
+   * Usage: java ReferenceRenderer [-model file] [-size WxH] [-out file.png] [-frame n]
+   * [-lights vrgba] [-base] [-shadows]
+   * <p>
+   * -lights turns on the viewpoint, red, green and blue lights and the global ambient light,
+   * for each of the letters given.
+   */
+  public static void main(String[] args) throws IOException {
+    File modelFile = new File("dragon.ply");
+    File out = new File("reference.png");
+    int width = 600, height = 600;
+    boolean shadows = false;
+    SandBox.SceneOptions options = new SandBox.SceneOptions();
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "-model":
+          modelFile = new File(args[++i]);
+          break;
+        case "-size":
+          String[] size = args[++i].split("x");
+          width = Integer.parseInt(size[0]);
+          height = Integer.parseInt(size[1]);
+          break;
+        case "-out":
+          out = new File(args[++i]);
+          break;
+        case "-frame":
+          options.frame = Integer.parseInt(args[++i]);
+          break;
+        case "-lights":
+          String lights = args[++i];
+          options.viewpointLight = lights.contains("v");
+          options.redLight = lights.contains("r");
+          options.greenLight = lights.contains("g");
+          options.blueLight = lights.contains("b");
+          options.ambientLight = lights.contains("a");
+          break;
+        case "-base":
+          options.base = true;
+          break;
+        case "-shadows":
+          shadows = true;
+          break;
+        default:
+          System.out.println("Unknown option " + args[i]);
+          return;
+      }
+    }
+
+    MeshPipeline.Result result = MeshPipeline.standard().process(modelFile);
+    if (result.getError() != null) {
+      System.out.println("Could not load the model: " + result.getError().getMessage());
+      return;
+    }
+    Camera camera = SandBox.createCamera();
+    camera.reshape(0, 0, width, height);
+    double[] view = camera.getViewMatrix(new double[16]);
+    double[] projection = camera.getProjectionMatrix(new double[16]);
+    MeshData model = result.getMesh();
+    SceneNode modelNode = new SceneNode("model");
+    float[] bounds = model.getBounds();
+    SandBox.placeModel(modelNode, Arrays.copyOf(bounds, 3), Arrays.copyOfRange(bounds, 3, 6));
+    modelNode.update();
+
+    int cores = Runtime.getRuntime().availableProcessors();
+    for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+      ReferenceRenderer renderer = new ReferenceRenderer(threads);
+      SandBox.describeScene(renderer, model, modelNode.getWorldMatrix(), options, view);
+      renderer.setShadows(shadows);
+      BufferedImage image = renderer.render(view, projection, width, height);
+      if (threads == 1)
+        ImageIO.write(image, "png", out);
+      image = renderer.render(view, projection, width, height); // again, with the BVH built
+      System.out.println(renderer);
+      renderer.shutdown();
+      if (threads == cores)
+        break;
+    }
+    System.out.println("wrote " + out);
+  }
+
+}
@@ -0,0 +1,107 @@
+import com.jogamp.opengl.GL2;
+
+/**
+ * Draws the scene at a fraction of the window's resolution and stretches it over the window,
+ * which divides the cost of filling pixels, per-pixel lighting included, by the square of the
+ * scale. The frame is drawn into the bottom left corner of the back buffer, copied into a
+ * texture, and drawn back over the whole window with linear filtering. This needs no
+ * framebuffer objects, so it works in any GL2 context, GLJPanel's included.
+ */
+public class ResolutionScaler {
+
+  private float scale = 1;
+  private int texture;
+  private int textureWidth, textureHeight;
+  private int width, height, scaledWidth, scaledHeight;
+
+  /** The fraction of the window's width and height that frames are drawn at, up to 1. */
+  public void setScale(float scale) {
+    this.scale = Math.max(0.1f, Math.min(1, scale));
+  }
+
+  public float getScale() {
+    return scale;
+  }
+
+  /**
+   * Sets the viewport for drawing a frame into a window of the given size, and returns the size
+   * of the part of it drawn into, as { width, height }.
+   */
+  public int[] begin(GL2 gl, int width, int height) {
+    this.width = width;
+    this.height = height;
+    scaledWidth = scale < 1 ? Math.max(1, Math.round(width * scale)) : width;
+    scaledHeight = scale < 1 ? Math.max(1, Math.round(height * scale)) : height;
+    gl.glViewport(0, 0, scaledWidth, scaledHeight);
+    return new int[] {scaledWidth, scaledHeight};
+  }
+
+  /** Stretches the frame drawn since begin over the whole window, unless it is full size. */
+  public void end(GL2 gl) {
+    if (scaledWidth == width && scaledHeight == height)
+      return;
+    if (texture == 0 || textureWidth < width || textureHeight < height) {
+      if (texture == 0) {
+        int[] names = new int[1];
+        gl.glGenTextures(1, names, 0);
+        texture = GLResources.created(GLResources.Kind.TEXTURE, names[0], 0, this);
+      }
+      textureWidth = width;
+      textureHeight = height;
+      gl.glBindTexture(GL2.GL_TEXTURE_2D, texture);
+      gl.glTexImage2D(GL2.GL_TEXTURE_2D, 0, GL2.GL_RGB8, width, height, 0, GL2.GL_RGB,
+          GL2.GL_UNSIGNED_BYTE, null);
+      gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_MIN_FILTER, GL2.GL_LINEAR);
+      gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_MAG_FILTER, GL2.GL_LINEAR);
+      gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_S, GL2.GL_CLAMP_TO_EDGE);
+      gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_T, GL2.GL_CLAMP_TO_EDGE);
+      GLResources.resized(GLResources.Kind.TEXTURE, texture, (long) width * height * 3);
+    }
+    gl.glBindTexture(GL2.GL_TEXTURE_2D, texture);
+    gl.glCopyTexSubImage2D(GL2.GL_TEXTURE_2D, 0, 0, 0, 0, 0, scaledWidth, scaledHeight);
+
+    gl.glPushAttrib(GL2.GL_ENABLE_BIT | GL2.GL_TEXTURE_BIT | GL2.GL_VIEWPORT_BIT
+        | GL2.GL_DEPTH_BUFFER_BIT);
+    gl.glViewport(0, 0, width, height);
+    gl.glDisable(GL2.GL_LIGHTING);
+    gl.glDisable(GL2.GL_DEPTH_TEST);
+    gl.glDisable(GL2.GL_STENCIL_TEST);
+    gl.glDisable(GL2.GL_CULL_FACE);
+    gl.glDisable(GL2.GL_BLEND);
+    gl.glEnable(GL2.GL_TEXTURE_2D);
+    gl.glTexEnvi(GL2.GL_TEXTURE_ENV, GL2.GL_TEXTURE_ENV_MODE, GL2.GL_REPLACE);
+    gl.glMatrixMode(GL2.GL_PROJECTION);
+    gl.glPushMatrix();
+    gl.glLoadIdentity();
+    gl.glMatrixMode(GL2.GL_MODELVIEW);
+    gl.glPushMatrix();
+    gl.glLoadIdentity();
+    float s = (float) scaledWidth / textureWidth, t = (float) scaledHeight / textureHeight;
+    gl.glBegin(GL2.GL_QUADS);
+    gl.glTexCoord2f(0, 0);
+    gl.glVertex2f(-1, -1);
+    gl.glTexCoord2f(s, 0);
+    gl.glVertex2f(1, -1);
+    gl.glTexCoord2f(s, t);
+    gl.glVertex2f(1, 1);
+    gl.glTexCoord2f(0, t);
+    gl.glVertex2f(-1, 1);
+    gl.glEnd();
+    FrameStats.drawCall();
+    gl.glPopMatrix();
+    gl.glMatrixMode(GL2.GL_PROJECTION);
+    gl.glPopMatrix();
+    gl.glMatrixMode(GL2.GL_MODELVIEW);
+    gl.glBindTexture(GL2.GL_TEXTURE_2D, 0);
+    gl.glPopAttrib();
+  }
+
+  public void dispose(GL2 gl) {
+    if (texture != 0) {
+      gl.glDeleteTextures(1, new int[] {texture}, 0);
+      GLResources.deleted(GLResources.Kind.TEXTURE, texture);
+    }
+    texture = 0;
+  }
+
+}
@@ -2,16 +2,33 @@
 
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import javax.imageio.ImageIO;
 import javax.swing.*;
 
 import com.jogamp.opengl.*;
+import com.jogamp.newt.awt.NewtCanvasAWT;
+import com.jogamp.newt.opengl.GLWindow;
+import com.jogamp.opengl.awt.GLCanvas;
 import com.jogamp.opengl.awt.GLJPanel;
-import com.jogamp.opengl.util.gl2.GLUT;
+import com.jogamp.opengl.math.FloatUtil;
 import com.jogamp.opengl.util.texture.Texture;
-import com.jogamp.opengl.util.texture.TextureIO;
 
 /**
  * Shows a scene (a teapot on a short cylindrical base) that is illuminated by up to four lights
@@ -28,9 +45,57 @@ public class SandBox extends JPanel implements GLEventListener {
 
   private static final long serialVersionUID = 1L;
 
+  /**
+   * How frames reach the screen. PANEL draws into a GLJPanel, which renders offscreen and copies
+   * every frame back into Swing's image; it works everywhere, but the copy is a large fixed cost
+   * at high resolutions. CANVAS draws into a heavyweight GLCanvas and NEWT into a NEWT window
+   * inside the Swing layout, which both present by swapping buffers, paced by the swap
+   * interval.
+   */
+  public enum Presentation {
+    PANEL("GLJPanel"), CANVAS("GLCanvas"), NEWT("NEWT");
+
+    private final String label;
+
+    Presentation(String label) {
+      this.label = label;
+    }
+
+    @Override
+    public String toString() {
+      return label;
+    }
+  }
+
   public static void main(String[] args) {
     JFrame window = new JFrame("A Lighting Demo");
-    SandBox panel = new SandBox();
+    Presentation presentation = Presentation.PANEL;
+    int swapInterval = 1;
+    for (int i = 0; i + 1 < args.length; i++)
+      if (args[i].equals("-present"))
+        presentation = Presentation.valueOf(args[++i].toUpperCase(Locale.ROOT));
+      else if (args[i].equals("-swap"))
+        swapInterval = Integer.parseInt(args[++i]);
+    SandBox panel = new SandBox(presentation, swapInterval);
+    for (int i = 0; i < args.length; i++)
+      if ((args[i].equals("-present") || args[i].equals("-swap")) && i + 1 < args.length)
+        i++; // read above, since the panel is made with them
+      else if (args[i].equals("-quantize"))
+        panel.setQuantizeModels(true);
+      else if (args[i].equals("-outofcore"))
+        panel.setOutOfCoreModels(true);
+      else if (args[i].equals("-occlusion"))
+        panel.setBakeOcclusion(true);
+      else if (args[i].equals("-profile"))
+        panel.setProfiling(true, null);
+      else if (args[i].equals("-trace") && i + 1 < args.length)
+        panel.setProfiling(true, new File(args[++i]));
+      else if (args[i].equals("-budget") && i + 1 < args.length)
+        panel.setFrameBudget(Float.parseFloat(args[++i]));
+      else if (args[i].equals("-model") && i + 1 < args.length)
+        panel.setModelFile(new File(args[++i]));
+      else if (args[i].equals("-watch"))
+        panel.setWatchAssets(true);
     window.setContentPane(panel);
     window.pack();
     window.setLocation(50, 50);
@@ -47,47 +112,136 @@ public class SandBox extends JPanel implements GLEventListener {
   private JCheckBox ambientLight; // Checked if the global ambient light is on.
 
   private JCheckBox drawBase; // Checked if the base should be drawn.
+  private JCheckBox manyLights; // Checked if the orbiting lights and per-pixel lighting are on.
 
   private JSlider spotCutOff;
   private JSlider spotEx;
   private JSlider spotAt;
 
-
-  private GLJPanel display;
+  private JLabel frameInfo; // shows the draw calls and culling of the last frame
+  // the settings of the controls, copied on the event dispatch thread whenever they change, so
+  // that a NEWT display, which draws on its own thread, never reads Swing components
+  private volatile SceneOptions controls;
+  private SceneOptions frameControls; // controls, as read once by display for the frame
+
+
+  private Component display; // what draws the frames, in the layout
+  private GLAutoDrawable drawable; // the same, or the NEWT window in it
+  private Presentation presentation;
+  private int swapInterval; // frames per buffer swap, 0 for no vsync
+  private long drawNanos; // time spent in the last display
+  private double averageDraw, averagePresent; // smoothed over recent frames, in nanoseconds
+  private long presentedFrames;
+  private double totalDraw, totalPresent;
   private Timer animationTimer;
 
   private int frameNumber = 0; // The current frame number for an animation.
 
   private Camera camera;
 
-  private GLUT glut = new GLUT();
+  private MeshCache meshes = new MeshCache();
 
   // textures
-  Texture brickTex; // wall texture
-  int room; // room display list
+  private TextureManager textures;
+  private TextureManager.Handle brick; // wall texture
+  // static geometry, batched by material
+  private static final String ROOM = "room", BASE = "base";
+  private StaticBatcher batcher = new StaticBatcher();
+  // the spheres that mark the colored lights move every frame, so they are not batched but
+  // drawn from the mesh cache, each under its own matrix
+  private int markerSlices = 16;
+  private float[] markerEmission = new float[4];
+  // the red, green and blue lights: color, then degrees per frame, phase in frames, radius and
+  // height of the circle they move on
+  private static final float[][] ORBIT_LIGHTS = {
+      {0.5F, 0, 0, -1, 0, 10, 7},
+      {0, 0.5F, 0, 0.8743F, 100, 9, 8},
+      {0, 0, 0.5F, 1.3057F, -100, 9.5F, 7.5F}};
+  private static final float[] VIEWPOINT_LIGHT = {0.5F, 0.5F, 0.5F, 1}; // diffuse and specular
+  private static final float[] SPOT_LIGHT = {4, 4, 4, 1}, SPOT_AMBIENT = {0.5F, 0.5F, 0.5F, 1};
+  private float[] markerMatrix = new float[16];
+  private float[] tmpMatrix = new float[16];
+  private float[] tmpVec = new float[3];
+  private float[] lightPosition = new float[4];
+  // everything drawn with its own transform, with the model under it
+  private SceneNode scene = new SceneNode("scene");
+  private SceneNode modelNode = new SceneNode("model");
+  private double[] viewMatrix = new double[16];
+  private double[] eyePosition = new double[3];
+  private float[] worldEye = new float[4];
+  private float[] modelEye = new float[4]; // the eye in model coordinates
+  private float roomTessellation = 0.1f; // cell size used for per-vertex lighting
+  private boolean roomCoarse; // true if room was built for per-pixel lighting
+  // the room walls and the base, rasterized on the CPU to skip the model when they hide it
+  private OcclusionCuller occlusion = new OcclusionCuller(256, 128);
+  private double[] viewProjection = new double[16];
+  // the drawn scene nodes by their world bounds, for culling them against the view
+  private BoundsTree<SceneNode> objects = new BoundsTree<>(0.5f);
+  private Set<SceneNode> visibleObjects = new HashSet<>();
+  private int modelObject;
+  private SceneNode.BoundsFilter cullingFilter = (node, min, max) ->
+      (node.getRenderer() == null || visibleObjects.contains(node)) && occlusion.isVisible(min, max, null);
   GLModel model;
+  private boolean quantizeModels; // upload models with 16-bit positions and 8-bit normals
+  private boolean outOfCoreModels; // stream models in chunks from a preprocessed file
+  private boolean bakeOcclusion; // bake ambient occlusion into the model's vertex colors
+  // lowers the quality when frames take too long, by choosing a row of QUALITY_LEVELS
+  private QualityGovernor governor;
+  private FrameTimer frameTimer = new FrameTimer(); // measures the frames for the governor
+  private ResolutionScaler scaler = new ResolutionScaler();
+  private int width, height; // of the drawing area, from reshape
+  private long frameStart;
+  // the model's pixel tolerance when streamed, the light spheres' slices (and half as many
+  // stacks), the room's cell size and the resolution scale, from the best quality down
+  private static final float[][] QUALITY_LEVELS = {
+      {1, 16, 0.1F, 1}, {2, 16, 0.1F, 1}, {2, 12, 0.2F, 1}, {4, 12, 0.2F, 1},
+      {4, 8, 0.4F, 1}, {4, 8, 0.4F, 0.85F}, {8, 8, 0.8F, 0.85F}, {8, 6, 0.8F, 0.7F},
+      {16, 6, 1.6F, 0.6F}, {16, 6, 1.6F, 0.5F}};
+  private GLCallProfiler profiler; // counts GL calls per pass when profiling
+  private File traceFile; // where the profiler records its trace, or null
+  private File modelFile = new File("dragon.ply");
+  private boolean watchAssets; // reload the model and textures when their files change
+  private AssetWatcher watcher;
+  private ExecutorService reloader; // prepares reloaded models off the GL thread
+  private volatile boolean modelChanged; // set by the watcher, cleared when a reload starts
+  private CompletableFuture<Function<GL2, GLModel>> modelReload; // the model being prepared
+  private static final float[] MODEL_COLOR = {0.3F, 1.0F, 0.3F}; // its ambient and diffuse
+  private static final long OUT_OF_CORE_BUDGET = 64 << 20; // GPU bytes for streamed chunks
   float modelHeight;
 
+  // per-pixel lighting for lots of small orbiting lights
+  private static final int MANY_LIGHT_COUNT = 256;
+  private ClusteredLighting clusteredLighting =
+      new ClusteredLighting(new LightClusterer(16, 16, 24, 64));
+  private float[] manyLightData = new float[MANY_LIGHT_COUNT * LightClusterer.LIGHT_STRIDE];
+  private float[] manyLightOrbits = new float[MANY_LIGHT_COUNT * 4]; // radius, height, speed, phase
+  private boolean shading; // true while this frame uses clusteredLighting
+
+  public SandBox() {
+    this(Presentation.PANEL, 1);
+  }
+
   /**
-   * The constructor adds seven checkboxes under the display, to control the options.
-   * 
-   * @return
+   * The constructor adds seven checkboxes under the display, to control the options. The frames
+   * are presented the given way, with buffers swapped every swapInterval vertical retraces; if
+   * a CANVAS or NEWT display cannot be made, a PANEL is used.
    */
-  public SandBox() {
+  public SandBox(Presentation presentation, int swapInterval) {
+    this.swapInterval = swapInterval;
     GLCapabilities caps = new GLCapabilities(null);
-    display = new GLJPanel(caps);
+    try {
+      createDisplay(presentation, caps);
+    } catch (GLException | UnsatisfiedLinkError e) {
+      System.out.println(presentation + " is not available, using a GLJPanel: " + e);
+      createDisplay(Presentation.PANEL, caps);
+    }
     display.setPreferredSize(new Dimension(600, 600));
-    display.addGLEventListener(this);
+    drawable.addGLEventListener(this);
     setLayout(new BorderLayout());
     add(display, BorderLayout.CENTER);
-    camera = new Camera();
-    camera.lookAt(5, 10, 30, 0, 0, 0, 0, 1, 0);
-    camera.setScale(15);
-
-    // need to render a little further
-    camera.setLimits(-15, 15, -15, 15, -120, 30);
-
+    camera = createCamera();
     camera.installTrackball(display);
+    camera.setTrackballInertia(true);
     animationTimer = new Timer(30, new ActionListener() {
       public void actionPerformed(ActionEvent evt) {
         frameNumber++;
@@ -96,6 +250,7 @@ public class SandBox extends JPanel implements GLEventListener {
     });
     ActionListener boxHandler = new ActionListener() {
       public void actionPerformed(ActionEvent evt) {
+        updateControls();
         if (evt.getSource() == animating) {
           if (animating.isSelected()) {
             animationTimer.start();
@@ -107,17 +262,23 @@ public class SandBox extends JPanel implements GLEventListener {
         }
       }
     };
-    viewpointLight = new JCheckBox("Viewpoint Light", false);
-    redLight = new JCheckBox("Red Light", false);
-    blueLight = new JCheckBox("Blue Light", false);
-    greenLight = new JCheckBox("Green Light", false);
-    ambientLight = new JCheckBox("Global Ambient Light", false);
+    SceneOptions initial = new SceneOptions();
+    viewpointLight = new JCheckBox("Viewpoint Light", initial.viewpointLight);
+    redLight = new JCheckBox("Red Light", initial.redLight);
+    blueLight = new JCheckBox("Blue Light", initial.blueLight);
+    greenLight = new JCheckBox("Green Light", initial.greenLight);
+    ambientLight = new JCheckBox("Global Ambient Light", initial.ambientLight);
     animating = new JCheckBox("Animate", true);
-    drawBase = new JCheckBox("Draw Base", false);
+    drawBase = new JCheckBox("Draw Base", initial.base);
+    manyLights = new JCheckBox("Many Lights", false);
 
-    spotCutOff = new JSlider(0, 90);
-    spotEx = new JSlider(0, 128);
-    spotAt = new JSlider(0, 10);
+    spotCutOff = new JSlider(0, 90, initial.spotCutoff);
+    spotEx = new JSlider(0, 128, initial.spotExponent);
+    spotAt = new JSlider(0, 10, initial.spotAttenuation);
+    spotCutOff.addChangeListener(evt -> updateControls());
+    spotEx.addChangeListener(evt -> updateControls());
+    spotAt.addChangeListener(evt -> updateControls());
+    updateControls();
 
     viewpointLight.addActionListener(boxHandler);
     ambientLight.addActionListener(boxHandler);
@@ -126,12 +287,16 @@ public class SandBox extends JPanel implements GLEventListener {
     blueLight.addActionListener(boxHandler);
     animating.addActionListener(boxHandler);
     drawBase.addActionListener(boxHandler);
+    manyLights.addActionListener(boxHandler);
     JPanel bottom = new JPanel();
     bottom.setLayout(new GridLayout(5, 1));
     JPanel row1 = new JPanel();
     row1.add(animating);
     row1.add(drawBase);
     row1.add(ambientLight);
+    row1.add(manyLights);
+    frameInfo = new JLabel();
+    row1.add(frameInfo);
     bottom.add(row1);
     JPanel row2 = new JPanel();
     row2.add(viewpointLight);
@@ -153,13 +318,500 @@ public class SandBox extends JPanel implements GLEventListener {
     JPanel row5 = new JPanel();
     row5.add(new JLabel("Spotlight Exponent"));
     row5.add(spotEx);
+    JButton reference = new JButton("Reference Image");
+    reference.addActionListener(evt -> renderReference());
+    row5.add(reference);
     bottom.add(row5);
 
+    // a cylinder with height 2 and radius 1 with a spectrum of hues along its edges, flattened
+    // into a base under the model
+    float[] m = baseTransform();
+    batcher.add(BASE, ProceduralMesh.cylinder(64, true), m);
+    // fewer slices for occlusion, which fit inside the drawn cylinder
+    occlusion.addOccluder(BASE, ProceduralMesh.cylinder(16, false), m);
+
+    setMarkerDetail(16);
+
+    Random random = new Random(405);
+    for (int i = 0; i < MANY_LIGHT_COUNT; i++) {
+      manyLightOrbits[i * 4] = 2 + random.nextFloat() * 12;
+      manyLightOrbits[i * 4 + 1] = -4 + random.nextFloat() * 12;
+      manyLightOrbits[i * 4 + 2] = (random.nextFloat() - 0.5f) * 3;
+      manyLightOrbits[i * 4 + 3] = random.nextFloat() * 360;
+      Color c = Color.getHSBColor(random.nextFloat(), 1, 1);
+      int s = i * LightClusterer.LIGHT_STRIDE;
+      manyLightData[s + 3] = 3; // radius of influence
+      manyLightData[s + 4] = c.getRed() / 255.0F;
+      manyLightData[s + 5] = c.getGreen() / 255.0F;
+      manyLightData[s + 6] = c.getBlue() / 255.0F;
+    }
+  }
+
+  private void createDisplay(Presentation presentation, GLCapabilities caps) {
+    this.presentation = presentation;
+    if (presentation == Presentation.PANEL) {
+      // the panel copies the frame into Swing in paintComponent, after display has drawn it
+      GLJPanel panel = new GLJPanel(caps) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void paintComponent(Graphics g) {
+          long start = System.nanoTime();
+          drawNanos = 0;
+          super.paintComponent(g);
+          presented(System.nanoTime() - start - drawNanos);
+        }
+      };
+      display = panel;
+      drawable = panel;
+    } else if (presentation == Presentation.CANVAS) {
+      GLCanvas canvas = new GLCanvas(caps);
+      display = canvas;
+      drawable = canvas;
+    } else {
+      GLWindow window = GLWindow.create(caps);
+      NewtCanvasAWT canvas = new NewtCanvasAWT(window);
+      forwardMouse(window, canvas);
+      display = canvas;
+      drawable = window;
+    }
+    // the heavyweight displays swap at the end of display, where the swap can be timed
+    drawable.setAutoSwapBufferMode(presentation == Presentation.PANEL);
+  }
+
+  /**
+   * NEWT windows have their own input events, so the mouse events of the window are posted to
+   * the AWT canvas holding it, where the camera's trackball listens.
+   */
+  private static void forwardMouse(GLWindow window, Component canvas) {
+    window.addMouseListener(new com.jogamp.newt.event.MouseAdapter() {
+      private void post(com.jogamp.newt.event.MouseEvent e, int id) {
+        int button = Math.max(1, Math.min(3, (int) e.getButton()));
+        // the buttons held down after the event, as AWT reports them
+        int modifiers = 0;
+        for (int b = 1; b <= 3; b++)
+          if (e.isButtonDown(b) && !(id == MouseEvent.MOUSE_RELEASED && b == button))
+            modifiers |= InputEvent.getMaskForButton(b);
+        if (id != MouseEvent.MOUSE_RELEASED)
+          modifiers |= InputEvent.getMaskForButton(button);
+        Toolkit.getDefaultToolkit().getSystemEventQueue().postEvent(new MouseEvent(canvas, id,
+            e.getWhen(), modifiers, e.getX(), e.getY(), e.getClickCount(), false, button));
+      }
+
+      @Override
+      public void mousePressed(com.jogamp.newt.event.MouseEvent e) {
+        post(e, MouseEvent.MOUSE_PRESSED);
+      }
+
+      @Override
+      public void mouseReleased(com.jogamp.newt.event.MouseEvent e) {
+        post(e, MouseEvent.MOUSE_RELEASED);
+      }
+
+      @Override
+      public void mouseDragged(com.jogamp.newt.event.MouseEvent e) {
+        post(e, MouseEvent.MOUSE_DRAGGED);
+      }
+    });
+  }
+
+  /** Adds the time a frame took to reach the screen after display drew it. */
+  private void presented(long nanos) {
+    double draw = drawNanos, present = Math.max(0, nanos);
+    averageDraw = presentedFrames == 0 ? draw : averageDraw * 0.9 + draw * 0.1;
+    averagePresent = presentedFrames == 0 ? present : averagePresent * 0.9 + present * 0.1;
+    totalDraw += draw;
+    totalPresent += present;
+    presentedFrames++;
+  }
+
+  /** The presentation and the recent draw and present times, as shown under the scene. */
+  private String describePresentation() {
+    return String.format("%s, swap %d: %.1f ms draw + %.1f ms present", presentation,
+        swapInterval, averageDraw / 1e6, averagePresent / 1e6);
+  }
+
+  /**
+   * Uploads models with quantized positions and normals, which halves their vertex memory. Must
+   * be called before the panel is shown.
+   */
+  public void setQuantizeModels(boolean quantize) {
+    quantizeModels = quantize;
+  }
+
+  /**
+   * Draws models out of core: each PLY file is converted once into a file of chunks at several
+   * levels of detail, next to it, and only the chunks in view are kept on the GPU. Must be called
+   * before the panel is shown.
+   */
+  public void setOutOfCoreModels(boolean outOfCore) {
+    outOfCoreModels = outOfCore;
+  }
+
+  /**
+   * Bakes ambient occlusion into the models' vertex colors when they load, which darkens their
+   * folds and crevices at no cost per frame. The bake is slow for big scans, so the processed
+   * mesh is cached next to the model file and only made again when the file changes. Must be
+   * called before the panel is shown.
+   */
+  public void setBakeOcclusion(boolean bake) {
+    bakeOcclusion = bake;
+  }
+
+  /**
+   * The model to show, dragon.ply unless set: a file of any format MeshLoaders reads, such as a
+   * .cmesh file made by java MeshCodec in.ply out.cmesh. Must be called before the panel is
+   * shown.
+   */
+  public void setModelFile(File file) {
+    modelFile = file;
+  }
+
+  /**
+   * Watches the model and texture files while the panel is shown, and reloads them when they
+   * change. The new version is read and processed on a background thread, with the processed
+   * model cached for the next start, and swapped in at the start of a frame, when the old
+   * version is deleted; frames go on drawing the old version until then. Must be called before
+   * the panel is shown.
+   */
+  public void setWatchAssets(boolean watch) {
+    watchAssets = watch;
+  }
+
+  /**
+   * Counts every GL call by entry point and by pass of the frame, showing the total under the
+   * scene and printing the table when the panel is closed. If trace is not null the calls are
+   * also recorded to it, for java GLCallProfiler trace. Must be called before the panel is shown.
+   */
+  public void setProfiling(boolean profiling, File trace) {
+    profiler = profiling ? new GLCallProfiler() : null;
+    traceFile = trace;
+  }
+
+  /**
+   * Keeps frames within a budget of milliseconds by lowering the quality step by step while
+   * they take longer, and raising it again when there is room. The frame time is the longer of
+   * display's CPU time and the GPU time of its GL work, measured by a FrameTimer without waiting
+   * for the GPU. Must be called before the panel is shown.
+   */
+  public void setFrameBudget(float milliseconds) {
+    governor = new QualityGovernor((long) (milliseconds * 1e6), QUALITY_LEVELS.length,
+        this::applyQuality);
+  }
+
+  /** The governor's current quality level, 0 for the best, or 0 if there is no governor. */
+  public int getQualityLevel() {
+    return governor == null ? 0 : governor.getLevel();
+  }
+
+  /** Sets the quality knobs to a row of QUALITY_LEVELS. Called on the GL thread. */
+  private void applyQuality(int level) {
+    float[] q = QUALITY_LEVELS[level];
+    if (model != null && model.getOutOfCoreMesh() != null)
+      model.getOutOfCoreMesh().setPixelTolerance(q[0]);
+    setMarkerDetail((int) q[1]);
+    if (roomTessellation != q[2]) {
+      roomTessellation = q[2];
+      if (!roomCoarse)
+        buildRoom(roomTessellation);
+    }
+    scaler.setScale(q[3]);
+  }
+
+  /** Draws the spheres that mark the colored lights with the given number of slices. */
+  private void setMarkerDetail(int slices) {
+    markerSlices = slices;
+  }
+
+  /** Counts the GL calls from here on under the named pass, when profiling. */
+  private void pass(String name) {
+    if (profiler != null)
+      profiler.beginPass(name);
+  }
+
+  /**
+   * The pipeline models are loaded into memory with: the standard one, with ambient occlusion
+   * baked if that is on. The result is cached if the bake is on or the files are watched.
+   */
+  private MeshPipeline modelPipeline() {
+    MeshPipeline pipeline = MeshPipeline.standard();
+    if (bakeOcclusion)
+      pipeline.add(new MeshStages.AmbientOcclusion(64, 0.1F, MODEL_COLOR));
+    return pipeline.cache(bakeOcclusion || watchAssets);
+  }
+
+  /**
+   * Reads and processes a model file, on any thread, and returns the function that uploads it,
+   * which must be called on the GL thread. Out of core, the PLY file is first converted into a
+   * file of chunks next to it, if that is missing or stale; the conversion is written under a
+   * temporary name and renamed, since a model being drawn may still be reading the old one.
+   */
+  private Function<GL2, GLModel> prepareModel(File ply) {
+    if (outOfCoreModels) {
+      File chunks = new File(ply.getPath().replaceFirst("\\.ply$", "") + ".ooc");
+      try {
+        if (!chunks.exists() || chunks.lastModified() < ply.lastModified()) {
+          File building = new File(chunks.getPath() + ".tmp");
+          System.out.print(OutOfCoreMesh.build(ply, building,
+              OutOfCoreMesh.DEFAULT_MAX_TRIANGLES));
+          Files.move(building.toPath(), chunks.toPath(), StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+        }
+        OutOfCoreMesh mesh = new OutOfCoreMesh(chunks, OUT_OF_CORE_BUDGET);
+        return gl -> new GLModel(gl, mesh);
+      } catch (IOException e) {
+        e.printStackTrace(); // load it into memory instead
+      }
+    }
+    MeshPipeline.Result result = modelPipeline().process(ply);
+    return gl -> new GLModel(gl, result, quantizeModels);
+  }
+
+  /** Watches the model and the brick texture, reloading them when their files change. */
+  private void startWatching() {
+    reloader = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "model reloader");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      watcher = new AssetWatcher();
+      watcher.watch(modelFile, () -> {
+        modelChanged = true;
+        display.repaint();
+      });
+      watcher.watch(new File(brick.getPath()), () -> {
+        textures.reload(brick.getPath());
+        display.repaint();
+      });
+    } catch (IOException e) {
+      System.out.println("Assets are not watched: " + e);
+    }
+  }
+
+  /**
+   * Starts preparing the model again if its file has changed, and swaps in the new model once
+   * it is ready, deleting the old one. Called at the start of a frame, so every frame draws one
+   * whole model or the other. A model that could not be read is dropped, and the old one kept.
+   */
+  private void updateModel(GL2 gl) {
+    if (modelReload == null && modelChanged) {
+      modelChanged = false;
+      modelReload = CompletableFuture.supplyAsync(() -> prepareModel(modelFile), reloader);
+      modelReload.whenComplete((prepared, error) -> display.repaint());
+    }
+    if (modelReload == null || !modelReload.isDone())
+      return;
+    GLModel fresh;
+    try {
+      fresh = modelReload.get().apply(gl);
+    } catch (InterruptedException | ExecutionException e) {
+      System.out.println("Could not reload " + modelFile);
+      e.printStackTrace();
+      return;
+    } finally {
+      modelReload = null;
+      if (modelChanged)
+        display.repaint(); // it changed again while loading, so start over on the next frame
+    }
+    MeshPipeline.Result result = fresh.getLoadResult();
+    if (result != null) {
+      System.out.println(result);
+      if (result.getError() != null) {
+        fresh.distroy();
+        return;
+      }
+    }
+    model.distroy();
+    model = fresh;
+    placeModel(modelNode, model.getMin(), model.getMax());
+    if (model.getOutOfCoreMesh() != null)
+      model.getOutOfCoreMesh().setPixelTolerance(QUALITY_LEVELS[getQualityLevel()][0]);
+  }
+
+  // ----------------------- The scene, for rendering without GL -----------------------
+
+  /**
+   * The settings of the controls that change how the scene looks. A new SceneOptions holds the
+   * controls' initial settings.
+   */
+  static class SceneOptions {
+    int frame; // where the colored lights are on their circles
+    boolean viewpointLight, redLight, greenLight, blueLight, ambientLight, base;
+    boolean manyLights; // drawn only with GL
+    int spotCutoff = 45, spotExponent = 64, spotAttenuation = 5;
+  }
+
+  private SceneOptions getSceneOptions() {
+    SceneOptions options = new SceneOptions();
+    options.frame = frameNumber;
+    options.viewpointLight = viewpointLight.isSelected();
+    options.redLight = redLight.isSelected();
+    options.greenLight = greenLight.isSelected();
+    options.blueLight = blueLight.isSelected();
+    options.ambientLight = ambientLight.isSelected();
+    options.base = drawBase.isSelected();
+    options.manyLights = manyLights.isSelected();
+    options.spotCutoff = spotCutOff.getValue();
+    options.spotExponent = spotEx.getValue();
+    options.spotAttenuation = spotAt.getValue();
+    return options;
+  }
+
+  /** Copies the settings of the controls for display. Must be called on the event dispatch thread. */
+  private void updateControls() {
+    controls = getSceneOptions();
+  }
+
+  /** The camera as the scene starts out, before the user turns it. */
+  static Camera createCamera() {
+    Camera camera = new Camera();
+    camera.lookAt(5, 10, 30, 0, 0, 0, 0, 1, 0);
+    camera.setScale(15);
+
+    // need to render a little further
+    camera.setLimits(-15, 15, -15, 15, -120, 30);
+    return camera;
+  }
+
+  /**
+   * The transform of the base: a cylinder with height 2 and radius 1, flattened into a disk
+   * under the model.
+   */
+  static float[] baseTransform() {
+    float[] m = FloatUtil.makeTranslation(new float[16], true, 0, -5, 0);
+    float[] tmp = new float[16];
+    FloatUtil.multMatrix(m, FloatUtil.makeRotationAxis(tmp, 0, -FloatUtil.HALF_PI, 1, 0, 0, new float[3]));
+    return FloatUtil.multMatrix(m, FloatUtil.makeScale(tmp, true, 10, 10, 0.5F));
+  }
+
+  /**
+   * Scales a model with the given bounds to a longest edge of 10 and centers it on the origin.
+   * Empty bounds, such as those of a model that failed to load, are taken as a unit cube, so
+   * the scene graph never sees an infinite scale.
+   */
+  static void placeModel(SceneNode node, float[] min, float[] max) {
+    float edge = Math.max(max[0] - min[0], Math.max(max[1] - min[1], max[2] - min[2]));
+    if (!(edge > 0) || Float.isInfinite(edge)) {
+      min = new float[] {-0.5F, -0.5F, -0.5F};
+      max = new float[] {0.5F, 0.5F, 0.5F};
+      edge = 1;
+    }
+    float size = 10 / edge;
+    node.setScale(size, size, size);
+    node.setTranslation(-(min[0] + max[0]) / 2 * size, -(min[1] + max[1]) / 2 * size,
+        -(min[2] + max[2]) / 2 * size);
+    node.setBounds(min, max);
+  }
+
+  /**
+   * Adds the scene to renderer as display draws it, with the given options: the room, the base,
+   * the model placed by modelMatrix, the markers and lights, and the spotlight. view is the
+   * camera's view matrix, which the viewpoint light shines along.
+   */
+  static void describeScene(ReferenceRenderer renderer, MeshData model, float[] modelMatrix,
+      SceneOptions options, double[] view) {
+    BufferedImage brick = null;
+    try {
+      brick = ImageIO.read(new File("brick.png"));
+    } catch (IOException e) {
+      System.out.println("The room will have no texture: " + e);
+    }
+    // per-pixel lighting, so a single cell per wall; drawRoom lowers them half a unit
+    ReferenceRenderer.Material room = new ReferenceRenderer.Material(0.3F, 0.3F, 0.3F)
+        .specular(0.4F, 0.4F, 0.4F, 90).texture(brick);
+    float[] lower = FloatUtil.makeTranslation(new float[16], true, 0, -0.5F, 0);
+    for (MeshData wall : roomWalls(Float.MAX_VALUE))
+      renderer.add(wall, lower, room);
+    if (options.base)
+      renderer.add(ProceduralMesh.cylinder(64, true), baseTransform(),
+          new ReferenceRenderer.Material(1, 1, 1));
+    renderer.add(model, modelMatrix,
+        new ReferenceRenderer.Material(0.3F, 1, 0.3F).specular(5, 5, 5, 90));
+
+    if (options.ambientLight)
+      renderer.setGlobalAmbient(0.15F, 0.15F, 0.15F);
+    float[] black = {0, 0, 0};
+    if (options.viewpointLight) // GL_LIGHT0 keeps its default direction, along +z in eye space
+      renderer.addLight(new ReferenceRenderer.Light((float) view[2], (float) view[6],
+          (float) view[10], 0).colors(black, VIEWPOINT_LIGHT, VIEWPOINT_LIGHT));
+    boolean[] on = {options.redLight, options.greenLight, options.blueLight};
+    MeshData sphere = ProceduralMesh.sphere(16, 8);
+    float[] m = new float[16], tmp = new float[16], vec = new float[3];
+    for (int i = 0; i < ORBIT_LIGHTS.length; i++) {
+      float[] o = ORBIT_LIGHTS[i];
+      orbitMatrix(o, options.frame, m, tmp, vec);
+      if (on[i])
+        renderer.addLight(new ReferenceRenderer.Light(m[12], m[13], m[14], 1).colors(
+            new float[] {o[0] / 5, o[1] / 5, o[2] / 5}, o, o));
+      // the markers glow in their light's color, in GL's default material
+      FloatUtil.multMatrix(m, FloatUtil.makeScale(tmp, true, 0.5F, 0.5F, 0.5F));
+      ReferenceRenderer.Material marker = new ReferenceRenderer.Material(0.8F, 0.8F, 0.8F);
+      if (on[i])
+        marker.emission(o[0], o[1], o[2]);
+      renderer.add(sphere, m, marker);
+    }
+    renderer.addLight(new ReferenceRenderer.Light(0, 25, 0, 1)
+        .colors(SPOT_AMBIENT, SPOT_LIGHT, SPOT_LIGHT)
+        .spot(0, -1, 0, options.spotCutoff, options.spotExponent)
+        .attenuation(options.spotAttenuation));
+  }
 
+  /**
+   * Renders the current view of the scene on the CPU, on a background thread, and writes it to
+   * reference.png.
+   */
+  private void renderReference() {
+    MeshPipeline.Result result = model == null ? null : model.getLoadResult();
+    if (result == null || result.getMesh() == null) {
+      System.out.println("The reference image needs a model loaded into memory");
+      return;
+    }
+    SceneOptions options = getSceneOptions();
+    double[] view = camera.getViewMatrix(new double[16]);
+    double[] projection = camera.getProjectionMatrix(new double[16]);
+    int[] viewport = camera.getViewport();
+    float[] modelMatrix = modelNode.getWorldMatrix().clone();
+    Thread thread = new Thread(() -> {
+      ReferenceRenderer renderer = new ReferenceRenderer(0);
+      describeScene(renderer, result.getMesh(), modelMatrix, options, view);
+      BufferedImage image = renderer.render(view, projection, viewport[2], viewport[3]);
+      renderer.shutdown();
+      try {
+        ImageIO.write(image, "png", new File("reference.png"));
+        System.out.println("reference.png: " + renderer);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }, "reference renderer");
+    thread.setDaemon(true);
+    thread.start();
   }
 
   // ----------------------------- Methods for drawing -------------------------------
 
+  /**
+   * The renderer of the model's scene node: draws the model and its bounding box, culling the
+   * clusters of triangles that face away from the eye.
+   */
+  private void drawModel(GL2 gl, SceneNode node) {
+    model.drawBoundingBox(meshes);
+    beginLighting(gl, false);
+    if (camera.getOrthographic()) {
+      model.draw(); // every eye ray has the same direction, so there is no eye point to cull with
+    } else {
+      // the eye in model coordinates
+      camera.getEyePosition(eyePosition);
+      FloatUtil.invertMatrix(node.getWorldMatrix(), tmpMatrix);
+      for (int i = 0; i < 3; i++)
+        worldEye[i] = (float) eyePosition[i];
+      worldEye[3] = 1;
+      FloatUtil.multMatrixVec(tmpMatrix, worldEye, modelEye);
+      model.draw(modelEye[0], modelEye[1], modelEye[2]);
+    }
+    endLighting(gl);
+  }
+
   /**
    * Sets the positions of the colored lights and turns them on and off, depending on the state of
    * the redLight, greenLight, and blueLight options. Draws a small sphere at the location of each
@@ -171,114 +823,163 @@ public class SandBox extends JPanel implements GLEventListener {
     float zero[] = {0, 0, 0, 1};
     gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SPECULAR, zero, 0);
 
-    if (viewpointLight.isSelected())
+    if (frameControls.viewpointLight)
       gl.glEnable(GL2.GL_LIGHT0);
     else
       gl.glDisable(GL2.GL_LIGHT0);
 
-    if (redLight.isSelected()) {
-      float red[] = {0.5F, 0, 0, 1};
-      gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_EMISSION, red, 0);
-      gl.glEnable(GL2.GL_LIGHT1);
-    } else {
-      gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_EMISSION, zero, 0);
-      gl.glDisable(GL2.GL_LIGHT1);
-    }
-    gl.glPushMatrix();
-    gl.glRotated(-frameNumber, 0, 1, 0);
-    gl.glTranslated(10, 7, 0);
-    gl.glLightfv(GL2.GL_LIGHT1, GL2.GL_POSITION, zero, 0);
-    glut.glutSolidSphere(0.5, 16, 8);
-    gl.glPopMatrix();
-
-    if (greenLight.isSelected()) {
-      float green[] = {0, 0.5F, 0, 1};
-      gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_EMISSION, green, 0);
-      gl.glEnable(GL2.GL_LIGHT2);
-    } else {
-      gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_EMISSION, zero, 0);
-      gl.glDisable(GL2.GL_LIGHT2);
-    }
-    gl.glPushMatrix();
-    gl.glRotated((frameNumber + 100) * 0.8743, 0, 1, 0);
-    gl.glTranslated(9, 8, 0);
-    gl.glLightfv(GL2.GL_LIGHT2, GL2.GL_POSITION, zero, 0);
-    glut.glutSolidSphere(0.5, 16, 8);
-    gl.glPopMatrix();
-
-    if (blueLight.isSelected()) {
-      float blue[] = {0, 0, 0.5F, 1};
-      gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_EMISSION, blue, 0);
-      gl.glEnable(GL2.GL_LIGHT3);
-    } else {
-      gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_EMISSION, zero, 0);
-      gl.glDisable(GL2.GL_LIGHT3);
-    }
-    gl.glPushMatrix();
-    gl.glRotated((frameNumber - 100) * 1.3057, 0, 1, 0);
-    gl.glTranslated(9.5, 7.5, 0);
-    gl.glLightfv(GL2.GL_LIGHT3, GL2.GL_POSITION, zero, 0);
-    glut.glutSolidSphere(0.5, 16, 8);
-    gl.glPopMatrix();
+    GLMesh marker = meshes.getSphere(gl, markerSlices, markerSlices / 2);
+    orbit(gl, GL2.GL_LIGHT1, marker, frameControls.redLight, ORBIT_LIGHTS[0]);
+    orbit(gl, GL2.GL_LIGHT2, marker, frameControls.greenLight, ORBIT_LIGHTS[1]);
+    orbit(gl, GL2.GL_LIGHT3, marker, frameControls.blueLight, ORBIT_LIGHTS[2]);
 
     gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_EMISSION, zero, 0); // Turn off emission color!
   } // end lights()
 
   /**
-   * Creates an array containing the RGBA corresponding to the specified hue, with saturation 1 and
-   * brightness 0.6. The hue should be in the range 0.0 to 1.0.
+   * Moves the orbiting lights used by the per-pixel lighting path, the same way the red, green
+   * and blue lights move, and marks each one with a point in its own color.
    */
-  private float[] colorArrayForHue(double hue) {
-    Color c = Color.getHSBColor((float) hue, 1, 0.6F);
-    return new float[] {c.getRed() / 255.0F, c.getGreen() / 255.0F, c.getBlue() / 255.0F, 1};
+  private void manyLights(GL2 gl) {
+    for (int i = 0; i < MANY_LIGHT_COUNT; i++) {
+      double angle = Math.toRadians(manyLightOrbits[i * 4 + 3] + frameNumber * manyLightOrbits[i * 4 + 2]);
+      int s = i * LightClusterer.LIGHT_STRIDE;
+      manyLightData[s] = (float) (manyLightOrbits[i * 4] * Math.cos(angle));
+      manyLightData[s + 1] = manyLightOrbits[i * 4 + 1];
+      manyLightData[s + 2] = (float) (manyLightOrbits[i * 4] * -Math.sin(angle));
+    }
+    clusteredLighting.update(gl, camera, manyLightData, MANY_LIGHT_COUNT);
+
+    gl.glPushAttrib(GL2.GL_ENABLE_BIT | GL2.GL_CURRENT_BIT | GL2.GL_POINT_BIT);
+    gl.glDisable(GL2.GL_LIGHTING);
+    gl.glPointSize(4);
+    gl.glBegin(GL2.GL_POINTS);
+    for (int i = 0; i < MANY_LIGHT_COUNT; i++) {
+      int s = i * LightClusterer.LIGHT_STRIDE;
+      gl.glColor3f(manyLightData[s + 4], manyLightData[s + 5], manyLightData[s + 6]);
+      gl.glVertex3f(manyLightData[s], manyLightData[s + 1], manyLightData[s + 2]);
+    }
+    gl.glEnd();
+    FrameStats.drawCall();
+    gl.glPopAttrib();
   }
 
+  /**
+   * Switches to per-pixel lighting for the next objects when the many lights option is on. Does
+   * nothing otherwise, so the fixed-function lighting is used.
+   */
+  private void beginLighting(GL2 gl, boolean textured) {
+    if (!shading)
+      return;
+    int mask = 1 << 4; // the spotlight is always on
+    if (frameControls.viewpointLight)
+      mask |= 1;
+    if (frameControls.redLight)
+      mask |= 1 << 1;
+    if (frameControls.greenLight)
+      mask |= 1 << 2;
+    if (frameControls.blueLight)
+      mask |= 1 << 3;
+    clusteredLighting.begin(gl, textured, mask);
+  }
 
+  private void endLighting(GL2 gl) {
+    if (shading)
+      clusteredLighting.end(gl);
+  }
 
-  private void buildRoom(GL2 gl) {
+  /**
+   * Places one of the colored lights, described by a row of ORBIT_LIGHTS, on its circle for the
+   * current frame, turns it on or off, and draws the sphere that marks it, glowing in the
+   * light's color when it is on. The light position is set in world coordinates, so the
+   * modelview matrix must hold just the view.
+   */
+  private void orbit(GL2 gl, int light, GLMesh marker, boolean on, float[] orbit) {
+    if (on)
+      gl.glEnable(light);
+    else
+      gl.glDisable(light);
+    orbitMatrix(orbit, frameNumber, markerMatrix, tmpMatrix, tmpVec);
+    lightPosition[0] = markerMatrix[12];
+    lightPosition[1] = markerMatrix[13];
+    lightPosition[2] = markerMatrix[14];
+    lightPosition[3] = 1;
+    gl.glLightfv(light, GL2.GL_POSITION, lightPosition, 0);
+    FloatUtil.multMatrix(markerMatrix, FloatUtil.makeScale(tmpMatrix, true, 0.5F, 0.5F, 0.5F));
+    for (int k = 0; k < 3; k++)
+      markerEmission[k] = on ? orbit[k] : 0;
+    markerEmission[3] = 1;
+    gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_EMISSION, markerEmission, 0);
+    gl.glPushMatrix();
+    gl.glMultMatrixf(markerMatrix, 0);
+    marker.draw(gl);
+    gl.glPopMatrix();
+  }
 
-    room = gl.glGenLists(1);
-    gl.glNewList(room, GL2.GL_COMPILE);
+  /**
+   * Sets m to the transform that puts a light described by a row of ORBIT_LIGHTS in place at
+   * frame, using tmp and vec, of 16 and 3 floats, as scratch. Returns m.
+   */
+  private static float[] orbitMatrix(float[] orbit, int frame, float[] m, float[] tmp,
+      float[] vec) {
+    double degrees = (frame + orbit[4]) * orbit[3];
+    FloatUtil.makeRotationAxis(m, 0, (float) Math.toRadians(degrees), 0, 1, 0, vec);
+    return FloatUtil.multMatrix(m, FloatUtil.makeTranslation(tmp, true, orbit[5], orbit[6], 0));
+  }
 
+  /**
+   * Builds the room as one indexed triangle strip. The walls are tessellated into cells of
+   * cellSize so that per-vertex lighting (the spotlight in particular) looks right; with
+   * per-pixel lighting each wall can be a single cell. The walls share the brick material, so
+   * they end up in one batch.
+   */
+  private void buildRoom(float cellSize) {
+    batcher.clear(ROOM);
+    occlusion.clear(ROOM);
+    float[] identity = FloatUtil.makeIdentity(new float[16]);
+    for (MeshData wall : roomWalls(cellSize))
+      batcher.add(ROOM, wall, identity);
+    // a single cell per wall is enough for the occluders, lowered the way display draws them
+    float[] lower = FloatUtil.makeTranslation(new float[16], true, 0, -0.5F, 0);
+    for (MeshData wall : roomWalls(Float.MAX_VALUE))
+      occlusion.addOccluder(ROOM, wall, lower);
+  }
 
-    // square
-    float tes = .1f;
+  /**
+   * The walls of the room in world coordinates, as triangle strips with cells no bigger than
+   * cellSize. display draws them half a unit lower.
+   */
+  static List<MeshData> roomWalls(float cellSize) {
+    List<MeshData> walls = new ArrayList<>();
     float tile = 10;
+    float[] m = new float[16];
+    float[] r = new float[16];
+    float[] tmp = new float[3];
+
     // bottom
-    gl.glPushMatrix();
-    gl.glTranslatef(0, -5, 0);
-    square(gl, 30, 30, tile, tile, tes, tes);
-    gl.glPopMatrix();
+    FloatUtil.makeTranslation(m, true, 0, -5, 0);
+    walls.add(GridMesh.create(30, 30, tile, tile, cellSize).transform(m));
 
     // back
-    gl.glPushMatrix();
-    gl.glTranslatef(0, 0, -15);
-    gl.glRotated(90, 1, 0, 0);
-    square(gl, 30, 10, tile, tile, tes, tes);
-    gl.glPopMatrix();
+    FloatUtil.makeTranslation(m, true, 0, 0, -15);
+    FloatUtil.multMatrix(m, FloatUtil.makeRotationAxis(r, 0, FloatUtil.HALF_PI, 1, 0, 0, tmp));
+    walls.add(GridMesh.create(30, 10, tile, tile, cellSize).transform(m));
 
     // left
-    gl.glPushMatrix();
-    gl.glTranslatef(-15, 0, 0);
-    gl.glRotated(-90, 0, 0, 1);
-    square(gl, 10, 30, tile, tile, tes, tes);
-    gl.glPopMatrix();
+    FloatUtil.makeTranslation(m, true, -15, 0, 0);
+    FloatUtil.multMatrix(m, FloatUtil.makeRotationAxis(r, 0, -FloatUtil.HALF_PI, 0, 0, 1, tmp));
+    walls.add(GridMesh.create(10, 30, tile, tile, cellSize).transform(m));
 
     // right
-    gl.glPushMatrix();
-    gl.glTranslatef(15, 0, 0);
-    gl.glRotated(90, 0, 0, 1);
-    square(gl, 10, 30, tile, tile, tes, tes);
-    gl.glPopMatrix();
-
-    // back
-    gl.glPushMatrix();
-    gl.glTranslatef(0, 0, 15);
-    gl.glRotated(-90, 1, 0, 0);
-    square(gl, 30, 10, tile, tile, tes, tes);
-    gl.glPopMatrix();
-
-    gl.glEndList();
+    FloatUtil.makeTranslation(m, true, 15, 0, 0);
+    FloatUtil.multMatrix(m, FloatUtil.makeRotationAxis(r, 0, FloatUtil.HALF_PI, 0, 0, 1, tmp));
+    walls.add(GridMesh.create(10, 30, tile, tile, cellSize).transform(m));
+
+    // front
+    FloatUtil.makeTranslation(m, true, 0, 0, 15);
+    FloatUtil.multMatrix(m, FloatUtil.makeRotationAxis(r, 0, -FloatUtil.HALF_PI, 1, 0, 0, tmp));
+    walls.add(GridMesh.create(30, 10, tile, tile, cellSize).transform(m));
+    return walls;
   }
 
   private void drawRoom(GL2 gl) {
@@ -286,107 +987,30 @@ public class SandBox extends JPanel implements GLEventListener {
     gl.glPushAttrib(GL2.GL_LIGHTING_BIT | GL2.GL_ENABLE_BIT | GL2.GL_CURRENT_BIT);
     gl.glEnable(GL2.GL_CULL_FACE);
     gl.glCullFace(GL2.GL_BACK);
-    // start texture
-    brickTex.bind(gl);
-    gl.glEnable(GL2.GL_TEXTURE_2D);
-    gl.glEnable(GL2.GL_BLEND);
-    gl.glBlendFunc(GL2.GL_ONE, GL2.GL_SRC_COLOR);
-    brickTex.enable(gl);
-
-    // allow textures to wrap
-    gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_S, GL2.GL_MIRRORED_REPEAT);
-    gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_T, GL2.GL_MIRRORED_REPEAT);
-
+    // start texture, unless it is still loading (wrap and filtering were set when it was loaded)
+    Texture brickTex = brick.getTexture();
+    if (brickTex != null) {
+      brickTex.bind(gl);
+      gl.glEnable(GL2.GL_BLEND);
+      gl.glBlendFunc(GL2.GL_ONE, GL2.GL_SRC_COLOR);
+      brickTex.enable(gl);
+    }
 
     gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, new float[] {0.3F, 0.3F, 0.3F, 1}, 0);
     gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SPECULAR, new float[] {0.4F, 0.4F, 0.4F, 1}, 0);
     gl.glMaterialf(GL2.GL_FRONT, GL2.GL_SHININESS, 90);
 
 
-    gl.glCallList(room);
+    beginLighting(gl, brickTex != null);
+    batcher.draw(gl, ROOM);
+    endLighting(gl);
 
-    brickTex.disable(gl);
+    if (brickTex != null)
+      brickTex.disable(gl);
     gl.glPopAttrib();
 
   }
 
-  public void square(GL2 gl, float sizeX, float sizeY, float texRepX, float texRepY, float tesX,
-      float tesY) {
-    gl.glTranslatef(-1 * (sizeX / 2), 0, -1 * (sizeY / 2));// center
-    gl.glBegin(GL2.GL_QUADS);
-    float u, v, tx, ty;
-    tx = 1.0f / (sizeX / tesX) * texRepX;
-    ty = 1.0f / (sizeY / tesY) * texRepY;
-    for (float x = 0; x < sizeX; x += tesX) {
-      for (float z = 0; z < sizeY; z += tesY) {
-        u = (1.0f / (sizeX / tesX)) * (x / tesX) * texRepX;
-        v = (1.0f / (sizeY / tesY)) * (z / tesY) * texRepY;
-
-        gl.glNormal3f(0, 1, 0);
-        gl.glTexCoord2f(u + tx, v);
-        gl.glVertex3d(x + tesX, 0, z); // back right
-
-        gl.glNormal3f(0, 1, 0);
-        gl.glTexCoord2f(u, v);
-        gl.glVertex3d(x, 0, z);// back left
-
-        gl.glNormal3f(0, 1, 0);
-        gl.glTexCoord2f(u, v + ty);
-        gl.glVertex3d(x, 0, z + tesY); // front left
-
-        gl.glNormal3f(0, 1, 0);
-        gl.glTexCoord2f(u + tx, v + ty);
-        gl.glVertex3d(x + tesX, 0, z + tesY); // front right
-      }
-    }
-    gl.glEnd();
-
-  }
-
-  /**
-   * Draws a cylinder with height 2 and radius 1, centered at the origin, with its axis along the
-   * z-axis. A spectrum of hues is applied to the vertices along the edges of the cylinder. (Since
-   * GL_COLOR_MATERIAL is enabled in this program, the colors specified here are used as ambient and
-   * diffuse material colors for the cylinder.)
-   */
-  private void drawCylinder(GL2 gl) {
-    gl.glBegin(GL2.GL_TRIANGLE_STRIP);
-    for (int i = 0; i <= 64; i++) {
-      double angle = 2 * Math.PI / 64 * i;
-      double x = Math.cos(angle);
-      double y = Math.sin(angle);
-      gl.glColor3fv(colorArrayForHue(i / 64.0), 0); // sets ambient and diffuse material
-      gl.glNormal3d(x, y, 0); // Normal for both vertices at this angle.
-      gl.glVertex3d(x, y, 1); // Vertex on the top edge.
-      gl.glVertex3d(x, y, -1); // Vertex on the bottom edge.
-    }
-    gl.glEnd();
-    gl.glNormal3d(0, 0, 1);
-    gl.glBegin(GL2.GL_TRIANGLE_FAN); // Draw the top, in the plane z = 1.
-    gl.glColor3d(1, 1, 1); // ambient and diffuse for center
-    gl.glVertex3d(0, 0, 1);
-    for (int i = 0; i <= 64; i++) {
-      double angle = 2 * Math.PI / 64 * i;
-      double x = Math.cos(angle);
-      double y = Math.sin(angle);
-      gl.glColor3fv(colorArrayForHue(i / 64.0), 0);
-      gl.glVertex3d(x, y, 1);
-    }
-    gl.glEnd();
-    gl.glNormal3f(0, 0, -1);
-    gl.glBegin(GL2.GL_TRIANGLE_FAN); // Draw the bottom, in the plane z = -1
-    gl.glColor3d(1, 1, 1); // ambient and diffuse for center
-    gl.glVertex3d(0, 0, -1);
-    for (int i = 64; i >= 0; i--) {
-      double angle = 2 * Math.PI / 64 * i;
-      double x = Math.cos(angle);
-      double y = Math.sin(angle);
-      gl.glColor3fv(colorArrayForHue(i / 64.0), 0);
-      gl.glVertex3d(x, y, -1);
-    }
-    gl.glEnd();
-  }
-
   // --------------- Methods of the GLEventListener interface -----------
 
   /**
@@ -396,22 +1020,41 @@ public class SandBox extends JPanel implements GLEventListener {
     // called when the panel needs to be drawn
 
     GL2 gl = drawable.getGL().getGL2();
+    pass("clear");
+    frameStart = System.nanoTime();
+    frameControls = controls;
+    if (governor != null)
+      frameTimer.begin(gl);
+    int[] size = scaler.begin(gl, width, height);
+    camera.reshape(0, 0, size[0], size[1]);
 
 
 
     gl.glClearColor(0, 0, 0, 0);
     gl.glClear(GL2.GL_COLOR_BUFFER_BIT | GL2.GL_DEPTH_BUFFER_BIT);
+    if (textures.update(gl) || textures.isLoading())
+      display.repaint(); // keep drawing until every texture is in
+    updateModel(gl);
     camera.apply(gl);
 
 
     // light stuff
+    pass("lights");
     lights(gl);
 
+    shading = frameControls.manyLights && clusteredLighting.isReady();
+    if (shading)
+      manyLights(gl);
+    if (shading != roomCoarse) {
+      roomCoarse = shading;
+      buildRoom(shading ? 30 : roomTessellation);
+    }
+
 
 
     float zero[] = {0, 0, 0, 1};
 
-    if (ambientLight.isSelected()) {
+    if (frameControls.ambientLight) {
       gl.glLightModelfv(GL2.GL_LIGHT_MODEL_AMBIENT, new float[] {0.15F, 0.15F, 0.15F, 1}, 0);
     } else {
       gl.glLightModelfv(GL2.GL_LIGHT_MODEL_AMBIENT, zero, 0);
@@ -419,16 +1062,14 @@ public class SandBox extends JPanel implements GLEventListener {
 
 
 
-    if (drawBase.isSelected()) {
+    pass("base");
+    if (frameControls.base) {
       gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SPECULAR, zero, 0);
       gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, new float[] {1.0F, 1.0F, 1.0F, 1}, 0);
 
-      gl.glPushMatrix();
-      gl.glTranslated(0, -5, 0);
-      gl.glRotated(-90, 1, 0, 0);
-      gl.glScaled(10, 10, 0.5);
-      drawCylinder(gl);
-      gl.glPopMatrix();
+      beginLighting(gl, false);
+      batcher.draw(gl, BASE);
+      endLighting(gl);
     }
 
 
@@ -441,16 +1082,17 @@ public class SandBox extends JPanel implements GLEventListener {
     float look[] = {0, -1f, 0};
     gl.glPushMatrix();
     gl.glTranslated(0, 25, 0);
-    gl.glLightf(GL2.GL_LIGHT4, GL2.GL_SPOT_CUTOFF, (float) spotCutOff.getValue());
+    gl.glLightf(GL2.GL_LIGHT4, GL2.GL_SPOT_CUTOFF, (float) frameControls.spotCutoff);
     gl.glLightfv(GL2.GL_LIGHT4, GL2.GL_POSITION, spot, 0);
     gl.glLightfv(GL2.GL_LIGHT4, GL2.GL_SPOT_DIRECTION, look, 0);
-    gl.glLightf(GL2.GL_LIGHT4, GL2.GL_CONSTANT_ATTENUATION, (float) spotAt.getValue());
-    gl.glLightf(GL2.GL_LIGHT4, GL2.GL_SPOT_EXPONENT, (float) spotEx.getValue());
+    gl.glLightf(GL2.GL_LIGHT4, GL2.GL_CONSTANT_ATTENUATION, (float) frameControls.spotAttenuation);
+    gl.glLightf(GL2.GL_LIGHT4, GL2.GL_SPOT_EXPONENT, (float) frameControls.spotExponent);
     gl.glEnable(GL2.GL_LIGHT4);
     gl.glPopMatrix();
 
 
     // dragon
+    pass("scene");
     float floor = -5.5f;
     float dragonY = (((float) frameNumber) / 60.0f) % 10.0f;
     dragonY = 0;// dragonY>5? 5-(((((float)frameNumber)/60.0f) %
@@ -466,30 +1108,24 @@ public class SandBox extends JPanel implements GLEventListener {
     gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, new float[] {0.3F, 1.0F, 0.3F, 1}, 0);
     gl.glMaterialf(GL2.GL_FRONT, GL2.GL_SHININESS, 90);
 
-    gl.glPushMatrix();
-
-
     // gl.glTranslatef(0, -((modelHeight*50)/2)+1+dragonY, 0);
     // gl.glTranslatef(0,floor, 0);
 
-    gl.glScalef(1 / model.longestEdge(), 1 / model.longestEdge(), 1 / model.longestEdge());
-    gl.glScalef(10, 10, 10);
-    gl.glTranslatef(-model.getMin()[0] - ((model.getMax()[0] - model.getMin()[0]) / 2), 0, 0);
-    gl.glTranslatef(0, -model.getMin()[1] - ((model.getMax()[1] - model.getMin()[1]) / 2), 0);
-    gl.glTranslatef(0, 0, -model.getMin()[2] - ((model.getMax()[2] - model.getMin()[2]) / 2));
-
-
-    // gl.glTranslated(0, floor, 0);
-
-    model.drawBoundingBox();
-    model.draw();
-    // model.drawNormalized();
+    // The scene graph loads each node's cached world matrix, and skips the nodes outside the
+    // view and the subtrees that the room or the base hide.
+    occlusion.setEnabled(BASE, frameControls.base);
+    occlusion.render(camera.getViewProjectionMatrix(viewProjection));
+    scene.update();
+    objects.move(modelObject, modelNode.getSubtreeMin(), modelNode.getSubtreeMax());
+    visibleObjects.clear();
+    objects.queryFrustum(viewProjection, visibleObjects);
+    scene.draw(gl, camera.getViewMatrix(viewMatrix), cullingFilter);
 
-    gl.glPopMatrix();
     gl.glDisable(GL2.GL_CULL_FACE);
     gl.glPopAttrib();
 
 
+    pass("room");
     gl.glEnable(GL2.GL_STENCIL_TEST);
 
     // Draw floor
@@ -510,6 +1146,7 @@ public class SandBox extends JPanel implements GLEventListener {
     // end room
 
     // Draw dragon reflection
+    pass("reflection");
     gl.glStencilFunc(GL2.GL_EQUAL, 1, 1); // Pass test if stencil value is 1
     gl.glStencilMask(0); // Don't write anything to stencil buffer
     gl.glDepthMask(true); // Write to depth buffer
@@ -541,13 +1178,52 @@ public class SandBox extends JPanel implements GLEventListener {
 
     gl.glDisable(GL2.GL_STENCIL_TEST);
 
+    pass("upscale");
+    scaler.end(gl);
+    if (governor != null) {
+      long nanos = frameTimer.end(gl);
+      if (nanos >= 0)
+        governor.frame(nanos);
+    }
+    FrameStats.endFrame();
+    if (profiler != null)
+      profiler.endFrame();
+    drawNanos = System.nanoTime() - frameStart;
+    if (!drawable.getAutoSwapBufferMode()) {
+      long start = System.nanoTime();
+      drawable.swapBuffers();
+      presented(System.nanoTime() - start);
+    }
+    // display runs on the NEWT thread when presenting through NEWT, so the label is set on the
+    // event dispatch thread
+    String info = describePresentation() + ", draw calls: " + FrameStats.getDrawCalls()
+        + (profiler == null ? "" : ", GL calls: " + profiler.getLastFrameCalls())
+        + (governor == null ? "" : ", " + governor)
+        + ", culled clusters: "
+        + model.getCulledClusters() + "/" + model.getClusterCount() + ", culled triangles: "
+        + model.getCulledTriangles() + ", occluded: " + occlusion.getCulled() + "/"
+        + occlusion.getTested() + ", in view: " + visibleObjects.size() + "/" + objects.size()
+        + (model.getOutOfCoreMesh() == null ? "" : ", streamed: " + model.getOutOfCoreMesh());
+    SwingUtilities.invokeLater(() -> frameInfo.setText(info));
   }
 
   /**
    * Initialization, including setting up a camera and configuring the four lights.
    */
   public void init(GLAutoDrawable drawable) {
+    if (profiler != null) { // everything drawn through the drawable now goes past the profiler
+      drawable.setGL(profiler.wrap(drawable.getGL().getGL2()));
+      if (traceFile != null) {
+        try {
+          profiler.record(traceFile);
+        } catch (IOException e) {
+          System.out.println("No GL trace: " + e);
+        }
+      }
+      profiler.beginPass("init");
+    }
     GL2 gl = drawable.getGL().getGL2();
+    gl.setSwapInterval(swapInterval);
     gl.glClearColor(0, 0, 0, 1);
     gl.glEnable(GL2.GL_DEPTH_TEST);
     gl.glEnable(GL2.GL_LIGHTING);
@@ -557,66 +1233,92 @@ public class SandBox extends JPanel implements GLEventListener {
     gl.glLightModeli(GL2.GL_LIGHT_MODEL_LOCAL_VIEWER, 1);
     gl.glMateriali(GL2.GL_FRONT_AND_BACK, GL2.GL_SHININESS, 32);
 
-    float dim[] = {0.5F, 0.5F, 0.5F, 1};
-    gl.glLightfv(GL2.GL_LIGHT0, GL2.GL_DIFFUSE, dim, 0);
-    gl.glLightfv(GL2.GL_LIGHT0, GL2.GL_SPECULAR, dim, 0);
-
-    float red[] = {0.5F, 0, 0, 1};
-    float reda[] = {0.1F, 0, 0, 1};
-    gl.glLightfv(GL2.GL_LIGHT1, GL2.GL_AMBIENT, reda, 0);
-    gl.glLightfv(GL2.GL_LIGHT1, GL2.GL_DIFFUSE, red, 0);
-    gl.glLightfv(GL2.GL_LIGHT1, GL2.GL_SPECULAR, red, 0);
-
-    float gr[] = {0, 0.5F, 0, 1};
-    float gra[] = {0, 0.1F, 0, 1};
-    gl.glLightfv(GL2.GL_LIGHT2, GL2.GL_AMBIENT, gra, 0);
-    gl.glLightfv(GL2.GL_LIGHT2, GL2.GL_DIFFUSE, gr, 0);
-    gl.glLightfv(GL2.GL_LIGHT2, GL2.GL_SPECULAR, gr, 0);
+    gl.glLightfv(GL2.GL_LIGHT0, GL2.GL_DIFFUSE, VIEWPOINT_LIGHT, 0);
+    gl.glLightfv(GL2.GL_LIGHT0, GL2.GL_SPECULAR, VIEWPOINT_LIGHT, 0);
 
-    float bl[] = {0, 0, 0.5F, 1};
-    float bla[] = {0, 0, 0.1F, 1};
-    gl.glLightfv(GL2.GL_LIGHT3, GL2.GL_AMBIENT, bla, 0);
-    gl.glLightfv(GL2.GL_LIGHT3, GL2.GL_DIFFUSE, bl, 0);
-    gl.glLightfv(GL2.GL_LIGHT3, GL2.GL_SPECULAR, bl, 0);
+    // the red, green and blue lights, with a fifth of their color as ambient
+    for (int i = 0; i < ORBIT_LIGHTS.length; i++) {
+      float[] o = ORBIT_LIGHTS[i];
+      gl.glLightfv(GL2.GL_LIGHT1 + i, GL2.GL_AMBIENT, new float[] {o[0] / 5, o[1] / 5, o[2] / 5, 1}, 0);
+      gl.glLightfv(GL2.GL_LIGHT1 + i, GL2.GL_DIFFUSE, new float[] {o[0], o[1], o[2], 1}, 0);
+      gl.glLightfv(GL2.GL_LIGHT1 + i, GL2.GL_SPECULAR, new float[] {o[0], o[1], o[2], 1}, 0);
+    }
 
 
     // spot light
-    float wl[] = {4.0f, 4.0f, 4.0f, 1};
-    float wla[] = {0.5f, 0.5f, 0.5f, 1};
-    gl.glLightfv(GL2.GL_LIGHT4, GL2.GL_AMBIENT, wla, 0);
-    gl.glLightfv(GL2.GL_LIGHT4, GL2.GL_DIFFUSE, wl, 0);
-    gl.glLightfv(GL2.GL_LIGHT4, GL2.GL_SPECULAR, wl, 0);
+    gl.glLightfv(GL2.GL_LIGHT4, GL2.GL_AMBIENT, SPOT_AMBIENT, 0);
+    gl.glLightfv(GL2.GL_LIGHT4, GL2.GL_DIFFUSE, SPOT_LIGHT, 0);
+    gl.glLightfv(GL2.GL_LIGHT4, GL2.GL_SPECULAR, SPOT_LIGHT, 0);
 
 
 
-    // textures
-    File fBrick = new File("brick.png");
-    try {
-      brickTex = TextureIO.newTexture(fBrick, false);
-    } catch (GLException | IOException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
-    }
-
-    brickTex.bind(gl);
-    // gl.glGenerateMipmap(GL2.GL_TEXTURE_2D);
-    brickTex.disable(gl);
+    // textures, decoded in the background and uploaded with mipmaps by textures.update
+    textures = new TextureManager(drawable.getGLProfile(), 2);
+    brick = textures.acquire("brick.png", GL2.GL_MIRRORED_REPEAT);
 
     // build room
-    buildRoom(gl);
-
-    model = new GLModel(gl, new File("dragon.ply"));
+    buildRoom(roomTessellation);
+
+    model = prepareModel(modelFile).apply(gl);
+    if (model.getLoadResult() != null)
+      System.out.println(model.getLoadResult());
+
+    placeModel(modelNode, model.getMin(), model.getMax());
+    modelNode.setRenderer(this::drawModel);
+    scene.addChild(modelNode);
+    scene.update();
+    modelObject = objects.insert(modelNode.getSubtreeMin(), modelNode.getSubtreeMax(), modelNode);
+
+    if (!clusteredLighting.init(gl)) // init runs on the NEWT thread when presenting through NEWT
+      SwingUtilities.invokeLater(() -> manyLights.setEnabled(false));
+    if (watchAssets)
+      startWatching();
   }
 
   /**
    * Called when the size of the GLJPanel changes.
    */
-  public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height) {}
+  public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height) {
+    this.width = width;
+    this.height = height;
+    camera.reshape(x, y, width, height);
+  }
 
   /**
    * This is called before the GLJPanel is destroyed.
    */
-  public void dispose(GLAutoDrawable drawable) {}
+  public void dispose(GLAutoDrawable drawable) {
+    pass("dispose");
+    GL2 gl = drawable.getGL().getGL2();
+    if (watcher != null)
+      watcher.close();
+    if (reloader != null)
+      reloader.shutdownNow();
+    System.out.println(meshes);
+    meshes.dispose(gl);
+    batcher.dispose(gl);
+    textures.dispose(gl);
+    model.distroy();
+    // a reload that finished after the last frame may hold an open out-of-core mesh
+    if (modelReload != null && modelReload.isDone() && !modelReload.isCompletedExceptionally())
+      modelReload.join().apply(gl).distroy();
+    clusteredLighting.dispose(gl);
+    scaler.dispose(gl);
+    frameTimer.dispose(gl);
+    GLResources.reportLeaks();
+    if (presentedFrames > 0)
+      System.out.printf("%s, swap %d: %.2f ms draw + %.2f ms present per frame, %d frames%n",
+          presentation, swapInterval, totalDraw / presentedFrames / 1e6,
+          totalPresent / presentedFrames / 1e6, presentedFrames);
+    if (profiler != null) {
+      System.out.print(profiler.report());
+      try {
+        profiler.close();
+      } catch (IOException e) {
+        System.out.println("The GL trace is incomplete: " + e);
+      }
+    }
+  }
 
 
 
@@ -0,0 +1,312 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.math.FloatUtil;
+
+/**
+ * A node of a scene graph. Each node has a local transform, made of a translation, a rotation and
+ * a scale applied in that order (T * R * S), and caches its world matrix, the product of the
+ * local transforms from the root down. Changing a transform only flags the node, and the flag is
+ * passed up to the root, so update on the root revisits just the changed branches and the
+ * subtrees under changed nodes; the rest of the scene costs nothing.
+ * <p>
+ * A node can have bounds, a box in its own coordinates, and every node keeps the world space
+ * box around itself and all its descendants, for culling whole subtrees at once. Nodes that draw
+ * something have a Renderer, which draw calls with the node's modelview matrix already loaded,
+ * so there are no matrix stacks to push and pop.
+ */
+public class SceneNode {
+
+  /** Draws a node. The node's modelview matrix is loaded when it is called. */
+  public interface Renderer {
+    void draw(GL2 gl, SceneNode node);
+  }
+
+  /** Decides whether the subtree under node is drawn, from its world space bounds. */
+  public interface BoundsFilter {
+    boolean accept(SceneNode node, float[] min, float[] max);
+  }
+
+  private final String name;
+  private SceneNode parent;
+  private final List<SceneNode> children = new ArrayList<>();
+  private Renderer renderer;
+
+  private float tx, ty, tz;
+  private float angle, ax, ay, az = 1; // rotation in radians about the axis
+  private float sx = 1, sy = 1, sz = 1;
+  private final float[] local = new float[16];
+  private final float[] world = new float[16];
+  private boolean localDirty = true; // the transform changed
+  private boolean subtreeDirty = true; // this node or one below it needs an update
+
+  private float[] boundsMin, boundsMax; // local bounds, or null
+  private final float[] worldMin = new float[3], worldMax = new float[3]; // of the bounds alone
+  private final float[] subtreeMin = new float[3], subtreeMax = new float[3];
+  private boolean hasSubtreeBounds;
+
+  private static final float[] IDENTITY = FloatUtil.makeIdentity(new float[16]);
+  private final float[] tmp = new float[16];
+  private final float[] tmpVec = new float[3];
+
+  public SceneNode(String name) {
+    this.name = name;
+    FloatUtil.makeIdentity(local);
+    FloatUtil.makeIdentity(world);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public SceneNode getParent() {
+    return parent;
+  }
+
+  public List<SceneNode> getChildren() {
+    return Collections.unmodifiableList(children);
+  }
+
+  /** Adds child under this node, taking it from its old parent if it has one. */
+  public void addChild(SceneNode child) {
+    if (child.parent != null)
+      child.parent.removeChild(child);
+    children.add(child);
+    child.parent = this;
+    child.markChanged();
+  }
+
+  public void removeChild(SceneNode child) {
+    if (children.remove(child)) {
+      child.parent = null;
+      markSubtreeDirty(); // the bounds shrink
+    }
+  }
+
+  public Renderer getRenderer() {
+    return renderer;
+  }
+
+  public void setRenderer(Renderer renderer) {
+    this.renderer = renderer;
+  }
+
+  public void setTranslation(float x, float y, float z) {
+    if (x == tx && y == ty && z == tz)
+      return;
+    tx = x;
+    ty = y;
+    tz = z;
+    markChanged();
+  }
+
+  /** Sets the rotation to angle radians about the axis (x, y, z), which need not be unit. */
+  public void setRotation(float angle, float x, float y, float z) {
+    if (angle == this.angle && x == ax && y == ay && z == az)
+      return;
+    this.angle = angle;
+    ax = x;
+    ay = y;
+    az = z;
+    markChanged();
+  }
+
+  public void setScale(float x, float y, float z) {
+    if (x == sx && y == sy && z == sz)
+      return;
+    sx = x;
+    sy = y;
+    sz = z;
+    markChanged();
+  }
+
+  /** Sets the box this node occupies in its own coordinates, or removes it if min is null. */
+  public void setBounds(float[] min, float[] max) {
+    boundsMin = min == null ? null : min.clone();
+    boundsMax = max == null ? null : max.clone();
+    markChanged();
+  }
+
+  /**
+   * The column-major world matrix as of the last update of the root. The array is the node's
+   * own, so it must not be modified.
+   */
+  public float[] getWorldMatrix() {
+    return world;
+  }
+
+  /** True if this node or anything under it has bounds. Valid after an update. */
+  public boolean hasSubtreeBounds() {
+    return hasSubtreeBounds;
+  }
+
+  /** World space minimum corner of the box around this node and everything under it. */
+  public float[] getSubtreeMin() {
+    return subtreeMin;
+  }
+
+  public float[] getSubtreeMax() {
+    return subtreeMax;
+  }
+
+  private void markChanged() {
+    localDirty = true;
+    markSubtreeDirty();
+  }
+
+  private void markSubtreeDirty() {
+    for (SceneNode node = this; node != null && !node.subtreeDirty; node = node.parent)
+      node.subtreeDirty = true;
+  }
+
+  /**
+   * Brings the world matrices and bounds of this node and everything under it up to date. Call
+   * on the root once per frame, before drawing. Returns the number of world matrices that had
+   * to be recomputed.
+   */
+  public int update() {
+    return update(parent == null ? IDENTITY : parent.world, false);
+  }
+
+  private int update(float[] parentWorld, boolean parentChanged) {
+    if (!parentChanged && !subtreeDirty)
+      return 0;
+    int count = 0;
+    boolean changed = parentChanged || localDirty;
+    if (localDirty) {
+      FloatUtil.makeTranslation(local, true, tx, ty, tz);
+      if (angle != 0)
+        FloatUtil.multMatrix(local, FloatUtil.makeRotationAxis(tmp, 0, angle, ax, ay, az, tmpVec));
+      FloatUtil.multMatrix(local, FloatUtil.makeScale(tmp, true, sx, sy, sz));
+      localDirty = false;
+    }
+    if (changed) {
+      FloatUtil.multMatrix(parentWorld, local, world);
+      if (boundsMin != null)
+        transformBounds(world, boundsMin, boundsMax, worldMin, worldMax);
+      count++;
+    }
+
+    hasSubtreeBounds = boundsMin != null;
+    if (hasSubtreeBounds) {
+      System.arraycopy(worldMin, 0, subtreeMin, 0, 3);
+      System.arraycopy(worldMax, 0, subtreeMax, 0, 3);
+    }
+    for (SceneNode child : children) {
+      count += child.update(world, changed);
+      if (!child.hasSubtreeBounds)
+        continue;
+      for (int i = 0; i < 3; i++) {
+        subtreeMin[i] = hasSubtreeBounds ? Math.min(subtreeMin[i], child.subtreeMin[i]) : child.subtreeMin[i];
+        subtreeMax[i] = hasSubtreeBounds ? Math.max(subtreeMax[i], child.subtreeMax[i]) : child.subtreeMax[i];
+      }
+      hasSubtreeBounds = true;
+    }
+    subtreeDirty = false;
+    return count;
+  }
+
+  /** The world space box around the local box min to max placed by the column-major matrix m. */
+  static void transformBounds(float[] m, float[] min, float[] max, float[] outMin, float[] outMax) {
+    for (int r = 0; r < 3; r++) {
+      // each column of m stretches the box independently, so take the smaller and larger end
+      float lo = m[12 + r], hi = m[12 + r];
+      for (int c = 0; c < 3; c++) {
+        float a = m[c * 4 + r] * min[c], b = m[c * 4 + r] * max[c];
+        lo += Math.min(a, b);
+        hi += Math.max(a, b);
+      }
+      outMin[r] = lo;
+      outMax[r] = hi;
+    }
+  }
+
+  /**
+   * Draws every node with a renderer in this subtree, loading view times the node's world matrix
+   * as the modelview matrix first. Subtrees whose bounds the filter rejects are skipped; filter
+   * may be null. view is the column-major camera matrix, and it is loaded again at the end.
+   * Returns the number of nodes drawn.
+   */
+  public int draw(GL2 gl, double[] view, BoundsFilter filter) {
+    float[] viewf = new float[16];
+    for (int i = 0; i < 16; i++)
+      viewf[i] = (float) view[i];
+    gl.glMatrixMode(GL2.GL_MODELVIEW);
+    int count = draw(gl, viewf, new float[16], filter);
+    gl.glLoadMatrixd(view, 0);
+    return count;
+  }
+
+  private int draw(GL2 gl, float[] view, float[] modelview, BoundsFilter filter) {
+    if (filter != null && hasSubtreeBounds && !filter.accept(this, subtreeMin, subtreeMax))
+      return 0;
+    int count = 0;
+    if (renderer != null) {
+      FloatUtil.multMatrix(view, world, modelview);
+      gl.glLoadMatrixf(modelview, 0);
+      renderer.draw(gl, this);
+      count++;
+    }
+    for (SceneNode child : children)
+      count += child.draw(gl, view, modelview, filter);
+    return count;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+  /**
+   * Times updates of a large scene: a root with 100 groups of 500 nodes each, where 1% of the
+   * nodes move every frame. Needs no GPU. Usage: java SceneNode [groups nodesPerGroup]
+   */
+  public static void main(String[] args) {
+    int groups = args.length > 1 ? Integer.parseInt(args[0]) : 100;
+    int perGroup = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+    Random random = new Random(405);
+    SceneNode root = new SceneNode("root");
+    List<SceneNode> leaves = new ArrayList<>();
+    float[] min = {-1, -1, -1}, max = {1, 1, 1};
+    for (int g = 0; g < groups; g++) {
+      SceneNode group = new SceneNode("group " + g);
+      group.setTranslation(random.nextFloat() * 100, 0, random.nextFloat() * 100);
+      root.addChild(group);
+      for (int i = 0; i < perGroup; i++) {
+        SceneNode leaf = new SceneNode("node " + g + "." + i);
+        leaf.setTranslation(random.nextFloat() * 10, random.nextFloat() * 10, random.nextFloat() * 10);
+        leaf.setRotation(random.nextFloat() * 6, 0, 1, 0);
+        leaf.setBounds(min, max);
+        group.addChild(leaf);
+        leaves.add(leaf);
+      }
+    }
+    long start = System.nanoTime();
+    int updated = root.update();
+    System.out.printf("first update: %d nodes in %.2f ms%n", updated, (System.nanoTime() - start) / 1e6);
+
+    int frames = 500, moves = leaves.size() / 100;
+    long total = 0, totalUpdated = 0;
+    for (int frame = 0; frame < frames; frame++) {
+      for (int i = 0; i < moves; i++)
+        leaves.get(random.nextInt(leaves.size())).setRotation(frame * 0.01f, 0, 1, 0);
+      start = System.nanoTime();
+      totalUpdated += root.update();
+      total += System.nanoTime() - start;
+    }
+    System.out.printf("%d nodes, %d moving per frame: %.3f ms per update, %d matrices per update%n",
+        leaves.size() + groups + 1, moves, total / 1e6 / frames, totalUpdated / frames);
+
+    start = System.nanoTime();
+    for (int frame = 0; frame < frames; frame++)
+      root.update();
+    System.out.printf("nothing moving: %.4f ms per update%n", (System.nanoTime() - start) / 1e6 / frames);
+    System.out.println("scene bounds " + Arrays.toString(root.getSubtreeMin()) + " to "
+        + Arrays.toString(root.getSubtreeMax()));
+  }
+
+}
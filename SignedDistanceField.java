@@ -0,0 +1,441 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * The signed distance to a closed triangle mesh, sampled at the points of a regular grid around
+ * it: negative inside, positive outside, in the mesh's units. Queries interpolate the eight
+ * samples around a point, so they cost the same however many triangles the mesh has, which makes
+ * the field cheap enough for collisions and soft shadows every frame.
+ * <p>
+ * It is built in three parallel steps. First, the grid points within a cell of a triangle get
+ * their exact distance to it, with the triangles binned by z so each slab of points is worked on
+ * by one thread. Then fast sweeping carries the nearest triangle out to the rest of the grid: a
+ * sweep goes along one axis, in one direction, over every row of points in parallel, and each
+ * point takes its neighbour's triangle if that is nearer. Last, the sign comes from rays cast
+ * through each row of points with a TriangleBVH, counting the crossings of the surface before
+ * each point. This is done along all three axes, and a point is inside if at least two of the
+ * counts are odd, which keeps the odd hole in a scanned mesh from flipping whole rows.
+ */
+public class SignedDistanceField {
+
+  private static final int PADDING = 2; // cells of grid around the mesh's bounds
+  private static final int SWEEP_ROUNDS = 2; // all six sweeps, this many times
+  private static final int MAX_SHADOW_STEPS = 64;
+
+  private final float[] min = new float[3];
+  private final float cell;
+  private final int nx, ny, nz;
+  private final float[] distances; // x fastest, then y, then z
+  private long bandNanos, sweepNanos, signNanos;
+
+  /** Builds the field of a mesh, with resolution cells along the longest side of its bounds. */
+  SignedDistanceField(MeshData mesh, int resolution) {
+    MeshData triangles = mesh.toTriangles();
+    float[] p = triangles.getPositions();
+    int[] corners = triangles.getIndices();
+    float[] bounds = triangles.getBounds();
+    float longest = Math.max(bounds[3] - bounds[0], Math.max(bounds[4] - bounds[1],
+        bounds[5] - bounds[2]));
+    cell = longest > 0 ? longest / resolution : 1;
+    int[] n = new int[3];
+    for (int k = 0; k < 3; k++) {
+      min[k] = bounds[k] - PADDING * cell;
+      n[k] = Math.max(0, (int) Math.ceil((bounds[k + 3] - bounds[k]) / cell)) + 2 * PADDING + 1;
+    }
+    nx = n[0];
+    ny = n[1];
+    nz = n[2];
+    if ((long) nx * ny * nz > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Resolution " + resolution + " is too fine");
+    distances = new float[nx * ny * nz];
+    Arrays.fill(distances, Float.MAX_VALUE); // squared until the end
+    int[] nearest = new int[distances.length];
+    Arrays.fill(nearest, -1);
+
+    long start = System.nanoTime();
+    band(p, corners, nearest);
+    bandNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (int round = 0; round < SWEEP_ROUNDS; round++)
+      for (int axis = 0; axis < 3; axis++) {
+        sweep(p, corners, nearest, axis, true);
+        sweep(p, corners, nearest, axis, false);
+      }
+    sweepNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    byte[] inside = new byte[distances.length]; // odd crossing counts, out of three
+    if (corners.length > 0) {
+      TriangleBVH bvh = new TriangleBVH(p, corners);
+      for (int axis = 0; axis < 3; axis++)
+        countCrossings(bvh, axis, inside);
+    }
+    for (int i = 0; i < distances.length; i++) {
+      float d = (float) Math.sqrt(distances[i]);
+      distances[i] = inside[i] >= 2 ? -d : d;
+    }
+    signNanos = System.nanoTime() - start;
+  }
+
+  /** The exact distances of the points within a cell of each triangle. */
+  private void band(float[] p, int[] corners, int[] nearest) {
+    int triangleCount = corners.length / 3;
+    int[] range = new int[triangleCount * 6]; // first and last point along x, y, z
+    int[] slabStart = new int[nz + 1];
+    for (int t = 0; t < triangleCount; t++) {
+      for (int k = 0; k < 3; k++) {
+        float lo = Float.MAX_VALUE, hi = -Float.MAX_VALUE;
+        for (int c = 0; c < 3; c++) {
+          float value = p[corners[t * 3 + c] * 3 + k];
+          lo = Math.min(lo, value);
+          hi = Math.max(hi, value);
+        }
+        int size = k == 0 ? nx : k == 1 ? ny : nz;
+        range[t * 6 + k] = Math.max(0, (int) Math.floor((lo - min[k]) / cell) - 1);
+        range[t * 6 + 3 + k] = Math.min(size - 1, (int) Math.ceil((hi - min[k]) / cell) + 1);
+      }
+      for (int z = range[t * 6 + 2]; z <= range[t * 6 + 5]; z++)
+        slabStart[z + 1]++;
+    }
+    for (int z = 0; z < nz; z++)
+      slabStart[z + 1] += slabStart[z];
+    int[] slabs = new int[slabStart[nz]];
+    int[] fill = Arrays.copyOf(slabStart, nz);
+    for (int t = 0; t < triangleCount; t++)
+      for (int z = range[t * 6 + 2]; z <= range[t * 6 + 5]; z++)
+        slabs[fill[z]++] = t;
+
+    IntStream.range(0, nz).parallel().forEach(z -> {
+      float pz = min[2] + z * cell;
+      for (int s = slabStart[z]; s < slabStart[z + 1]; s++) {
+        int t = slabs[s];
+        for (int y = range[t * 6 + 1]; y <= range[t * 6 + 4]; y++) {
+          float py = min[1] + y * cell;
+          int row = (z * ny + y) * nx;
+          for (int x = range[t * 6]; x <= range[t * 6 + 3]; x++) {
+            float d = distanceSquared(p, corners, t, min[0] + x * cell, py, pz);
+            if (d < distances[row + x]) {
+              distances[row + x] = d;
+              nearest[row + x] = t;
+            }
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * One sweep along an axis, forwards or backwards: every point tries the nearest triangle of
+   * the point before it. Rows are independent, so they are swept in parallel.
+   */
+  private void sweep(float[] p, int[] corners, int[] nearest, int axis, boolean forward) {
+    int length = axis == 0 ? nx : axis == 1 ? ny : nz;
+    int stride = axis == 0 ? 1 : axis == 1 ? nx : nx * ny;
+    int rows = distances.length / length;
+    IntStream.range(0, rows).parallel().forEach(row -> {
+      int first = firstOfRow(axis, row);
+      int x0 = first % nx, y0 = first / nx % ny, z0 = first / (nx * ny);
+      for (int step = 1; step < length; step++) {
+        int i = forward ? step : length - 1 - step;
+        int index = first + i * stride, previous = index + (forward ? -stride : stride);
+        int t = nearest[previous];
+        if (t < 0 || t == nearest[index])
+          continue;
+        float px = min[0] + (axis == 0 ? i : x0) * cell, py = min[1] + (axis == 1 ? i : y0) * cell,
+            pz = min[2] + (axis == 2 ? i : z0) * cell;
+        float d = distanceSquared(p, corners, t, px, py, pz);
+        if (d < distances[index]) {
+          distances[index] = d;
+          nearest[index] = t;
+        }
+      }
+    });
+  }
+
+  /** The index of the first point of a row of points along an axis. */
+  private int firstOfRow(int axis, int row) {
+    if (axis == 0)
+      return row * nx;
+    if (axis == 1)
+      return row / nx * nx * ny + row % nx;
+    return row;
+  }
+
+  /**
+   * Casts a ray along each row of points along an axis, and adds one to inside for the points
+   * that have an odd number of crossings before them. The rays are moved off the grid by a small
+   * fraction of a cell so they do not run along the edges of a regular mesh.
+   */
+  private void countCrossings(TriangleBVH bvh, int axis, byte[] inside) {
+    int length = axis == 0 ? nx : axis == 1 ? ny : nz;
+    int stride = axis == 0 ? 1 : axis == 1 ? nx : nx * ny;
+    int rows = distances.length / length;
+    IntStream.range(0, rows).parallel().forEach(row -> {
+      TriangleBVH.Hit hit = new TriangleBVH.Hit();
+      int first = firstOfRow(axis, row);
+      float[] o = {min[0] + first % nx * cell, min[1] + first / nx % ny * cell,
+          min[2] + first / (nx * ny) * cell};
+      o[(axis + 1) % 3] += 0.0131f * cell;
+      o[(axis + 2) % 3] += 0.0217f * cell;
+      o[axis] -= cell; // start outside the first point
+      float[] d = new float[3];
+      d[axis] = 1;
+      float end = (length + 1) * cell, travelled = 0, epsilon = 1e-4f * cell;
+      int crossings = 0, i = 0;
+      while (true) {
+        boolean found = travelled < end && bvh.intersect(o[0] + d[0] * travelled,
+            o[1] + d[1] * travelled, o[2] + d[2] * travelled, d[0], d[1], d[2],
+            end - travelled, false, hit);
+        float next = found ? travelled + hit.t : Float.MAX_VALUE;
+        // the points before this crossing
+        for (; i < length && (i + 1) * cell < next; i++)
+          if ((crossings & 1) != 0)
+            inside[first + i * stride]++;
+        if (!found)
+          break;
+        crossings++;
+        travelled = next + epsilon;
+      }
+    });
+  }
+
+  /** The squared distance from (px, py, pz) to triangle t, after Ericson's closest point test. */
+  private static float distanceSquared(float[] p, int[] corners, int t, float px, float py,
+      float pz) {
+    int a = corners[t * 3] * 3, b = corners[t * 3 + 1] * 3, c = corners[t * 3 + 2] * 3;
+    float abx = p[b] - p[a], aby = p[b + 1] - p[a + 1], abz = p[b + 2] - p[a + 2];
+    float acx = p[c] - p[a], acy = p[c + 1] - p[a + 1], acz = p[c + 2] - p[a + 2];
+    float apx = px - p[a], apy = py - p[a + 1], apz = pz - p[a + 2];
+    float d1 = abx * apx + aby * apy + abz * apz, d2 = acx * apx + acy * apy + acz * apz;
+    float qx, qy, qz; // the closest point
+    if (d1 <= 0 && d2 <= 0)
+      return apx * apx + apy * apy + apz * apz; // corner a
+    float bpx = px - p[b], bpy = py - p[b + 1], bpz = pz - p[b + 2];
+    float d3 = abx * bpx + aby * bpy + abz * bpz, d4 = acx * bpx + acy * bpy + acz * bpz;
+    if (d3 >= 0 && d4 <= d3)
+      return bpx * bpx + bpy * bpy + bpz * bpz; // corner b
+    float vc = d1 * d4 - d3 * d2;
+    if (vc <= 0 && d1 >= 0 && d3 <= 0) { // edge ab
+      float v = d1 / (d1 - d3);
+      qx = p[a] + v * abx;
+      qy = p[a + 1] + v * aby;
+      qz = p[a + 2] + v * abz;
+    } else {
+      float cpx = px - p[c], cpy = py - p[c + 1], cpz = pz - p[c + 2];
+      float d5 = abx * cpx + aby * cpy + abz * cpz, d6 = acx * cpx + acy * cpy + acz * cpz;
+      if (d6 >= 0 && d5 <= d6)
+        return cpx * cpx + cpy * cpy + cpz * cpz; // corner c
+      float vb = d5 * d2 - d1 * d6;
+      float va = d3 * d6 - d5 * d4;
+      if (vb <= 0 && d2 >= 0 && d6 <= 0) { // edge ac
+        float w = d2 / (d2 - d6);
+        qx = p[a] + w * acx;
+        qy = p[a + 1] + w * acy;
+        qz = p[a + 2] + w * acz;
+      } else if (va <= 0 && d4 - d3 >= 0 && d5 - d6 >= 0) { // edge bc
+        float w = (d4 - d3) / ((d4 - d3) + (d5 - d6));
+        qx = p[b] + w * (p[c] - p[b]);
+        qy = p[b + 1] + w * (p[c + 1] - p[b + 1]);
+        qz = p[b + 2] + w * (p[c + 2] - p[b + 2]);
+      } else { // the face
+        float denominator = 1 / (va + vb + vc);
+        float v = vb * denominator, w = vc * denominator;
+        qx = p[a] + abx * v + acx * w;
+        qy = p[a + 1] + aby * v + acy * w;
+        qz = p[a + 2] + abz * v + acz * w;
+      }
+    }
+    float dx = px - qx, dy = py - qy, dz = pz - qz;
+    return dx * dx + dy * dy + dz * dz;
+  }
+
+  // -------------------------------- queries --------------------------------
+
+  /**
+   * The signed distance at a point, interpolated from the grid. Outside the grid it is the
+   * distance to the grid plus the distance at the nearest point of the grid, which is never
+   * less than the true distance.
+   */
+  public float distance(float x, float y, float z) {
+    return sample(x, y, z, null);
+  }
+
+  /**
+   * The signed distance at a point, as distance does, also storing in gradient the direction
+   * in which it grows fastest, normalized. Near the surface this is the surface normal, which
+   * is the direction to push a colliding point out along.
+   */
+  public float gradient(float x, float y, float z, float[] gradient) {
+    return sample(x, y, z, gradient);
+  }
+
+  private float sample(float x, float y, float z, float[] gradient) {
+    float gx = (x - min[0]) / cell, gy = (y - min[1]) / cell, gz = (z - min[2]) / cell;
+    float cx = clamp(gx, nx), cy = clamp(gy, ny), cz = clamp(gz, nz);
+    int i = Math.min((int) cx, nx - 2), j = Math.min((int) cy, ny - 2), k = Math.min((int) cz, nz - 2);
+    float fx = cx - i, fy = cy - j, fz = cz - k;
+    int index = (k * ny + j) * nx + i, sy = nx, sz = nx * ny;
+    float d000 = distances[index], d100 = distances[index + 1];
+    float d010 = distances[index + sy], d110 = distances[index + sy + 1];
+    float d001 = distances[index + sz], d101 = distances[index + sz + 1];
+    float d011 = distances[index + sy + sz], d111 = distances[index + sy + sz + 1];
+    float d00 = d000 + (d100 - d000) * fx, d10 = d010 + (d110 - d010) * fx;
+    float d01 = d001 + (d101 - d001) * fx, d11 = d011 + (d111 - d011) * fx;
+    float d0 = d00 + (d10 - d00) * fy, d1 = d01 + (d11 - d01) * fy;
+    float d = d0 + (d1 - d0) * fz;
+
+    float ox = (gx - cx) * cell, oy = (gy - cy) * cell, oz = (gz - cz) * cell;
+    float outside = (float) Math.sqrt(ox * ox + oy * oy + oz * oz);
+    if (gradient != null) {
+      if (outside > 0) { // straight away from the grid
+        gradient[0] = ox;
+        gradient[1] = oy;
+        gradient[2] = oz;
+      } else { // the derivatives of the interpolation
+        float e0 = d100 - d000 + (d110 - d010 - d100 + d000) * fy, e1 = d101 - d001
+            + (d111 - d011 - d101 + d001) * fy;
+        gradient[0] = e0 + (e1 - e0) * fz;
+        gradient[1] = (d10 - d00) + ((d11 - d01) - (d10 - d00)) * fz;
+        gradient[2] = d1 - d0;
+      }
+      float length = (float) Math.sqrt(gradient[0] * gradient[0] + gradient[1] * gradient[1]
+          + gradient[2] * gradient[2]);
+      if (length > 0) {
+        gradient[0] /= length;
+        gradient[1] /= length;
+        gradient[2] /= length;
+      }
+    }
+    return d + outside;
+  }
+
+  private static float clamp(float value, int size) {
+    return value < 0 ? 0 : value > size - 1 ? size - 1 : value;
+  }
+
+  /**
+   * How much light gets from a point to a light along the unit direction (dx, dy, dz), from 0
+   * in full shadow to 1: the field is sphere traced from minT to maxT, and the light is dimmed
+   * by the nearest the ray comes to the mesh relative to how far along it is. Larger k gives
+   * harder shadows; 8 to 32 works for the dragon.
+   */
+  public float softShadow(float ox, float oy, float oz, float dx, float dy, float dz, float minT,
+      float maxT, float k) {
+    float light = 1, t = minT;
+    for (int step = 0; step < MAX_SHADOW_STEPS && t < maxT; step++) {
+      float d = distance(ox + dx * t, oy + dy * t, oz + dz * t);
+      if (d <= 0)
+        return 0;
+      light = Math.min(light, k * d / t);
+      t += Math.max(d, 0.25f * cell); // small steps would stall in the band around the mesh
+    }
+    return light;
+  }
+
+  /** The corner of the grid with the smallest coordinates, { x, y, z }. */
+  public float[] getMin() {
+    return min.clone();
+  }
+
+  /** The corner of the grid with the largest coordinates, { x, y, z }. */
+  public float[] getMax() {
+    return new float[] {min[0] + (nx - 1) * cell, min[1] + (ny - 1) * cell,
+        min[2] + (nz - 1) * cell};
+  }
+
+  public float getCellSize() {
+    return cell;
+  }
+
+  /** Grid points along x, y and z. */
+  public int[] getSize() {
+    return new int[] {nx, ny, nz};
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%dx%dx%d points, cell %.4g, %d KB: band %.1f ms, sweeps %.1f ms, "
+        + "sign %.1f ms", nx, ny, nz, cell, distances.length * 4L / 1024, bandNanos / 1e6,
+        sweepNanos / 1e6, signNanos / 1e6);
+  }
+
+  /**
+   * Checks the field of a sphere against the exact distance, then times building the field of
+   * a model and querying it. Usage: java SignedDistanceField [resolution] [model file]
+   */
+  public static void main(String[] args) throws IOException {
+    int resolution = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+    Random random = new Random(3);
+
+    MeshData sphere = ProceduralMesh.sphere(256, 128);
+    SignedDistanceField field = new SignedDistanceField(sphere, resolution);
+    System.out.println("sphere: " + field);
+    // inside the grid, and separately the band within two cells of the surface, where
+    // collisions and shadows need the distance most
+    double error = 0, worst = 0, bandError = 0, bandWorst = 0;
+    int wrongSign = 0, samples = 200_000, bandSamples = 0;
+    float[] low = field.getMin(), high = field.getMax();
+    for (int s = 0; s < samples; s++) {
+      float x = low[0] + random.nextFloat() * (high[0] - low[0]);
+      float y = low[1] + random.nextFloat() * (high[1] - low[1]);
+      float z = low[2] + random.nextFloat() * (high[2] - low[2]);
+      float exact = (float) Math.sqrt(x * x + y * y + z * z) - 1;
+      float e = Math.abs(field.distance(x, y, z) - exact);
+      error += e;
+      worst = Math.max(worst, e);
+      if (Math.abs(exact) < 2 * field.getCellSize()) {
+        bandError += e;
+        bandWorst = Math.max(bandWorst, e);
+        bandSamples++;
+      } else if ((field.distance(x, y, z) < 0) != (exact < 0)) {
+        wrongSign++;
+      }
+    }
+    float c = field.getCellSize();
+    System.out.printf("error in cells: mean %.3f, worst %.3f; near the surface mean %.3f, "
+        + "worst %.3f; %d wrong signs%n", error / samples / c, worst / c,
+        bandError / bandSamples / c, bandWorst / c, wrongSign);
+
+    File file = new File(args.length > 1 ? args[1] : "dragon.ply");
+    MeshData mesh = file.exists() ? MeshLoaders.read(file) : sphere;
+    System.out.println((file.exists() ? file.getName() : "no " + file + ", using the sphere")
+        + ": " + mesh.getTriangleCount() + " triangles");
+    for (int run = 0; run < 3; run++) {
+      long start = System.nanoTime();
+      field = new SignedDistanceField(mesh, resolution);
+      System.out.printf("built in %.1f ms, %s%n", (System.nanoTime() - start) / 1e6, field);
+    }
+
+    int queries = 2_000_000;
+    float[] points = new float[queries * 3];
+    low = field.getMin();
+    high = field.getMax();
+    for (int q = 0; q < points.length; q++)
+      points[q] = low[q % 3] + random.nextFloat() * (high[q % 3] - low[q % 3]);
+    float[] g = new float[3];
+    SignedDistanceField f = field;
+    for (int run = 0; run < 3; run++) {
+      long start = System.nanoTime();
+      float sum = 0;
+      for (int q = 0; q < queries; q++)
+        sum += f.distance(points[q * 3], points[q * 3 + 1], points[q * 3 + 2]);
+      long distanceNanos = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int q = 0; q < queries; q++)
+        sum += f.gradient(points[q * 3], points[q * 3 + 1], points[q * 3 + 2], g);
+      long gradientNanos = System.nanoTime() - start;
+      start = System.nanoTime();
+      double parallel = IntStream.range(0, queries).parallel()
+          .mapToDouble(q -> f.distance(points[q * 3], points[q * 3 + 1], points[q * 3 + 2]))
+          .sum();
+      long parallelNanos = System.nanoTime() - start;
+      System.out.printf("distance %.1f M/s, gradient %.1f M/s, distance on %d cores %.1f M/s"
+          + " (%.0f)%n", queries / (distanceNanos / 1e3), queries / (gradientNanos / 1e3),
+          Runtime.getRuntime().availableProcessors(), queries / (parallelNanos / 1e3),
+          sum + parallel);
+    }
+  }
+
+}
@@ -0,0 +1,115 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jogamp.opengl.GL2;
+
+/**
+ * Merges geometry that shares a material into one vertex and index buffer per material, so each
+ * batch draws with a single call and no matrix pushes. Every item is transformed into world
+ * coordinates on the CPU when the batch is built. A batch is only rebuilt when an item is added
+ * to it or removed, so geometry that does not change costs nothing beyond the draw call.
+ * Geometry that moves every frame does not belong here: it would rebuild its batch every frame.
+ * <p>
+ * Materials are just keys: the caller sets up the GL state for a material and then calls draw
+ * with the same key. All items in one batch must have the same primitive mode and the same
+ * vertex attributes.
+ */
+public class StaticBatcher {
+
+  /** One piece of geometry in a batch, the handle for removing it. */
+  public class Item {
+    private final Batch batch;
+    private final MeshData mesh;
+    private final float[] transform = new float[16];
+
+    private Item(Batch batch, MeshData mesh, float[] transform) {
+      this.batch = batch;
+      this.mesh = mesh;
+      System.arraycopy(transform, 0, this.transform, 0, 16);
+    }
+  }
+
+  private static class Batch {
+    final List<Item> items = new ArrayList<>();
+    GLMesh mesh;
+    boolean dirty = true;
+  }
+
+  private final Map<Object, Batch> batches = new LinkedHashMap<>();
+  private int rebuilds;
+
+  /**
+   * Adds mesh, placed by the column-major transform, to the batch for material and returns the
+   * handle for removing it later.
+   */
+  public Item add(Object material, MeshData mesh, float[] transform) {
+    Batch batch = batches.get(material);
+    if (batch == null) {
+      batch = new Batch();
+      batches.put(material, batch);
+    }
+    Item item = new Item(batch, mesh, transform);
+    batch.items.add(item);
+    batch.dirty = true;
+    return item;
+  }
+
+  public void remove(Item item) {
+    if (item.batch.items.remove(item))
+      item.batch.dirty = true;
+  }
+
+  /** Removes every item of a material. The buffers are freed on the next draw or dispose. */
+  public void clear(Object material) {
+    Batch batch = batches.get(material);
+    if (batch != null) {
+      batch.items.clear();
+      batch.dirty = true;
+    }
+  }
+
+  /**
+   * Draws the batch for material with one call, rebuilding it first if anything in it changed.
+   * Does nothing if the material has no items.
+   */
+  public void draw(GL2 gl, Object material) {
+    Batch batch = batches.get(material);
+    if (batch == null)
+      return;
+    if (batch.dirty)
+      rebuild(gl, batch);
+    if (batch.mesh != null)
+      batch.mesh.draw(gl);
+  }
+
+  /** Number of times any batch has been rebuilt. */
+  public int getRebuildCount() {
+    return rebuilds;
+  }
+
+  public void dispose(GL2 gl) {
+    for (Batch batch : batches.values()) {
+      if (batch.mesh != null)
+        batch.mesh.dispose(gl);
+      batch.mesh = null;
+      batch.dirty = true;
+    }
+  }
+
+  private void rebuild(GL2 gl, Batch batch) {
+    if (batch.mesh != null)
+      batch.mesh.dispose(gl);
+    batch.mesh = null;
+    batch.dirty = false;
+    if (batch.items.isEmpty())
+      return;
+    List<MeshData> parts = new ArrayList<>(batch.items.size());
+    for (Item item : batch.items)
+      parts.add(item.mesh.transform(item.transform));
+    batch.mesh = new GLMesh(gl, MeshData.merge(parts));
+    rebuilds++;
+  }
+
+}
@@ -0,0 +1,82 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import com.jogamp.opengl.GL2;
+
+/**
+ * Reads binary STL files: an 80 byte header, a triangle count, and 50 bytes per triangle, a
+ * facet normal and three corners as little-endian floats followed by two unused bytes. The file
+ * is memory-mapped and the corners copied straight out of it, in parallel for large files.
+ * Every triangle has its own three vertices and the facet normals are dropped; the Weld and
+ * Normals stages of the pipeline share the vertices and smooth the normals.
+ */
+public class StlReader implements MeshLoader {
+
+  private static final int HEADER = 84;
+  private static final int RECORD = 50;
+  private static final int PARALLEL_TRIANGLES = 1 << 16;
+
+  @Override
+  public String getName() {
+    return "STL";
+  }
+
+  @Override
+  public List<String> getExtensions() {
+    return Arrays.asList("stl");
+  }
+
+  /**
+   * Binary STL has no signature, and its header may even start with "solid" like ASCII STL, so
+   * a file is taken as binary STL when its size matches the triangle count.
+   */
+  @Override
+  public boolean matches(byte[] head, int length, long fileSize) {
+    if (length < HEADER)
+      return false;
+    long count = (head[80] & 0xFF) | (head[81] & 0xFF) << 8 | (head[82] & 0xFF) << 16
+        | (long) (head[83] & 0xFF) << 24;
+    return fileSize == HEADER + count * RECORD;
+  }
+
+  @Override
+  public MeshData read(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < HEADER)
+        throw new IOException("STL too short: " + file);
+      if (size > Integer.MAX_VALUE) // the most one mapping can hold, over 40M triangles
+        throw new IOException("STL larger than 2 GB: " + file);
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      long count = buffer.getInt(80) & 0xFFFFFFFFL;
+      if (size != HEADER + count * RECORD) {
+        if (new String(new byte[] {buffer.get(0), buffer.get(1), buffer.get(2), buffer.get(3),
+            buffer.get(4)}, "US-ASCII").equals("solid"))
+          throw new IOException("Only binary STL files are supported: " + file);
+        throw new IOException("STL size does not match its triangle count: " + file);
+      }
+      int triangles = (int) count;
+      float[] positions = new float[triangles * 9];
+      int[] indices = new int[triangles * 3];
+      IntStream range = IntStream.range(0, triangles);
+      (triangles >= PARALLEL_TRIANGLES ? range.parallel() : range).forEach(t -> {
+        long from = HEADER + (long) t * RECORD + 12; // past the facet normal
+        for (int i = 0; i < 9; i++)
+          positions[t * 9 + i] = buffer.getFloat((int) (from + i * 4));
+        indices[t * 3] = t * 3;
+        indices[t * 3 + 1] = t * 3 + 1;
+        indices[t * 3 + 2] = t * 3 + 2;
+      });
+      return new MeshData(GL2.GL_TRIANGLES, positions, null, null, null, indices);
+    }
+  }
+
+}
@@ -0,0 +1,190 @@
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.GLProfile;
+import com.jogamp.opengl.util.texture.Texture;
+import com.jogamp.opengl.util.texture.TextureData;
+import com.jogamp.opengl.util.texture.TextureIO;
+
+/**
+ * Loads textures without blocking the GL thread and shares them by path. Images are decoded on
+ * a small pool of worker threads. update, called on the GL thread at the start of each frame,
+ * uploads whatever has finished decoding, has GL generate the mipmaps, and sets the sampler
+ * state once. Each acquire of a path has to be matched by a release, and the texture is deleted
+ * when the last user releases it. reload decodes a path again after its file has changed, and
+ * update swaps the new texture in, so the old one stays in use until then.
+ */
+public class TextureManager {
+
+  /** A shared texture. getTexture returns null until the image has been decoded and uploaded. */
+  public static class Handle {
+    private final String path;
+    private final int wrap;
+    private int refCount;
+    private Future<TextureData> pending;
+    private Texture texture;
+    private boolean failed;
+
+    private Handle(String path, int wrap) {
+      this.path = path;
+      this.wrap = wrap;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public Texture getTexture() {
+      return texture;
+    }
+
+    public boolean isLoaded() {
+      return texture != null;
+    }
+
+    /** True if the image could not be read. */
+    public boolean isFailed() {
+      return failed;
+    }
+  }
+
+  private final GLProfile profile;
+  private final ExecutorService workers;
+  private final Map<String, Handle> handles = new HashMap<>();
+
+  /** Creates a manager that decodes images for the given profile on threads worker threads. */
+  TextureManager(GLProfile profile, int threads) {
+    this.profile = profile;
+    workers = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "texture loader");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Returns the shared texture for path, starting to load it if nobody holds it yet. wrap is
+   * used for both GL_TEXTURE_WRAP_S and GL_TEXTURE_WRAP_T, for example GL_MIRRORED_REPEAT; the
+   * first caller for a path decides it.
+   */
+  public synchronized Handle acquire(String path, int wrap) {
+    Handle handle = handles.get(path);
+    if (handle == null) {
+      handle = new Handle(path, wrap);
+      File file = new File(path);
+      handle.pending = workers.submit(() -> TextureIO.newTextureData(profile, file, true, null));
+      handles.put(path, handle);
+    }
+    handle.refCount++;
+    return handle;
+  }
+
+  /**
+   * Decodes the image of path again, if anybody holds it, and has the next update replace the
+   * texture with it and delete the old one. Until then the old texture is still drawn. If the
+   * new image cannot be read the old texture is kept.
+   */
+  public synchronized void reload(String path) {
+    Handle handle = handles.get(path);
+    if (handle == null)
+      return;
+    if (handle.pending != null)
+      handle.pending.cancel(true);
+    File file = new File(path);
+    handle.pending = workers.submit(() -> TextureIO.newTextureData(profile, file, true, null));
+  }
+
+  /**
+   * Drops one reference to the texture. When the count reaches zero the texture is deleted.
+   * Must be called on the GL thread.
+   */
+  public synchronized void release(GL2 gl, Handle handle) {
+    if (--handle.refCount > 0)
+      return;
+    handles.remove(handle.path);
+    if (handle.pending != null)
+      handle.pending.cancel(true);
+    if (handle.texture != null)
+      destroy(gl, handle.texture);
+    handle.texture = null;
+  }
+
+  /**
+   * Uploads the textures that have finished decoding, replacing those that were reloaded. Call
+   * on the GL thread, once per frame. Returns true if any texture became available.
+   */
+  public synchronized boolean update(GL2 gl) {
+    boolean uploaded = false;
+    for (Handle handle : handles.values()) {
+      if (handle.pending == null || !handle.pending.isDone())
+        continue;
+      TextureData data;
+      try {
+        data = handle.pending.get();
+      } catch (InterruptedException | ExecutionException e) {
+        System.out.println("Could not load texture " + handle.path);
+        e.printStackTrace();
+        handle.pending = null;
+        handle.failed = handle.texture == null; // a failed reload keeps the old texture
+        continue;
+      }
+      handle.pending = null;
+      Texture texture = TextureIO.newTexture(gl, data);
+      data.flush();
+      texture.setTexParameteri(gl, GL.GL_TEXTURE_WRAP_S, handle.wrap);
+      texture.setTexParameteri(gl, GL.GL_TEXTURE_WRAP_T, handle.wrap);
+      texture.setTexParameteri(gl, GL.GL_TEXTURE_MAG_FILTER, GL.GL_LINEAR);
+      texture.setTexParameteri(gl, GL.GL_TEXTURE_MIN_FILTER, GL.GL_LINEAR_MIPMAP_LINEAR);
+      if (gl.isExtensionAvailable("GL_EXT_texture_filter_anisotropic")) {
+        float[] max = new float[1];
+        gl.glGetFloatv(GL.GL_MAX_TEXTURE_MAX_ANISOTROPY_EXT, max, 0);
+        texture.setTexParameterf(gl, GL.GL_TEXTURE_MAX_ANISOTROPY_EXT, Math.min(max[0], 8));
+      }
+      if (handle.texture != null)
+        destroy(gl, handle.texture);
+      handle.texture = texture;
+      handle.failed = false;
+      GLResources.created(GLResources.Kind.TEXTURE, texture.getTextureObject(),
+          texture.getEstimatedMemorySize(), handle.path);
+      uploaded = true;
+    }
+    return uploaded;
+  }
+
+  /** True while some texture is still being decoded. */
+  public synchronized boolean isLoading() {
+    for (Handle handle : handles.values())
+      if (handle.pending != null)
+        return true;
+    return false;
+  }
+
+  /**
+   * Deletes every texture, whatever its reference count, and stops the worker threads. Must be
+   * called on the GL thread.
+   */
+  public synchronized void dispose(GL2 gl) {
+    for (Handle handle : handles.values()) {
+      if (handle.pending != null)
+        handle.pending.cancel(true);
+      if (handle.texture != null)
+        destroy(gl, handle.texture);
+      handle.texture = null;
+    }
+    handles.clear();
+    workers.shutdownNow();
+  }
+
+  private static void destroy(GL2 gl, Texture texture) {
+    GLResources.deleted(GLResources.Kind.TEXTURE, texture.getTextureObject());
+    texture.destroy(gl);
+  }
+
+}
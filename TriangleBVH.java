@@ -0,0 +1,483 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A bounding volume hierarchy over a fixed set of triangles, for casting rays against a whole
+ * mesh or scene. Unlike BoundsTree, which keeps moving objects in a tree that is updated one
+ * insert at a time, this is built once, top down, choosing each split by the surface area
+ * heuristic over binned centroids, and then never changes. Nodes and triangles live in flat
+ * arrays in the order they are visited, and each triangle is stored as a corner and two edges,
+ * ready for the ray test.
+ * <p>
+ * Queries do not modify the tree, so any number of threads can cast rays at once, each with its
+ * own Hit, which also holds the traversal stack so that casting a ray allocates nothing.
+ */
+public class TriangleBVH {
+
+  private static final int BINS = 16;
+  private static final int MAX_LEAF_SIZE = 8;
+  private static final int MAX_DEPTH = 60;
+  private static final float TRAVERSAL_COST = 1; // relative to testing one triangle
+
+  /** The nearest hit along a ray, and the scratch space for finding it. */
+  public static class Hit {
+    /** The triangle hit, as its index in the triangle list given to the constructor. */
+    public int triangle = -1;
+    /** Distance along the ray, in units of the direction's length. */
+    public float t;
+    /** Barycentric coordinates of the hit: weights of the second and third corners. */
+    public float u, v;
+
+    private final int[] stack = new int[MAX_DEPTH + 2];
+  }
+
+  private final int triangleCount;
+  private final float[] nodeBounds; // minX, minY, minZ, maxX, maxY, maxZ per node
+  private final int[] nodeStart; // first triangle of a leaf, or first child of an inner node
+  private final int[] nodeCount; // triangles in a leaf, 0 for inner nodes
+  private int nodes;
+  private int depth;
+  private final float[] triangles; // corner, edge to the second and edge to the third, per triangle
+  private final int[] ids; // the caller's index of each stored triangle
+
+  /** Builds the tree over a GL_TRIANGLES mesh. */
+  TriangleBVH(MeshData mesh) {
+    this(mesh.getPositions(), mesh.toTriangles().getIndices());
+  }
+
+  /**
+   * Builds the tree over the triangles given by corners, three vertex indices each into the x, y,
+   * z positions.
+   */
+  TriangleBVH(float[] positions, int[] corners) {
+    triangleCount = corners.length / 3;
+    int maxNodes = Math.max(1, triangleCount * 2 - 1);
+    nodeBounds = new float[maxNodes * 6];
+    nodeStart = new int[maxNodes];
+    nodeCount = new int[maxNodes];
+    triangles = new float[triangleCount * 9];
+    ids = new int[triangleCount];
+
+    float[] bounds = new float[triangleCount * 6];
+    float[] centroids = new float[triangleCount * 3];
+    for (int t = 0; t < triangleCount; t++) {
+      ids[t] = t;
+      for (int k = 0; k < 3; k++) {
+        float a = positions[corners[t * 3] * 3 + k], b = positions[corners[t * 3 + 1] * 3 + k],
+            c = positions[corners[t * 3 + 2] * 3 + k];
+        bounds[t * 6 + k] = Math.min(a, Math.min(b, c));
+        bounds[t * 6 + 3 + k] = Math.max(a, Math.max(b, c));
+        centroids[t * 3 + k] = (bounds[t * 6 + k] + bounds[t * 6 + 3 + k]) / 2;
+      }
+    }
+    build(bounds, centroids);
+
+    for (int i = 0; i < triangleCount; i++) {
+      int t = ids[i];
+      int a = corners[t * 3] * 3, b = corners[t * 3 + 1] * 3, c = corners[t * 3 + 2] * 3;
+      for (int k = 0; k < 3; k++) {
+        triangles[i * 9 + k] = positions[a + k];
+        triangles[i * 9 + 3 + k] = positions[b + k] - positions[a + k];
+        triangles[i * 9 + 6 + k] = positions[c + k] - positions[a + k];
+      }
+    }
+  }
+
+  public int getTriangleCount() {
+    return triangleCount;
+  }
+
+  public int getNodeCount() {
+    return nodes;
+  }
+
+  public int getDepth() {
+    return depth;
+  }
+
+  /** The bounds of all the triangles, as { minX, minY, minZ, maxX, maxY, maxZ }. */
+  public float[] getBounds() {
+    return Arrays.copyOf(nodeBounds, 6);
+  }
+
+  /**
+   * Finds the nearest triangle hit by the ray from (ox, oy, oz) along (dx, dy, dz), at a distance
+   * t with 0 < t < maxT. If cullBackFaces is true, triangles seen from behind, the side from
+   * which their corners go clockwise, are ignored as GL culls them. Returns false, leaving hit
+   * unchanged but for its scratch space, if there is none.
+   */
+  public boolean intersect(float ox, float oy, float oz, float dx, float dy, float dz, float maxT,
+      boolean cullBackFaces, Hit hit) {
+    if (triangleCount == 0)
+      return false;
+    float ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+    int[] stack = hit.stack;
+    int top = 0;
+    int found = -1;
+    float bestT = maxT, bestU = 0, bestV = 0;
+    if (enter(0, ox, oy, oz, ix, iy, iz, bestT) < Float.POSITIVE_INFINITY)
+      stack[top++] = 0;
+    while (top > 0) {
+      int node = stack[--top];
+      int count = nodeCount[node];
+      if (count > 0) {
+        for (int i = nodeStart[node], end = i + count; i < end; i++) {
+          int o = i * 9;
+          float e1x = triangles[o + 3], e1y = triangles[o + 4], e1z = triangles[o + 5];
+          float e2x = triangles[o + 6], e2y = triangles[o + 7], e2z = triangles[o + 8];
+          float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+          float det = e1x * px + e1y * py + e1z * pz;
+          if (cullBackFaces ? det <= 1e-12f : Math.abs(det) <= 1e-12f)
+            continue;
+          float inv = 1 / det;
+          float sx = ox - triangles[o], sy = oy - triangles[o + 1], sz = oz - triangles[o + 2];
+          float u = (sx * px + sy * py + sz * pz) * inv;
+          if (u < 0 || u > 1)
+            continue;
+          float qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+          float v = (dx * qx + dy * qy + dz * qz) * inv;
+          if (v < 0 || u + v > 1)
+            continue;
+          float t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+          if (t > 0 && t < bestT) {
+            bestT = t;
+            bestU = u;
+            bestV = v;
+            found = i;
+          }
+        }
+        continue;
+      }
+      // visit the nearer child first, so that the farther one can often be skipped
+      int left = nodeStart[node], right = left + 1;
+      float tLeft = enter(left, ox, oy, oz, ix, iy, iz, bestT);
+      float tRight = enter(right, ox, oy, oz, ix, iy, iz, bestT);
+      if (tLeft <= tRight) {
+        if (tRight < Float.POSITIVE_INFINITY)
+          stack[top++] = right;
+        if (tLeft < Float.POSITIVE_INFINITY)
+          stack[top++] = left;
+      } else {
+        if (tLeft < Float.POSITIVE_INFINITY)
+          stack[top++] = left;
+        stack[top++] = right;
+      }
+    }
+    if (found < 0)
+      return false;
+    hit.triangle = ids[found];
+    hit.t = bestT;
+    hit.u = bestU;
+    hit.v = bestV;
+    return true;
+  }
+
+  /**
+   * True if any triangle, seen from either side, is hit by the ray at a distance t with
+   * 0 < t < maxT. This stops at the first hit, so it is cheaper than intersect, for shadow and
+   * occlusion rays. The hit is only used for its scratch space.
+   */
+  public boolean occluded(float ox, float oy, float oz, float dx, float dy, float dz, float maxT,
+      Hit scratch) {
+    if (triangleCount == 0)
+      return false;
+    float ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+    int[] stack = scratch.stack;
+    int top = 0;
+    stack[top++] = 0;
+    while (top > 0) {
+      int node = stack[--top];
+      if (enter(node, ox, oy, oz, ix, iy, iz, maxT) == Float.POSITIVE_INFINITY)
+        continue;
+      int count = nodeCount[node];
+      if (count == 0) {
+        stack[top++] = nodeStart[node] + 1;
+        stack[top++] = nodeStart[node];
+        continue;
+      }
+      for (int i = nodeStart[node], end = i + count; i < end; i++) {
+        int o = i * 9;
+        float e1x = triangles[o + 3], e1y = triangles[o + 4], e1z = triangles[o + 5];
+        float e2x = triangles[o + 6], e2y = triangles[o + 7], e2z = triangles[o + 8];
+        float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+        float det = e1x * px + e1y * py + e1z * pz;
+        if (Math.abs(det) <= 1e-12f)
+          continue;
+        float inv = 1 / det;
+        float sx = ox - triangles[o], sy = oy - triangles[o + 1], sz = oz - triangles[o + 2];
+        float u = (sx * px + sy * py + sz * pz) * inv;
+        if (u < 0 || u > 1)
+          continue;
+        float qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+        float v = (dx * qx + dy * qy + dz * qz) * inv;
+        if (v < 0 || u + v > 1)
+          continue;
+        float t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+        if (t > 0 && t < maxT)
+          return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The distance at which the ray enters the node's box, or infinity if it misses the box or
+   * only reaches it at maxT or beyond. ix, iy, iz is the reciprocal of the ray direction.
+   */
+  private float enter(int node, float ox, float oy, float oz, float ix, float iy, float iz,
+      float maxT) {
+    // comparisons rather than Math.min and max, which are slower for their care over NaN and -0
+    int b = node * 6;
+    float t0 = (nodeBounds[b] - ox) * ix, t1 = (nodeBounds[b + 3] - ox) * ix;
+    float near = t0 < t1 ? t0 : t1, far = t0 < t1 ? t1 : t0;
+    t0 = (nodeBounds[b + 1] - oy) * iy;
+    t1 = (nodeBounds[b + 4] - oy) * iy;
+    if (t0 > t1) {
+      float swap = t0;
+      t0 = t1;
+      t1 = swap;
+    }
+    near = t0 > near ? t0 : near;
+    far = t1 < far ? t1 : far;
+    t0 = (nodeBounds[b + 2] - oz) * iz;
+    t1 = (nodeBounds[b + 5] - oz) * iz;
+    if (t0 > t1) {
+      float swap = t0;
+      t0 = t1;
+      t1 = swap;
+    }
+    near = t0 > near ? t0 : near;
+    far = t1 < far ? t1 : far;
+    return near <= far && far > 0 && near < maxT ? near : Float.POSITIVE_INFINITY;
+  }
+
+  // -------------------------------- building --------------------------------
+
+  /**
+   * Splits the triangles top down. Each node is split on the axis and bin boundary with the
+   * lowest surface area cost, and becomes a leaf when no split is cheaper than testing all its
+   * triangles and there are few enough of them. Children are stored next to each other.
+   */
+  private void build(float[] bounds, float[] centroids) {
+    if (triangleCount == 0) {
+      nodes = 1;
+      return;
+    }
+    // node, start, end and depth of the nodes still to split
+    int[] work = new int[4 * (MAX_DEPTH + 2) * 2];
+    int top = 0;
+    nodes = 1;
+    work[top++] = 0;
+    work[top++] = 0;
+    work[top++] = triangleCount;
+    work[top++] = 1;
+    float[] binBounds = new float[BINS * 6];
+    int[] binCounts = new int[BINS];
+    float[] rightCosts = new float[BINS];
+    float[] centroidBox = new float[6];
+    float[] sweep = new float[6];
+    while (top > 0) {
+      int level = work[--top], end = work[--top], start = work[--top], node = work[--top];
+      depth = Math.max(depth, level);
+      int count = end - start;
+      setBounds(node, bounds, start, end);
+
+      // the bins divide the box of the centroids
+      empty(centroidBox, 0);
+      for (int i = start; i < end; i++)
+        for (int k = 0; k < 3; k++) {
+          float x = centroids[ids[i] * 3 + k];
+          centroidBox[k] = Math.min(centroidBox[k], x);
+          centroidBox[k + 3] = Math.max(centroidBox[k + 3], x);
+        }
+
+      float bestCost = Float.POSITIVE_INFINITY;
+      int bestAxis = -1, bestBin = 0;
+      for (int axis = 0; axis < 3 && count > 1 && level < MAX_DEPTH; axis++) {
+        float extent = centroidBox[axis + 3] - centroidBox[axis];
+        if (extent <= 0)
+          continue;
+        Arrays.fill(binCounts, 0);
+        for (int i = 0; i < BINS; i++)
+          empty(binBounds, i);
+        float scale = BINS / extent;
+        for (int i = start; i < end; i++) {
+          int t = ids[i];
+          int bin = Math.min(BINS - 1, (int) ((centroids[t * 3 + axis] - centroidBox[axis]) * scale));
+          binCounts[bin]++;
+          grow(binBounds, bin, bounds, t);
+        }
+        // sweep from the right, then from the left, costing the split after each bin
+        empty(sweep, 0);
+        int rightCount = 0;
+        for (int i = BINS - 1; i > 0; i--) {
+          rightCount += binCounts[i];
+          growBox(sweep, binBounds, i);
+          rightCosts[i] = area(sweep, 0) * rightCount;
+        }
+        empty(sweep, 0);
+        int leftCount = 0;
+        for (int i = 0; i < BINS - 1; i++) {
+          leftCount += binCounts[i];
+          growBox(sweep, binBounds, i);
+          if (leftCount == 0 || leftCount == count)
+            continue;
+          float cost = area(sweep, 0) * leftCount + rightCosts[i + 1];
+          if (cost < bestCost) {
+            bestCost = cost;
+            bestAxis = axis;
+            bestBin = i;
+          }
+        }
+      }
+
+      float nodeArea = area(nodeBounds, node * 6);
+      float splitCost = TRAVERSAL_COST + (nodeArea > 0 ? bestCost / nodeArea : bestCost);
+      boolean split = bestAxis >= 0 && (splitCost < count || count > MAX_LEAF_SIZE);
+      // every centroid in one place, and too many triangles for a leaf: split the list in half
+      boolean halve = bestAxis < 0 && count > MAX_LEAF_SIZE && level < MAX_DEPTH;
+      if (!split && !halve) {
+        nodeStart[node] = start;
+        nodeCount[node] = count;
+        continue;
+      }
+
+      int middle = (start + end) / 2;
+      if (split) {
+        float scale = BINS / (centroidBox[bestAxis + 3] - centroidBox[bestAxis]);
+        int i = start, j = end - 1;
+        while (i <= j) {
+          float x = centroids[ids[i] * 3 + bestAxis];
+          if (Math.min(BINS - 1, (int) ((x - centroidBox[bestAxis]) * scale)) <= bestBin) {
+            i++;
+          } else {
+            int swap = ids[i];
+            ids[i] = ids[j];
+            ids[j--] = swap;
+          }
+        }
+        middle = i;
+      }
+      int left = nodes;
+      nodes += 2;
+      nodeStart[node] = left;
+      nodeCount[node] = 0;
+      work[top++] = left + 1;
+      work[top++] = middle;
+      work[top++] = end;
+      work[top++] = level + 1;
+      work[top++] = left;
+      work[top++] = start;
+      work[top++] = middle;
+      work[top++] = level + 1;
+    }
+  }
+
+  private void setBounds(int node, float[] bounds, int start, int end) {
+    int b = node * 6;
+    empty(nodeBounds, node);
+    for (int i = start; i < end; i++) {
+      int t = ids[i] * 6;
+      for (int k = 0; k < 3; k++) {
+        nodeBounds[b + k] = Math.min(nodeBounds[b + k], bounds[t + k]);
+        nodeBounds[b + 3 + k] = Math.max(nodeBounds[b + 3 + k], bounds[t + 3 + k]);
+      }
+    }
+  }
+
+  private static void empty(float[] boxes, int box) {
+    for (int k = 0; k < 3; k++) {
+      boxes[box * 6 + k] = Float.POSITIVE_INFINITY;
+      boxes[box * 6 + 3 + k] = Float.NEGATIVE_INFINITY;
+    }
+  }
+
+  private static void grow(float[] boxes, int box, float[] bounds, int triangle) {
+    for (int k = 0; k < 3; k++) {
+      boxes[box * 6 + k] = Math.min(boxes[box * 6 + k], bounds[triangle * 6 + k]);
+      boxes[box * 6 + 3 + k] = Math.max(boxes[box * 6 + 3 + k], bounds[triangle * 6 + 3 + k]);
+    }
+  }
+
+  private static void growBox(float[] box, float[] boxes, int other) {
+    for (int k = 0; k < 3; k++) {
+      box[k] = Math.min(box[k], boxes[other * 6 + k]);
+      box[k + 3] = Math.max(box[k + 3], boxes[other * 6 + 3 + k]);
+    }
+  }
+
+  /** Half the surface area of a box, which is all the heuristic needs; 0 for an empty box. */
+  private static float area(float[] boxes, int offset) {
+    float x = boxes[offset + 3] - boxes[offset], y = boxes[offset + 4] - boxes[offset + 1],
+        z = boxes[offset + 5] - boxes[offset + 2];
+    if (x < 0 || y < 0 || z < 0)
+      return 0;
+    return x * y + y * z + z * x;
+  }
+
+  /**
+   * Checks random rays against testing every triangle, then times building the tree and casting
+   * rays at a sphere of many triangles. Usage: java TriangleBVH [slices]
+   */
+  public static void main(String[] args) {
+    int slices = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+    MeshData sphere = ProceduralMesh.sphere(slices, slices / 2);
+    long start = System.nanoTime();
+    TriangleBVH bvh = new TriangleBVH(sphere);
+    System.out.printf("built over %d triangles in %.1f ms: %d nodes, depth %d%n",
+        bvh.getTriangleCount(), (System.nanoTime() - start) / 1e6, bvh.getNodeCount(),
+        bvh.getDepth());
+
+    // against brute force, with a small mesh so that brute force is quick
+    MeshData small = ProceduralMesh.sphere(24, 12);
+    TriangleBVH smallBvh = new TriangleBVH(small);
+    TriangleBVH[] single = new TriangleBVH[small.getTriangleCount()];
+    int[] indices = small.getIndices();
+    for (int t = 0; t < single.length; t++)
+      single[t] = new TriangleBVH(small.getPositions(), Arrays.copyOfRange(indices, t * 3, t * 3 + 3));
+    Random random = new Random(7);
+    Hit hit = new Hit(), other = new Hit();
+    int mismatches = 0;
+    for (int r = 0; r < 2000; r++) {
+      float ox = random.nextFloat() * 4 - 2, oy = random.nextFloat() * 4 - 2,
+          oz = random.nextFloat() * 4 - 2;
+      float dx = (float) random.nextGaussian(), dy = (float) random.nextGaussian(),
+          dz = (float) random.nextGaussian();
+      boolean cull = r % 2 == 0;
+      boolean found = smallBvh.intersect(ox, oy, oz, dx, dy, dz, 100, cull, hit);
+      float nearest = 100;
+      for (TriangleBVH one : single)
+        if (one.intersect(ox, oy, oz, dx, dy, dz, nearest, cull, other))
+          nearest = other.t;
+      if (found != (nearest < 100) || found && Math.abs(hit.t - nearest) > 1e-5f)
+        mismatches++;
+      if (smallBvh.occluded(ox, oy, oz, dx, dy, dz, 100, hit) != (nearest < 100) && !cull)
+        mismatches++;
+    }
+    System.out.println(mismatches == 0 ? "matches brute force" : mismatches + " MISMATCHES");
+
+    // rays from around the sphere towards random points near it, about half of them hitting
+    int rays = 1_000_000;
+    float[] origins = new float[rays * 3], directions = new float[rays * 3];
+    for (int r = 0; r < rays; r++) {
+      double theta = random.nextDouble() * 2 * Math.PI, phi = Math.acos(random.nextDouble() * 2 - 1);
+      origins[r * 3] = (float) (3 * Math.sin(phi) * Math.cos(theta));
+      origins[r * 3 + 1] = (float) (3 * Math.sin(phi) * Math.sin(theta));
+      origins[r * 3 + 2] = (float) (3 * Math.cos(phi));
+      for (int k = 0; k < 3; k++)
+        directions[r * 3 + k] = random.nextFloat() * 2.8f - 1.4f - origins[r * 3 + k];
+    }
+    for (int run = 0; run < 3; run++) {
+      int hits = 0;
+      start = System.nanoTime();
+      for (int r = 0; r < rays; r++)
+        if (bvh.intersect(origins[r * 3], origins[r * 3 + 1], origins[r * 3 + 2],
+            directions[r * 3], directions[r * 3 + 1], directions[r * 3 + 2], 10, true, hit))
+          hits++;
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("%d rays, %d hits, %.2f Mrays/s on one thread%n", rays, hits,
+          rays / seconds / 1e6);
+    }
+  }
+
+}